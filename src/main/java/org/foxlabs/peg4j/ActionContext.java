@@ -63,4 +63,18 @@ public interface ActionContext {
    */
   Location end();
 
+  /**
+   * Returns start offset in the input character stream.
+   * 
+   * @return Start offset in the input character stream.
+   */
+  long startOffset();
+
+  /**
+   * Returns end offset in the input character stream.
+   * 
+   * @return End offset in the input character stream.
+   */
+  long endOffset();
+
 }
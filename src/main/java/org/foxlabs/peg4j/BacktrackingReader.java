@@ -18,6 +18,18 @@ package org.foxlabs.peg4j;
 
 import java.util.Arrays;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 import java.io.Reader;
 import java.io.IOException;
 
@@ -33,8 +45,39 @@ import org.foxlabs.util.Location;
  * previously marked position allowing to start reading from saved point. Depth
  * of markers is not limited.</p>
  * 
+ * <p>Method {@link #cut()} commits current position meaning that stream will
+ * never be reset to a position before it. Characters before the latest cut
+ * are discarded from internal buffer once buffer has to grow, so memory
+ * consumption of the reader is proportional to the distance between cuts
+ * rather than to the length of the stream.</p>
+ * 
+ * <p>In streaming mode (see {@link #setStreaming(boolean)}) characters before
+ * the oldest stored pointer that can still be reset are discarded as well,
+ * so unbounded streams can be read in constant memory as long as pointers
+ * are released or committed by cuts. Offsets are
+ * always counted from the beginning of the stream regardless of discarded
+ * characters.</p>
+ * 
+ * <p>Reader can also be constructed over a character array or a character
+ * sequence. Character array is used as internal buffer directly unless it
+ * contains <code>\r</code> characters, so no characters are copied. Note that
+ * array should not be modified while it is being read.</p>
+ * 
+ * <p>Reader constructed over UTF-8 bytes (see
+ * {@link #BacktrackingReader(ByteBuffer, String)}) keeps the bytes as is and
+ * decodes characters only when they are read, so ASCII content is never
+ * decoded at all and buffer takes a byte per ASCII character. In this byte
+ * mode all offsets, lengths and counts of skipped characters are measured in
+ * bytes and the {@link #read()} method returns Unicode code points, so
+ * supplementary characters are read at once rather than as surrogate
+ * pairs.</p>
+ * 
+ * <p>Reader keeps track of offsets only. Line and column numbers are
+ * computed when a location is requested, using index of line starts that
+ * is built lazily as far as requested offsets go.</p>
+ * 
  * <p>Note that this reader implementation is not thread-safe. Also this reader
- * skips <code>\r</code> characters.</p>
+ * skips <code>\r</code> characters unless it is in raw newlines mode.</p>
  * 
  * @author Fox Mulder
  * @see Parser
@@ -56,13 +99,40 @@ public class BacktrackingReader extends Reader {
    */
   private static final int MIN_BUFFER_DELTA_SIZE = 4096;
 
+  /**
+   * Maximum size of internal character buffer.
+   */
+  private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
   /**
    * Initial size of markers stack.
    */
   private static final int INITIAL_MARKER_SIZE = 50;
 
   /**
-   * Underlying character stream.
+   * Initial size of the line index.
+   */
+  private static final int INITIAL_LINE_SIZE = 64;
+
+  /**
+   * Empty character buffer, actual buffer is allocated on first read.
+   */
+  private static final char[] EMPTY_BUFFER = new char[0];
+
+  /**
+   * Minimum size of the file to be memory-mapped, smaller files are read
+   * into heap buffer.
+   */
+  private static final int MIN_MAPPED_FILE_SIZE = 64 * 1024;
+
+  /**
+   * Size of the byte buffer used to read channels.
+   */
+  private static final int CHANNEL_BUFFER_SIZE = 8192;
+
+  /**
+   * Underlying character stream or <code>null</code> if all the characters
+   * are in buffer.
    */
   private Reader in;
 
@@ -74,47 +144,151 @@ public class BacktrackingReader extends Reader {
   /**
    * Character buffer.
    */
-  private char[] buffer = new char[MIN_BUFFER_DELTA_SIZE];
+  private char[] buffer = EMPTY_BUFFER;
 
   /**
-   * Current number of characters in buffer.
+   * UTF-8 bytes or <code>null</code> if this reader is not in byte mode.
    */
-  private int size = 0;
+  private ByteBuffer bytes = null;
 
   /**
-   * Current offset in character buffer.
+   * Offset of the first character in buffer, characters before it have been
+   * discarded.
    */
-  private int offset = 0;
+  private long base = 0L;
 
   /**
-   * Number of current line in character buffer (starts with 1).
+   * Offset of the end of characters in buffer.
    */
-  private int line = 0;
+  private long size = 0L;
 
   /**
-   * Number of current column in character buffer (starts with 1).
+   * Current offset in character stream.
    */
-  private int column = 0;
+  private long offset = 0L;
+
+  /**
+   * Offset of the latest cut, characters before it will never be read again.
+   */
+  private long cutOffset = 0L;
+
+  /**
+   * Line number of the first character (starts with 1).
+   */
+  private final int startLine;
+
+  /**
+   * Column number of the first character (starts with 1).
+   */
+  private final int startColumn;
+
+  /**
+   * Offsets of line starts found so far, the first one is offset of the
+   * {@link #lineBase} line.
+   */
+  private long[] lineStarts = new long[INITIAL_LINE_SIZE];
+
+  /**
+   * Number of offsets in the {@link #lineStarts} array.
+   */
+  private int lineCount = 1;
+
+  /**
+   * Number of lines before the first one in the {@link #lineStarts} array,
+   * their offsets have been discarded.
+   */
+  private int lineBase = 0;
+
+  /**
+   * Offset up to which characters have been scanned for line terminators.
+   */
+  private long lineOffset = 0L;
 
   /**
    * Stack of saved marker offsets.
    */
-  private int[] markOffsets = new int[INITIAL_MARKER_SIZE];
+  private long[] markOffsets = new long[INITIAL_MARKER_SIZE];
 
   /**
-   * Stack of saved marker lines.
+   * Current number of saved markers in character buffer.
+   */
+  private int marker = 0;
+
+  /**
+   * Number of saved markers that point before the latest cut and cannot be
+   * reset.
+   */
+  private int cutMarker = 0;
+
+  /**
+   * Line numbers of saved markers that point before the latest cut. They are
+   * resolved at cut time, since line starts before the cut are discarded.
    */
   private int[] markLines = new int[INITIAL_MARKER_SIZE];
 
   /**
-   * Stack of saved marker columns.
+   * Column numbers of saved markers that point before the latest cut.
    */
   private int[] markColumns = new int[INITIAL_MARKER_SIZE];
 
   /**
-   * Current number of saved markers in character buffer.
+   * Number of saved markers whose locations have been resolved.
    */
-  private int marker = 0;
+  private int resolvedMarker = 0;
+
+  /**
+   * This flag is used to discard characters before the oldest stored pointer
+   * that can still be reset.
+   */
+  private boolean streaming = false;
+
+  /**
+   * This flag is used to keep line terminators as they are.
+   */
+  private boolean rawNewlines = false;
+
+  /**
+   * Original characters of in-memory source if they were copied or should
+   * be normalized again, <code>null</code> otherwise.
+   */
+  private CharBuffer source = null;
+
+  /**
+   * Line terminator to be skipped if it is the first character of the next
+   * portion of underlying stream or <code>0</code>.
+   */
+  private char pendingSkip = 0;
+
+  /**
+   * This flag is used to indicate that end of underlying stream has been
+   * reached, so that it is not read again.
+   */
+  private boolean eof;
+
+  /**
+   * This flag is used to indicate that stream has been closed.
+   */
+  private boolean closed = false;
+
+  /**
+   * Total number of stored pointers.
+   */
+  private long markCount = 0L;
+
+  /**
+   * Total number of resets to stored pointers.
+   */
+  private long resetCount = 0L;
+
+  /**
+   * Total number of characters that position moved back by resets.
+   */
+  private long backtrackLength = 0L;
+
+  /**
+   * Maximum number of saved markers at once.
+   */
+  private int peakMarker = 0;
 
   /**
    * Constructs a new backtracking reader with the specified underlying
@@ -171,10 +345,166 @@ public class BacktrackingReader extends Reader {
    */
   public BacktrackingReader(Reader in, String file, int line, int column) {
     this.in = in;
+    this.eof = in == null;
     this.file = file;
-    this.markLines[0] = this.line = line < 1 ? 1 : line;
-    this.markColumns[0] = this.column = column < 1 ? 1 : column;
-    this.markOffsets[0] = 0;
+    this.startLine = line < 1 ? 1 : line;
+    this.startColumn = column < 1 ? 1 : column;
+    this.markOffsets[0] = 0L;
+    this.markLines[0] = startLine;
+    this.markColumns[0] = startColumn;
+  }
+
+  /**
+   * Constructs a new backtracking reader over the specified portion of
+   * character array. Array is not copied unless it contains <code>\r</code>
+   * characters.
+   * 
+   * @param chars Character array.
+   * @param offset Offset of the first character to be read.
+   * @param length Number of characters to be read.
+   * @throws IndexOutOfBoundsException if the specified offset or length is
+   *         negative or size of the specified array is not enough.
+   */
+  public BacktrackingReader(char[] chars, int offset, int length) {
+    this(chars, offset, length, null);
+  }
+
+  /**
+   * Constructs a new backtracking reader over the specified portion of
+   * character array and start location. Array is not copied unless it
+   * contains <code>\r</code> characters.
+   * 
+   * @param chars Character array.
+   * @param offset Offset of the first character to be read.
+   * @param length Number of characters to be read.
+   * @param start Start location or <code>null</code>.
+   * @throws IndexOutOfBoundsException if the specified offset or length is
+   *         negative or size of the specified array is not enough.
+   */
+  public BacktrackingReader(char[] chars, int offset, int length, Location start) {
+    this((Reader) null, start == null ? null : start.file,
+        start == null ? 1 : start.line, start == null ? 1 : start.column);
+    if (offset < 0 || length < 0 || offset + length > chars.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    setChars(chars, offset, length);
+  }
+
+  /**
+   * Constructs a new backtracking reader over the specified subsequence of
+   * character sequence.
+   * 
+   * @param text Character sequence.
+   * @param start Start index of the subsequence (inclusive).
+   * @param end End index of the subsequence (exclusive).
+   * @throws IndexOutOfBoundsException if the specified indexes are out of
+   *         bounds of the specified character sequence.
+   */
+  public BacktrackingReader(CharSequence text, int start, int end) {
+    this(text, start, end, null);
+  }
+
+  /**
+   * Constructs a new backtracking reader over the specified subsequence of
+   * character sequence and start location. Array backed
+   * {@link CharBuffer}s are read in place, other sequences are copied once
+   * into internal buffer.
+   * 
+   * @param text Character sequence.
+   * @param start Start index of the subsequence (inclusive).
+   * @param end End index of the subsequence (exclusive).
+   * @param location Start location or <code>null</code>.
+   * @throws IndexOutOfBoundsException if the specified indexes are out of
+   *         bounds of the specified character sequence.
+   */
+  public BacktrackingReader(CharSequence text, int start, int end, Location location) {
+    this((Reader) null, location == null ? null : location.file,
+        location == null ? 1 : location.line, location == null ? 1 : location.column);
+    if (start < 0 || start > end || end > text.length()) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (text instanceof CharBuffer && ((CharBuffer) text).hasArray()) {
+      CharBuffer chars = (CharBuffer) text;
+      setChars(chars.array(), chars.arrayOffset() + chars.position() + start, end - start);
+    } else {
+      char[] chars = new char[end - start];
+      if (text instanceof String) {
+        ((String) text).getChars(start, end, chars, 0);
+      } else if (text instanceof StringBuilder) {
+        ((StringBuilder) text).getChars(start, end, chars, 0);
+      } else if (text instanceof StringBuffer) {
+        ((StringBuffer) text).getChars(start, end, chars, 0);
+      } else {
+        for (int i = start; i < end; i++) {
+          chars[i - start] = text.charAt(i);
+        }
+      }
+      setChars(chars, 0, chars.length);
+    }
+  }
+
+  /**
+   * Constructs a new backtracking reader over content of the specified file.
+   * File is memory-mapped (unless it is small) and decoded at once into
+   * buffer of the maximum size required for the specified charset, so
+   * characters are never copied again. ASCII and Latin-1 content is decoded
+   * directly from the mapping. Malformed input is replaced with the
+   * <code>\uFFFD</code> character.
+   * 
+   * @param file File which content to be read.
+   * @param charset Content charset.
+   * @throws IOException if IO error occurred or file is larger than 2GB.
+   */
+  public BacktrackingReader(Path file, Charset charset) throws IOException {
+    this((Reader) null, file.toString(), 1, 1);
+    CharBuffer chars = decode(map(file), charset);
+    setChars(chars.array(), 0, chars.position());
+  }
+
+  /**
+   * Constructs a new backtracking reader over the specified channel. Bytes
+   * are read into direct buffer and decoded straight into internal character
+   * buffer, so no intermediate buffering is involved. ASCII and Latin-1 bytes
+   * are not passed through the decoder at all. Malformed input is replaced
+   * with the <code>\uFFFD</code> character. Note that channel should be in
+   * blocking mode.
+   * 
+   * @param channel Channel to be read.
+   * @param charset Charset of the channel content.
+   * @param file Name of the file associated with the channel or
+   *        <code>null</code>.
+   */
+  public BacktrackingReader(ReadableByteChannel channel, Charset charset, String file) {
+    this(new ChannelReader(channel, charset), file, 1, 1);
+  }
+
+  /**
+   * Constructs a new backtracking reader in byte mode over remaining UTF-8
+   * bytes of the specified buffer. Bytes are neither copied nor decoded in
+   * advance. Note that buffer should not be modified while it is being read.
+   * 
+   * @param utf8 UTF-8 bytes.
+   * @param file Name of the file associated with the bytes or
+   *        <code>null</code>.
+   */
+  public BacktrackingReader(ByteBuffer utf8, String file) {
+    this((Reader) null, file, 1, 1);
+    this.bytes = utf8.slice();
+    this.size = bytes.remaining();
+  }
+
+  /**
+   * Determines whether this reader reads UTF-8 bytes directly. In byte mode
+   * the {@link #read()} method returns supplementary characters at once
+   * rather than as surrogate pairs, so tokens containing such characters
+   * cannot be matched char by char.
+   * 
+   * @return <code>true</code> if this reader is in byte mode;
+   *         <code>false</code> otherwise.
+   * @see #BacktrackingReader(ByteBuffer, String)
+   */
+  public boolean isByteMode() {
+    return bytes != null;
   }
 
   /**
@@ -187,6 +517,66 @@ public class BacktrackingReader extends Reader {
     return file;
   }
 
+  /**
+   * Determines whether this reader discards characters before the oldest
+   * stored pointer that can still be reset.
+   * 
+   * @return <code>true</code> if this reader is in streaming mode;
+   *         <code>false</code> otherwise.
+   */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Enables or disables streaming mode for this reader. In streaming mode
+   * characters before the oldest pointer stored by the {@link #mark()} method
+   * that follows the latest cut (or before current position if there are no
+   * such pointers) are discarded from internal buffer once buffer has to
+   * grow. Pointers that precede the latest cut cannot be reset, so they do
+   * not keep characters. The {@link #getText()} and {@link #getChars()}
+   * methods will not return discarded characters.
+   * 
+   * @param streaming Determines whether this reader should discard characters
+   *        before the oldest stored pointer that can still be reset.
+   */
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Determines whether this reader keeps line terminators as they are.
+   * 
+   * @return <code>true</code> if this reader is in raw newlines mode;
+   *         <code>false</code> otherwise.
+   */
+  public boolean isRawNewlines() {
+    return rawNewlines;
+  }
+
+  /**
+   * Enables or disables raw newlines mode for this reader. By default
+   * <code>\r\n</code>, <code>\n\r</code> and <code>\r</code> sequences are
+   * replaced with <code>\n</code>. In raw newlines mode characters are read
+   * as they are and only <code>\n</code> characters start a new line, so
+   * input that is known to contain no <code>\r</code> characters is not
+   * scanned for them. Mode should be set before reading.
+   * 
+   * @param rawNewlines Determines whether this reader should keep line
+   *        terminators as they are.
+   * @throws IllegalStateException if characters have already been read or
+   *         buffered from underlying character stream.
+   */
+  public void setRawNewlines(boolean rawNewlines) {
+    if (offset > 0 || in != null && size > 0) {
+      throw new IllegalStateException();
+    }
+    this.rawNewlines = rawNewlines;
+    if (source != null) {
+      setChars(source.array(), source.arrayOffset() + source.position(), source.remaining());
+    }
+  }
+
   /**
    * Returns offset of previously saved postition in character stream by latest
    * {@link #mark()} method call.
@@ -195,7 +585,7 @@ public class BacktrackingReader extends Reader {
    *         {@link #mark()} method call or 0 if marker stack is empty.
    * @see #mark()
    */
-  public int getStartOffset() {
+  public long getStartOffset() {
     return markOffsets[marker];
   }
 
@@ -204,10 +594,32 @@ public class BacktrackingReader extends Reader {
    * 
    * @return Current offset in character stream.
    */
-  public int getEndOffset() {
+  public long getEndOffset() {
     return offset;
   }
 
+  /**
+   * Returns offset of the latest cut in character stream.
+   * 
+   * @return Offset of the latest cut in character stream or 0 if there were
+   *         no cuts.
+   * @see #cut()
+   */
+  public long getCutOffset() {
+    return cutOffset;
+  }
+
+  /**
+   * Returns offset of the first character kept in internal buffer. Characters
+   * before it have been discarded by cuts or in streaming mode and stream will
+   * never be reset to a position before it.
+   * 
+   * @return Offset of the first character kept in internal buffer.
+   */
+  public long getBufferOffset() {
+    return base;
+  }
+
   /**
    * Returns line number of previously saved postition in character stream by
    * latest {@link #mark()} method call.
@@ -217,7 +629,7 @@ public class BacktrackingReader extends Reader {
    * @see #mark()
    */
   public int getStartLine() {
-    return markLines[marker];
+    return marker <= resolvedMarker ? markLines[marker] : lineAt(markOffsets[marker]);
   }
 
   /**
@@ -226,7 +638,7 @@ public class BacktrackingReader extends Reader {
    * @return Current line number in character stream.
    */
   public int getEndLine() {
-    return line;
+    return lineAt(offset);
   }
 
   /**
@@ -238,7 +650,7 @@ public class BacktrackingReader extends Reader {
    * @see #mark()
    */
   public int getStartColumn() {
-    return markColumns[marker];
+    return marker <= resolvedMarker ? markColumns[marker] : columnAt(markOffsets[marker]);
   }
 
   /**
@@ -247,7 +659,7 @@ public class BacktrackingReader extends Reader {
    * @return Current column number in character stream.
    */
   public int getEndColumn() {
-    return column;
+    return columnAt(offset);
   }
 
   /**
@@ -260,7 +672,9 @@ public class BacktrackingReader extends Reader {
    * @see Location
    */
   public Location getStart() {
-    return Location.valueOf(file, markLines[marker], markColumns[marker]);
+    return marker <= resolvedMarker
+        ? Location.valueOf(file, markLines[marker], markColumns[marker])
+        : locationAt(markOffsets[marker]);
   }
 
   /**
@@ -270,47 +684,74 @@ public class BacktrackingReader extends Reader {
    * @see Location
    */
   public Location getEnd() {
-    return Location.valueOf(file, line, column);
+    return locationAt(offset);
+  }
+
+  /**
+   * Returns location of the specified offset in character stream. Offset
+   * should not exceed the current offset. If offset precedes characters
+   * discarded by cuts or in streaming mode then start location of the stream
+   * may be returned.
+   * 
+   * @param offset Offset in character stream.
+   * @return Location of the specified offset.
+   * @see Location
+   */
+  public Location getLocation(long offset) {
+    return locationAt(offset);
   }
 
   /**
    * Returns characters in character buffer as a string starting from previously
-   * saved position by latest {@link #mark()} method call.
+   * saved position by latest {@link #mark()} method call. If saved position
+   * precedes the latest cut or characters discarded in streaming mode then
+   * those characters are not included.
    * 
    * @return Characters in character buffer as a string starting from previously
    *         saved position by latest {@link #mark()} method call or all
    *         available characters if markers stack is empty.
    * @see #mark()
+   * @see #cut()
    */
   public String getText() {
-    int length = getLength();
+    long start = Math.max(markOffsets[marker], Math.max(cutOffset, base));
+    int length = (int) (offset - start);
     if (length == 0) {
       return null;
+    } else if (bytes != null) {
+      return new String(decodeBytes((int) start));
     } else {
-      return new String(buffer, markOffsets[marker], length);
+      return new String(buffer, (int) (start - base), length);
     }
   }
 
   /**
    * Returns characters in character buffer as an array starting from previously
-   * saved position by latest {@link #mark()} method call.
+   * saved position by latest {@link #mark()} method call. If saved position
+   * precedes the latest cut or characters discarded in streaming mode then
+   * those characters are not included.
    * 
    * @return Characters in character buffer as an array starting from previously
    *         saved position by latest {@link #mark()} method call or all
    *         available characters if markers stack is empty.
    * @see #mark()
+   * @see #cut()
    */
   public char[] getChars() {
-    int start = markOffsets[marker];
-    int length = offset - start;
+    long start = Math.max(markOffsets[marker], Math.max(cutOffset, base));
+    int length = (int) (offset - start);
+    if (bytes != null) {
+      return decodeBytes((int) start);
+    }
     char[] chars = new char[length];
-    System.arraycopy(buffer, start, chars, 0, length);
+    System.arraycopy(buffer, (int) (start - base), chars, 0, length);
     return chars;
   }
 
   /**
    * Returns number of characters in character buffer starting from previosly
-   * saved position by latest {@link #mark()} method call.
+   * saved position by latest {@link #mark()} method call. In byte mode number
+   * of bytes is returned.
    * 
    * @return Number of characters in character buffer starting from previosly
    *         saved position by latest {@link #mark()} method call or total
@@ -318,11 +759,95 @@ public class BacktrackingReader extends Reader {
    * @see #mark()
    */
   public int getLength() {
-    return offset - markOffsets[marker];
+    return (int) (offset - markOffsets[marker]);
+  }
+
+  // Statistics
+
+  /**
+   * Returns number of characters available in character stream so far. For
+   * in-memory sources this is the length of the source, for underlying
+   * streams this is the number of characters read from them. In byte mode
+   * number of bytes is returned.
+   * 
+   * @return Number of characters available in character stream so far.
+   */
+  public long getInputLength() {
+    return size;
+  }
+
+  /**
+   * Returns total number of pointers stored by the {@link #mark()} method.
+   * 
+   * @return Total number of stored pointers.
+   */
+  public long getMarkCount() {
+    return markCount;
+  }
+
+  /**
+   * Returns total number of resets by the {@link #reset()} method.
+   * 
+   * @return Total number of resets.
+   */
+  public long getResetCount() {
+    return resetCount;
+  }
+
+  /**
+   * Returns total number of characters that position in character stream
+   * moved back by the {@link #reset()} method. Current offset plus this
+   * number is the number of characters advanced over including the ones
+   * read again after backtracking.
+   * 
+   * @return Total number of characters that position moved back.
+   */
+  public long getBacktrackLength() {
+    return backtrackLength;
+  }
+
+  /**
+   * Returns current number of stored pointers.
+   * 
+   * @return Current depth of the markers stack.
+   */
+  public int getMarkDepth() {
+    return marker;
   }
 
   /**
-   * Reads a single character.
+   * Returns maximum number of pointers stored at once since this reader was
+   * created or the {@link #resetPeakMarkDepth()} method was called.
+   * 
+   * @return Maximum depth of the markers stack.
+   */
+  public int getPeakMarkDepth() {
+    return peakMarker;
+  }
+
+  /**
+   * Restarts tracking of the maximum number of pointers stored at once from
+   * the current depth of the markers stack.
+   * 
+   * @see #getPeakMarkDepth()
+   */
+  public void resetPeakMarkDepth() {
+    peakMarker = marker;
+  }
+
+  /**
+   * Returns current capacity of the index of line starts that is used to
+   * compute locations. Line starts are discarded along with characters, so
+   * with cuts or in streaming mode the index does not grow with the input.
+   * 
+   * @return Current capacity of the line index in offsets.
+   */
+  public int getLineCapacity() {
+    return lineStarts.length;
+  }
+
+  /**
+   * Reads a single character. In byte mode a Unicode code point is read.
    * 
    * @return The character read as an integer or {@link #EOF} if the end of the
    *         stream has been reached.
@@ -336,7 +861,60 @@ public class BacktrackingReader extends Reader {
         return EOF;
       }
     }
-    return readBuffer();
+    return bytes == null ? readBuffer() : readBytes();
+  }
+
+  /**
+   * Reads the specified UTF-8 bytes if they follow in this reader. This
+   * method allows to match tokens in byte mode without decoding. Bytes should
+   * not contain line terminators.
+   * 
+   * @param utf8 UTF-8 bytes to be matched.
+   * @return <code>true</code> if the specified bytes were read;
+   *         <code>false</code> if they do not follow in this reader, current
+   *         position is not changed in this case.
+   * @throws IOException if stream has been closed.
+   * @throws IllegalStateException if this reader is not in byte mode.
+   * @see #isByteMode()
+   */
+  public boolean read(byte[] utf8) throws IOException {
+    ensureOpen();
+    if (bytes == null) {
+      throw new IllegalStateException();
+    } else if (size - offset < utf8.length) {
+      return false;
+    }
+    for (int i = 0; i < utf8.length; i++) {
+      if (bytes.get((int) offset + i) != utf8[i]) {
+        return false;
+      }
+    }
+    offset += utf8.length;
+    return true;
+  }
+
+  /**
+   * Returns next character without consuming it.
+   * 
+   * @return Next character as an integer or {@link #EOF} if the end of the
+   *         stream has been reached.
+   * @throws IOException if an IO error occurred.
+   */
+  public int peek() throws IOException {
+    ensureOpen();
+    if (offset == size) {
+      int count = fillBuffer(1);
+      if (count < 0) {
+        return EOF;
+      }
+    }
+    if (bytes != null) {
+      long offset = this.offset;
+      int ch = readBytes();
+      this.offset = offset;
+      return ch;
+    }
+    return buffer[(int) (offset - base)];
   }
 
   /**
@@ -359,20 +937,37 @@ public class BacktrackingReader extends Reader {
       return 0;
     }
 
-    if (length > 0) {
-      length = fillBuffer(length);
-      if (length > 0) {
-        for (int i = offset, j = offset + length; i < j; i++) {
-          buffer[i] = readBuffer();
+    if (bytes != null) {
+      int i = offset, j = offset + length;
+      for (; i < j && this.offset < size; i++) {
+        int ch = peek();
+        if (Character.isSupplementaryCodePoint(ch)) {
+          if (i + 1 == j) {
+            break;
+          }
+          buffer[i++] = Character.highSurrogate(ch);
+          buffer[i] = Character.lowSurrogate(ch);
+        } else {
+          buffer[i] = (char) ch;
         }
+        readBytes();
       }
+      return i == offset ? EOF : i - offset;
+    }
+
+    length = fillBuffer(length);
+    if (length > 0) {
+      System.arraycopy(this.buffer, (int) (this.offset - base), buffer, offset, length);
+      this.offset += length;
     }
 
     return length;
   }
 
   /**
-   * Skips the specified number of characters.
+   * Skips the specified number of characters. In byte mode the specified
+   * number of bytes is skipped, so it should end at a character boundary.
+   * Characters are not examined, so skipping takes constant time.
    * 
    * <p>Note that maximum number of characters to skip is limited to
    * {@link Integer#MAX_VALUE}.</p>
@@ -389,9 +984,13 @@ public class BacktrackingReader extends Reader {
       throw new IllegalArgumentException();
     }
 
-    count = fillBuffer((int) count); // long is not supported
-    for (int i = 0; i < count; i++) {
-      readBuffer(); // update location
+    if (bytes != null) {
+      count = Math.min(count, size - offset);
+    } else {
+      count = fillBuffer((int) count); // long is not supported
+    }
+    if (count > 0L) {
+      offset += count;
     }
 
     return count;
@@ -407,7 +1006,7 @@ public class BacktrackingReader extends Reader {
   @Override
   public boolean ready() throws IOException {
     ensureOpen();
-    return offset < size || in.ready();
+    return offset < size || !eof && in.ready();
   }
 
   /**
@@ -444,15 +1043,13 @@ public class BacktrackingReader extends Reader {
     marker++;
 
     if (marker == markOffsets.length) {
-      int newLength = markOffsets.length * 2;
-      markOffsets = Arrays.copyOf(markOffsets, newLength);
-      markLines = Arrays.copyOf(markLines, newLength);
-      markColumns = Arrays.copyOf(markColumns, newLength);
+      markOffsets = Arrays.copyOf(markOffsets, markOffsets.length * 2);
     }
-
     markOffsets[marker] = offset;
-    markLines[marker] = line;
-    markColumns[marker] = column;
+    markCount++;
+    if (marker > peakMarker) {
+      peakMarker = marker;
+    }
   }
 
   /**
@@ -468,6 +1065,12 @@ public class BacktrackingReader extends Reader {
       throw new IllegalStateException();
     } else {
       marker--;
+      if (cutMarker > marker) {
+        cutMarker = marker;
+      }
+      if (resolvedMarker > marker) {
+        resolvedMarker = marker;
+      }
     }
   }
 
@@ -477,26 +1080,54 @@ public class BacktrackingReader extends Reader {
    * 
    * @throws IOException if stream has been closed.
    * @throws IllegalStateException if there are no previously stored pointers.
+   * @throws CutException if previously stored pointer precedes the latest cut.
    * @see #mark()
+   * @see #cut()
    */
   public void reset() throws IOException {
     ensureOpen();
     if (marker == 0) {
       throw new IllegalStateException();
+    } else if (marker <= cutMarker) {
+      throw new CutException(getEnd());
     } else {
+      backtrackLength += offset - markOffsets[marker];
       offset = markOffsets[marker];
-      line = markLines[marker];
-      column = markColumns[marker];
       marker--;
+      if (resolvedMarker > marker) {
+        resolvedMarker = marker;
+      }
+      resetCount++;
     }
   }
 
+  /**
+   * Commits current position in character stream. Previously stored pointers
+   * that precede current position cannot be reset after this method call and
+   * characters before current position may be discarded from internal buffer,
+   * so the {@link #getText()} and {@link #getChars()} methods will return only
+   * characters that follow the cut.
+   * 
+   * @throws IOException if stream has been closed.
+   * @see #reset()
+   */
+  public void cut() throws IOException {
+    ensureOpen();
+    cutOffset = offset;
+    cutMarker = marker;
+    while (cutMarker > 0 && markOffsets[cutMarker] == offset) {
+      cutMarker--;
+    }
+    resolveMarkers();
+  }
+
   /**
    * Closes the stream and releases any system resources associated with it.
    * 
    * @throws IOException if an IO error occurred.
    */
   public void close() throws IOException {
+    closed = true;
     if (in != null) {
       in.close();
       in = null;
@@ -509,7 +1140,7 @@ public class BacktrackingReader extends Reader {
    * @throws IOException if stream has been closed.
    */
   private void ensureOpen() throws IOException {
-    if (in == null) {
+    if (closed) {
       throw new IOException("Stream has been closed");
     }
   }
@@ -519,97 +1150,643 @@ public class BacktrackingReader extends Reader {
    * it can hold the specified number of additional characters.
    * 
    * @param count Number of additional characters.
+   * @throws IOException if buffer cannot hold more characters, streaming mode
+   *         or cuts should be used to read such a long input.
    */
-  private void ensureCapacity(int count) {
-    if (size + count > buffer.length) {
-      buffer = Arrays.copyOf(buffer, buffer.length * 3 / 2 + count);
+  private void ensureCapacity(int count) throws IOException {
+    long capacity = size - base + count;
+    if (capacity > buffer.length) {
+      if (capacity > MAX_BUFFER_SIZE) {
+        throw new IOException("Buffer size limit exceeded at offset " + offset);
+      }
+      buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 3L / 2L + count, MAX_BUFFER_SIZE));
+    }
+  }
+
+  /**
+   * Returns current capacity of internal buffer. Buffer never shrinks, so
+   * this is the peak memory taken by the characters of the stream. Character
+   * arrays and byte buffers read in place are counted entirely.
+   * 
+   * @return Current capacity of internal buffer in characters or in bytes in
+   *         byte mode.
+   */
+  public int getCapacity() {
+    return bytes != null ? bytes.capacity() : buffer.length;
+  }
+
+  /**
+   * Discards characters that will never be read again from internal character
+   * buffer if buffer cannot hold the specified number of additional
+   * characters. Characters are discarded only if there are at least as many
+   * of them as remaining ones, so that each character is moved amortized
+   * constant number of times; otherwise buffer grows.
+   * 
+   * @param count Number of additional characters.
+   */
+  private void discardBuffer(int count) {
+    long start = cutOffset;
+    if (streaming) {
+      start = Math.max(start, marker > cutMarker ? markOffsets[cutMarker + 1] : offset);
+    }
+    if (start > base && start - base >= size - start && size - base + count > buffer.length) {
+      indexLines(start);
+      discardLines(start);
+      System.arraycopy(buffer, (int) (start - base), buffer, 0, (int) (size - start));
+      base = start;
     }
   }
 
   /**
    * Returns next character from internal character buffer and increases current
-   * offset, line and column if necessary.
+   * offset.
    * 
    * @return Next character from internal character buffer.
    */
   private char readBuffer() {
-    char ch = buffer[offset++];
-    if (ch == '\n') {
-      line++;
-      column = 1;
+    return buffer[(int) (offset++ - base)];
+  }
+
+  /**
+   * Decodes next code point from UTF-8 bytes and increases current offset.
+   * Line terminators are handled the same way as in character mode and
+   * malformed sequences are decoded as the <code>\uFFFD</code> character.
+   * 
+   * @return Next code point.
+   */
+  private int readBytes() {
+    int b = bytes.get((int) offset++);
+    if (b >= 0) { // ASCII
+      if (b == '\r' && rawNewlines) {
+        return b;
+      } else if (b == '\n' || b == '\r') {
+        if (!rawNewlines && offset < size && bytes.get((int) offset) == (b == '\n' ? '\r' : '\n')) {
+          offset++;
+        }
+        return '\n';
+      }
+      return b;
+    }
+
+    int ch, count;
+    if ((b & 0xE0) == 0xC0) {
+      ch = b & 0x1F;
+      count = 1;
+    } else if ((b & 0xF0) == 0xE0) {
+      ch = b & 0x0F;
+      count = 2;
+    } else if ((b & 0xF8) == 0xF0) {
+      ch = b & 0x07;
+      count = 3;
     } else {
-      column++;
+      return '\uFFFD';
+    }
+    for (; count > 0 && offset < size; count--) {
+      b = bytes.get((int) offset);
+      if ((b & 0xC0) != 0x80) {
+        return '\uFFFD';
+      }
+      ch = ch << 6 | b & 0x3F;
+      offset++;
+    }
+    return count > 0 ? '\uFFFD' : ch;
+  }
+
+  // Locations
+
+  /**
+   * Returns location of the specified offset.
+   * 
+   * @param offset Offset in character stream.
+   * @return Location of the specified offset.
+   */
+  private Location locationAt(long offset) {
+    int index = lineIndexOf(offset);
+    return Location.valueOf(file, lineOf(index), columnOf(index, offset));
+  }
+
+  /**
+   * Returns line number of the specified offset.
+   * 
+   * @param offset Offset in character stream.
+   * @return Line number of the specified offset.
+   */
+  private int lineAt(long offset) {
+    return lineOf(lineIndexOf(offset));
+  }
+
+  /**
+   * Returns column number of the specified offset.
+   * 
+   * @param offset Offset in character stream.
+   * @return Column number of the specified offset.
+   */
+  private int columnAt(long offset) {
+    return columnOf(lineIndexOf(offset), offset);
+  }
+
+  /**
+   * Resolves locations of saved markers that point before the latest cut, so
+   * that line starts before the cut can be discarded. Each marker is resolved
+   * once while it is saved.
+   */
+  private void resolveMarkers() {
+    if (resolvedMarker < cutMarker) {
+      if (markLines.length <= cutMarker) {
+        markLines = Arrays.copyOf(markLines, markOffsets.length);
+        markColumns = Arrays.copyOf(markColumns, markOffsets.length);
+      }
+      for (int i = resolvedMarker + 1; i <= cutMarker; i++) {
+        int index = lineIndexOf(markOffsets[i]);
+        markLines[i] = lineOf(index);
+        markColumns[i] = columnOf(index, markOffsets[i]);
+      }
+      resolvedMarker = cutMarker;
     }
-    return ch;
+  }
+
+  /**
+   * Returns line number of the specified index in the {@link #lineStarts}
+   * array.
+   */
+  private int lineOf(int index) {
+    return index < 0 ? startLine : startLine + lineBase + index;
+  }
+
+  /**
+   * Returns column number of the specified offset in line of the specified
+   * index in the {@link #lineStarts} array. In byte mode code points are
+   * counted the same way they are decoded.
+   */
+  private int columnOf(int index, long offset) {
+    if (index < 0) {
+      return startColumn;
+    }
+    long start = lineStarts[index];
+    int column = lineBase + index == 0 ? startColumn : 1;
+    if (bytes == null) {
+      return column + (int) (offset - start);
+    }
+    for (int i = (int) start, end = (int) offset; i < end; column++) {
+      int b = bytes.get(i++);
+      int count = (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : (b & 0xF8) == 0xF0 ? 3 : 0;
+      for (; count > 0 && i < end && (bytes.get(i) & 0xC0) == 0x80; count--) {
+        i++;
+      }
+    }
+    return column;
+  }
+
+  /**
+   * Returns index of the line that contains the specified offset in the
+   * {@link #lineStarts} array. Line terminators are indexed up to the
+   * specified offset if necessary and line is found using binary search.
+   * If offset precedes discarded lines (the start of stream is the only such
+   * offset that can be requested) then -1 is returned.
+   */
+  private int lineIndexOf(long offset) {
+    if (lineOffset < offset) {
+      indexLines(offset);
+    }
+    int low = 0, high = lineCount - 1;
+    if (lineStarts[high] <= offset) {
+      return high;
+    } else if (offset < lineStarts[0]) {
+      return -1;
+    }
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (lineStarts[mid] <= offset) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Scans characters up to the specified offset for line terminators and
+   * stores offsets of line starts.
+   */
+  private void indexLines(long end) {
+    if (bytes == null) {
+      char[] chars = buffer;
+      for (int i = (int) (lineOffset - base), j = (int) (end - base); i < j; i++) {
+        if (chars[i] == '\n') {
+          addLine(base + i + 1);
+        }
+      }
+      lineOffset = Math.max(lineOffset, end);
+    } else {
+      int i = (int) lineOffset, j = (int) end;
+      while (i < j) {
+        int b = bytes.get(i++);
+        if (b == '\n' || b == '\r' && !rawNewlines) {
+          if (!rawNewlines && i < size && bytes.get(i) == (b == '\n' ? '\r' : '\n')) {
+            i++;
+          }
+          addLine(i);
+        }
+      }
+      lineOffset = Math.max(lineOffset, i);
+    }
+  }
+
+  /**
+   * Appends offset of line start to the {@link #lineStarts} array.
+   */
+  private void addLine(long start) {
+    if (lineCount == lineStarts.length) {
+      lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+    }
+    lineStarts[lineCount++] = start;
+  }
+
+  /**
+   * Discards offsets of line starts that precede line of the specified
+   * offset, since locations before it will never be requested.
+   */
+  private void discardLines(long offset) {
+    int index = lineIndexOf(offset);
+    if (index > 0) { // keep lineStarts[0] if offset precedes it
+      System.arraycopy(lineStarts, index, lineStarts, 0, lineCount - index);
+      lineCount -= index;
+      lineBase += index;
+    }
+  }
+
+  /**
+   * Decodes UTF-8 bytes from the specified offset to current offset.
+   * 
+   * @param start Start offset.
+   * @return Decoded characters.
+   */
+  private char[] decodeBytes(int start) {
+    ByteBuffer slice = bytes.duplicate();
+    slice.limit((int) offset).position(start);
+    CharBuffer chars = StandardCharsets.UTF_8.decode(slice);
+    if (rawNewlines) {
+      return Arrays.copyOfRange(chars.array(), chars.position(), chars.limit());
+    }
+    char[] result = new char[chars.remaining()];
+    int length = normalize(chars.array(), chars.position(), chars.limit(), result, 0);
+    return length == result.length ? result : Arrays.copyOf(result, length);
   }
 
   /**
    * Fills internal character buffer with the specified number of characters
-   * from underlying character stream if necessary.
+   * from underlying character stream if necessary. Once the end of underlying
+   * stream is reached it is never read again.
    * 
    * @param count Desired number of characters in buffer.
-   * @return Actual number of characters in buffer available for read.
+   * @return Actual number of characters in buffer available for read that
+   *         does not exceed the desired number.
    * @throws IOException if an IO error occurred.
    */
   private int fillBuffer(int count) throws IOException {
-    int rem = size - offset;
+    int rem = (int) Math.min(size - offset, count);
     if (rem >= count) {
       return count;
+    } else if (eof) {
+      return rem == 0 ? EOF : rem;
     }
 
-    int delta = (count - rem) * 2; // to avoid long sequence of the \n\r
+    int delta = count - rem;
     if (delta < MIN_BUFFER_DELTA_SIZE) {
       delta = MIN_BUFFER_DELTA_SIZE;
     }
 
+    discardBuffer(delta);
     ensureCapacity(delta);
-    int length = in.read(buffer, size, delta);
-    if (length < 0) {
-      return rem == 0 ? EOF : rem;
-    }
+    do { // portion may consist of skipped line terminator only
+      int start = (int) (size - base);
+      int length = in.read(buffer, start, delta);
+      if (length < 0) {
+        eof = true;
+        pendingSkip = 0;
+        return rem == 0 ? EOF : rem;
+      }
+      size += rawNewlines ? length : normalizeBuffer(start, start + length) - start;
+    } while (size == offset + rem);
 
-    for (int i = size, j = size + length; i < j;) {
-      int ch = buffer[i++];
-      switch (ch) {
-      case '\n':
-        buffer[size++] = '\n';
-        if (i < j) {
-          if (buffer[i] == '\r')
-            i++;
-        } else {
-          do { // read until \n? sequence ends
-            ch = in.read();
-            if (!(ch < 0 || ch == '\r')) {
-              ensureCapacity(1);
-              buffer[size++] = (char) ch;
-            }
-          } while (ch == '\n');
+    return (int) Math.min(size - offset, count);
+  }
+
+  /**
+   * Replaces <code>\r\n</code>, <code>\n\r</code> and <code>\r</code>
+   * sequences with <code>\n</code> in the specified portion of internal
+   * character buffer just read from underlying character stream. Runs of
+   * characters between <code>\r</code> characters are moved at once. Line
+   * terminator at the end of portion is kept in the {@link #pendingSkip}
+   * field, so that underlying stream is never read ahead.
+   * 
+   * @param start Start index in internal character buffer (inclusive).
+   * @param end End index in internal character buffer (exclusive).
+   * @return New end index in internal character buffer.
+   */
+  private int normalizeBuffer(int start, int end) {
+    char[] chars = buffer;
+    int i = start, j = start;
+    if (pendingSkip != 0) {
+      if (i < end && chars[i] == pendingSkip) {
+        i++;
+      }
+      pendingSkip = 0;
+    }
+    while (i < end) {
+      int k = i;
+      while (k < end && chars[k] != '\r') {
+        k++;
+      }
+      boolean newline = k > i && chars[k - 1] == '\n';
+      if (i > j) {
+        System.arraycopy(chars, i, chars, j, k - i);
+      }
+      j += k - i;
+      if (k == end) {
+        if (newline) {
+          pendingSkip = '\r';
         }
         break;
+      }
+      i = k + 1;
+      if (!newline) { // otherwise \r of the \n\r sequence is skipped
+        chars[j++] = '\n';
+        if (i == end) {
+          pendingSkip = '\n';
+        } else if (chars[i] == '\n') {
+          i++;
+        }
+      }
+    }
+    return j;
+  }
 
-      case '\r':
-        buffer[size++] = '\n';
-        if (i < j) {
-          if (buffer[i] == '\n')
-            i++;
-        } else {
-          do { // read until \r? sequence ends
-            ch = in.read();
-            if (!(ch < 0 || ch == '\n')) {
-              ensureCapacity(1);
-              buffer[size++] = ch == '\r' ? '\n' : (char) ch;
-            }
-          } while (ch == '\r');
+
+  /**
+   * Decodes the specified bytes into character buffer of the maximum size
+   * required for the specified charset.
+   * 
+   * @param bytes Bytes to be decoded.
+   * @param charset Charset of the bytes.
+   * @return Array backed character buffer which position is the number of
+   *         decoded characters.
+   * @throws IOException if bytes cannot be decoded.
+   */
+  private static CharBuffer decode(ByteBuffer bytes, Charset charset) throws IOException {
+    int length = bytes.remaining();
+    if (StandardCharsets.ISO_8859_1.equals(charset) || StandardCharsets.US_ASCII.equals(charset)) {
+      int max = StandardCharsets.US_ASCII.equals(charset) ? 0x7F : 0xFF;
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++) {
+        int ch = bytes.get(i) & 0xFF;
+        chars[i] = ch > max ? '\uFFFD' : (char) ch;
+      }
+      return CharBuffer.wrap(chars, length, 0);
+    }
+
+    CharsetDecoder decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    long capacity = (long) Math.ceil(length * (double) decoder.maxCharsPerByte());
+    if (capacity > Integer.MAX_VALUE) {
+      throw new IOException("Content is too large");
+    }
+    CharBuffer chars = CharBuffer.allocate((int) capacity);
+    CoderResult result = decoder.decode(bytes, chars, true);
+    if (result.isUnderflow()) {
+      result = decoder.flush(chars);
+    }
+    if (!result.isUnderflow()) {
+      result.throwException();
+    }
+    return chars;
+  }
+
+  /**
+   * Sets the specified portion of character array as internal character
+   * buffer. Array is copied only if it contains <code>\r</code> characters
+   * that should be skipped.
+   * 
+   * @param chars Character array.
+   * @param offset Offset of the first character.
+   * @param length Number of characters.
+   */
+  private void setChars(char[] chars, int offset, int length) {
+    int end = offset + length;
+    int i = rawNewlines ? end : offset;
+    while (i < end && chars[i] != '\r') {
+      i++;
+    }
+    if (i == end) {
+      buffer = chars;
+      base = -offset;
+      size = length;
+      source = rawNewlines ? CharBuffer.wrap(chars, offset, length) : null;
+      return;
+    }
+
+    source = CharBuffer.wrap(chars, offset, length);
+    base = 0;
+    buffer = new char[length];
+    int j = i - offset;
+    System.arraycopy(chars, offset, buffer, 0, j);
+    if (j > 0 && chars[i - 1] == '\n') {
+      i++; // skip \r of the \n\r sequence
+    }
+    size = normalize(chars, i, end, buffer, j);
+  }
+
+  /**
+   * Copies the specified portion of character array into another array
+   * replacing <code>\r\n</code>, <code>\n\r</code> and <code>\r</code>
+   * sequences with <code>\n</code>.
+   * 
+   * @param chars Source array.
+   * @param start Start index in the source array (inclusive).
+   * @param end End index in the source array (exclusive).
+   * @param dest Destination array.
+   * @param index Start index in the destination array.
+   * @return End index in the destination array.
+   */
+  private static int normalize(char[] chars, int start, int end, char[] dest, int index) {
+    for (int i = start; i < end;) {
+      char ch = chars[i++];
+      if (ch == '\n') {
+        if (i < end && chars[i] == '\r') {
+          i++;
         }
-        break;
+      } else if (ch == '\r') {
+        ch = '\n';
+        if (i < end && chars[i] == '\n') {
+          i++;
+        }
+      }
+      dest[index++] = ch;
+    }
+    return index;
+  }
 
-      default:
-        buffer[size++] = (char) ch;
-        break;
+  /**
+   * Returns content of the specified file. File is memory-mapped unless it is
+   * small.
+   * 
+   * @param file File which content to be returned.
+   * @return Content of the specified file.
+   * @throws IOException if IO error occurred or file is larger than 2GB.
+   */
+  static ByteBuffer map(Path file) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long length = channel.size();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("File is too large: " + file);
+      } else if (length < MIN_MAPPED_FILE_SIZE) {
+        ByteBuffer bytes = ByteBuffer.allocate((int) length);
+        while (bytes.hasRemaining() && channel.read(bytes) >= 0);
+        bytes.flip();
+        return bytes;
+      } else {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0L, length);
+      }
+    }
+  }
+
+  // ChannelReader
+
+  /**
+   * Reader that decodes bytes of a channel directly into destination array.
+   * 
+   * @author Fox Mulder
+   */
+  private static final class ChannelReader extends Reader {
+
+    /**
+     * Underlying channel.
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * Charset decoder or <code>null</code> if bytes are simply widened.
+     */
+    private final CharsetDecoder decoder;
+
+    /**
+     * Maximum value of byte that can be widened.
+     */
+    private final int maxByte;
+
+    /**
+     * Bytes read from the channel but not decoded yet.
+     */
+    private final ByteBuffer input = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+
+    /**
+     * Buffer used to read a single character that may be a part of surrogate
+     * pair.
+     */
+    private final char[] pair = new char[2];
+
+    /**
+     * Low surrogate left after a single character read or -1.
+     */
+    private int pending = -1;
+
+    /**
+     * This flag is used to indicate that end of the channel has been reached.
+     */
+    private boolean eof = false;
+
+    /**
+     * This flag is used to indicate that all the input has been decoded and
+     * decoder is being flushed.
+     */
+    private boolean flushing = false;
+
+    /**
+     * This flag is used to indicate that decoder has been flushed.
+     */
+    private boolean flushed = false;
+
+    /**
+     * Constructs a new channel reader.
+     * 
+     * @param channel Channel to be read.
+     * @param charset Charset of the channel content.
+     */
+    ChannelReader(ReadableByteChannel channel, Charset charset) {
+      this.channel = channel;
+      if (StandardCharsets.ISO_8859_1.equals(charset) || StandardCharsets.US_ASCII.equals(charset)) {
+        this.decoder = null;
+        this.maxByte = StandardCharsets.US_ASCII.equals(charset) ? 0x7F : 0xFF;
+      } else {
+        this.decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.maxByte = 0;
       }
+      input.flip();
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      } else if (pending >= 0) {
+        chars[offset] = (char) pending;
+        pending = -1;
+        return 1;
+      } else if (length == 1 && decoder != null) {
+        // Supplementary character cannot be decoded into a single char
+        int count = read(pair, 0, 2);
+        if (count > 0) {
+          chars[offset] = pair[0];
+          if (count > 1) {
+            pending = pair[1];
+          }
+        }
+        return count < 0 ? count : 1;
+      }
+
+      CharBuffer output = CharBuffer.wrap(chars, offset, length);
+      for (;;) {
+        if (decoder == null) {
+          for (int i = Math.min(input.remaining(), output.remaining()); i > 0; i--) {
+            int ch = input.get() & 0xFF;
+            output.put(ch > maxByte ? '\uFFFD' : (char) ch);
+          }
+        } else if (!flushed) {
+          CoderResult result = flushing ? CoderResult.UNDERFLOW : decoder.decode(input, output, eof);
+          if (result.isUnderflow() && eof) {
+            flushing = true;
+            result = decoder.flush(output);
+            flushed = result.isUnderflow();
+          }
+          if (result.isError()) {
+            result.throwException();
+          }
+        }
+
+        int count = output.position() - offset;
+        if (count > 0) {
+          return count;
+        } else if (eof && !input.hasRemaining()) {
+          return EOF;
+        }
+
+        input.compact();
+        if (channel.read(input) < 0) {
+          eof = true;
+        }
+        input.flip();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
     }
 
-    return size - offset;
   }
 
 }
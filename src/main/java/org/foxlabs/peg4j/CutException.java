@@ -0,0 +1,58 @@
+/* 
+ * Copyright (C) 2014 FoxLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j;
+
+import org.foxlabs.util.Location;
+
+/**
+ * Thrown by the {@link BacktrackingReader} to indicate an attempt to reset
+ * position in character stream before the latest cut. Parser treats this
+ * exception as syntax error because input committed by the cut cannot be
+ * recognized by another alternative.
+ * 
+ * @author Fox Mulder
+ * @see BacktrackingReader#cut()
+ */
+public class CutException extends Peg4jException {
+  private static final long serialVersionUID = 3150813474587261926L;
+
+  /**
+   * Location in character stream where backtracking was attempted.
+   */
+  private final Location location;
+
+  /**
+   * Constructs a new cut exception with the specified location.
+   * 
+   * @param location Location in character stream where backtracking was
+   *        attempted.
+   */
+  public CutException(Location location) {
+    super("Cannot backtrack before the cut");
+    this.location = location;
+  }
+
+  /**
+   * Returns location in character stream where backtracking was attempted.
+   * 
+   * @return Location in character stream where backtracking was attempted.
+   */
+  public Location getLocation() {
+    return location;
+  }
+
+}
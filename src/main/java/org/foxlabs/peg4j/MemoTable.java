@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j;
+
+/**
+ * Defines storage interface for results of memoized productions. Each entry of
+ * the table is identified by production index and offset in the character
+ * stream where production was recognized, and keeps number of recognized
+ * characters and optional transaction snapshot. Productions that failed are
+ * stored with the {@link #FAILURE} length, so that repeated attempts return
+ * immediately.
+ *
+ * <p>Parser creates a new table for each parsing using the
+ * {@link Parser#createMemoTable()} method, so implementations are not required
+ * to be thread-safe. To avoid allocation of entry objects the
+ * {@link #find(int, long)} method does not return entry but makes it current,
+ * so values of the entry can be obtained using the {@link #getLength()} and
+ * {@link #getDelta()} methods.</p>
+ *
+ * @author Fox Mulder
+ * @see Parser#setMemoable(boolean)
+ * @see org.foxlabs.peg4j.util.HashMemoTable
+ * @see org.foxlabs.peg4j.util.DenseMemoTable
+ * @see org.foxlabs.peg4j.util.DirectMemoTable
+ * @see org.foxlabs.peg4j.util.BoundedMemoTable
+ */
+public interface MemoTable {
+
+  /**
+   * Number of recognized characters of the entry for failed production.
+   */
+  int FAILURE = -1;
+
+  /**
+   * Finds entry for the specified production index and offset in the
+   * character stream and makes it current.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @return <code>true</code> if entry was found; <code>false</code>
+   *         otherwise.
+   */
+  boolean find(int production, long offset);
+
+  /**
+   * Returns number of recognized characters of the current entry.
+   *
+   * @return Number of recognized characters of the current entry or
+   *         {@link #FAILURE} if production failed.
+   */
+  int getLength();
+
+  /**
+   * Returns transaction snapshot of the current entry.
+   *
+   * @return Transaction snapshot of the current entry or <code>null</code> if
+   *         there is no snapshot.
+   */
+  Transaction getDelta();
+
+  /**
+   * Stores a new entry for the specified production index and offset in the
+   * character stream.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @param length Number of recognized characters or {@link #FAILURE} if
+   *        production failed.
+   * @param delta Transaction snapshot or <code>null</code>.
+   */
+  void put(int production, long offset, int length, Transaction delta);
+
+  /**
+   * Removes entry for the specified production index and offset in the
+   * character stream if it exists.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   */
+  void remove(int production, long offset);
+
+  /**
+   * Removes all entries with offsets less than the specified one. This
+   * method is invoked by parser when cut is passed, since parser never
+   * returns to those offsets.
+   *
+   * @param offset Offset in the character stream.
+   * @return Number of removed entries.
+   * @see org.foxlabs.peg4j.grammar.Cut
+   */
+  int cut(long offset);
+
+  /**
+   * Releases resources held by this table. This method is invoked by parser
+   * at the end of parsing, so table cannot be used after this method call.
+   */
+  void release();
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j;
+
+/**
+ * Report of a single parsing collected by the {@link Parser} regardless of
+ * whether tracer is configured.
+ *
+ * <p>Report includes number of characters parser advanced over compared to
+ * the length of the input, so that pathological backtracking can be detected
+ * by the {@link #getAmplification() amplification} factor, numbers of marks
+ * and resets of the input character stream, memoization counts, peak memory
+ * taken by the input and wall time. Counters are maintained by the input
+ * character stream and parsing context anyway, so collecting them costs
+ * nothing noticeable. Report of the latest parsing is available using the
+ * {@link Parser#getLastReport()} method and can be pushed to the
+ * {@link Listener} set using the {@link Parser#setReportListener(Listener)}
+ * method.</p>
+ *
+ * @author Fox Mulder
+ * @see Parser#getLastReport()
+ * @see BacktrackingReader
+ */
+public final class ParseReport {
+
+  /**
+   * Determines whether input was recognized.
+   */
+  private final boolean success;
+
+  /**
+   * Number of characters available in the input.
+   */
+  private final long inputLength;
+
+  /**
+   * Number of characters parser advanced over.
+   */
+  private final long consumedLength;
+
+  /**
+   * Number of marks of the input character stream.
+   */
+  private final long markCount;
+
+  /**
+   * Number of resets of the input character stream.
+   */
+  private final long resetCount;
+
+  /**
+   * Maximum depth of marks of the input character stream during parsing.
+   */
+  private final int peakMarkDepth;
+
+  /**
+   * Peak capacity of the input character stream buffer.
+   */
+  private final int peakBufferSize;
+
+  /**
+   * Number of entries put into the memo table.
+   */
+  private final long memoPutCount;
+
+  /**
+   * Number of memo table hits.
+   */
+  private final long memoHitCount;
+
+  /**
+   * Number of memo table misses.
+   */
+  private final long memoMissCount;
+
+  /**
+   * Wall time of parsing in nanoseconds.
+   */
+  private final long nanos;
+
+  /**
+   * Constructs a new report.
+   */
+  ParseReport(boolean success, long inputLength, long consumedLength, long markCount,
+      long resetCount, int peakMarkDepth, int peakBufferSize, long memoPutCount,
+      long memoHitCount, long memoMissCount, long nanos) {
+    this.success = success;
+    this.inputLength = inputLength;
+    this.consumedLength = consumedLength;
+    this.markCount = markCount;
+    this.resetCount = resetCount;
+    this.peakMarkDepth = peakMarkDepth;
+    this.peakBufferSize = peakBufferSize;
+    this.memoPutCount = memoPutCount;
+    this.memoHitCount = memoHitCount;
+    this.memoMissCount = memoMissCount;
+    this.nanos = nanos;
+  }
+
+  /**
+   * Determines whether input was recognized.
+   *
+   * @return <code>true</code> if input was recognized; <code>false</code>
+   *         otherwise.
+   */
+  public boolean isSuccess() {
+    return success;
+  }
+
+  /**
+   * Returns number of characters available in the input. For underlying
+   * streams this is the number of characters read from them.
+   *
+   * @return Number of characters available in the input.
+   * @see BacktrackingReader#getInputLength()
+   */
+  public long getInputLength() {
+    return inputLength;
+  }
+
+  /**
+   * Returns number of characters parser advanced over including the ones
+   * read again after backtracking.
+   *
+   * @return Number of characters parser advanced over.
+   * @see BacktrackingReader#getBacktrackLength()
+   */
+  public long getConsumedLength() {
+    return consumedLength;
+  }
+
+  /**
+   * Returns ratio of the number of characters parser advanced over to the
+   * length of the input. Linear grammars have amplification close to 1,
+   * large values mean that input caused heavy backtracking.
+   *
+   * @return Backtracking amplification factor.
+   */
+  public double getAmplification() {
+    return inputLength == 0L ? 0.0 : (double) consumedLength / inputLength;
+  }
+
+  /**
+   * Returns number of marks of the input character stream.
+   *
+   * @return Number of marks of the input character stream.
+   */
+  public long getMarkCount() {
+    return markCount;
+  }
+
+  /**
+   * Returns number of resets of the input character stream.
+   *
+   * @return Number of resets of the input character stream.
+   */
+  public long getResetCount() {
+    return resetCount;
+  }
+
+  /**
+   * Returns maximum depth of marks of the input character stream during
+   * parsing. Marks stored before parsing began are not counted.
+   *
+   * @return Maximum depth of marks of the input character stream.
+   * @see BacktrackingReader#getPeakMarkDepth()
+   */
+  public int getPeakMarkDepth() {
+    return peakMarkDepth;
+  }
+
+  /**
+   * Returns peak capacity of the input character stream buffer.
+   *
+   * @return Peak capacity of the input character stream buffer.
+   * @see BacktrackingReader#getCapacity()
+   */
+  public int getPeakBufferSize() {
+    return peakBufferSize;
+  }
+
+  /**
+   * Returns number of entries put into the memo table. Entries may be
+   * overwritten, evicted or dropped by cuts, so this is not the number of
+   * entries kept in the table.
+   *
+   * @return Number of entries put into the memo table or <code>0</code> if
+   *         memoization is disabled.
+   */
+  public long getMemoPutCount() {
+    return memoPutCount;
+  }
+
+  /**
+   * Returns number of memo table hits.
+   *
+   * @return Number of memo table hits.
+   */
+  public long getMemoHitCount() {
+    return memoHitCount;
+  }
+
+  /**
+   * Returns number of memo table misses.
+   *
+   * @return Number of memo table misses.
+   */
+  public long getMemoMissCount() {
+    return memoMissCount;
+  }
+
+  /**
+   * Returns wall time of parsing.
+   *
+   * @return Wall time of parsing in nanoseconds.
+   */
+  public long getNanos() {
+    return nanos;
+  }
+
+  /**
+   * Returns string representation of this report.
+   *
+   * @return String representation of this report.
+   */
+  @Override
+  public String toString() {
+    return (success ? "success" : "failure") + ": input=" + inputLength + " consumed="
+        + consumedLength + String.format(" (x%.2f)", getAmplification()) + " marks=" + markCount
+        + " resets=" + resetCount + " depth=" + peakMarkDepth + " buffer=" + peakBufferSize
+        + " memo=" + memoPutCount + "/" + memoHitCount + "/" + memoMissCount
+        + " time=" + (nanos / 1000L) + "us";
+  }
+
+  // Listener
+
+  /**
+   * Listener that receives report after each parsing.
+   *
+   * @author Fox Mulder
+   * @see Parser#setReportListener(Listener)
+   */
+  public interface Listener {
+
+    /**
+     * Invoked after parsing finished whether input was recognized or not.
+     *
+     * @param report Report of the parsing.
+     */
+    void onParseReport(ParseReport report);
+
+  }
+
+}
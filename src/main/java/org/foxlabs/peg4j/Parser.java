@@ -16,22 +16,35 @@
 
 package org.foxlabs.peg4j;
 
-import java.util.HashMap;
+import java.util.Set;
+import java.util.LinkedHashSet;
+import java.util.Arrays;
 
 import java.net.URL;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.Reader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.io.IOException;
 
 import org.foxlabs.peg4j.grammar.Grammar;
+import org.foxlabs.peg4j.grammar.Production;
+import org.foxlabs.peg4j.grammar.Rule;
 import org.foxlabs.peg4j.grammar.ParseContext;
+import org.foxlabs.peg4j.grammar.Terminal;
 import org.foxlabs.peg4j.debug.RuleTracer;
-import org.foxlabs.peg4j.debug.ErrorTracer;
+import org.foxlabs.peg4j.debug.TraceFilter;
+import org.foxlabs.peg4j.util.HashMemoTable;
+import org.foxlabs.peg4j.util.EvictionPolicy;
+import org.foxlabs.peg4j.util.BoundedMemoTable;
 
 import org.foxlabs.util.Location;
 
@@ -42,9 +55,17 @@ import org.foxlabs.util.Location;
  * character stream. Subclasses should override {@link Parser#getGrammar()},
  * {@link Parser#getTransaction()} and {@link Parser#buildResult()} methods.
  * Memoization feature is supported and can be enabled or disabled using the
- * {@link Parser#setMemoable(boolean)} method. Also if there is a need to keep
+ * {@link Parser#setMemoable(boolean)} method, results of memoized productions
+ * are stored in the table created by the {@link Parser#createMemoTable()}
+ * method and its size can be limited using the
+ * {@link Parser#setMemoLimit(int)} method. Also if there is a need to keep
  * track of parsing process then necessary rule tracer can be attached using the
- * {@link Parser#setTracer(RuleTracer)} method. A number of convenient
+ * {@link Parser#setTracer(RuleTracer)} method. Hot productions of the grammar
+ * can be compiled into JVM bytecode, the number of invocations after which
+ * production is compiled can be configured using the
+ * {@link Parser#setCompileThreshold(int)} method. Deeply nested input can be
+ * parsed by the non-recursive parsing machine, that can be enabled using the
+ * {@link Parser#setStackless(boolean)} method. A number of convenient
  * <code>parse()</code> methods are implemented to allow parsing from different
  * sources like string, URL, file, etc.</p>
  * 
@@ -70,6 +91,55 @@ public abstract class Parser<T> {
    */
   private boolean memoable = true;
 
+  /**
+   * Maximum number of entries in the memo table. By default number of
+   * entries is not limited.
+   */
+  private int memoLimit = 0;
+
+  /**
+   * Policy that selects memo table entries to be evicted. By default least
+   * recently used entries are evicted when the memo table is full.
+   */
+  private EvictionPolicy evictionPolicy = null;
+
+  /**
+   * Number of production invocations after which production will be compiled
+   * into JVM bytecode. By default compilation is disabled.
+   */
+  private int compileThreshold = 0;
+
+  /**
+   * This flag is used to run grammar by the non-recursive parsing machine
+   * instead of recursive interpreter. By default interpreter is used.
+   */
+  private boolean stackless = false;
+
+  /**
+   * This flag is used to discard input characters before the oldest position
+   * parser can backtrack to. By default all the input characters are kept
+   * until parsing ends or until the latest cut.
+   */
+  private boolean streaming = false;
+
+  /**
+   * This flag is used to keep line terminators of the input as they are.
+   * By default they are normalized to <code>\n</code>.
+   */
+  private boolean rawNewlines = false;
+
+  /**
+   * Listener that receives report after each parsing. By default no listener
+   * is configured.
+   */
+  private ParseReport.Listener reportListener = null;
+
+  /**
+   * Report of the latest parsing or <code>null</code> if there were no
+   * parsings yet.
+   */
+  private ParseReport lastReport = null;
+
   // Interface
 
   /**
@@ -107,6 +177,64 @@ public abstract class Parser<T> {
    */
   protected abstract T buildResult();
 
+  /**
+   * Creates a new table that will store results of memoized productions
+   * during parsing.
+   *
+   * <p>This method will be invoked at the beginning of each parsing if
+   * memoization feature is enabled. Default implementation returns
+   * {@link HashMemoTable} instance. Subclasses can override this method to
+   * use a table that better suits the grammar and input, for example
+   * {@link org.foxlabs.peg4j.util.DenseMemoTable} or
+   * {@link org.foxlabs.peg4j.util.DirectMemoTable} for very large inputs.
+   * Table will be released using the {@link MemoTable#release()} method once
+   * parsing is finished.</p>
+   *
+   * @return A new memo table.
+   * @see MemoTable
+   */
+  protected MemoTable createMemoTable() {
+    return new HashMemoTable();
+  }
+
+  /**
+   * Creates a new memo table bounded by the memo limit and eviction policy if
+   * they are specified.
+   */
+  private MemoTable newMemoTable(RuleTracer tracer) {
+    MemoTable memoTable = createMemoTable();
+    if (memoLimit > 0 || evictionPolicy != null) {
+      BoundedMemoTable boundedTable = new BoundedMemoTable(memoTable,
+          memoLimit > 0 ? memoLimit : Integer.MAX_VALUE,
+          evictionPolicy == null ? new EvictionPolicy.Lru() : evictionPolicy);
+      boundedTable.setTracer(getGrammar(), tracer);
+      memoTable = boundedTable;
+    }
+    return memoTable;
+  }
+
+  /**
+   * Recognizes input character stream of the specified parsing context.
+   * 
+   * <p>This method will be invoked by the {@link #parse(BacktrackingReader)}
+   * method. Default implementation reduces start production of the grammar
+   * either by interpreter or by parsing machine if this parser is stackless.
+   * Parsers generated by the {@link org.foxlabs.peg4j.codegen.JavaGenerator} in
+   * recursive descent mode override this method to run generated code.</p>
+   * 
+   * @param context Parsing context.
+   * @return <code>true</code> if input character stream was recognized;
+   *         <code>false</code> otherwise.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if semantic action failed.
+   */
+  protected boolean reduce(ParseContext context) throws IOException, RecognitionException {
+    if (stackless) {
+      return getGrammar().getMachine().reduce(context);
+    }
+    return getGrammar().getStart().reduce(context);
+  }
+
   // Configuration
 
   /**
@@ -122,7 +250,8 @@ public abstract class Parser<T> {
 
   /**
    * Sets tracer that will be used by this parser to keep track of parsing
-   * process.
+   * process. If no tracer is set then rules are not traced at all, syntax
+   * errors are tracked by the parsing context itself.
    * 
    * @param tracer Tracer that will be used by this parser to keep track of
    *        parsing process.
@@ -150,6 +279,202 @@ public abstract class Parser<T> {
     this.memoable = memoable;
   }
 
+  /**
+   * Returns maximum number of entries in the memo table.
+   * 
+   * @return Maximum number of entries in the memo table or <code>0</code> if
+   *         number of entries is not limited.
+   */
+  public final int getMemoLimit() {
+    return memoLimit;
+  }
+
+  /**
+   * Sets maximum number of entries in the memo table. Each entry of the
+   * default memo table takes about 16 bytes of memory, so limit can be
+   * estimated from the memory budget. Once limit is reached entries selected
+   * by the eviction policy are evicted and will be recomputed if needed again.
+   * 
+   * @param memoLimit Maximum number of entries in the memo table or
+   *        <code>0</code> if number of entries should not be limited.
+   * @see #setEvictionPolicy(EvictionPolicy)
+   */
+  public final void setMemoLimit(int memoLimit) {
+    this.memoLimit = Math.max(memoLimit, 0);
+  }
+
+  /**
+   * Returns policy that selects memo table entries to be evicted.
+   * 
+   * @return Policy that selects memo table entries to be evicted or
+   *         <code>null</code> if default policy is used.
+   */
+  public final EvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
+  }
+
+  /**
+   * Sets policy that selects memo table entries to be evicted. Policy is
+   * applied even if number of entries is not limited, so policies like
+   * {@link EvictionPolicy.Window} and {@link EvictionPolicy.Quota} can be
+   * used alone.
+   * 
+   * @param evictionPolicy Policy that selects memo table entries to be
+   *        evicted or <code>null</code> to evict least recently used entries
+   *        when the memo table is full.
+   * @see #setMemoLimit(int)
+   */
+  public final void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+    this.evictionPolicy = evictionPolicy;
+  }
+
+  /**
+   * Returns number of production invocations after which production will be
+   * compiled into JVM bytecode.
+   * 
+   * @return Number of production invocations after which production will be
+   *         compiled or <code>0</code> if compilation is disabled.
+   */
+  public final int getCompileThreshold() {
+    return compileThreshold;
+  }
+
+  /**
+   * Sets number of production invocations after which production will be
+   * compiled into JVM bytecode. Compiled code is shared between all parsers
+   * of the same grammar and behaves exactly as interpreted one, including
+   * tracer notifications. Parsers with zero threshold never run compiled
+   * code. Invocations are counted without synchronization, so the threshold
+   * is approximate when grammar is shared between concurrent parsers.
+   * 
+   * @param compileThreshold Number of production invocations after which
+   *        production will be compiled or <code>0</code> to disable compilation.
+   * @throws IllegalArgumentException if the specified threshold is negative.
+   */
+  public final void setCompileThreshold(int compileThreshold) {
+    if (compileThreshold < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.compileThreshold = compileThreshold;
+  }
+
+  /**
+   * Determines whether grammar is run by the non-recursive parsing machine.
+   * 
+   * @return <code>true</code> if grammar is run by the parsing machine;
+   *         <code>false</code> if grammar is interpreted.
+   */
+  public final boolean isStackless() {
+    return stackless;
+  }
+
+  /**
+   * Enables or disables non-recursive parsing machine for this parser.
+   * Parsing machine does not consume Java stack, so deeply nested input
+   * cannot cause {@link StackOverflowError}. Productions are not compiled
+   * into JVM bytecode when parsing machine is used.
+   * 
+   * @param stackless Determines whether grammar should be run by the parsing
+   *        machine.
+   * @see org.foxlabs.peg4j.grammar.ParsingMachine
+   */
+  public final void setStackless(boolean stackless) {
+    this.stackless = stackless;
+  }
+
+  /**
+   * Determines whether input character streams are read in streaming mode.
+   * 
+   * @return <code>true</code> if input character streams are read in
+   *         streaming mode; <code>false</code> otherwise.
+   */
+  public final boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Enables or disables streaming mode for input character streams. In
+   * streaming mode characters that parser cannot backtrack to are discarded
+   * together with memo entries for them, so memory consumption depends on
+   * the longest backtracking distance rather than on the length of the input.
+   * 
+   * <p>Streaming requires cuts. Rules that enclose the current one keep their
+   * start positions, so without cuts parser may backtrack to the start of the
+   * input and nothing is discarded. Once a cut commits the enclosing rules
+   * only positions stored after it are kept, for example the grammar
+   * <code>File : Header ^ Record* !. ;</code> is parsed in memory
+   * proportional to the length of a record even though records are not cut.
+   * Without streaming mode only characters before the latest cut are
+   * discarded.</p>
+   * 
+   * @param streaming Determines whether input character streams should be
+   *        read in streaming mode.
+   * @see BacktrackingReader#setStreaming(boolean)
+   * @see org.foxlabs.peg4j.grammar.Cut
+   */
+  public final void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Determines whether line terminators of the input are kept as they are.
+   * 
+   * @return <code>true</code> if input is read in raw newlines mode;
+   *         <code>false</code> otherwise.
+   */
+  public final boolean isRawNewlines() {
+    return rawNewlines;
+  }
+
+  /**
+   * Enables or disables raw newlines mode for the input. Grammars that
+   * recognize <code>\r</code> characters themselves or inputs known to
+   * contain only <code>\n</code> line terminators do not need the input to
+   * be normalized.
+   * 
+   * @param rawNewlines Determines whether line terminators of the input
+   *        should be kept as they are.
+   * @see BacktrackingReader#setRawNewlines(boolean)
+   */
+  public final void setRawNewlines(boolean rawNewlines) {
+    this.rawNewlines = rawNewlines;
+  }
+
+  /**
+   * Returns listener that receives report after each parsing.
+   * 
+   * @return Listener that receives report after each parsing or
+   *         <code>null</code> if no listener is configured.
+   */
+  public final ParseReport.Listener getReportListener() {
+    return reportListener;
+  }
+
+  /**
+   * Sets listener that receives report after each parsing, for example to
+   * alert when input causes pathological backtracking. Listener is invoked
+   * whether input was recognized or not.
+   * 
+   * @param reportListener Listener that receives report after each parsing
+   *        or <code>null</code> if reports should not be pushed.
+   * @see ParseReport
+   */
+  public final void setReportListener(ParseReport.Listener reportListener) {
+    this.reportListener = reportListener;
+  }
+
+  /**
+   * Returns report of the latest parsing. Report is collected for each
+   * parsing regardless of configured tracer.
+   * 
+   * @return Report of the latest parsing or <code>null</code> if there were
+   *         no parsings yet.
+   * @see ParseReport
+   */
+  public final ParseReport getLastReport() {
+    return lastReport;
+  }
+
   // Parsing
 
   /**
@@ -162,7 +487,95 @@ public abstract class Parser<T> {
    *         string.
    */
   public final T parse(String text) throws IOException, RecognitionException {
-    return parse(new BacktrackingReader(new StringReader(text)));
+    return parse(new BacktrackingReader(text, 0, text.length()));
+  }
+
+  /**
+   * Parses the specified character sequence and returns semantic result.
+   * 
+   * @param text Character sequence to be parsed.
+   * @return Semantic result of parsing.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if parser cannot recognize the specified
+   *         character sequence.
+   */
+  public final T parse(CharSequence text) throws IOException, RecognitionException {
+    return parse(new BacktrackingReader(text, 0, text.length()));
+  }
+
+  /**
+   * Parses the specified subsequence of character sequence and returns
+   * semantic result. Offsets in the parsed subsequence start with 0.
+   * 
+   * @param text Character sequence.
+   * @param start Start index of the subsequence to be parsed (inclusive).
+   * @param end End index of the subsequence to be parsed (exclusive).
+   * @return Semantic result of parsing.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if parser cannot recognize the specified
+   *         subsequence.
+   * @throws IndexOutOfBoundsException if the specified indexes are out of
+   *         bounds of the specified character sequence.
+   */
+  public final T parse(CharSequence text, int start, int end) throws IOException, RecognitionException {
+    return parse(new BacktrackingReader(text, start, end));
+  }
+
+  /**
+   * Parses the specified portion of character array and returns semantic
+   * result. Array is read in place, so it should not be modified during
+   * parsing. Offsets in the parsed portion start with 0.
+   * 
+   * @param chars Character array.
+   * @param offset Offset of the first character to be parsed.
+   * @param length Number of characters to be parsed.
+   * @return Semantic result of parsing.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if parser cannot recognize the specified
+   *         characters.
+   * @throws IndexOutOfBoundsException if the specified offset or length is
+   *         negative or size of the specified array is not enough.
+   */
+  public final T parse(char[] chars, int offset, int length) throws IOException, RecognitionException {
+    return parse(new BacktrackingReader(chars, offset, length));
+  }
+
+  /**
+   * Parses the specified portion of UTF-8 byte array in byte mode and returns
+   * semantic result. Bytes are read in place and decoded only when terminals
+   * need characters, so array should not be modified during parsing. Note
+   * that offsets are measured in bytes in byte mode.
+   * 
+   * @param bytes UTF-8 byte array.
+   * @param offset Offset of the first byte to be parsed.
+   * @param length Number of bytes to be parsed.
+   * @return Semantic result of parsing.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if parser cannot recognize the specified
+   *         bytes.
+   * @throws IndexOutOfBoundsException if the specified offset or length is
+   *         negative or size of the specified array is not enough.
+   * @see BacktrackingReader#BacktrackingReader(ByteBuffer, String)
+   */
+  public final T parseUtf8(byte[] bytes, int offset, int length) throws IOException, RecognitionException {
+    return parse(new BacktrackingReader(ByteBuffer.wrap(bytes, offset, length), null));
+  }
+
+  /**
+   * Parses content of the specified UTF-8 file in byte mode and returns
+   * semantic result. File is memory-mapped and its content is decoded only
+   * when terminals need characters. Note that offsets are measured in bytes
+   * in byte mode.
+   * 
+   * @param file UTF-8 file which content to be parsed.
+   * @return Semantic result of parsing.
+   * @throws IOException if IO error occurred or file is larger than 2GB.
+   * @throws RecognitionException if parser cannot recognize content of the
+   *         specified file.
+   * @see BacktrackingReader#BacktrackingReader(ByteBuffer, String)
+   */
+  public final T parseUtf8(Path file) throws IOException, RecognitionException {
+    return parse(new BacktrackingReader(BacktrackingReader.map(file), file.toString()));
   }
 
   /**
@@ -209,9 +622,7 @@ public abstract class Parser<T> {
    *         from the specified file.
    */
   public final T parse(File file) throws IOException, RecognitionException {
-    try (final FileInputStream stream = new FileInputStream(file)) {
-      return parse(new BacktrackingReader(new InputStreamReader(stream), file.getPath()));
-    }
+    return parse(file.toPath());
   }
 
   /**
@@ -226,9 +637,57 @@ public abstract class Parser<T> {
    *         from the specified file.
    */
   public final T parse(File file, String encoding) throws IOException, RecognitionException {
-    try (FileInputStream stream = new FileInputStream(file)) {
-      return parse(new BacktrackingReader(new InputStreamReader(stream, encoding), file.getPath()));
+    return parse(file.toPath(), encoding);
+  }
+
+  /**
+   * Parses content of the specified file and returns semantic result. File
+   * is memory-mapped and decoded at once into buffer of the required size.
+   * 
+   * @param file File which content to be parsed.
+   * @return Semantic result of parsing.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if parser cannot recognize content of the
+   *         specified file.
+   * @see BacktrackingReader#BacktrackingReader(Path, Charset)
+   */
+  public final T parse(Path file) throws IOException, RecognitionException {
+    return parseFile(file, Charset.defaultCharset());
+  }
+
+  /**
+   * Parses content of the specified file and returns semantic result. File
+   * is memory-mapped and decoded at once into buffer of the required size.
+   * 
+   * @param file File which content to be parsed.
+   * @param encoding Content encoding.
+   * @return Semantic result of parsing.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if parser cannot recognize content of the
+   *         specified file.
+   * @see BacktrackingReader#BacktrackingReader(Path, Charset)
+   */
+  public final T parse(Path file, String encoding) throws IOException, RecognitionException {
+    Charset charset;
+    try {
+      charset = Charset.forName(encoding);
+    } catch (IllegalArgumentException e) {
+      throw new UnsupportedEncodingException(encoding);
+    }
+    return parseFile(file, charset);
+  }
+
+  /**
+   * Parses content of the specified file in the specified charset.
+   */
+  private T parseFile(Path file, Charset charset) throws IOException, RecognitionException {
+    if (Files.size(file) > Integer.MAX_VALUE) {
+      // Too large to be mapped at once
+      try (final InputStream stream = Files.newInputStream(file)) {
+        return parse(new BacktrackingReader(new InputStreamReader(stream, charset), file.toString()));
+      }
     }
+    return parse(new BacktrackingReader(file, charset));
   }
 
   /**
@@ -258,6 +717,23 @@ public abstract class Parser<T> {
     return parse(new BacktrackingReader(new InputStreamReader(stream, encoding)));
   }
 
+  /**
+   * Parses content read from the specified channel and returns semantic
+   * result. Bytes are decoded straight into buffer of the character stream
+   * without intermediate buffering. Note that channel is not closed.
+   * 
+   * @param channel Channel which content to be parsed.
+   * @param charset Charset of the channel content.
+   * @return Semantic result of parsing.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if parser cannot recognize content read from
+   *         the specified channel.
+   * @see BacktrackingReader#BacktrackingReader(ReadableByteChannel, Charset, String)
+   */
+  public final T parse(ReadableByteChannel channel, Charset charset) throws IOException, RecognitionException {
+    return parse(new BacktrackingReader(channel, charset, null));
+  }
+
   /**
    * Parses the specified input character stream and returns semantic result.
    * 
@@ -285,18 +761,78 @@ public abstract class Parser<T> {
    *         character stream.
    */
   public final T parse(BacktrackingReader stream) throws IOException, RecognitionException {
+    long startTime = System.nanoTime();
+    long startOffset = stream.getEndOffset() + stream.getBacktrackLength();
+    long startMarkCount = stream.getMarkCount();
+    long startResetCount = stream.getResetCount();
+    int startMarkDepth = stream.getMarkDepth();
+    stream.resetPeakMarkDepth();
     boolean success = false;
-    ErrorTracer tracer = ErrorTracer.newTracer(getTracer());
-    Context context = isMemoable() ? new MemoContext(stream, tracer) : new Context(stream, tracer);
-    tracer.open(stream);
+    Throwable failure = null;
+    if (streaming) {
+      stream.setStreaming(true);
+    }
+    if (rawNewlines && !stream.isRawNewlines()) {
+      stream.setRawNewlines(true);
+    }
+    RuleTracer tracer = getTracer();
+    Context context = isMemoable() ? new MemoContext(stream, tracer, newMemoTable(tracer)) : new Context(stream, tracer);
+    if (tracer != null) {
+      tracer.open(stream);
+    }
     try {
-      success = getGrammar().getStart().reduce(context);
+      try {
+        success = reduce(context);
+      } catch (CutException e) {
+        // Input committed by the cut cannot be recognized otherwise
+        success = false;
+      } finally {
+        context.releaseSnapshots();
+      }
       if (!success) {
-        throw tracer.newSyntaxException();
+        throw context.newSyntaxException();
       }
       return buildResult();
+    } catch (Throwable e) {
+      failure = e;
+      throw e;
     } finally {
-      tracer.close(success);
+      if (tracer != null) {
+        closeTracer(tracer, failure);
+      }
+      lastReport = new ParseReport(success, stream.getInputLength(),
+          stream.getEndOffset() + stream.getBacktrackLength() - startOffset,
+          stream.getMarkCount() - startMarkCount, stream.getResetCount() - startResetCount,
+          stream.getPeakMarkDepth() - startMarkDepth, stream.getCapacity(), context.memoPutCount,
+          context.memoHitCount, context.memoMissCount, System.nanoTime() - startTime);
+      if (reportListener != null) {
+        reportListener.onParseReport(lastReport);
+      }
+    }
+  }
+
+  /**
+   * Closes the specified tracer after parsing. If parsing has failed then
+   * exceptions thrown by the tracer are added as suppressed to the parsing
+   * exception, so that the original cause is not lost.
+   *
+   * @param tracer Tracer to be closed.
+   * @param failure Exception parsing has failed with or <code>null</code> if
+   *        parsing was successful.
+   * @throws IOException if IO error occurred.
+   */
+  private static void closeTracer(RuleTracer tracer, Throwable failure) throws IOException {
+    try {
+      if (failure == null) {
+        tracer.close(true);
+      } else {
+        tracer.close(failure);
+      }
+    } catch (IOException | RuntimeException e) {
+      if (failure == null) {
+        throw e;
+      }
+      failure.addSuppressed(e);
     }
   }
 
@@ -315,19 +851,78 @@ public abstract class Parser<T> {
     final BacktrackingReader stream;
 
     /**
-     * Tracer that keeps track of syntax errors.
+     * Tracer that keeps track of parsing process or <code>null</code> if
+     * parsing is not traced.
+     */
+    final RuleTracer tracer;
+
+    /**
+     * Filter of the tracer events or <code>null</code> if all the events are
+     * dispatched.
+     */
+    final TraceFilter filter;
+
+    /**
+     * Set of terminals expected at the farthest failure offset in order they
+     * were reported, so all the engines produce the same syntax error.
+     */
+    final Set<Terminal> expectedSet = new LinkedHashSet<Terminal>();
+
+    /**
+     * Farthest offset in the input character stream where terminal failed or
+     * <code>-1</code> if no terminal failed yet.
+     */
+    long errorOffset = -1L;
+
+    /**
+     * Location of the farthest failure offset or <code>null</code> if no
+     * terminal failed yet.
+     */
+    Location errorLocation = null;
+
+    /**
+     * Nesting level of predicates being reduced.
+     */
+    int predicateLevel = 0;
+
+    /**
+     * Decisions made by the filter for trace events of the rules being
+     * reduced, used to dispatch or skip matching backtrace events.
+     */
+    boolean[] traceStack = new boolean[64];
+
+    /**
+     * Number of decisions in the {@link #traceStack} array.
+     */
+    int traceDepth = 0;
+
+    /**
+     * Number of entries put into the memo table.
+     */
+    long memoPutCount = 0L;
+
+    /**
+     * Number of memo table hits.
      */
-    final ErrorTracer tracer;
+    long memoHitCount = 0L;
+
+    /**
+     * Number of memo table misses.
+     */
+    long memoMissCount = 0L;
 
     /**
      * Constructs new context.
      * 
      * @param stream Input character stream with backtrace feature.
-     * @param tracer Tracer that keeps track of syntax errors.
+     * @param tracer Tracer that keeps track of parsing process or
+     *        <code>null</code> if parsing is not traced.
      */
-    private Context(BacktrackingReader stream, ErrorTracer tracer) {
+    private Context(BacktrackingReader stream, RuleTracer tracer) {
       this.stream = stream;
       this.tracer = tracer;
+      TraceFilter filter = tracer == null ? null : tracer.getFilter();
+      this.filter = filter == null || filter.isAll() ? null : filter;
     }
 
     // ParseContext
@@ -355,9 +950,10 @@ public abstract class Parser<T> {
     }
 
     /**
-     * Returns tracer that keeps track of parsing process.
+     * Returns tracer that keeps track of parsing process or <code>null</code>
+     * if parsing is not traced.
      * 
-     * @return Tracer that keeps track of parsing process.
+     * @return Tracer that keeps track of parsing process or <code>null</code>.
      * @see ParseContext#tracer()
      */
     @Override
@@ -365,6 +961,57 @@ public abstract class Parser<T> {
       return tracer;
     }
 
+    /**
+     * Determines whether event of the specified type for the specified rule
+     * passes filter of the tracer at the start offset of the current rule.
+     * 
+     * @param rule Rule which event should be dispatched.
+     * @param event Event type.
+     * @return <code>true</code> if tracer should be notified;
+     *         <code>false</code> otherwise.
+     * @see ParseContext#isTraced(Rule, int)
+     */
+    @Override
+    public boolean isTraced(Rule rule, int event) {
+      return filter == null || filter.accepts(event, rule, stream.getStartOffset());
+    }
+
+    /**
+     * Determines whether trace event of the specified rule passes filter of
+     * the tracer and pushes the decision on the stack of decisions.
+     * 
+     * @param rule Rule which reduce operation has started.
+     * @return <code>true</code> if tracer should be notified;
+     *         <code>false</code> otherwise.
+     * @see ParseContext#enterTrace(Rule)
+     */
+    @Override
+    public boolean enterTrace(Rule rule) {
+      if (filter == null) {
+        return true;
+      }
+      boolean traced = filter.accepts(TraceFilter.RULE_EVENTS, rule, stream.getStartOffset());
+      if (traceDepth == traceStack.length) {
+        traceStack = Arrays.copyOf(traceStack, traceDepth * 2);
+      }
+      traceStack[traceDepth++] = traced;
+      return traced;
+    }
+
+    /**
+     * Pops decision made for trace event of the specified rule from the stack
+     * of decisions.
+     * 
+     * @param rule Rule which reduce operation has completed.
+     * @return <code>true</code> if tracer should be notified;
+     *         <code>false</code> otherwise.
+     * @see ParseContext#exitTrace(Rule)
+     */
+    @Override
+    public boolean exitTrace(Rule rule) {
+      return filter == null || traceStack[--traceDepth];
+    }
+
     /**
      * Returns this context instance.
      * 
@@ -376,6 +1023,136 @@ public abstract class Parser<T> {
       return this;
     }
 
+    /**
+     * Returns {@link ParseContext#SNAPSHOT_MISSED} because memoization feature
+     * is not supported.
+     *
+     * @param production Memoized production.
+     * @return {@link ParseContext#SNAPSHOT_MISSED}.
+     * @see ParseContext#loadSnapshot(Production)
+     */
+    @Override
+    public int loadSnapshot(Production production) {
+      return SNAPSHOT_MISSED;
+    }
+
+    /**
+     * Returns <code>false</code> because memoization feature is not
+     * supported.
+     *
+     * @param production Memoized production.
+     * @return <code>false</code>.
+     * @see ParseContext#saveSnapshot(Production)
+     */
+    @Override
+    public boolean saveSnapshot(Production production) {
+      return false;
+    }
+
+    /**
+     * Returns <code>false</code> because memoization feature is not
+     * supported.
+     *
+     * @param production Memoized production.
+     * @return <code>false</code>.
+     * @see ParseContext#saveFailure(Production)
+     */
+    @Override
+    public boolean saveFailure(Production production) {
+      return false;
+    }
+
+    /**
+     * Releases resources held by snapshots once parsing is finished.
+     */
+    void releaseSnapshots() {
+      // Nothing to release
+    }
+
+    /**
+     * Commits parsing at the current position in the input character stream.
+     * Cut inside predicate is ignored because predicate always resets the
+     * stream.
+     *
+     * @see ParseContext#cut()
+     * @see BacktrackingReader#cut()
+     */
+    @Override
+    public void cut() throws IOException {
+      if (predicateLevel == 0) {
+        stream.cut();
+      }
+    }
+
+    /**
+     * Increments nesting level of predicates.
+     * 
+     * @see ParseContext#enterPredicate()
+     */
+    @Override
+    public void enterPredicate() {
+      predicateLevel++;
+    }
+
+    /**
+     * Decrements nesting level of predicates.
+     * 
+     * @see ParseContext#exitPredicate()
+     */
+    @Override
+    public void exitPredicate() {
+      predicateLevel--;
+    }
+
+    /**
+     * Adds the specified terminal to the set of expected terminals if it failed
+     * at or beyond the farthest failure offset. Failures inside predicates are
+     * ignored. Location is computed only when the farthest failure offset
+     * moves forward.
+     * 
+     * @param terminal Terminal that does not match character stream.
+     * @see ParseContext#reportFailure(Terminal)
+     */
+    @Override
+    public void reportFailure(Terminal terminal) {
+      reportFailure(terminal, stream.getStartOffset());
+    }
+
+    /**
+     * Adds the specified terminal to the set of expected terminals if it failed
+     * at or beyond the farthest failure offset.
+     * 
+     * @param terminal Terminal that does not match character stream.
+     * @param offset Start offset of the rule that contains the terminal.
+     * @see ParseContext#reportFailure(Terminal, long)
+     */
+    @Override
+    public void reportFailure(Terminal terminal, long offset) {
+      if (predicateLevel == 0 && offset >= errorOffset) {
+        if (offset > errorOffset) {
+          expectedSet.clear();
+          errorOffset = offset;
+          errorLocation = stream.getLocation(offset);
+        }
+        expectedSet.add(terminal);
+      }
+    }
+
+    /**
+     * Creates syntax error at the farthest failure offset.
+     * 
+     * @return Syntax error at the farthest failure offset.
+     */
+    SyntaxException newSyntaxException() {
+      Location location = errorLocation == null
+          ? Location.valueOf(stream.getFile(), 0, 0) : errorLocation;
+      if (expectedSet.isEmpty()) {
+        return new SyntaxException(location);
+      } else {
+        return new SyntaxException(expectedSet, location);
+      }
+    }
+
     // ActionContext
 
     /**
@@ -433,6 +1210,28 @@ public abstract class Parser<T> {
       return stream.getEnd();
     }
 
+    /**
+     * Returns start offset in the input character stream.
+     * 
+     * @return Start offset in the input character stream.
+     * @see ActionContext#startOffset()
+     */
+    @Override
+    public long startOffset() {
+      return stream.getStartOffset();
+    }
+
+    /**
+     * Returns end offset in the input character stream.
+     * 
+     * @return End offset in the input character stream.
+     * @see ActionContext#endOffset()
+     */
+    @Override
+    public long endOffset() {
+      return stream.getEndOffset();
+    }
+
     // Transaction
 
     /**
@@ -478,119 +1277,166 @@ public abstract class Parser<T> {
   private class MemoContext extends Context {
 
     /**
-     * Cache of transaction snapshots.
+     * Table of memoized productions results.
      */
-    final HashMap<Long, TxSnapshot> snapshotCache = new HashMap<Long, TxSnapshot>();
+    final MemoTable memoTable;
+
+    /**
+     * Offset before which entries have been removed from the memo table.
+     */
+    long memoOffset = 0L;
 
     /**
      * Constructs new context with memoization support.
      * 
      * @param stream Input character stream with backtrace feature.
-     * @param tracer Tracer that keeps track of syntax errors.
+     * @param tracer Tracer that keeps track of parsing process or
+     *        <code>null</code> if parsing is not traced.
+     * @param memoTable Table of memoized productions results.
      */
-    private MemoContext(BacktrackingReader stream, ErrorTracer tracer) {
+    private MemoContext(BacktrackingReader stream, RuleTracer tracer, MemoTable memoTable) {
       super(stream, tracer);
+      this.memoTable = memoTable;
     }
 
     /**
-     * Applies snapshot previously stored by the {@link #save()} method.
+     * Applies snapshot previously stored by the {@link #saveSnapshot(Production)}
+     * method for the specified production at the current offset.
      * 
      * <p>Snapshot considered to be successfully applied if it was found in the
-     * cache and transaction was successfully loaded or position in the input
-     * character stream was changed.</p>
+     * table and transaction was successfully loaded. Position in the input
+     * character stream is moved to the end of the production in constant time
+     * since the end offset is the start offset plus stored length. If production
+     * is known to fail at the current offset then nothing is applied.</p>
      * 
-     * @return <code>true</code> if snapshot was successfully applied;
-     *         <code>false</code> otherwise.
-     * @see Transaction#load()
+     * @param production Memoized production.
+     * @return {@link ParseContext#SNAPSHOT_LOADED} if snapshot was successfully
+     *         applied, {@link ParseContext#SNAPSHOT_FAILED} if production
+     *         failed or {@link ParseContext#SNAPSHOT_MISSED} otherwise.
+     * @see ParseContext#loadSnapshot(Production)
      */
     @Override
-    public boolean load() {
-      TxSnapshot snapshot = snapshotCache.get(snapshotID());
-      if (snapshot != null) {
-        if (!(snapshot.delta == null || snapshot.delta.load())) {
-          return false;
+    public int loadSnapshot(Production production) {
+      if (memoTable.find(production.getIndex(), stream.getStartOffset())) {
+        int length = memoTable.getLength();
+        if (length == MemoTable.FAILURE) {
+          memoHitCount++;
+          return SNAPSHOT_FAILED;
         }
-        if (snapshot.length > 0) {
+        Transaction delta = memoTable.getDelta();
+        if (!(delta == null || delta.load())) {
+          memoMissCount++;
+          return SNAPSHOT_MISSED;
+        }
+        memoHitCount++;
+        if (length > 0) {
           try {
-            stream.skip(snapshot.length);
+            stream.skip(length);
           } catch (IOException e) {
             // Should never happen
             throw new IllegalStateException(e);
           }
         }
+        return SNAPSHOT_LOADED;
       }
-      return false;
+      memoMissCount++;
+      return SNAPSHOT_MISSED;
     }
 
     /**
-     * Returns snapshot of changes in the scope of the current transaction as
-     * separate transaction instance.
+     * Stores snapshot of changes in the scope of the current transaction and
+     * number of parsed characters for the specified production at the current
+     * offset.
      * 
-     * <p>If current transaction does not support memoization feature or has no
-     * changes and position in the input character stream is unchanged then
-     * <code>null</code> will be returned. This method returns
-     * {@link Transaction#STATELESS} if transaction does not support memoization
-     * feature or has no changes but position in the input character stream has
-     * been changed.</p>
+     * <p>Nothing is stored if current transaction does not support
+     * memoization feature or has no changes and position in the input
+     * character stream is unchanged. Also nothing is stored if production
+     * started before the latest cut or before characters discarded in
+     * streaming mode.</p>
      * 
-     * @return Snapshot of changes in the scope of current transaction as
-     *         separate transaction instance or <code>null</code> if there is
-     *         nothing to save.
-     * @see Transaction#save()
+     * @param production Memoized production.
+     * @return <code>true</code> if snapshot was stored; <code>false</code>
+     *         otherwise.
+     * @see ParseContext#saveSnapshot(Production)
      */
     @Override
-    public Transaction save() {
+    public boolean saveSnapshot(Production production) {
+      if (stream.getStartOffset() < stream.getCutOffset() || cutDiscarded()) {
+        return false;
+      }
       int length = stream.getLength();
       Transaction delta = getTransaction().save();
       if (length > 0 || delta != null) {
-        snapshotCache.put(snapshotID(), new TxSnapshot(delta, length));
-        return delta == null ? Transaction.STATELESS : delta;
+        memoTable.put(production.getIndex(), stream.getStartOffset(), length, delta);
+        memoPutCount++;
+        return true;
       }
-      return null;
+      return false;
     }
 
     /**
-     * Returns snapshot ID that is concatenation of current production index and
-     * offest in the input character stream.
+     * Stores failure of the specified production at the current offset.
+     * 
+     * <p>Failures inside predicates are not stored because syntax errors are
+     * not tracked there, so failure stored inside predicate and loaded outside
+     * of it would hide expected terminals. Failures before the latest cut or
+     * before characters discarded in streaming mode are not stored because
+     * they will never be needed.</p>
      * 
-     * @return Snapshot ID that is concatenation of current production index and
-     *         offest in the input character stream.
+     * @param production Memoized production.
+     * @return <code>true</code> if failure was stored; <code>false</code>
+     *         otherwise.
+     * @see ParseContext#saveFailure(Production)
      */
-    private Long snapshotID() {
-      return ((long) tracer.getCurrentReference().getIndex() << 32) | stream.getStartOffset();
+    @Override
+    public boolean saveFailure(Production production) {
+      if (predicateLevel > 0 || stream.getStartOffset() < stream.getCutOffset() || cutDiscarded()) {
+        return false;
+      }
+      memoTable.put(production.getIndex(), stream.getStartOffset(), MemoTable.FAILURE, null);
+      memoPutCount++;
+      return true;
     }
 
-  }
-
-  // TxSnapshot
-
-  /**
-   * An entry in the shapshot cache. This entry stores transaction snapshot and
-   * number of parsed characters.
-   * 
-   * @author Fox Mulder
-   */
-  private static final class TxSnapshot {
-
     /**
-     * Transaction snapshot.
+     * Releases the memo table.
      */
-    final Transaction delta;
+    @Override
+    void releaseSnapshots() {
+      memoTable.release();
+    }
 
     /**
-     * Number of parsed characters.
+     * Commits parsing at the current position in the input character stream
+     * and removes entries before it from the memo table.
+     *
+     * @see ParseContext#cut()
+     * @see MemoTable#cut(long)
      */
-    final int length;
+    @Override
+    public void cut() throws IOException {
+      if (predicateLevel == 0) {
+        stream.cut();
+        memoTable.cut(stream.getCutOffset());
+        memoOffset = Math.max(memoOffset, stream.getCutOffset());
+      }
+    }
 
     /**
-     * Constructs new snapshot entry.
-     * 
-     * @param delta Transaction snapshot.
-     * @param length Number of parsed characters.
+     * Removes entries before characters discarded by the input character
+     * stream from the memo table, since parser never backtracks before them.
+     *
+     * @return <code>true</code> if production started before discarded
+     *         characters; <code>false</code> otherwise.
+     * @see BacktrackingReader#getBufferOffset()
      */
-    private TxSnapshot(Transaction delta, int length) {
-      this.delta = delta;
-      this.length = length;
+    private boolean cutDiscarded() {
+      long offset = stream.getBufferOffset();
+      if (offset > memoOffset) {
+        memoTable.cut(offset);
+        memoOffset = offset;
+      }
+      return stream.getStartOffset() < offset;
     }
 
   }
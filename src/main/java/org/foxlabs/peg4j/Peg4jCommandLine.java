@@ -26,6 +26,10 @@ import java.util.HashMap;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import java.nio.charset.Charset;
@@ -33,7 +37,10 @@ import java.nio.charset.Charset;
 import org.foxlabs.peg4j.codegen.HtmlGenerator;
 import org.foxlabs.peg4j.codegen.JavaGenerator;
 import org.foxlabs.peg4j.codegen.TextGenerator;
+import org.foxlabs.peg4j.debug.BinaryTracer;
 import org.foxlabs.peg4j.debug.DebugTracer;
+import org.foxlabs.peg4j.debug.RuleTracer;
+import org.foxlabs.peg4j.debug.TraceRenderer;
 import org.foxlabs.peg4j.debug.TraceLevel;
 import org.foxlabs.peg4j.grammar.Grammar;
 import org.foxlabs.peg4j.grammar.GrammarCompiler;
@@ -364,6 +371,9 @@ public final class Peg4jCommandLine {
     // memoization flag
     private boolean memoable = true;
 
+    // binary trace flag
+    private boolean binary = false;
+
     // trace level
     private TraceLevel level = TraceLevel.MEDIUM;
 
@@ -388,6 +398,11 @@ public final class Peg4jCommandLine {
       memoable = false;
     }
 
+    // -binary
+    public void setBinary() {
+      binary = true;
+    }
+
     // -level <LOW|MEDIUM|HIGH>
     public void setLevel(TraceLevel value) {
       level = value;
@@ -414,7 +429,7 @@ public final class Peg4jCommandLine {
         level = TraceLevel.MEDIUM;
       }
       if (log == null) {
-        log = changeExt(source, "log");
+        log = changeExt(source, binary ? "trace" : "log");
       }
 
       Parser<Object> parser = new Parser<Object>() {
@@ -433,10 +448,16 @@ public final class Peg4jCommandLine {
 
       };
 
-      DebugTracer tracer = new DebugTracer(log);
-      tracer.setTraceLevel(level);
-      tracer.setMaxDepthLevel(maxDepth);
-      tracer.setMaxTextSize(maxTextLength);
+      RuleTracer tracer;
+      if (binary) {
+        tracer = new BinaryTracer(log);
+      } else {
+        DebugTracer debug = new DebugTracer(log);
+        debug.setTraceLevel(level);
+        debug.setMaxDepthLevel(maxDepth);
+        debug.setMaxTextSize(maxTextLength);
+        tracer = debug;
+      }
       parser.setTracer(tracer);
       parser.setMemoable(memoable);
 
@@ -445,6 +466,80 @@ public final class Peg4jCommandLine {
 
   }
 
+  /*
+   * This command renders binary trace file written by the trace command into
+   * text trace log or HTML document.
+   */
+  static final class Render extends Command {
+
+    // traced source file
+    private File source;
+
+    // rendered output file
+    private File target;
+
+    // HTML output flag
+    private boolean html = false;
+
+    // trace level
+    private TraceLevel level = TraceLevel.MEDIUM;
+
+    // max logging depth
+    private int maxDepth = 20;
+
+    // rule source logging text max length
+    private int maxTextLength = 1024;
+
+    // -source <file>
+    public void setSource(File value) {
+      source = value;
+    }
+
+    // -target <file>
+    public void setTarget(File value) {
+      target = value;
+    }
+
+    // -html
+    public void setHtml() {
+      html = true;
+    }
+
+    // -level <LOW|MEDIUM|HIGH>
+    public void setLevel(TraceLevel value) {
+      level = value;
+    }
+
+    // -maxdepth <int>
+    public void setMaxDepth(int value) {
+      maxDepth = value;
+    }
+
+    // -maxtextlength <int>
+    public void setMaxTextLength(int value) {
+      maxTextLength = value;
+    }
+
+    // trace file is not a grammar, so it is not compiled
+    public void execute(File trace) throws Throwable {
+      if (target == null) {
+        target = changeExt(trace, html ? "html" : "log");
+      }
+
+      TraceRenderer renderer = new TraceRenderer();
+      renderer.setTraceLevel(level == null ? TraceLevel.MEDIUM : level);
+      renderer.setMaxDepthLevel(maxDepth);
+      renderer.setMaxTextSize(maxTextLength);
+      renderer.setHtml(html);
+
+      Charset charset = Charset.forName(encoding);
+      try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(target), html ? "UTF-8" : encoding))) {
+        renderer.render(trace, source, charset, out);
+      }
+    }
+
+  }
+
   /*
    * This command generates compiled grammar into java Parser subclass that
    * contains grammar building statements.
@@ -506,6 +601,11 @@ public final class Peg4jCommandLine {
       flags &= ~JavaGenerator.GENERATE_PROBLEMS;
     }
 
+    // -descent
+    public void setDescent() {
+      flags |= JavaGenerator.GENERATE_DESCENT;
+    }
+
     public void execute(File source) throws Throwable {
       super.execute(source);
 
@@ -43,7 +43,17 @@ public abstract class BaseGenerator {
     generate(getTemplate(), variables, out);
   }
 
-  protected static void generate(String template, Map<String, String> variables, Writer out)
+  /**
+   * Writes the specified template replacing <code>${name}</code> placeholders
+   * with values of the variables. Lines of multiline values are indented to
+   * the column of the placeholder, unknown placeholders are kept as is.
+   *
+   * @param template Template to be written.
+   * @param variables Values of the template variables.
+   * @param out Writer to write result to.
+   * @throws IOException if IO error occurred.
+   */
+  public static void generate(String template, Map<String, String> variables, Writer out)
       throws IOException {
     BacktrackingReader in = new BacktrackingReader(new StringReader(template));
     try {
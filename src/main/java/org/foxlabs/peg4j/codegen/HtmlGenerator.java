@@ -421,6 +421,10 @@ public final class HtmlGenerator extends BaseGenerator {
       appendRule(operand, operand instanceof Operator);
     }
 
+    public void visit(Cut rule) {
+      appendOperator(Cut.SYMBOL, null);
+    }
+
     private HighlightSet addHighlightSet() {
       return addHighlightSet("gx-highlighting");
     }
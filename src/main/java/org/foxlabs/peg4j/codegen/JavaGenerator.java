@@ -24,15 +24,29 @@ import java.lang.reflect.WildcardType;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.List;
+import java.util.BitSet;
+import java.util.Arrays;
 import java.util.TreeSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.IdentityHashMap;
 import java.util.StringTokenizer;
 
+import java.io.IOException;
+
 import org.foxlabs.peg4j.Parser;
 import org.foxlabs.peg4j.Transaction;
 import org.foxlabs.common.Strings;
 import org.foxlabs.peg4j.ActionContext;
 import org.foxlabs.peg4j.ActionHandler;
+import org.foxlabs.peg4j.ActionException;
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.RecognitionException;
 import org.foxlabs.peg4j.grammar.*;
 import org.foxlabs.peg4j.resource.ResourceManager;
 
@@ -44,6 +58,19 @@ public final class JavaGenerator extends BaseGenerator {
   public static final int INCLUDE_DEBUGINFO = 0x01;
   public static final int GENERATE_COMMENTS = 0x02;
   public static final int GENERATE_PROBLEMS = 0x04;
+  public static final int GENERATE_DESCENT = 0x08;
+
+  // Estimated method size limit in bytes, JIT does not compile methods larger
+  // than 8000 bytes of bytecode
+  static final int METHOD_SIZE_LIMIT = 3000;
+  static final int DUPLICATE_SIZE_LIMIT = 200;
+  static final int CALL_SIZE = 10;
+
+  // Max number of intervals in character set matched by comparisons
+  static final int INLINE_SET_SIZE = 3;
+
+  // Max number of characters in first set of alternative dispatched by switch
+  static final int FIRST_SET_LIMIT = 128;
 
   static final Set<Class<?>> DEFAULT_IMPORTS = new LinkedHashSet<Class<?>>();
   static {
@@ -86,6 +113,8 @@ public final class JavaGenerator extends BaseGenerator {
 
   private boolean generateProblems;
 
+  private boolean generateDescent;
+
   public JavaGenerator() {
     this(null, null, null, 0x07);
   }
@@ -116,18 +145,22 @@ public final class JavaGenerator extends BaseGenerator {
   public int getFlags() {
     return (includeDebugInfo ? INCLUDE_DEBUGINFO : 0)
         | (generateComments ? GENERATE_COMMENTS : 0)
-        | (generateProblems ? GENERATE_PROBLEMS : 0);
+        | (generateProblems ? GENERATE_PROBLEMS : 0)
+        | (generateDescent ? GENERATE_DESCENT : 0);
   }
 
   public void setFlags(int flags) {
     includeDebugInfo = (flags & INCLUDE_DEBUGINFO) != 0;
     generateComments = (flags & GENERATE_COMMENTS) != 0;
     generateProblems = (flags & GENERATE_PROBLEMS) != 0;
+    generateDescent = (flags & GENERATE_DESCENT) != 0;
   }
 
   @Override
   protected String getTemplate() {
-    return ResourceManager.getGrammarJavaTemplate();
+    return generateDescent
+        ? ResourceManager.getParserJavaTemplate()
+        : ResourceManager.getGrammarJavaTemplate();
   }
 
   @Override
@@ -137,9 +170,12 @@ public final class JavaGenerator extends BaseGenerator {
     definePackageDecl(dc);
     defineParserType(dc);
     defineResultType(dc);
-    defineImportDecls(dc);
     defineGrammarStatements(dc);
     defineActionMethods(dc);
+    if (generateDescent) {
+      defineDescentMethods(dc);
+    }
+    defineImportDecls(dc);
     defineProblems(dc);
   }
 
@@ -216,6 +252,29 @@ public final class JavaGenerator extends BaseGenerator {
     dc.variables.put("action_methods", actionMethods.toString());
   }
 
+  // ${descent_methods}, ${descent_constants}, ${start_method}
+  private void defineDescentMethods(DeclContext dc) {
+    DescentWriter dw = new DescentWriter(dc);
+    int count = dc.grammar.getProductionCount();
+    for (int i = 0; i < count; i++) {
+      dw.writeProduction(dc.grammar.getProduction(i));
+    }
+    dc.variables.put("descent_methods", dw.methods.append(dw.memoMethods).toString());
+    dc.variables.put("descent_constants", dw.constants.toString());
+    dc.variables.put("start_method", dw.methodNames.get(dc.grammar.getStart()));
+
+    dc.imports.add(IOException.class);
+    dc.imports.add(ParseContext.class);
+    dc.imports.add(BacktrackingReader.class);
+    dc.imports.add(RecognitionException.class);
+    dc.imports.add(ActionException.class);
+    dc.imports.add(Expression.class);
+    dc.imports.add(Production.class);
+    dc.imports.add(Action.class);
+    dc.imports.add(Terminal.class);
+    dc.imports.add(Rule.class);
+  }
+
   // ${problems}
   private void defineProblems(DeclContext dc) {
     StringBuilder problemComments = new StringBuilder();
@@ -507,6 +566,13 @@ public final class JavaGenerator extends BaseGenerator {
       dc.imports.add(Predicate.class);
     }
 
+    public void visit(Cut rule) {
+      statements.append(".pushCut()\n");
+
+      appendStartLocation(rule);
+      appendEndLocation(rule);
+    }
+
     private void appendStartLocation(Rule rule) {
       if (includeDebugInfo) {
         Location start = rule.getStart();
@@ -534,6 +600,1087 @@ public final class JavaGenerator extends BaseGenerator {
 
   }
 
+  // DescentWriter
+
+  final class DescentWriter {
+
+    final DeclContext dc;
+
+    final StringBuilder methods = new StringBuilder();
+
+    final StringBuilder constants = new StringBuilder();
+
+    final StringBuilder memoMethods = new StringBuilder();
+
+    final Map<Production, String> methodNames = new IdentityHashMap<Production, String>();
+
+    final Map<Production, String> memoNames = new IdentityHashMap<Production, String>();
+
+    final Map<Expression, String> outlined = new IdentityHashMap<Expression, String>();
+
+    final Map<Alternation, Dispatch> dispatches = new IdentityHashMap<Alternation, Dispatch>();
+
+    final Map<Production, BitSet> firstSets = new IdentityHashMap<Production, BitSet>();
+
+    final Map<String, String> setConstants = new HashMap<String, String>();
+
+    final Map<Terminal, String> terminalConstants = new IdentityHashMap<Terminal, String>();
+
+    final List<Expression> pending = new ArrayList<Expression>();
+
+    Production production;
+
+    Expression method;
+
+    int methodCount;
+
+    int actionCount;
+
+    StringBuilder code;
+
+    int ident;
+
+    int labelCount;
+
+    boolean charUsed;
+
+    boolean reachable;
+
+    // Variable that holds offset of the parent of the next expression where
+    // interpreter marked the stream or null if it is the current offset
+    String start;
+
+    DescentWriter(DeclContext dc) {
+      this.dc = dc;
+      Set<String> names = new HashSet<String>();
+      for (Production rule : dc.grammar.getProductions()) {
+        StringBuilder buf = new StringBuilder("reduce");
+        String name = rule.getName();
+        for (int i = 0; i < name.length(); i++) {
+          char ch = name.charAt(i);
+          buf.append(Character.isJavaIdentifierPart(ch) ? i == 0 ? Character.toUpperCase(ch) : ch : '_');
+        }
+        if (!names.add(buf.toString())) {
+          buf.append('$').append(rule.getIndex());
+        }
+        methodNames.put(rule, buf.toString());
+      }
+    }
+
+    void writeProduction(Production rule) {
+      if (rule.isUndefined()) {
+        return;
+      }
+
+      production = rule;
+      methodCount = 0;
+      plan(rule.getExpression());
+
+      if (generateComments) {
+        appendComment(rule.toString(), methods);
+      }
+
+      writeMethod(methodNames.get(rule), rule.getExpression());
+      for (int i = 0; i < pending.size(); i++) {
+        Expression expression = pending.get(i);
+        writeMethod(outlined.get(expression), expression);
+      }
+      pending.clear();
+    }
+
+    // Each method returns false on failure leaving the stream position
+    // undefined, the caller is responsible to restore it
+    void writeMethod(String name, Expression expression) {
+      method = expression;
+      code = new StringBuilder();
+      ident = 2;
+      labelCount = 0;
+      charUsed = false;
+      reachable = true;
+      start = null;
+
+      Label fail = newLabel("f");
+      write(expression, fail);
+
+      methods.append("private boolean ");
+      methods.append(name);
+      methods.append("(ParseContext context) throws IOException, RecognitionException {\n");
+      appendIdent(4, methods);
+      methods.append("BacktrackingReader in = context.stream();\n");
+      if (charUsed) {
+        appendIdent(4, methods);
+        methods.append("int ch;\n");
+      }
+      if (fail.used) {
+        appendIdent(4, methods);
+        methods.append(fail.name);
+        methods.append(": {\n");
+        methods.append(code);
+        if (reachable) {
+          appendIdent(8, methods);
+          methods.append("return true;\n");
+        }
+        appendIdent(4, methods);
+        methods.append("}\n");
+        appendIdent(4, methods);
+        methods.append("return false;\n");
+      } else {
+        methods.append(dedent(code.toString()));
+        if (reachable) {
+          appendIdent(4, methods);
+          methods.append("return true;\n");
+        }
+      }
+      methods.append("}\n\n");
+    }
+
+    // Code generation
+
+    // Generates code that falls through on success and breaks to the specified
+    // label on failure
+    void write(Expression expression, Label fail) {
+      String offset = start;
+      start = null;
+      if (!reachable) {
+        return;
+      } else if (expression != method && outlined.containsKey(expression)) {
+        writeCall(expression, fail);
+      } else if (expression instanceof Terminal) {
+        writeTerminal((Terminal) expression, offset, fail);
+      } else if (expression instanceof Reference) {
+        writeReference((Reference) expression, fail);
+      } else if (expression instanceof Concatenation) {
+        Expression[] children = ((Concatenation) expression).getChildren();
+        offset = saveOffset(children);
+        for (Expression child : children) {
+          start = offset;
+          write(child, fail);
+        }
+      } else if (expression instanceof Alternation) {
+        writeAlternation((Alternation) expression, fail);
+      } else if (expression instanceof Repetition) {
+        writeRepetition((Repetition) expression, fail);
+      } else if (expression instanceof Exclusion) {
+        writeExclusion((Exclusion) expression, fail);
+      } else if (expression instanceof Action) {
+        writeAction((Action) expression, fail);
+      } else if (expression instanceof Cut) {
+        writeCut();
+      }
+    }
+
+    void writeCall(Expression expression, Label fail) {
+      String name = outlined.get(expression);
+      if (name == null) {
+        name = methodNames.get(production) + "$" + (++methodCount);
+        outlined.put(expression, name);
+        pending.add(expression);
+      }
+      failIf("!" + name + "(context)", fail);
+    }
+
+    // Failed terminal is reported at the offset where interpreter marked the
+    // stream last, exactly as the Terminal.reduce() does
+    void writeTerminal(Terminal terminal, String offset, Label fail) {
+      String report = null;
+      if (isReported(terminal)) {
+        if (offset == null) {
+          offset = saveOffset(new Expression[]{terminal});
+        }
+        report = "context.reportFailure(" + getTerminalConstant(terminal) + ", " + offset + ");";
+      }
+      if (terminal instanceof Terminal.Token) {
+        Terminal.Token token = (Terminal.Token) terminal;
+        String image = token.getImage();
+        String read = token.isCaseSensitive() ? "in.read() != " : "Character.toUpperCase(in.read()) != ";
+        StringBuilder cond = new StringBuilder();
+        for (int i = 0, n = 0; i < image.length(); i++, n++) {
+          if (n > 0) {
+            if (n % 4 == 0) {
+              cond.append("\n");
+              appendIdent(ident * 4 + 8, cond);
+            } else {
+              cond.append(" ");
+            }
+            cond.append("|| ");
+          }
+          int ch = image.codePointAt(i);
+          if (Character.isSupplementaryCodePoint(ch)) {
+            cond.append("(in.isByteMode() ? ").append(read);
+            appendChar(token.isCaseSensitive() ? ch : Character.toUpperCase(ch), cond);
+            cond.append(" : ").append(read);
+            appendChar(token.isCaseSensitive() ? image.charAt(i) : Character.toUpperCase((int) image.charAt(i)), cond);
+            cond.append(" || ").append(read);
+            i++;
+            appendChar(token.isCaseSensitive() ? image.charAt(i) : Character.toUpperCase((int) image.charAt(i)), cond);
+            cond.append(")");
+          } else {
+            cond.append(read);
+            appendChar(token.isCaseSensitive() ? ch : Character.toUpperCase(ch), cond);
+          }
+        }
+        if (cond.length() > 0) {
+          failIf(cond.toString(), report, fail);
+        }
+      } else if (terminal instanceof Terminal.Interval) {
+        Terminal.Interval interval = (Terminal.Interval) terminal;
+        writeSet(new int[]{interval.getMin(), interval.getMax()}, report, fail);
+      } else if (terminal instanceof Terminal.Set) {
+        UnicodeSet uset = ((Terminal.Set) terminal).getUnicodeSet();
+        int[] intervals = uset.toArray();
+        if (intervals.length <= INLINE_SET_SIZE * 2) {
+          writeSet(intervals, report, fail);
+        } else {
+          failIf("!" + getSetConstant(intervals) + ".contains(in.read())", report, fail);
+        }
+      } else if (terminal instanceof Terminal.Class) {
+        Terminal.Class type = (Terminal.Class) terminal;
+        String method = type.getMethodName();
+        if (method == null) {
+          line(report);
+          jump(fail);
+        } else {
+          failIf("!Character." + method + "(in.read())", report, fail);
+        }
+      } else if (terminal instanceof Terminal.Any) {
+        failIf("in.read() == BacktrackingReader.EOF", report, fail);
+      }
+    }
+
+    void writeSet(int[] intervals, String report, Label fail) {
+      if (intervals.length == 0) {
+        line(report);
+        jump(fail);
+      } else if (intervals.length == 2 && intervals[0] == intervals[1]) {
+        StringBuilder cond = new StringBuilder("in.read() != ");
+        appendChar(intervals[0], cond);
+        failIf(cond.toString(), report, fail);
+      } else {
+        charUsed = true;
+        line("ch = in.read();");
+        StringBuilder cond = new StringBuilder();
+        for (int i = 0; i < intervals.length; i += 2) {
+          if (i > 0) {
+            cond.append(" && ");
+          }
+          if (intervals[i] == intervals[i + 1]) {
+            cond.append("ch != ");
+            appendChar(intervals[i], cond);
+          } else {
+            boolean group = intervals.length > 2;
+            cond.append(group ? "(ch < " : "ch < ");
+            appendChar(intervals[i], cond);
+            cond.append(" || ch > ");
+            appendChar(intervals[i + 1], cond);
+            cond.append(group ? ")" : "");
+          }
+        }
+        failIf(cond.toString(), report, fail);
+      }
+    }
+
+    // Returns true if terminal reports failure
+    boolean isReported(Expression expression) {
+      if (expression instanceof Terminal.Token) {
+        return !((Terminal.Token) expression).getImage().isEmpty();
+      }
+      return expression instanceof Terminal && !(expression instanceof Terminal.Nil);
+    }
+
+    // Saves the current offset if any of the specified expressions reports
+    // failure, returns name of the variable or null
+    String saveOffset(Expression[] expressions) {
+      for (Expression expression : expressions) {
+        if (isReported(expression)) {
+          String name = "start" + labelCount++;
+          line("long " + name + " = in.getEndOffset();");
+          return name;
+        }
+      }
+      return null;
+    }
+
+    void writeReference(Reference reference, Label fail) {
+      Production target = reference.getTarget();
+      if (target.isUndefined()) {
+        jump(fail);
+      } else if (reference.getModifier() == Modifier.MEMO) {
+        failIf("!" + getMemoMethod(target) + "(context)", fail);
+      } else {
+        failIf("!" + methodNames.get(target) + "(context)", fail);
+      }
+    }
+
+    // Generates method that loads and stores snapshots and failures of the
+    // production exactly as the Reference.Memo.reduce() does
+    String getMemoMethod(Production target) {
+      String name = memoNames.get(target);
+      if (name == null) {
+        String reduce = methodNames.get(target);
+        String constant = getProductionConstant(target);
+        name = "memo" + reduce.substring("reduce".length());
+        memoNames.put(target, name);
+
+        StringBuilder buf = memoMethods;
+        buf.append("private boolean " + name);
+        buf.append("(ParseContext context) throws IOException, RecognitionException {\n");
+        appendLine(4, "if (!context.parser().isMemoable()) {", buf);
+        appendLine(8, "return " + reduce + "(context);", buf);
+        appendLine(4, "}", buf);
+        appendLine(4, "BacktrackingReader in = context.stream();", buf);
+        appendLine(4, "in.mark();", buf);
+        appendLine(4, "int snapshot = context.loadSnapshot(" + constant + ");", buf);
+        appendLine(4, "if (snapshot != ParseContext.SNAPSHOT_MISSED) {", buf);
+        appendLine(8, "in.release();", buf);
+        appendLine(8, "return snapshot == ParseContext.SNAPSHOT_LOADED;", buf);
+        appendLine(4, "}", buf);
+        appendLine(4, "context.transaction().begin();", buf);
+        appendLine(4, "if (" + reduce + "(context)) {", buf);
+        appendLine(8, "context.saveSnapshot(" + constant + ");", buf);
+        appendLine(8, "context.transaction().commit();", buf);
+        appendLine(8, "in.release();", buf);
+        appendLine(8, "return true;", buf);
+        appendLine(4, "}", buf);
+        appendLine(4, "context.transaction().rollback();", buf);
+        appendLine(4, "context.saveFailure(" + constant + ");", buf);
+        appendLine(4, "in.release();", buf);
+        appendLine(4, "return false;", buf);
+        buf.append("}\n\n");
+      }
+      return name;
+    }
+
+    void writeAlternation(Alternation alternation, Label fail) {
+      Dispatch dispatch = getDispatch(alternation);
+      Label done = newLabel("s");
+      StringBuilder outer = open();
+      if (dispatch == null) {
+        writeAlternatives(Arrays.asList(alternation.getChildren()), null, null, fail, done, false);
+      } else {
+        String offset = "start" + labelCount++;
+        line("long " + offset + " = in.getEndOffset();");
+        line("switch (in.peek()) {");
+        for (Map.Entry<BitSet, BitSet> group : dispatch.groups.entrySet()) {
+          BitSet chars = group.getValue();
+          for (int ch = chars.nextSetBit(0); ch >= 0; ch = chars.nextSetBit(ch + 1)) {
+            StringBuilder label = new StringBuilder("case ");
+            appendChar(ch, label);
+            line(label.append(":").toString());
+          }
+          writeGroup(alternation, group.getKey(), offset, fail, done);
+        }
+        line("default:");
+        writeGroup(alternation, dispatch.defaults, offset, fail, done);
+        line("}");
+        reachable = false;
+      }
+      close(outer, done);
+    }
+
+    // Alternatives skipped by the dispatch report their failures in the same
+    // order as interpreter tries them
+    void writeGroup(Alternation alternation, BitSet alternatives, String offset, Label fail, Label done) {
+      List<Expression> group = new ArrayList<Expression>();
+      List<Set<Terminal>> skipped = new ArrayList<Set<Terminal>>();
+      Set<Terminal> failures = new LinkedHashSet<Terminal>();
+      for (int i = 0; i < alternation.length(); i++) {
+        if (alternatives.get(i)) {
+          group.add(alternation.getChild(i));
+          skipped.add(failures);
+          failures = new LinkedHashSet<Terminal>();
+        } else {
+          getFailures(alternation.getChild(i), failures);
+        }
+      }
+      skipped.add(failures);
+      ident++;
+      reachable = true;
+      writeAlternatives(group, skipped, offset, fail, done, true);
+      ident--;
+    }
+
+    // Generates alternatives one by one, the last one falls through on success
+    // unless exit is requested, failures of skipped alternatives are reported
+    // before each alternative and after the last one
+    void writeAlternatives(List<Expression> alternatives, List<Set<Terminal>> skipped,
+        String offset, Label fail, Label done, boolean exit) {
+      int count = alternatives.size();
+      if (count == 0) {
+        writeFailures(skipped, 0, offset);
+        jump(fail);
+        return;
+      }
+      if (count > 1) {
+        line("in.mark();");
+        for (int i = 0; i < count - 1 && reachable; i++) {
+          if (i > 0) {
+            line("in.reset();");
+            line("in.mark();");
+          }
+          writeFailures(skipped, i, offset);
+          Label next = newLabel("f");
+          StringBuilder outer = open();
+          write(alternatives.get(i), next);
+          if (reachable) {
+            line("in.release();");
+            jump(done);
+          }
+          close(outer, next);
+        }
+        if (reachable) {
+          line("in.reset();");
+        }
+      }
+      writeFailures(skipped, count - 1, offset);
+      if (skipped == null || skipped.get(count).isEmpty()) {
+        write(alternatives.get(count - 1), fail);
+        if (exit && reachable) {
+          jump(done);
+        }
+      } else {
+        Label next = newLabel("f");
+        StringBuilder outer = open();
+        write(alternatives.get(count - 1), next);
+        if (reachable) {
+          jump(done);
+        }
+        close(outer, next);
+        writeFailures(skipped, count, offset);
+        if (reachable) {
+          jump(fail);
+        }
+      }
+    }
+
+    void writeFailures(List<Set<Terminal>> skipped, int index, String offset) {
+      if (skipped != null && reachable) {
+        for (Terminal terminal : skipped.get(index)) {
+          line("context.reportFailure(" + getTerminalConstant(terminal) + ", " + offset + ");");
+        }
+      }
+    }
+
+    void writeRepetition(Repetition repetition, Label fail) {
+      Expression child = repetition.getChild();
+      Quantifier quant = repetition.getQuantifier();
+      if (quant == Quantifier.ONCEORNONE) {
+        Label done = newLabel("s");
+        StringBuilder outer = open();
+        line("in.mark();");
+        Label next = newLabel("f");
+        StringBuilder inner = open();
+        write(child, next);
+        if (reachable) {
+          line("in.release();");
+          jump(done);
+        }
+        close(inner, next);
+        if (reachable) {
+          line("in.reset();");
+        }
+        close(outer, done);
+      } else if (quant == Quantifier.ZEROORMORE || quant == Quantifier.ONCEORMORE) {
+        if (quant == Quantifier.ONCEORMORE) {
+          write(child, fail);
+          if (!reachable) {
+            return;
+          }
+        }
+        line("in.mark();");
+        line("while (true) {");
+        ident++;
+        Label next = newLabel("f");
+        StringBuilder inner = open();
+        write(child, next);
+        if (reachable) {
+          line("in.release();");
+          line("in.mark();");
+          line("continue;");
+          reachable = false;
+        }
+        close(inner, next);
+        if (reachable) {
+          line("in.reset();");
+          line("break;");
+        }
+        ident--;
+        line("}");
+        reachable = next.used;
+      } else {
+        // Incomplete optional part resets stream to the start of repetition
+        // exactly as the Repetition.reduce() does
+        int min = repetition.getMin();
+        int max = repetition.getMax();
+        Label done = newLabel("s");
+        StringBuilder outer = open();
+        line("in.mark();");
+        String offset = saveOffset(new Expression[]{child});
+        if (min > 0) {
+          writeLoop(child, offset, "0", Integer.toString(min), fail, null);
+        }
+        if (reachable && max > min) {
+          String limit = max == Integer.MAX_VALUE ? "Integer.MAX_VALUE" : Integer.toString(max);
+          writeLoop(child, offset, Integer.toString(min), limit, null, done);
+        }
+        if (reachable) {
+          line("in.release();");
+        }
+        close(outer, done);
+      }
+    }
+
+    void writeLoop(Expression child, String offset, String from, String to, Label fail, Label done) {
+      String var = "i" + labelCount++;
+      line("for (int " + var + " = " + from + "; " + var + " < " + to + "; " + var + "++) {");
+      ident++;
+      Label next = newLabel("f");
+      StringBuilder inner = open();
+      start = offset;
+      write(child, next);
+      if (reachable) {
+        line("continue;");
+        reachable = false;
+      }
+      close(inner, next);
+      if (reachable) {
+        if (done == null) {
+          line("in.release();");
+          jump(fail);
+        } else {
+          line("in.reset();");
+          jump(done);
+        }
+      }
+      ident--;
+      line("}");
+      reachable = true;
+    }
+
+    // Predicate level is tracked exactly as the Exclusion.reduce() does, so
+    // cuts and memoized failures inside predicates are ignored at runtime
+    void writeExclusion(Exclusion exclusion, Label fail) {
+      Label next = newLabel("f");
+      if (exclusion.getPredicate() == Predicate.NOT) {
+        line("in.mark();");
+        line("context.enterPredicate();");
+        StringBuilder inner = open();
+        write(exclusion.getChild(), next);
+        if (reachable) {
+          line("context.exitPredicate();");
+          line("in.reset();");
+          jump(fail);
+        }
+        close(inner, next);
+        if (reachable) {
+          line("context.exitPredicate();");
+          line("in.reset();");
+        }
+      } else {
+        Label done = newLabel("s");
+        StringBuilder outer = open();
+        line("in.mark();");
+        line("context.enterPredicate();");
+        StringBuilder inner = open();
+        write(exclusion.getChild(), next);
+        if (reachable) {
+          line("context.exitPredicate();");
+          line("in.reset();");
+          jump(done);
+        }
+        close(inner, next);
+        if (reachable) {
+          line("context.exitPredicate();");
+          line("in.release();");
+          jump(fail);
+        }
+        close(outer, done);
+      }
+    }
+
+    void writeAction(Action action, Label fail) {
+      Label done = newLabel("s");
+      Label next = newLabel("f");
+      StringBuilder outer = open();
+      line("in.mark();");
+      line("context.transaction().begin();");
+      StringBuilder inner = open();
+      write(action.getChild(), next);
+      if (reachable && !action.isInjected()) {
+        String name = action.getName();
+        name = actionPrefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        line("try {");
+        ident++;
+        failIf("!" + name + "(context)", next);
+        ident--;
+        line("} catch (Throwable e) {");
+        ident++;
+        line("throw new ActionException(" + getActionConstant(action) + ", e, context.end());");
+        ident--;
+        line("}");
+      }
+      if (reachable) {
+        line("context.transaction().commit();");
+        line("in.release();");
+        jump(done);
+      }
+      close(inner, next);
+      if (reachable) {
+        line("context.transaction().rollback();");
+        line("in.release();");
+        jump(fail);
+      }
+      close(outer, done);
+    }
+
+    // Cut may be reached through references from a predicate, so it is
+    // ignored by the context at runtime
+    void writeCut() {
+      line("context.cut();");
+    }
+
+    // Constants
+
+    String getSetConstant(int[] intervals) {
+      String key = Arrays.toString(intervals);
+      String name = setConstants.get(key);
+      if (name == null) {
+        name = "SET_" + setConstants.size();
+        setConstants.put(key, name);
+        constants.append("private static final UnicodeSet ");
+        constants.append(name);
+        constants.append(" = UnicodeSet.fromIntervals(new int[]{");
+        for (int i = 0; i < intervals.length; i++) {
+          if (i > 0) {
+            constants.append(", ");
+          }
+          appendChar(intervals[i], constants);
+        }
+        constants.append("});\n");
+        dc.imports.add(UnicodeSet.class);
+      }
+      return name;
+    }
+
+    void appendLine(int ident, String text, StringBuilder buf) {
+      appendIdent(ident, buf);
+      buf.append(text);
+      buf.append("\n");
+    }
+
+    String getProductionConstant(Production target) {
+      String name = "PRODUCTION_" + target.getIndex();
+      constants.append("private static final Production ");
+      constants.append(name);
+      constants.append(" = production(\"");
+      constants.append(Strings.escape(target.getName()));
+      constants.append("\");\n");
+      return name;
+    }
+
+    String getActionConstant(Action action) {
+      String name = "ACTION_" + actionCount++;
+      appendLookup(Action.class, name, action);
+      return name;
+    }
+
+    String getTerminalConstant(Terminal terminal) {
+      String name = terminalConstants.get(terminal);
+      if (name == null) {
+        name = "TERMINAL_" + terminalConstants.size();
+        terminalConstants.put(terminal, name);
+        appendLookup(Terminal.class, name, terminal);
+      }
+      return name;
+    }
+
+    void appendLookup(Class<?> type, String name, Expression rule) {
+      LinkedList<Integer> path = new LinkedList<Integer>();
+      for (Expression node = rule; node.getParent() != null; node = node.getParent()) {
+        int index = 0;
+        if (node.getParent() instanceof Expression.Nary) {
+          Expression.Nary parent = (Expression.Nary) node.getParent();
+          while (parent.getChild(index) != node) {
+            index++;
+          }
+        }
+        path.addFirst(index);
+      }
+      String simpleName = type.getSimpleName();
+      constants.append("private static final " + simpleName + " ");
+      constants.append(name);
+      constants.append(" = (" + simpleName + ") lookup(\"");
+      constants.append(Strings.escape(rule.getOwner().getName()));
+      constants.append("\"");
+      for (int index : path) {
+        constants.append(", ");
+        constants.append(index);
+      }
+      constants.append(");\n");
+    }
+
+    // Method splitting
+
+    // Decides which nested expressions should be moved to separate methods to
+    // keep size of each method within the limit, returns estimated size
+    int plan(Expression expression) {
+      Expression[] children = childrenOf(expression);
+      int[] factors = new int[children.length];
+      int[] sizes = new int[children.length];
+      int size = sizeOf(expression);
+      for (int i = 0; i < children.length; i++) {
+        factors[i] = factorOf(expression, i);
+        sizes[i] = plan(children[i]);
+        // Terminals are not outlined because they report failures at the
+        // offset of their parent
+        if (factors[i] > 1 && sizes[i] > DUPLICATE_SIZE_LIMIT && !(children[i] instanceof Terminal)) {
+          outlined.put(children[i], null);
+          sizes[i] = CALL_SIZE;
+        }
+        size += sizes[i] * factors[i];
+      }
+      while (size > METHOD_SIZE_LIMIT) {
+        int largest = -1;
+        for (int i = 0; i < children.length; i++) {
+          if (sizes[i] > CALL_SIZE * 2 && !(children[i] instanceof Terminal) && (largest < 0 || sizes[i] * factors[i] > sizes[largest] * factors[largest])) {
+            largest = i;
+          }
+        }
+        if (largest < 0) {
+          break;
+        }
+        outlined.put(children[largest], null);
+        size -= (sizes[largest] - CALL_SIZE) * factors[largest];
+        sizes[largest] = CALL_SIZE;
+      }
+      return size;
+    }
+
+    Expression[] childrenOf(Expression expression) {
+      if (expression instanceof Expression.Nary) {
+        return ((Expression.Nary) expression).getChildren();
+      } else if (expression instanceof Expression.Unary) {
+        return new Expression[]{((Expression.Unary) expression).getChild()};
+      } else {
+        return new Expression[0];
+      }
+    }
+
+    // Returns number of copies of the child code
+    int factorOf(Expression expression, int index) {
+      if (expression instanceof Repetition.OnceOrMore) {
+        return 2;
+      } else if (expression instanceof Alternation) {
+        Dispatch dispatch = getDispatch((Alternation) expression);
+        if (dispatch != null) {
+          int factor = dispatch.defaults.get(index) ? 1 : 0;
+          for (BitSet group : dispatch.groups.keySet()) {
+            factor += group.get(index) ? 1 : 0;
+          }
+          return factor;
+        }
+      }
+      return 1;
+    }
+
+    // Returns estimated size of the expression code without children in bytes
+    int sizeOf(Expression expression) {
+      if (expression instanceof Terminal.Token) {
+        return ((Terminal.Token) expression).getImage().length() * 12;
+      } else if (expression instanceof Terminal.Set) {
+        int length = ((Terminal.Set) expression).getUnicodeSet().toArray().length;
+        return length > INLINE_SET_SIZE * 2 ? 16 : 8 + length * 8;
+      } else if (expression instanceof Terminal) {
+        return 20;
+      } else if (expression instanceof Reference) {
+        return CALL_SIZE;
+      } else if (expression instanceof Alternation) {
+        Dispatch dispatch = getDispatch((Alternation) expression);
+        int size = 20 + ((Alternation) expression).length() * 20;
+        if (dispatch != null) {
+          size += 16;
+          for (BitSet group : dispatch.groups.values()) {
+            size += group.cardinality() * 8 + 20;
+          }
+        }
+        return size;
+      } else if (expression instanceof Action) {
+        return 80;
+      } else if (expression instanceof Concatenation) {
+        return 0;
+      } else {
+        return 30;
+      }
+    }
+
+    // Switch dispatch
+
+    // Groups alternatives by the next character, alternatives with unknown
+    // first character are included in all groups
+    Dispatch getDispatch(Alternation alternation) {
+      if (dispatches.containsKey(alternation)) {
+        return dispatches.get(alternation);
+      }
+      int length = alternation.length();
+      BitSet[] starts = new BitSet[length];
+      BitSet defaults = new BitSet();
+      BitSet chars = new BitSet();
+      for (int i = 0; i < length; i++) {
+        starts[i] = getFirstSet(alternation.getChild(i));
+        if (starts[i] == null) {
+          defaults.set(i);
+        } else {
+          chars.or(starts[i]);
+        }
+      }
+      Dispatch dispatch = null;
+      if (length - defaults.cardinality() > 1) {
+        dispatch = new Dispatch(defaults);
+        for (int ch = chars.nextSetBit(0); ch >= 0; ch = chars.nextSetBit(ch + 1)) {
+          BitSet group = (BitSet) defaults.clone();
+          for (int i = 0; i < length; i++) {
+            if (starts[i] != null && starts[i].get(ch)) {
+              group.set(i);
+            }
+          }
+          if (!group.equals(defaults)) {
+            BitSet groupChars = dispatch.groups.get(group);
+            if (groupChars == null) {
+              dispatch.groups.put(group, groupChars = new BitSet());
+            }
+            groupChars.set(ch);
+          }
+        }
+      }
+      dispatches.put(alternation, dispatch);
+      return dispatch;
+    }
+
+    // Returns set of characters the expression can start with when it consumes
+    // at least one character on success or null if set is unknown
+    BitSet getFirstSet(Expression expression) {
+      if (expression instanceof Terminal.Token) {
+        Terminal.Token token = (Terminal.Token) expression;
+        if (token.getImage().isEmpty() || Character.isSurrogate(token.getImage().charAt(0))) {
+          return null; // see BacktrackingReader.isByteMode()
+        }
+        BitSet chars = new BitSet();
+        int first = token.getImage().charAt(0);
+        if (token.isCaseSensitive()) {
+          chars.set(first);
+        } else {
+          first = Character.toUpperCase(first);
+          for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+            if (Character.toUpperCase(ch) == first) {
+              chars.set(ch);
+            }
+          }
+        }
+        return chars;
+      } else if (expression instanceof Terminal.Interval) {
+        Terminal.Interval interval = (Terminal.Interval) expression;
+        return getFirstSet(new int[]{interval.getMin(), interval.getMax()});
+      } else if (expression instanceof Terminal.Set) {
+        return getFirstSet(((Terminal.Set) expression).getUnicodeSet().toArray());
+      } else if (expression instanceof Reference) {
+        Production target = ((Reference) expression).getTarget();
+        if (target.isUndefined()) {
+          return new BitSet();
+        } else if (firstSets.containsKey(target)) {
+          return firstSets.get(target);
+        }
+        firstSets.put(target, null); // left recursion
+        BitSet chars = getFirstSet(target.getExpression());
+        firstSets.put(target, chars);
+        return chars;
+      } else if (expression instanceof Concatenation) {
+        Expression[] children = ((Concatenation) expression).getChildren();
+        for (int i = 0; i < children.length; i++) {
+          if (!isEmpty(children[i])) {
+            BitSet chars = getFirstSet(children[i]);
+            for (int j = 0; j < i && chars != null; j++) {
+              if (!isDecided(children[j], chars)) {
+                return null;
+              }
+            }
+            return chars;
+          }
+        }
+        return null;
+      } else if (expression instanceof Alternation) {
+        BitSet chars = new BitSet();
+        for (Expression child : ((Alternation) expression).getChildren()) {
+          BitSet childChars = getFirstSet(child);
+          if (childChars == null) {
+            return null;
+          }
+          chars.or(childChars);
+        }
+        return chars.cardinality() > FIRST_SET_LIMIT ? null : chars;
+      } else if (expression instanceof Repetition) {
+        Repetition repetition = (Repetition) expression;
+        return repetition.getMin() > 0 ? getFirstSet(repetition.getChild()) : null;
+      } else if (expression instanceof Action) {
+        return getFirstSet(((Action) expression).getChild());
+      }
+      return null;
+    }
+
+    BitSet getFirstSet(int[] intervals) {
+      BitSet chars = new BitSet();
+      for (int i = 0; i < intervals.length; i += 2) {
+        if (intervals[i + 1] - intervals[i] >= FIRST_SET_LIMIT) {
+          return null;
+        }
+        for (int ch = intervals[i]; ch <= intervals[i + 1] && ch <= Character.MAX_VALUE; ch++) {
+          chars.set(ch);
+        }
+      }
+      return chars.cardinality() > FIRST_SET_LIMIT ? null : chars;
+    }
+
+    // Returns true if outcome of the empty expression is known when next
+    // character is not one of the specified ones, so skipped alternative
+    // reports the same failures as interpreter regardless of the character
+    boolean isDecided(Expression expression, BitSet chars) {
+      if (expression instanceof Exclusion) {
+        BitSet predicate = getFirstSet(((Exclusion) expression).getChild());
+        if (predicate == null) {
+          return false;
+        }
+        predicate = (BitSet) predicate.clone();
+        predicate.andNot(chars);
+        return predicate.isEmpty();
+      }
+      return !(expression instanceof Action || expression instanceof Cut);
+    }
+
+    // Collects terminals that fail when expression with known first set is
+    // reduced at the character that is not in the set
+    Set<Terminal> getFailures(Expression expression, Set<Terminal> failures) {
+      if (expression instanceof Terminal) {
+        if (isReported(expression)) {
+          failures.add((Terminal) expression);
+        }
+      } else if (expression instanceof Reference) {
+        Production target = ((Reference) expression).getTarget();
+        if (!target.isUndefined()) {
+          getFailures(target.getExpression(), failures);
+        }
+      } else if (expression instanceof Concatenation) {
+        for (Expression child : ((Concatenation) expression).getChildren()) {
+          if (!isEmpty(child)) {
+            getFailures(child, failures);
+            break;
+          } else if (child instanceof Exclusion && ((Exclusion) child).getPredicate() == Predicate.AND) {
+            break;
+          }
+        }
+      } else if (expression instanceof Alternation) {
+        for (Expression child : ((Alternation) expression).getChildren()) {
+          getFailures(child, failures);
+        }
+      } else if (expression instanceof Expression.Unary) {
+        getFailures(((Expression.Unary) expression).getChild(), failures);
+      }
+      return failures;
+    }
+
+    // Returns true if expression never consumes characters
+    boolean isEmpty(Expression expression) {
+      if (expression instanceof Exclusion || expression instanceof Terminal.Nil
+          || expression instanceof Cut) {
+        return true;
+      } else if (expression instanceof Terminal.Token) {
+        return ((Terminal.Token) expression).getImage().isEmpty();
+      } else if (expression instanceof Action) {
+        return isEmpty(((Action) expression).getChild());
+      }
+      return false;
+    }
+
+    // Output
+
+    Label newLabel(String prefix) {
+      return new Label(prefix + labelCount++);
+    }
+
+    void line(String text) {
+      appendIdent(ident * 4, code);
+      code.append(text);
+      code.append("\n");
+    }
+
+    void failIf(String condition, Label fail) {
+      failIf(condition, null, fail);
+    }
+
+    void failIf(String condition, String report, Label fail) {
+      line("if (" + condition + ") {");
+      ident++;
+      if (report != null) {
+        line(report);
+      }
+      line("break " + fail.name + ";");
+      ident--;
+      line("}");
+      fail.used = true;
+    }
+
+    void jump(Label label) {
+      line("break " + label.name + ";");
+      label.used = true;
+      reachable = false;
+    }
+
+    // Starts code of the block that can be labeled
+    StringBuilder open() {
+      StringBuilder outer = code;
+      code = new StringBuilder();
+      ident++;
+      return outer;
+    }
+
+    // Completes code of the block, label is omitted if it is not used
+    void close(StringBuilder outer, Label label) {
+      ident--;
+      String inner = code.toString();
+      code = outer;
+      if (label.used) {
+        line(label.name + ": {");
+        code.append(inner);
+        line("}");
+        reachable = true;
+      } else {
+        code.append(dedent(inner));
+      }
+    }
+
+  }
+
+  static final class Label {
+
+    final String name;
+
+    boolean used;
+
+    Label(String name) {
+      this.name = name;
+    }
+
+  }
+
+  static final class Dispatch {
+
+    final Map<BitSet, BitSet> groups = new LinkedHashMap<BitSet, BitSet>();
+
+    final BitSet defaults;
+
+    Dispatch(BitSet defaults) {
+      this.defaults = defaults;
+    }
+
+  }
+
   // Utils
 
   static void appendComment(String comment, StringBuilder buf) {
@@ -545,6 +1692,27 @@ public final class JavaGenerator extends BaseGenerator {
     }
   }
 
+  static void appendChar(int ch, StringBuilder buf) {
+    if (ch > Character.MAX_VALUE) {
+      buf.append(ch);
+    } else {
+      buf.append("\'");
+      buf.append(Strings.escape((char) ch));
+      buf.append("\'");
+    }
+  }
+
+  static String dedent(String code) {
+    StringBuilder buf = new StringBuilder();
+    StringTokenizer tokenizer = new StringTokenizer(code, "\n");
+    while (tokenizer.hasMoreTokens()) {
+      String line = tokenizer.nextToken();
+      buf.append(line.startsWith("    ") ? line.substring(4) : line);
+      buf.append("\n");
+    }
+    return buf.toString();
+  }
+
   static void appendLocation(Location location, StringBuilder buf) {
     buf.append(Location.class.getSimpleName());
     buf.append(".valueOf(");
@@ -264,6 +264,10 @@ public final class TextGenerator extends BaseGenerator {
       appendRule(operand, operand instanceof Operator);
     }
 
+    public void visit(Cut rule) {
+      statements.append(Cut.SYMBOL);
+    }
+
     private void appendRule(Rule rule, boolean parenthesize) {
       if (parenthesize) {
         statements.append('(');
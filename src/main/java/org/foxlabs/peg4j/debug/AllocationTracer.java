@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2015 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.util.Map;
+import java.util.Arrays;
+
+import java.io.IOException;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.grammar.Rule;
+import org.foxlabs.peg4j.grammar.RuleKind;
+import org.foxlabs.peg4j.grammar.Action;
+import org.foxlabs.peg4j.grammar.Grammar;
+import org.foxlabs.peg4j.grammar.Production;
+
+/**
+ * Tracer that collects statistics of the {@link StatisticsTracer} and also
+ * attributes bytes allocated by the current thread to productions and
+ * actions.
+ *
+ * <p>Allocated bytes are sampled using the
+ * <code>com.sun.management.ThreadMXBean</code> when productions and actions are
+ * entered and exited. Inclusive bytes of a production or action are all the
+ * bytes allocated while it is being reduced or invoked, exclusive bytes exclude
+ * bytes attributed to nested productions and actions. Sampling method that does
+ * not allocate is used if JVM provides it (Java 14 and later), otherwise bytes
+ * allocated by sampling itself are measured once and subtracted from each
+ * sample. Bytes of recursive productions are counted inclusively at each level
+ * of recursion. Allocation tables are rendered in the statistics template next
+ * to the latency tables.</p>
+ *
+ * <p>In tests this tracer can be used to check that parser does not allocate
+ * too much, see {@link #setMaxBytesPerChar(double)}.</p>
+ *
+ * @author Fox Mulder
+ */
+public class AllocationTracer extends StatisticsTracer {
+
+  /**
+   * Handle of the <code>getCurrentThreadAllocatedBytes()</code> method of the
+   * thread MX bean or <code>null</code> if JVM does not provide it. Unlike
+   * the <code>getThreadAllocatedBytes(long)</code> method it does not
+   * allocate.
+   */
+  private static final MethodHandle CURRENT_THREAD_ALLOCATED_BYTES = findCurrentThreadAllocatedBytes();
+
+  /**
+   * Thread MX bean that provides allocated bytes.
+   */
+  private final com.sun.management.ThreadMXBean threadBean;
+
+  /**
+   * Number of bytes allocated by a single sample of allocated bytes.
+   */
+  private final long probeBytes;
+
+  /**
+   * Number of samples of allocated bytes taken so far.
+   */
+  private long probeCount = 0L;
+
+  /**
+   * Maximum number of bytes per input character or <code>0</code> if
+   * allocation is not checked.
+   */
+  private double maxBytesPerChar = 0.0;
+
+  /**
+   * Grammar the allocation arrays are allocated for.
+   */
+  private Grammar boundGrammar = null;
+
+  /**
+   * Inclusive bytes of productions indexed by production index.
+   */
+  protected long[] productionInclusiveBytes = new long[0];
+
+  /**
+   * Exclusive bytes of productions indexed by production index.
+   */
+  protected long[] productionExclusiveBytes = new long[0];
+
+  /**
+   * Inclusive bytes of actions indexed by action index.
+   */
+  protected long[] actionInclusiveBytes = new long[0];
+
+  /**
+   * Exclusive bytes of actions indexed by action index.
+   */
+  protected long[] actionExclusiveBytes = new long[0];
+
+  /**
+   * Total bytes allocated by all the parsings.
+   */
+  protected long totalBytes = 0L;
+
+  /**
+   * Total number of input characters of all the parsings.
+   */
+  protected long totalInputLength = 0L;
+
+  /**
+   * Allocated bytes sampled when productions and actions being traced were
+   * entered.
+   */
+  private long[] startBytes = new long[64];
+
+  /**
+   * Bytes attributed to nested productions and actions of the productions
+   * and actions being traced.
+   */
+  private long[] nestedBytes = new long[64];
+
+  /**
+   * Current depth of productions and actions being traced.
+   */
+  private int depth = 0;
+
+  /**
+   * Input character stream being parsed.
+   */
+  private BacktrackingReader stream = null;
+
+  /**
+   * Allocated bytes sampled when parsing started.
+   */
+  private long openBytes = 0L;
+
+  /**
+   * Constructs a new allocation tracer.
+   *
+   * @throws UnsupportedOperationException if JVM does not support
+   *         measurement of allocated memory.
+   */
+  public AllocationTracer() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      throw new UnsupportedOperationException("Thread allocated memory is not supported");
+    }
+    threadBean = (com.sun.management.ThreadMXBean) bean;
+    if (!threadBean.isThreadAllocatedMemorySupported()) {
+      throw new UnsupportedOperationException("Thread allocated memory is not supported");
+    }
+    if (!threadBean.isThreadAllocatedMemoryEnabled()) {
+      threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+    long probe = Long.MAX_VALUE;
+    for (int i = 0; i < 16; i++) {
+      long bytes = sampleBytes();
+      probe = Math.min(probe, sampleBytes() - bytes);
+    }
+    probeBytes = Math.max(probe, 0L);
+  }
+
+  /**
+   * Returns maximum number of bytes per input character.
+   *
+   * @return Maximum number of bytes per input character or <code>0</code> if
+   *         allocation is not checked.
+   */
+  public double getMaxBytesPerChar() {
+    return maxBytesPerChar;
+  }
+
+  /**
+   * Sets maximum number of bytes per input character that parsing can
+   * allocate. If successful parsing allocates more then {@link AssertionError}
+   * is thrown when parsing finishes, so this tracer can be used to check
+   * allocation in tests.
+   *
+   * @param maxBytesPerChar Maximum number of bytes per input character or
+   *        <code>0</code> if allocation should not be checked.
+   */
+  public void setMaxBytesPerChar(double maxBytesPerChar) {
+    this.maxBytesPerChar = Math.max(maxBytesPerChar, 0.0);
+  }
+
+  /**
+   * Returns total bytes allocated by all the parsings traced.
+   *
+   * @return Total bytes allocated by all the parsings traced.
+   */
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Returns inclusive bytes of the specified production.
+   *
+   * @param production Production.
+   * @return Inclusive bytes of the specified production.
+   */
+  public long getInclusiveBytes(Production production) {
+    int index = production.getIndex();
+    return production.getGrammar() == boundGrammar && index < productionInclusiveBytes.length
+        ? productionInclusiveBytes[index] : 0L;
+  }
+
+  /**
+   * Returns exclusive bytes of the specified production.
+   *
+   * @param production Production.
+   * @return Exclusive bytes of the specified production.
+   */
+  public long getExclusiveBytes(Production production) {
+    int index = production.getIndex();
+    return production.getGrammar() == boundGrammar && index < productionExclusiveBytes.length
+        ? productionExclusiveBytes[index] : 0L;
+  }
+
+  @Override
+  public void open(BacktrackingReader stream) throws IOException {
+    super.open(stream);
+    this.stream = stream;
+    this.depth = 0;
+    this.openBytes = allocatedBytes();
+  }
+
+  @Override
+  public void onRuleTrace(Rule rule) throws IOException {
+    super.onRuleTrace(rule);
+    if (rule.getKind() == RuleKind.PRODUCTION) {
+      enter();
+    }
+  }
+
+  @Override
+  public void onRuleBacktrace(Rule rule, boolean success) throws IOException {
+    if (rule.getKind() == RuleKind.PRODUCTION) {
+      int index = ((Production) rule).getIndex();
+      exit(bind(rule.getGrammar()).productionInclusiveBytes, productionExclusiveBytes, index);
+    }
+    super.onRuleBacktrace(rule, success);
+  }
+
+  @Override
+  public void onBeforeAction(Action action) throws IOException {
+    super.onBeforeAction(action);
+    if (!action.isInjected()) {
+      enter();
+    }
+  }
+
+  @Override
+  public void onAfterAction(Action action, boolean success) throws IOException {
+    if (!action.isInjected()) {
+      exit(bind(action.getGrammar()).actionInclusiveBytes, actionExclusiveBytes, action.getIndex());
+    }
+    super.onAfterAction(action, success);
+  }
+
+  @Override
+  public void close(boolean result) throws IOException {
+    long bytes = allocatedBytes() - openBytes;
+    long length = stream == null ? 0L : stream.getInputLength();
+    totalBytes += bytes;
+    totalInputLength += length;
+    stream = null;
+    super.close(result);
+    if (result && maxBytesPerChar > 0.0 && bytes > maxBytesPerChar * Math.max(length, 1L)) {
+      throw new AssertionError("Parsing allocated " + bytes + " bytes for " + length
+          + " characters, more than " + maxBytesPerChar + " bytes per character");
+    }
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    boundGrammar = null;
+    productionInclusiveBytes = new long[0];
+    productionExclusiveBytes = new long[0];
+    actionInclusiveBytes = new long[0];
+    actionExclusiveBytes = new long[0];
+    totalBytes = 0L;
+    totalInputLength = 0L;
+  }
+
+  @Override
+  protected void defineVariables(Map<String, String> variables) {
+    StringBuilder productionAllocationBuf = new StringBuilder();
+    StringBuilder actionAllocationBuf = new StringBuilder();
+    for (int i = 0; i < productionInclusiveBytes.length; i++) {
+      if (productionInclusiveBytes[i] > 0L) {
+        productionAllocationBuf.append(boundGrammar.getProduction(i).getName()).append(" : ")
+            .append(productionInclusiveBytes[i]).append(" / ")
+            .append(productionExclusiveBytes[i]).append("\n");
+      }
+    }
+    for (int i = 0; i < actionInclusiveBytes.length; i++) {
+      if (actionInclusiveBytes[i] > 0L) {
+        actionAllocationBuf.append(boundGrammar.getAction(i).getName()).append(" : ")
+            .append(actionInclusiveBytes[i]).append(" / ")
+            .append(actionExclusiveBytes[i]).append("\n");
+      }
+    }
+    variables.put("totalAllocatedBytes", Long.toString(totalBytes));
+    variables.put("totalAllocatedCharacters", Long.toString(totalInputLength));
+    variables.put("productionAllocationTable", productionAllocationBuf.toString());
+    variables.put("actionAllocationTable", actionAllocationBuf.toString());
+  }
+
+  /**
+   * Makes the specified grammar current, allocation arrays are reallocated
+   * if grammar changes.
+   */
+  private AllocationTracer bind(Grammar target) {
+    if (boundGrammar != target) {
+      boundGrammar = target;
+      productionInclusiveBytes = new long[target.getProductionCount()];
+      productionExclusiveBytes = new long[target.getProductionCount()];
+      actionInclusiveBytes = new long[target.getActionCount()];
+      actionExclusiveBytes = new long[target.getActionCount()];
+    }
+    return this;
+  }
+
+  /**
+   * Pushes a new frame on the stack of productions and actions being traced.
+   */
+  private void enter() {
+    if (depth == startBytes.length) {
+      startBytes = Arrays.copyOf(startBytes, depth * 2);
+      nestedBytes = Arrays.copyOf(nestedBytes, depth * 2);
+    }
+    nestedBytes[depth] = 0L;
+    startBytes[depth++] = allocatedBytes();
+  }
+
+  /**
+   * Pops frame from the stack of productions and actions being traced and
+   * attributes its bytes to the specified index.
+   */
+  private void exit(long[] inclusiveBytes, long[] exclusiveBytes, int index) {
+    long bytes = allocatedBytes() - startBytes[--depth];
+    inclusiveBytes[index] += bytes;
+    exclusiveBytes[index] += bytes - nestedBytes[depth];
+    if (depth > 0) {
+      nestedBytes[depth - 1] += bytes;
+    }
+  }
+
+  /**
+   * Returns number of bytes allocated by the current thread so far excluding
+   * bytes allocated by the previous samples.
+   */
+  private long allocatedBytes() {
+    return sampleBytes() - probeBytes * probeCount++;
+  }
+
+  /**
+   * Returns number of bytes allocated by the current thread so far as
+   * reported by the thread MX bean.
+   */
+  private long sampleBytes() {
+    if (CURRENT_THREAD_ALLOCATED_BYTES != null) {
+      try {
+        return (long) CURRENT_THREAD_ALLOCATED_BYTES.invokeExact(threadBean);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Looks up the <code>getCurrentThreadAllocatedBytes()</code> method added
+   * to the thread MX bean in Java 14.
+   */
+  private static MethodHandle findCurrentThreadAllocatedBytes() {
+    try {
+      return MethodHandles.publicLookup().findVirtual(com.sun.management.ThreadMXBean.class,
+          "getCurrentThreadAllocatedBytes", MethodType.methodType(long.class));
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+}
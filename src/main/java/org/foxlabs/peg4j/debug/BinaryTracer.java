@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.grammar.Rule;
+import org.foxlabs.peg4j.grammar.Action;
+import org.foxlabs.peg4j.grammar.Production;
+import org.foxlabs.peg4j.grammar.Reference;
+
+/**
+ * Tracer that writes rule events to a file in compact binary format, so
+ * that large inputs can be traced at low cost and trace can be rendered
+ * later by the {@link TraceRenderer}.
+ *
+ * <p>Trace file consists of header, fixed-size records and trailer. Header
+ * contains {@link #MAGIC} number, {@link #VERSION} and name of the traced
+ * file. Each record takes {@link #RECORD_SIZE} bytes: rule id, event type,
+ * start offset and end offset. Rules are assigned ids when they are traced
+ * for the first time and trailer contains kinds and text representations of
+ * the rules in order of ids followed by the parsing result. Trace file ends
+ * with position of the trailer, number of rules and magic number. Records
+ * are written through a direct buffer to the file channel, so nothing is
+ * formatted while parsing.</p>
+ *
+ * @author Fox Mulder
+ * @see TraceRenderer
+ */
+public class BinaryTracer implements RuleTracer {
+
+  /**
+   * Magic number of the trace file.
+   */
+  public static final int MAGIC = 0x50454754;
+
+  /**
+   * Version of the trace file format.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Size of a record in bytes.
+   */
+  public static final int RECORD_SIZE = 24;
+
+  /**
+   * Size of the end of the trace file in bytes.
+   */
+  public static final int FOOTER_SIZE = 16;
+
+  /**
+   * Rule has been entered.
+   */
+  public static final int TRACE = 0;
+
+  /**
+   * Rule has been successfully exited.
+   */
+  public static final int SUCCESS = 1;
+
+  /**
+   * Rule has failed.
+   */
+  public static final int FAILURE = 2;
+
+  /**
+   * Default size of the write buffer in bytes.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Trace file.
+   */
+  protected final File file;
+
+  /**
+   * Filter of the tracer events.
+   */
+  private final TraceFilter filter;
+
+  /**
+   * Write buffer.
+   */
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  /**
+   * Ids of the rules.
+   */
+  private final IdentityHashMap<Rule, Integer> ids = new IdentityHashMap<Rule, Integer>();
+
+  /**
+   * Rules in order of ids.
+   */
+  private final List<Rule> rules = new ArrayList<Rule>();
+
+  /**
+   * Channel of the trace file being written.
+   */
+  private FileChannel channel = null;
+
+  /**
+   * Input character stream being parsed.
+   */
+  private BacktrackingReader stream = null;
+
+  /**
+   * Constructs a new tracer that writes all the rule events to the specified
+   * file.
+   *
+   * @param file Trace file.
+   */
+  public BinaryTracer(File file) {
+    this(file, TraceFilter.ALL.events(TraceFilter.RULE_EVENTS));
+  }
+
+  /**
+   * Constructs a new tracer that writes rule events accepted by the
+   * specified filter to the specified file.
+   *
+   * @param file Trace file.
+   * @param filter Filter of the tracer events.
+   */
+  public BinaryTracer(File file, TraceFilter filter) {
+    this.file = file;
+    this.filter = filter;
+  }
+
+  @Override
+  public TraceFilter getFilter() {
+    return filter;
+  }
+
+  @Override
+  public void open(BacktrackingReader stream) throws IOException {
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    this.stream = stream;
+    ids.clear();
+    rules.clear();
+    buffer.clear();
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    writeString(stream.getFile() == null ? "" : stream.getFile());
+  }
+
+  @Override
+  public void onRuleTrace(Rule rule) throws IOException {
+    write(rule, TRACE);
+  }
+
+  @Override
+  public void onRuleBacktrace(Rule rule, boolean success) throws IOException {
+    write(rule, success ? SUCCESS : FAILURE);
+  }
+
+  @Override
+  public void onBeforeAction(Action action) throws IOException {
+    // Actions are written as rule trace and backtrace events
+  }
+
+  @Override
+  public void onAfterAction(Action action, boolean success) throws IOException {
+    // Actions are written as rule trace and backtrace events
+  }
+
+  @Override
+  public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
+    // Not written
+  }
+
+  @Override
+  public void onCachePut(Reference reference) throws IOException {
+    // Not written
+  }
+
+  @Override
+  public void onCacheEvict(Production production, long offset) throws IOException {
+    // Not written
+  }
+
+  @Override
+  public void close(boolean result) throws IOException {
+    try {
+      flush();
+      long trailer = channel.position();
+      for (Rule rule : rules) {
+        ensureRemaining(1);
+        buffer.put((byte) rule.getKind().ordinal());
+        writeString(rule.toString());
+      }
+      ensureRemaining(1 + FOOTER_SIZE);
+      buffer.put((byte) (result ? 1 : 0));
+      buffer.putLong(trailer);
+      buffer.putInt(rules.size());
+      buffer.putInt(MAGIC);
+      flush();
+    } finally {
+      channel.close();
+      channel = null;
+      stream = null;
+    }
+  }
+
+  /**
+   * Writes record of the specified rule event.
+   */
+  private void write(Rule rule, int type) throws IOException {
+    Integer id = ids.get(rule);
+    if (id == null) {
+      ids.put(rule, id = rules.size());
+      rules.add(rule);
+    }
+    if (buffer.remaining() < RECORD_SIZE) {
+      flush();
+    }
+    buffer.putInt(id);
+    buffer.putInt(type);
+    buffer.putLong(stream.getStartOffset());
+    buffer.putLong(stream.getEndOffset());
+  }
+
+  /**
+   * Writes length and UTF-8 bytes of the specified string.
+   */
+  private void writeString(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    ensureRemaining(4);
+    buffer.putInt(bytes.length);
+    if (buffer.remaining() < bytes.length) {
+      flush();
+      ByteBuffer wrap = ByteBuffer.wrap(bytes);
+      while (wrap.hasRemaining()) {
+        channel.write(wrap);
+      }
+    } else {
+      buffer.put(bytes);
+    }
+  }
+
+  /**
+   * Flushes buffer if it has less than the specified number of bytes
+   * remaining.
+   */
+  private void ensureRemaining(int count) throws IOException {
+    if (buffer.remaining() < count) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes contents of the buffer to the file channel.
+   */
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+}
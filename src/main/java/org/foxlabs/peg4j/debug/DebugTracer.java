@@ -60,6 +60,10 @@ public class DebugTracer extends StatisticsTracer {
 
   protected int memoCacheMissCount;
 
+  protected int memoCacheFailureHitCount;
+
+  protected int memoCacheEvictionCount;
+
   protected int actionCount;
 
   protected int maxDepth;
@@ -137,6 +141,8 @@ public class DebugTracer extends StatisticsTracer {
     memoCacheSize = 0;
     memoCacheHitCount = 0;
     memoCacheMissCount = 0;
+    memoCacheFailureHitCount = 0;
+    memoCacheEvictionCount = 0;
     maxDepth = 0;
 
     depthLevel = 0;
@@ -154,16 +160,7 @@ public class DebugTracer extends StatisticsTracer {
 
     if (traceLevel.compareTo(TraceLevel.forRule(rule)) >= 0) {
       if (maxDepthLevel == 0 || depthLevel < maxDepthLevel) {
-        out.write("\u0020\u0020");
-        writeIdent();
-
-        out.write("->\u0020");
-        writeLocation(stream.getStart());
-        out.write("\u0020");
-        out.write(rule.toString());
-        out.write("\n");
-
-        ident++;
+        writeTrace(rule.toString(), stream.getStart());
       }
     }
 
@@ -179,44 +176,19 @@ public class DebugTracer extends StatisticsTracer {
     depthLevel--;
     if (traceLevel.compareTo(TraceLevel.forRule(rule)) >= 0) {
       if (maxDepthLevel == 0 || depthLevel < maxDepthLevel) {
-        ident--;
-
-        out.write(success ? "\u0020\u0020" : "!\u0020");
-        writeIdent();
-
-        out.write("<-\u0020");
-        writeLocation(stream.getStart());
-        out.write("\u0020");
-        out.write(rule.toString());
-        out.write("\n");
-
-        if (success && maxTextSize > 0) {
-          String text = stream.getText();
-          int length = text == null ? 0 : text.length();
-          if (length > 0) {
-            out.write("\u0020\u0020");
-            writeIdent();
-            out.write("\u0020\u0020\u0020");
-
-            if (length > maxTextSize) {
-              out.write("\"...");
-              text = text.substring(text.length() - maxTextSize);
-            } else {
-              out.write("\"");
-            }
-
-            out.write(Strings.escape(text));
-            out.write("\"\n");
-          }
-        }
+        String text = success && maxTextSize > 0 ? stream.getText() : null;
+        writeBacktrace(rule.toString(), success, stream.getStart(), text);
       }
     }
   }
 
   @Override
-  public void onCacheGet(Reference reference, boolean hit) throws IOException {
+  public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
     if (hit) {
       memoCacheHitCount++;
+      if (!success) {
+        memoCacheFailureHitCount++;
+      }
     } else {
       memoCacheMissCount++;
     }
@@ -227,6 +199,12 @@ public class DebugTracer extends StatisticsTracer {
     memoCacheSize++;
   }
 
+  @Override
+  public void onCacheEvict(Production production, long offset) throws IOException {
+    memoCacheSize--;
+    memoCacheEvictionCount++;
+  }
+
   @Override
   public void close(boolean result) throws IOException {
     out.write("\n\nTRACE RESULTS:");
@@ -246,6 +224,10 @@ public class DebugTracer extends StatisticsTracer {
     out.write(Integer.toString(memoCacheSize));
     out.write("\nMemo cache hits: ");
     out.write(Integer.toString(memoCacheHitCount));
+    out.write("\nMemo cache failure hits: ");
+    out.write(Integer.toString(memoCacheFailureHitCount));
+    out.write("\nMemo cache evictions: ");
+    out.write(Integer.toString(memoCacheEvictionCount));
     out.write("\nMemo cache misses: ");
     out.write(Integer.toString(memoCacheMissCount));
     out.write("\nMax depth: ");
@@ -258,6 +240,49 @@ public class DebugTracer extends StatisticsTracer {
     }
   }
 
+  protected void writeTrace(String rule, Location location) throws IOException {
+    out.write("\u0020\u0020");
+    writeIdent();
+
+    out.write("->\u0020");
+    writeLocation(location);
+    out.write("\u0020");
+    out.write(rule);
+    out.write("\n");
+
+    ident++;
+  }
+
+  protected void writeBacktrace(String rule, boolean success, Location location, String text) throws IOException {
+    ident--;
+
+    out.write(success ? "\u0020\u0020" : "!\u0020");
+    writeIdent();
+
+    out.write("<-\u0020");
+    writeLocation(location);
+    out.write("\u0020");
+    out.write(rule);
+    out.write("\n");
+
+    int length = text == null ? 0 : text.length();
+    if (success && maxTextSize > 0 && length > 0) {
+      out.write("\u0020\u0020");
+      writeIdent();
+      out.write("\u0020\u0020\u0020");
+
+      if (length > maxTextSize) {
+        out.write("\"...");
+        text = text.substring(text.length() - maxTextSize);
+      } else {
+        out.write("\"");
+      }
+
+      out.write(Strings.escape(text));
+      out.write("\"\n");
+    }
+  }
+
   protected void writeIdent() throws IOException {
     for (int i = ident * identSize; i > 0; i--) {
       out.write(' ');
@@ -35,7 +35,7 @@ public class ErrorTracer extends RuleTracer.Adapter {
 
   private BacktrackingReader charStream;
 
-  private int errorOffset;
+  private long errorOffset;
 
   private int errorLine;
 
@@ -51,6 +51,10 @@ public class ErrorTracer extends RuleTracer.Adapter {
     return referenceHead == null ? null : referenceHead.reference.getTarget();
   }
 
+  public boolean isPredicate() {
+    return predicateLevel > 0;
+  }
+
   public Location getErrorLocation() {
     return Location.valueOf(charStream.getFile(), errorLine, errorColumn);
   }
@@ -70,7 +74,7 @@ public class ErrorTracer extends RuleTracer.Adapter {
   @Override
   public void open(BacktrackingReader stream) throws IOException {
     charStream = stream;
-    errorOffset = 0;
+    errorOffset = 0L;
     errorLine = 0;
     errorColumn = 0;
     predicateLevel = 0;
@@ -94,14 +98,14 @@ public class ErrorTracer extends RuleTracer.Adapter {
     } else if (rule instanceof Exclusion) {
       predicateLevel--;
     } else if (rule instanceof Terminal && predicateLevel == 0 && !success) {
-      int offset = charStream.getStartOffset();
+      long offset = charStream.getStartOffset();
       if (offset >= errorOffset) {
-        if (offset > errorOffset) {
+        if (offset > errorOffset || errorLine == 0) {
           expectedSet.clear();
+          errorOffset = offset;
+          errorLine = charStream.getStartLine();
+          errorColumn = charStream.getStartColumn();
         }
-        errorOffset = offset;
-        errorLine = charStream.getStartLine();
-        errorColumn = charStream.getStartColumn();
         expectedSet.add((Terminal) rule);
       }
     }
@@ -151,9 +155,9 @@ public class ErrorTracer extends RuleTracer.Adapter {
     }
 
     @Override
-    public void onCacheGet(Reference reference, boolean hit) throws IOException {
-      super.onCacheGet(reference, hit);
-      tracer.onCacheGet(reference, hit);
+    public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
+      super.onCacheGet(reference, hit, success);
+      tracer.onCacheGet(reference, hit, success);
     }
 
     @Override
@@ -162,12 +166,24 @@ public class ErrorTracer extends RuleTracer.Adapter {
       tracer.onCachePut(reference);
     }
 
+    @Override
+    public void onCacheEvict(Production production, long offset) throws IOException {
+      super.onCacheEvict(production, offset);
+      tracer.onCacheEvict(production, offset);
+    }
+
     @Override
     public void close(boolean result) throws IOException {
       super.close(result);
       tracer.close(result);
     }
 
+    @Override
+    public void close(Throwable failure) throws IOException {
+      super.close(false);
+      tracer.close(failure);
+    }
+
   }
 
   public static ErrorTracer newTracer(RuleTracer tracer) {
@@ -0,0 +1,663 @@
+/*
+ * Copyright (C) 2015 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import java.io.File;
+import java.io.Writer;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
+
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.grammar.Rule;
+import org.foxlabs.peg4j.grammar.RuleKind;
+import org.foxlabs.peg4j.grammar.Action;
+import org.foxlabs.peg4j.grammar.Grammar;
+import org.foxlabs.peg4j.grammar.Terminal;
+import org.foxlabs.peg4j.grammar.Production;
+import org.foxlabs.peg4j.grammar.Reference;
+
+/**
+ * Profile of the grammar aggregated across all the parsers that use it
+ * concurrently.
+ *
+ * <p>Each parser should use its own tracer returned by the
+ * {@link #newTracer()} method, tracers update striped {@link LongAdder} and
+ * {@link LongAccumulator} counters of this profile, so there is no contention
+ * between threads. Counters are indexed by production index and by terminal
+ * and action indexes assigned when grammar is built. Snapshots of the
+ * counters can be taken at any time and exported as JSON or Prometheus text
+ * files.</p>
+ *
+ * @author Fox Mulder
+ * @see StatisticsTracer
+ */
+public final class GrammarProfile {
+
+  /**
+   * Filter of the tracer events, rule events are received only for
+   * productions and terminals.
+   */
+  static final TraceFilter FILTER = TraceFilter.ALL.kinds(RuleKind.PRODUCTION, RuleKind.TERMINAL);
+
+  /**
+   * Profiled grammar.
+   */
+  private final Grammar grammar;
+
+  /**
+   * Counters of productions indexed by production index.
+   */
+  private final Counter[] productionCounters;
+
+  /**
+   * Counters of terminals indexed by terminal index.
+   */
+  private final Counter[] terminalCounters;
+
+  /**
+   * Counters of actions indexed by action index.
+   */
+  private final Counter[] actionCounters;
+
+  private final LongAdder memoHitCount = new LongAdder();
+
+  private final LongAdder memoMissCount = new LongAdder();
+
+  private final LongAdder memoFailureHitCount = new LongAdder();
+
+  private final LongAdder memoPutCount = new LongAdder();
+
+  private final LongAdder memoEvictionCount = new LongAdder();
+
+  /**
+   * Constructs a new profile of the specified grammar.
+   *
+   * @param grammar Grammar to be profiled.
+   */
+  public GrammarProfile(Grammar grammar) {
+    this.grammar = grammar;
+    this.productionCounters = newCounters(grammar.getProductionCount());
+    this.terminalCounters = newCounters(grammar.getTerminalCount());
+    this.actionCounters = newCounters(grammar.getActionCount());
+  }
+
+  /**
+   * Returns profiled grammar.
+   *
+   * @return Profiled grammar.
+   */
+  public Grammar getGrammar() {
+    return grammar;
+  }
+
+  /**
+   * Returns a new tracer that updates counters of this profile. Tracer is not
+   * thread-safe and should be used by a single parser, but any number of
+   * tracers can be used concurrently. Events of rules that belong to other
+   * grammars are ignored.
+   *
+   * @return A new tracer that updates counters of this profile.
+   */
+  public RuleTracer newTracer() {
+    return new Tracer();
+  }
+
+  /**
+   * Returns snapshot of the current counters. Counters updated concurrently
+   * may be partially included.
+   *
+   * @return Snapshot of the current counters.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(this, false);
+  }
+
+  /**
+   * Returns snapshot of the current counters and resets them, so the next
+   * snapshot contains only counts collected since this one.
+   *
+   * @return Snapshot of the current counters.
+   */
+  public Snapshot snapshotAndReset() {
+    return new Snapshot(this, true);
+  }
+
+  private static Counter[] newCounters(int count) {
+    Counter[] counters = new Counter[count];
+    for (int i = 0; i < count; i++) {
+      counters[i] = new Counter();
+    }
+    return counters;
+  }
+
+  // Counter
+
+  /**
+   * Striped counters of a single rule.
+   *
+   * @author Fox Mulder
+   */
+  static final class Counter {
+
+    final LongAdder successCount = new LongAdder();
+
+    final LongAdder failureCount = new LongAdder();
+
+    final LongAdder totalNanos = new LongAdder();
+
+    final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0L);
+
+    final LongAdder memoHitCount = new LongAdder();
+
+    final LongAdder memoMissCount = new LongAdder();
+
+    void record(boolean success, long nanos) {
+      (success ? successCount : failureCount).increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+    }
+
+  }
+
+  // Tracer
+
+  /**
+   * Tracer of a single parser that updates counters of the profile.
+   *
+   * @author Fox Mulder
+   */
+  final class Tracer implements RuleTracer {
+
+    /**
+     * Start times of the productions and terminals being traced.
+     */
+    private long[] startTimes = new long[64];
+
+    /**
+     * Current depth of the start times stack.
+     */
+    private int depth = 0;
+
+    /**
+     * Start time of the action being invoked.
+     */
+    private long actionStartTime = 0L;
+
+    @Override
+    public TraceFilter getFilter() {
+      return FILTER;
+    }
+
+    @Override
+    public void open(BacktrackingReader stream) throws IOException {
+      depth = 0;
+    }
+
+    @Override
+    public void onRuleTrace(Rule rule) throws IOException {
+      if (rule.getGrammar() == grammar) {
+        if (depth == startTimes.length) {
+          startTimes = Arrays.copyOf(startTimes, depth * 2);
+        }
+        startTimes[depth++] = System.nanoTime();
+      }
+    }
+
+    @Override
+    public void onRuleBacktrace(Rule rule, boolean success) throws IOException {
+      if (rule.getGrammar() == grammar) {
+        long nanos = System.nanoTime() - startTimes[--depth];
+        RuleKind kind = rule.getKind();
+        if (kind == RuleKind.PRODUCTION) {
+          productionCounters[((Production) rule).getIndex()].record(success, nanos);
+        } else if (kind == RuleKind.TERMINAL) {
+          terminalCounters[((Terminal) rule).getIndex()].record(success, nanos);
+        }
+      }
+    }
+
+    @Override
+    public void onBeforeAction(Action action) throws IOException {
+      actionStartTime = System.nanoTime();
+    }
+
+    @Override
+    public void onAfterAction(Action action, boolean success) throws IOException {
+      if (action.getGrammar() == grammar && !action.isInjected()) {
+        actionCounters[action.getIndex()].record(success, System.nanoTime() - actionStartTime);
+      }
+    }
+
+    @Override
+    public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
+      if (reference.getGrammar() == grammar) {
+        Counter counter = productionCounters[reference.getTarget().getIndex()];
+        if (hit) {
+          memoHitCount.increment();
+          counter.memoHitCount.increment();
+          if (!success) {
+            memoFailureHitCount.increment();
+          }
+        } else {
+          memoMissCount.increment();
+          counter.memoMissCount.increment();
+        }
+      }
+    }
+
+    @Override
+    public void onCachePut(Reference reference) throws IOException {
+      if (reference.getGrammar() == grammar) {
+        memoPutCount.increment();
+      }
+    }
+
+    @Override
+    public void onCacheEvict(Production production, long offset) throws IOException {
+      if (production.getGrammar() == grammar) {
+        memoEvictionCount.increment();
+      }
+    }
+
+    @Override
+    public void close(boolean result) throws IOException {
+      depth = 0;
+    }
+
+  }
+
+  // Snapshot
+
+  /**
+   * Immutable snapshot of the profile counters.
+   *
+   * @author Fox Mulder
+   */
+  public static final class Snapshot {
+
+    private final long timestamp;
+
+    private final Entry[] productions;
+
+    private final Entry[] terminals;
+
+    private final Entry[] actions;
+
+    private final long memoHitCount;
+
+    private final long memoMissCount;
+
+    private final long memoFailureHitCount;
+
+    private final long memoPutCount;
+
+    private final long memoEvictionCount;
+
+    Snapshot(GrammarProfile profile, boolean reset) {
+      this.timestamp = System.currentTimeMillis();
+      Grammar grammar = profile.grammar;
+      this.productions = new Entry[profile.productionCounters.length];
+      for (int i = 0; i < productions.length; i++) {
+        productions[i] = new Entry(grammar.getProduction(i).getName(), profile.productionCounters[i], reset);
+      }
+      this.terminals = new Entry[profile.terminalCounters.length];
+      for (int i = 0; i < terminals.length; i++) {
+        terminals[i] = new Entry(grammar.getTerminal(i).toString(), profile.terminalCounters[i], reset);
+      }
+      this.actions = new Entry[profile.actionCounters.length];
+      for (int i = 0; i < actions.length; i++) {
+        actions[i] = new Entry(grammar.getAction(i).getName(), profile.actionCounters[i], reset);
+      }
+      this.memoHitCount = sum(profile.memoHitCount, reset);
+      this.memoMissCount = sum(profile.memoMissCount, reset);
+      this.memoFailureHitCount = sum(profile.memoFailureHitCount, reset);
+      this.memoPutCount = sum(profile.memoPutCount, reset);
+      this.memoEvictionCount = sum(profile.memoEvictionCount, reset);
+    }
+
+    /**
+     * Returns time when this snapshot was taken.
+     *
+     * @return Time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * Returns entries of the productions in order of production indexes.
+     *
+     * @return Entries of the productions.
+     */
+    public Entry[] getProductions() {
+      return productions.clone();
+    }
+
+    /**
+     * Returns entry of the production with the specified name.
+     *
+     * @param name Name of the production.
+     * @return Entry of the production or <code>null</code> if there is no
+     *         production with the specified name.
+     */
+    public Entry getProduction(String name) {
+      for (Entry entry : productions) {
+        if (entry.name.equals(name)) {
+          return entry;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns entries of the terminals in order of terminal indexes.
+     *
+     * @return Entries of the terminals.
+     */
+    public Entry[] getTerminals() {
+      return terminals.clone();
+    }
+
+    /**
+     * Returns entries of the actions in order of action indexes.
+     *
+     * @return Entries of the actions.
+     */
+    public Entry[] getActions() {
+      return actions.clone();
+    }
+
+    public long getMemoHitCount() {
+      return memoHitCount;
+    }
+
+    public long getMemoMissCount() {
+      return memoMissCount;
+    }
+
+    public long getMemoFailureHitCount() {
+      return memoFailureHitCount;
+    }
+
+    public long getMemoPutCount() {
+      return memoPutCount;
+    }
+
+    public long getMemoEvictionCount() {
+      return memoEvictionCount;
+    }
+
+    /**
+     * Writes this snapshot as JSON object.
+     *
+     * @param out Writer to write to.
+     * @throws IOException if IO error occurred.
+     */
+    public void writeJson(Writer out) throws IOException {
+      out.write("{\n  \"timestamp\": " + timestamp);
+      writeJson(out, "productions", productions);
+      writeJson(out, "terminals", terminals);
+      writeJson(out, "actions", actions);
+      out.write(",\n  \"memo\": {\"hits\": " + memoHitCount + ", \"misses\": " + memoMissCount
+          + ", \"failureHits\": " + memoFailureHitCount + ", \"puts\": " + memoPutCount
+          + ", \"evictions\": " + memoEvictionCount + "}\n}\n");
+      out.flush();
+    }
+
+    /**
+     * Writes this snapshot in the Prometheus text exposition format. Values
+     * are counted since the profile was created or since the latest
+     * {@link GrammarProfile#snapshotAndReset()} call, so they can decrease
+     * between snapshots and are exported as gauges rather than counters.
+     *
+     * @param out Writer to write to.
+     * @throws IOException if IO error occurred.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+      writePrometheus(out, "production", productions);
+      writePrometheus(out, "terminal", terminals);
+      writePrometheus(out, "action", actions);
+      out.write("# TYPE peg4j_production_memo gauge\n");
+      for (Entry entry : productions) {
+        if (entry.memoHitCount > 0L || entry.memoMissCount > 0L) {
+          String label = "production=\"" + escapeLabel(entry.name) + "\"";
+          out.write("peg4j_production_memo{" + label + ",result=\"hit\"} " + entry.memoHitCount + "\n");
+          out.write("peg4j_production_memo{" + label + ",result=\"miss\"} " + entry.memoMissCount + "\n");
+        }
+      }
+      out.write("# TYPE peg4j_memo gauge\n");
+      out.write("peg4j_memo{event=\"hit\"} " + memoHitCount + "\n");
+      out.write("peg4j_memo{event=\"miss\"} " + memoMissCount + "\n");
+      out.write("peg4j_memo{event=\"failure_hit\"} " + memoFailureHitCount + "\n");
+      out.write("peg4j_memo{event=\"put\"} " + memoPutCount + "\n");
+      out.write("peg4j_memo{event=\"eviction\"} " + memoEvictionCount + "\n");
+      out.flush();
+    }
+
+    /**
+     * Writes this snapshot as JSON object to the specified file. Snapshot is
+     * written to a temporary file first that is then atomically moved to the
+     * specified one, so readers never see a partially written file.
+     *
+     * @param file File to write to.
+     * @throws IOException if IO error occurred.
+     */
+    public void exportJson(File file) throws IOException {
+      export(file, false);
+    }
+
+    /**
+     * Writes this snapshot in the Prometheus text exposition format to the
+     * specified file, for example to be picked up by the textfile collector.
+     * Snapshot is written to a temporary file first that is then atomically
+     * moved to the specified one.
+     *
+     * @param file File to write to.
+     * @throws IOException if IO error occurred.
+     */
+    public void exportPrometheus(File file) throws IOException {
+      export(file, true);
+    }
+
+    private void export(File file, boolean prometheus) throws IOException {
+      File dir = file.getAbsoluteFile().getParentFile();
+      File temp = File.createTempFile(file.getName(), ".tmp", dir);
+      try {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+          if (prometheus) {
+            writePrometheus(out);
+          } else {
+            writeJson(out);
+          }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        temp.delete();
+      }
+    }
+
+    private static void writeJson(Writer out, String key, Entry[] entries) throws IOException {
+      out.write(",\n  \"" + key + "\": [");
+      for (int i = 0; i < entries.length; i++) {
+        Entry entry = entries[i];
+        out.write(i == 0 ? "\n    {\"name\": " : ",\n    {\"name\": ");
+        out.write(escapeJson(entry.name));
+        out.write(", \"successes\": " + entry.successCount + ", \"failures\": " + entry.failureCount
+            + ", \"totalNanos\": " + entry.totalNanos + ", \"maxNanos\": " + entry.maxNanos);
+        if (entry.memoHitCount > 0L || entry.memoMissCount > 0L) {
+          out.write(", \"memoHits\": " + entry.memoHitCount + ", \"memoMisses\": " + entry.memoMissCount);
+        }
+        out.write("}");
+      }
+      out.write(entries.length == 0 ? "]" : "\n  ]");
+    }
+
+    private static void writePrometheus(Writer out, String kind, Entry[] entries) throws IOException {
+      String prefix = "peg4j_" + kind;
+      out.write("# TYPE " + prefix + "_invocations gauge\n");
+      for (Entry entry : entries) {
+        String label = kind + "=\"" + escapeLabel(entry.name) + "\"";
+        out.write(prefix + "_invocations{" + label + ",result=\"success\"} " + entry.successCount + "\n");
+        out.write(prefix + "_invocations{" + label + ",result=\"failure\"} " + entry.failureCount + "\n");
+      }
+      out.write("# TYPE " + prefix + "_nanoseconds gauge\n");
+      for (Entry entry : entries) {
+        out.write(prefix + "_nanoseconds{" + kind + "=\"" + escapeLabel(entry.name) + "\"} "
+            + entry.totalNanos + "\n");
+      }
+      out.write("# TYPE " + prefix + "_max_nanoseconds gauge\n");
+      for (Entry entry : entries) {
+        out.write(prefix + "_max_nanoseconds{" + kind + "=\"" + escapeLabel(entry.name) + "\"} "
+            + entry.maxNanos + "\n");
+      }
+    }
+
+    private static String escapeJson(String value) {
+      StringBuilder buf = new StringBuilder(value.length() + 2).append('"');
+      for (int i = 0; i < value.length(); i++) {
+        char ch = value.charAt(i);
+        if (ch == '"' || ch == '\\') {
+          buf.append('\\').append(ch);
+        } else if (ch == '\n') {
+          buf.append("\\n");
+        } else if (ch == '\r') {
+          buf.append("\\r");
+        } else if (ch == '\t') {
+          buf.append("\\t");
+        } else if (ch < 0x20) {
+          buf.append(String.format("\\u%04x", (int) ch));
+        } else {
+          buf.append(ch);
+        }
+      }
+      return buf.append('"').toString();
+    }
+
+    private static String escapeLabel(String value) {
+      StringBuilder buf = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        char ch = value.charAt(i);
+        if (ch == '"' || ch == '\\') {
+          buf.append('\\').append(ch);
+        } else if (ch == '\n') {
+          buf.append("\\n");
+        } else {
+          buf.append(ch);
+        }
+      }
+      return buf.toString();
+    }
+
+    private static long sum(LongAdder adder, boolean reset) {
+      return reset ? adder.sumThenReset() : adder.sum();
+    }
+
+  }
+
+  // Entry
+
+  /**
+   * Counters of a single production, terminal or action in a snapshot.
+   *
+   * @author Fox Mulder
+   */
+  public static final class Entry {
+
+    private final String name;
+
+    private final long successCount;
+
+    private final long failureCount;
+
+    private final long totalNanos;
+
+    private final long maxNanos;
+
+    private final long memoHitCount;
+
+    private final long memoMissCount;
+
+    Entry(String name, Counter counter, boolean reset) {
+      this.name = name;
+      if (reset) {
+        this.successCount = counter.successCount.sumThenReset();
+        this.failureCount = counter.failureCount.sumThenReset();
+        this.totalNanos = counter.totalNanos.sumThenReset();
+        this.maxNanos = counter.maxNanos.getThenReset();
+        this.memoHitCount = counter.memoHitCount.sumThenReset();
+        this.memoMissCount = counter.memoMissCount.sumThenReset();
+      } else {
+        this.successCount = counter.successCount.sum();
+        this.failureCount = counter.failureCount.sum();
+        this.totalNanos = counter.totalNanos.sum();
+        this.maxNanos = counter.maxNanos.get();
+        this.memoHitCount = counter.memoHitCount.sum();
+        this.memoMissCount = counter.memoMissCount.sum();
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSuccessCount() {
+      return successCount;
+    }
+
+    public long getFailureCount() {
+      return failureCount;
+    }
+
+    public long getInvocationCount() {
+      return successCount + failureCount;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    public long getMemoHitCount() {
+      return memoHitCount;
+    }
+
+    public long getMemoMissCount() {
+      return memoMissCount;
+    }
+
+    @Override
+    public String toString() {
+      return name + " : " + successCount + "/" + failureCount + " " + totalNanos + "ns";
+    }
+
+  }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.io.IOException;
+
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.SyntaxException;
+import org.foxlabs.peg4j.ActionException;
+import org.foxlabs.peg4j.grammar.Rule;
+import org.foxlabs.peg4j.grammar.RuleKind;
+import org.foxlabs.peg4j.grammar.Action;
+import org.foxlabs.peg4j.grammar.Production;
+import org.foxlabs.peg4j.grammar.Reference;
+
+/**
+ * Tracer that keeps the last rule events in a ring buffer and dumps them
+ * only when parsing fails, so it can be left enabled to get post-mortem
+ * context of syntax errors and failed actions.
+ *
+ * <p>Ring buffer consists of arrays allocated when tracer is constructed,
+ * each event takes a rule reference, an offset, a flag and a timestamp, so
+ * nothing is allocated per event. When parsing fails, that is
+ * {@link org.foxlabs.peg4j.SyntaxException} or
+ * {@link org.foxlabs.peg4j.ActionException} is thrown, recorded events are
+ * written using the {@link DebugTracer} formatting. By default events of
+ * productions, terminals and actions are recorded, other events can be
+ * selected using the {@link TraceFilter}.</p>
+ *
+ * @author Fox Mulder
+ * @see DebugTracer
+ */
+public class RingBufferTracer implements RuleTracer {
+
+  /**
+   * Default filter of the tracer events.
+   */
+  public static final TraceFilter DEFAULT_FILTER = TraceFilter.ALL.events(TraceFilter.RULE_EVENTS)
+      .kinds(RuleKind.PRODUCTION, RuleKind.TERMINAL, RuleKind.ACTION);
+
+  /**
+   * Rule has been entered.
+   */
+  private static final byte TRACE = 0;
+
+  /**
+   * Rule has been successfully exited.
+   */
+  private static final byte SUCCESS = 1;
+
+  /**
+   * Rule has failed.
+   */
+  private static final byte FAILURE = 2;
+
+  /**
+   * Filter of the tracer events.
+   */
+  private final TraceFilter filter;
+
+  /**
+   * Writer to dump events to.
+   */
+  private final Writer out;
+
+  /**
+   * Rules of the events.
+   */
+  private final Rule[] rules;
+
+  /**
+   * Start offsets of the rules.
+   */
+  private final long[] offsets;
+
+  /**
+   * Types of the events.
+   */
+  private final byte[] types;
+
+  /**
+   * Timestamps of the events in nanoseconds.
+   */
+  private final long[] timestamps;
+
+  /**
+   * Total number of events of the current parsing.
+   */
+  private long count = 0L;
+
+  /**
+   * Input character stream being parsed.
+   */
+  private BacktrackingReader stream = null;
+
+  /**
+   * Constructs a new tracer that keeps the specified number of the last
+   * events and dumps them to the standard error stream.
+   *
+   * @param capacity Number of the last events to keep.
+   */
+  public RingBufferTracer(int capacity) {
+    this(capacity, new OutputStreamWriter(System.err), DEFAULT_FILTER);
+  }
+
+  /**
+   * Constructs a new tracer that keeps the specified number of the last
+   * events and dumps them to the specified writer.
+   *
+   * @param capacity Number of the last events to keep.
+   * @param out Writer to dump events to.
+   */
+  public RingBufferTracer(int capacity, Writer out) {
+    this(capacity, out, DEFAULT_FILTER);
+  }
+
+  /**
+   * Constructs a new tracer that keeps the specified number of the last
+   * events accepted by the specified filter and dumps them to the specified
+   * writer.
+   *
+   * @param capacity Number of the last events to keep.
+   * @param out Writer to dump events to.
+   * @param filter Filter of the tracer events.
+   * @throws IllegalArgumentException if the specified capacity is not
+   *         positive.
+   */
+  public RingBufferTracer(int capacity, Writer out, TraceFilter filter) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity");
+    }
+    this.out = out;
+    this.filter = filter;
+    this.rules = new Rule[capacity];
+    this.offsets = new long[capacity];
+    this.types = new byte[capacity];
+    this.timestamps = new long[capacity];
+  }
+
+  /**
+   * Returns number of the last events this tracer keeps.
+   *
+   * @return Number of the last events this tracer keeps.
+   */
+  public int getCapacity() {
+    return rules.length;
+  }
+
+  /**
+   * Returns total number of events of the current or latest parsing.
+   *
+   * @return Total number of events of the current or latest parsing.
+   */
+  public long getEventCount() {
+    return count;
+  }
+
+  @Override
+  public TraceFilter getFilter() {
+    return filter;
+  }
+
+  @Override
+  public void open(BacktrackingReader stream) throws IOException {
+    this.stream = stream;
+    this.count = 0L;
+  }
+
+  @Override
+  public void onRuleTrace(Rule rule) throws IOException {
+    record(rule, TRACE);
+  }
+
+  @Override
+  public void onRuleBacktrace(Rule rule, boolean success) throws IOException {
+    record(rule, success ? SUCCESS : FAILURE);
+  }
+
+  @Override
+  public void onBeforeAction(Action action) throws IOException {
+    // Actions are recorded as rule trace and backtrace events
+  }
+
+  @Override
+  public void onAfterAction(Action action, boolean success) throws IOException {
+    // Actions are recorded as rule trace and backtrace events
+  }
+
+  @Override
+  public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
+    // Not recorded
+  }
+
+  @Override
+  public void onCachePut(Reference reference) throws IOException {
+    // Not recorded
+  }
+
+  @Override
+  public void onCacheEvict(Production production, long offset) throws IOException {
+    // Not recorded
+  }
+
+  @Override
+  public void close(boolean result) throws IOException {
+    try {
+      if (!result) {
+        dump(out);
+      }
+    } finally {
+      stream = null;
+    }
+  }
+
+  @Override
+  public void close(Throwable failure) throws IOException {
+    // Failures of the input stream itself are not related to the grammar
+    close(!(failure instanceof SyntaxException || failure instanceof ActionException));
+  }
+
+  /**
+   * Writes the recorded events of the current parsing to the specified
+   * writer. Events are indented relative to the shallowest one and prefixed
+   * with time in microseconds since the oldest one.
+   *
+   * @param out Writer to write events to.
+   * @throws IOException if IO error occurred.
+   * @throws IllegalStateException if there is no parsing in progress.
+   */
+  public void dump(Writer out) throws IOException {
+    if (stream == null) {
+      throw new IllegalStateException();
+    }
+    int capacity = rules.length;
+    int size = (int) Math.min(count, capacity);
+    int first = (int) ((count - size) % capacity);
+
+    // Events that exit rules entered before the oldest one go shallower
+    int depth = 0, minDepth = 0;
+    for (int i = 0; i < size; i++) {
+      if (types[(first + i) % capacity] == TRACE) {
+        depth++;
+      } else {
+        minDepth = Math.min(minDepth, --depth);
+      }
+    }
+
+    DebugTracer formatter = new DebugTracer(out);
+    formatter.ident = -minDepth;
+    out.write("LAST " + size + " OF " + count + " EVENTS:\n");
+    long start = size > 0 ? timestamps[first] : 0L;
+    for (int i = 0; i < size; i++) {
+      int index = (first + i) % capacity;
+      String time = Long.toString((timestamps[index] - start) / 1000L);
+      for (int j = time.length(); j < 10; j++) {
+        out.write(' ');
+      }
+      out.write(time);
+      out.write("us ");
+      if (types[index] == TRACE) {
+        formatter.writeTrace(rules[index].toString(), stream.getLocation(offsets[index]));
+      } else {
+        formatter.writeBacktrace(rules[index].toString(), types[index] == SUCCESS,
+            stream.getLocation(offsets[index]), null);
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Stores event in the ring buffer overwriting the oldest one.
+   */
+  private void record(Rule rule, byte type) {
+    int index = (int) (count++ % rules.length);
+    rules[index] = rule;
+    offsets[index] = stream.getStartOffset();
+    types[index] = type;
+    timestamps[index] = System.nanoTime();
+  }
+
+}
@@ -16,15 +16,29 @@
 
 package org.foxlabs.peg4j.debug;
 
+import java.util.Arrays;
+
 import java.io.IOException;
 
 import org.foxlabs.peg4j.BacktrackingReader;
 import org.foxlabs.peg4j.grammar.Action;
 import org.foxlabs.peg4j.grammar.Rule;
 import org.foxlabs.peg4j.grammar.Reference;
+import org.foxlabs.peg4j.grammar.Production;
 
 public interface RuleTracer {
 
+  /**
+   * Returns filter of the events this tracer should receive. Filter is
+   * obtained once per parsing, events that are filtered out are not
+   * dispatched at all. By default all the events are received.
+   *
+   * @return Filter of the events this tracer should receive.
+   */
+  default TraceFilter getFilter() {
+    return TraceFilter.ALL;
+  }
+
   void open(BacktrackingReader stream) throws IOException;
 
   void onRuleTrace(Rule rule) throws IOException;
@@ -35,12 +49,27 @@ public interface RuleTracer {
 
   void onAfterAction(Action action, boolean success) throws IOException;
 
-  void onCacheGet(Reference reference, boolean hit) throws IOException;
+  void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException;
 
   void onCachePut(Reference reference) throws IOException;
 
+  void onCacheEvict(Production production, long offset) throws IOException;
+
   void close(boolean result) throws IOException;
 
+  /**
+   * Closes tracer when parsing has failed with the specified exception, that
+   * is {@link org.foxlabs.peg4j.RecognitionException} if input cannot be
+   * recognized or any other exception thrown by the input stream or actions.
+   * By default delegates to the {@link #close(boolean)} method.
+   *
+   * @param failure Exception parsing has failed with.
+   * @throws IOException if IO error occurred.
+   */
+  default void close(Throwable failure) throws IOException {
+    close(false);
+  }
+
   // Adapter
 
   class Adapter implements RuleTracer {
@@ -55,10 +84,12 @@ public interface RuleTracer {
 
     @Override public void onAfterAction(Action action, boolean success) throws IOException {}
 
-    @Override public void onCacheGet(Reference reference, boolean hit) throws IOException {}
+    @Override public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {}
 
     @Override public void onCachePut(Reference reference) throws IOException {}
 
+    @Override public void onCacheEvict(Production production, long offset) throws IOException {}
+
     @Override public void close(boolean result) throws IOException {}
 
   }
@@ -73,6 +104,11 @@ public interface RuleTracer {
       this.tracer = tracer;
     }
 
+    @Override
+    public TraceFilter getFilter() {
+      return tracer.getFilter();
+    }
+
     @Override
     public void open(BacktrackingReader stream) throws IOException {
       tracer.open(stream);
@@ -99,8 +135,8 @@ public interface RuleTracer {
     }
 
     @Override
-    public void onCacheGet(Reference reference, boolean hit) throws IOException {
-      tracer.onCacheGet(reference, hit);
+    public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
+      tracer.onCacheGet(reference, hit, success);
     }
 
     @Override
@@ -108,11 +144,21 @@ public interface RuleTracer {
       tracer.onCachePut(reference);
     }
 
+    @Override
+    public void onCacheEvict(Production production, long offset) throws IOException {
+      tracer.onCacheEvict(production, offset);
+    }
+
     @Override
     public void close(boolean result) throws IOException {
       tracer.close(result);
     }
 
+    @Override
+    public void close(Throwable failure) throws IOException {
+      tracer.close(failure);
+    }
+
   }
 
   // Chain
@@ -121,12 +167,45 @@ public interface RuleTracer {
 
     protected final RuleTracer[] chain;
 
+    // Filters of the tracers obtained at open or null if tracer accepts all
+    // the events
+    private final TraceFilter[] filters;
+
+    // Decisions made at rule trace for each tracer, popped at the matching
+    // backtrace because start offset may differ there
+    private boolean[] traceStack;
+
+    private int traceDepth;
+
+    private BacktrackingReader stream;
+
     public Chain(RuleTracer... chain) {
       this.chain = chain;
+      this.filters = new TraceFilter[chain.length];
+    }
+
+    @Override
+    public TraceFilter getFilter() {
+      TraceFilter union = null;
+      for (RuleTracer tracer : chain) {
+        TraceFilter filter = tracer.getFilter();
+        if (filter.isAll()) {
+          return TraceFilter.ALL;
+        }
+        union = union == null ? filter : union.union(filter);
+      }
+      return union == null ? TraceFilter.ALL.events(0) : union;
     }
 
     @Override
     public void open(BacktrackingReader stream) throws IOException {
+      for (int i = 0; i < chain.length; i++) {
+        TraceFilter filter = chain[i].getFilter();
+        filters[i] = filter.isAll() ? null : filter;
+      }
+      this.stream = stream;
+      this.traceStack = new boolean[chain.length * 64];
+      this.traceDepth = 0;
       for (RuleTracer tracer : chain) {
         tracer.open(stream);
       }
@@ -134,43 +213,71 @@ public interface RuleTracer {
 
     @Override
     public void onRuleTrace(Rule rule) throws IOException {
-      for (RuleTracer tracer : chain) {
-        tracer.onRuleTrace(rule);
+      int base = traceDepth++ * chain.length;
+      if (base + chain.length > traceStack.length) {
+        traceStack = Arrays.copyOf(traceStack, traceStack.length * 2);
+      }
+      for (int i = 0; i < chain.length; i++) {
+        boolean traced = accepts(i, TraceFilter.RULE_EVENTS, rule);
+        traceStack[base + i] = traced;
+        if (traced) {
+          chain[i].onRuleTrace(rule);
+        }
       }
     }
 
     @Override
     public void onBeforeAction(Action action) throws IOException {
-      for (RuleTracer tracer : chain) {
-        tracer.onBeforeAction(action);
+      for (int i = 0; i < chain.length; i++) {
+        if (accepts(i, TraceFilter.ACTION_EVENTS, action)) {
+          chain[i].onBeforeAction(action);
+        }
       }
     }
 
     @Override
     public void onAfterAction(Action action, boolean success) throws IOException {
-      for (RuleTracer tracer : chain) {
-        tracer.onAfterAction(action, success);
+      for (int i = 0; i < chain.length; i++) {
+        if (accepts(i, TraceFilter.ACTION_EVENTS, action)) {
+          chain[i].onAfterAction(action, success);
+        }
       }
     }
 
     @Override
     public void onRuleBacktrace(Rule rule, boolean success) throws IOException {
-      for (RuleTracer tracer : chain) {
-        tracer.onRuleBacktrace(rule, success);
+      int base = --traceDepth * chain.length;
+      for (int i = 0; i < chain.length; i++) {
+        if (traceStack[base + i]) {
+          chain[i].onRuleBacktrace(rule, success);
+        }
       }
     }
 
     @Override
-    public void onCacheGet(Reference reference, boolean hit) throws IOException {
-      for (RuleTracer tracer : chain) {
-        tracer.onCacheGet(reference, hit);
+    public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
+      for (int i = 0; i < chain.length; i++) {
+        if (accepts(i, TraceFilter.CACHE_GET_EVENTS, reference)) {
+          chain[i].onCacheGet(reference, hit, success);
+        }
       }
     }
 
     @Override
     public void onCachePut(Reference reference) throws IOException {
-      for (RuleTracer tracer : chain) {
-        tracer.onCachePut(reference);
+      for (int i = 0; i < chain.length; i++) {
+        if (accepts(i, TraceFilter.CACHE_PUT_EVENTS, reference)) {
+          chain[i].onCachePut(reference);
+        }
+      }
+    }
+
+    @Override
+    public void onCacheEvict(Production production, long offset) throws IOException {
+      for (int i = 0; i < chain.length; i++) {
+        if (filters[i] == null || filters[i].accepts(TraceFilter.CACHE_EVICT_EVENTS, production, offset)) {
+          chain[i].onCacheEvict(production, offset);
+        }
       }
     }
 
@@ -179,6 +286,21 @@ public interface RuleTracer {
       for (RuleTracer tracer : chain) {
         tracer.close(result);
       }
+      stream = null;
+      traceStack = null;
+    }
+
+    @Override
+    public void close(Throwable failure) throws IOException {
+      for (RuleTracer tracer : chain) {
+        tracer.close(failure);
+      }
+      stream = null;
+      traceStack = null;
+    }
+
+    private boolean accepts(int index, int event, Rule rule) {
+      return filters[index] == null || filters[index].accepts(event, rule, stream.getStartOffset());
     }
 
   }
@@ -18,7 +18,6 @@ package org.foxlabs.peg4j.debug;
 
 import java.util.Map;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.IdentityHashMap;
 
 import java.io.Writer;
@@ -32,35 +31,69 @@ import org.foxlabs.util.counter.HitLatencyCounter;
 
 import org.foxlabs.peg4j.BacktrackingReader;
 import org.foxlabs.peg4j.grammar.Rule;
+import org.foxlabs.peg4j.grammar.RuleKind;
 import org.foxlabs.peg4j.grammar.Action;
+import org.foxlabs.peg4j.grammar.Grammar;
 import org.foxlabs.peg4j.grammar.Terminal;
 import org.foxlabs.peg4j.grammar.Production;
 import org.foxlabs.peg4j.grammar.Reference;
+import org.foxlabs.peg4j.codegen.BaseGenerator;
+import org.foxlabs.peg4j.resource.ResourceManager;
 
 import static org.foxlabs.util.counter.Counters.*;
 
 /**
+ * Tracer that collects hit and latency statistics of terminals, productions
+ * and actions, and memoization statistics.
+ *
+ * <p>Counters are kept in arrays indexed by production index and by terminal
+ * and action indexes assigned when grammar is built, so no objects are
+ * allocated per event. Names of the rules are resolved only when statistics
+ * are printed.</p>
  *
  * @author Fox Mulder
+ * @see Grammar#getTerminal(int)
+ * @see Grammar#getAction(int)
  */
 public class StatisticsTracer implements RuleTracer {
 
   protected final HitLatencyCounter totalRuleCounter = defaultHitLatencyCounter();
 
+  /**
+   * Total terminal statistics of the previously traced grammars.
+   */
   protected final HitLatencyCounter totalTerminalCounter = defaultHitLatencyCounter();
 
+  /**
+   * Total production statistics of the previously traced grammars.
+   */
   protected final HitLatencyCounter totalProductionCounter = defaultHitLatencyCounter();
 
+  /**
+   * Total action statistics of the previously traced grammars.
+   */
   protected final HitLatencyCounter totalActionCounter = defaultHitLatencyCounter();
 
-  protected final Map<String, HitLatencyCounter> terminalStatisticsTable =
-      new LinkedHashMap<String, HitLatencyCounter>();
+  /**
+   * Grammar which rules are traced or <code>null</code> if nothing was traced
+   * yet.
+   */
+  protected Grammar grammar = null;
+
+  /**
+   * Counters of terminals indexed by terminal index.
+   */
+  protected HitLatencyCounter[] terminalCounters = new HitLatencyCounter[0];
 
-  protected final Map<String, HitLatencyCounter> productionStatisticsTable =
-      new LinkedHashMap<String, HitLatencyCounter>();
+  /**
+   * Counters of productions indexed by production index.
+   */
+  protected HitLatencyCounter[] productionCounters = new HitLatencyCounter[0];
 
-  protected final Map<String, HitLatencyCounter> actionStatisticsTable =
-      new LinkedHashMap<String, HitLatencyCounter>();
+  /**
+   * Counters of actions indexed by action index.
+   */
+  protected HitLatencyCounter[] actionCounters = new HitLatencyCounter[0];
 
   protected final HitCounter totalMemoCounter = defaultHitCounter();
 
@@ -69,6 +102,10 @@ public class StatisticsTracer implements RuleTracer {
 
   protected int memoSize = 0;
 
+  protected int memoFailureHitCount = 0;
+
+  protected int memoEvictionCount = 0;
+
   @Override
   public void open(BacktrackingReader stream) throws IOException {
     // Does nothing
@@ -77,18 +114,19 @@ public class StatisticsTracer implements RuleTracer {
   @Override
   public void onRuleTrace(Rule rule) throws IOException {
     totalRuleCounter.start();
-    if (rule instanceof Terminal) {
-      String key = rule.toString();
-      HitLatencyCounter counter = terminalStatisticsTable.get(key);
+    RuleKind kind = rule.getKind();
+    if (kind == RuleKind.TERMINAL) {
+      int index = ((Terminal) rule).getIndex();
+      HitLatencyCounter counter = bind(rule.getGrammar()).terminalCounters[index];
       if (counter == null) {
-        terminalStatisticsTable.put(key, counter = defaultHitLatencyCounter());
+        terminalCounters[index] = counter = defaultHitLatencyCounter();
       }
       counter.start();
-    } else if (rule instanceof Production) {
-      String key = ((Production) rule).getName();
-      HitLatencyCounter counter = productionStatisticsTable.get(key);
+    } else if (kind == RuleKind.PRODUCTION) {
+      int index = ((Production) rule).getIndex();
+      HitLatencyCounter counter = bind(rule.getGrammar()).productionCounters[index];
       if (counter == null) {
-        productionStatisticsTable.put(key, counter = defaultHitLatencyCounter());
+        productionCounters[index] = counter = defaultHitLatencyCounter();
       }
       counter.start();
     }
@@ -97,24 +135,21 @@ public class StatisticsTracer implements RuleTracer {
   @Override
   public void onRuleBacktrace(Rule rule, boolean success) throws IOException {
     totalRuleCounter.stop(success);
-    if (rule instanceof Terminal) {
-      String key = rule.toString();
-      HitLatencyCounter counter = terminalStatisticsTable.get(key);
-      counter.stop(success);
-    } else if (rule instanceof Production) {
-      String key = ((Production) rule).getName();
-      HitLatencyCounter counter = productionStatisticsTable.get(key);
-      counter.stop(success);
+    RuleKind kind = rule.getKind();
+    if (kind == RuleKind.TERMINAL) {
+      terminalCounters[((Terminal) rule).getIndex()].stop(success);
+    } else if (kind == RuleKind.PRODUCTION) {
+      productionCounters[((Production) rule).getIndex()].stop(success);
     }
   }
 
   @Override
   public void onBeforeAction(Action action) throws IOException {
     if (!action.isInjected()) {
-      String key = action.getName();
-      HitLatencyCounter counter = actionStatisticsTable.get(key);
+      int index = action.getIndex();
+      HitLatencyCounter counter = bind(action.getGrammar()).actionCounters[index];
       if (counter == null) {
-        actionStatisticsTable.put(key, counter = defaultHitLatencyCounter());
+        actionCounters[index] = counter = defaultHitLatencyCounter();
       }
       counter.start();
     }
@@ -123,15 +158,16 @@ public class StatisticsTracer implements RuleTracer {
   @Override
   public void onAfterAction(Action action, boolean success) throws IOException {
     if (!action.isInjected()) {
-      String key = action.getName();
-      HitLatencyCounter counter = actionStatisticsTable.get(key);
-      counter.stop(success);
+      actionCounters[action.getIndex()].stop(success);
     }
   }
 
   @Override
-  public void onCacheGet(Reference reference, boolean hit) throws IOException {
+  public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
     totalMemoCounter.increment(hit);
+    if (hit && !success) {
+      memoFailureHitCount++;
+    }
     HitCounter counter = memoStatisticsTable.get(reference);
     if (counter == null) {
       memoStatisticsTable.put(reference, counter = defaultHitCounter());
@@ -145,21 +181,14 @@ public class StatisticsTracer implements RuleTracer {
   }
 
   @Override
-  public void close(boolean result) throws IOException {
-    // Calculate total terminal statistcs
-    for (HitLatencyCounter counter : terminalStatisticsTable.values()) {
-      totalTerminalCounter.merge(counter);
-    }
-
-    // Calculate total production statistcs
-    for (HitLatencyCounter counter : productionStatisticsTable.values()) {
-      totalProductionCounter.merge(counter);
-    }
+  public void onCacheEvict(Production production, long offset) throws IOException {
+    memoSize--;
+    memoEvictionCount++;
+  }
 
-    // Calculate total action statistcs
-    for (HitLatencyCounter counter : actionStatisticsTable.values()) {
-      totalActionCounter.merge(counter);
-    }
+  @Override
+  public void close(boolean result) throws IOException {
+    // Totals are calculated when statistics are printed
   }
 
   public void reset() {
@@ -170,10 +199,14 @@ public class StatisticsTracer implements RuleTracer {
     totalProductionCounter.reset();
     totalActionCounter.reset();
 
-    terminalStatisticsTable.clear();
-    productionStatisticsTable.clear();
-    actionStatisticsTable.clear();
+    grammar = null;
+    terminalCounters = new HitLatencyCounter[0];
+    productionCounters = new HitLatencyCounter[0];
+    actionCounters = new HitLatencyCounter[0];
     memoStatisticsTable.clear();
+    memoSize = 0;
+    memoFailureHitCount = 0;
+    memoEvictionCount = 0;
   }
 
   public void print() throws IOException {
@@ -186,17 +219,23 @@ public class StatisticsTracer implements RuleTracer {
     CharBuffer actionStatisticsBuf = new SimpleCharBuffer();
     CharBuffer memoStatisticsBuf = new SimpleCharBuffer();
 
-    for (Map.Entry<String, HitLatencyCounter> entry : terminalStatisticsTable.entrySet()) {
-      terminalStatisticsBuf.append(entry.getKey()).append(" : ");
-      entry.getValue().toString(terminalStatisticsBuf).append("\n");
+    for (int i = 0; i < terminalCounters.length; i++) {
+      if (terminalCounters[i] != null) {
+        terminalStatisticsBuf.append(grammar.getTerminal(i).toString()).append(" : ");
+        terminalCounters[i].toString(terminalStatisticsBuf).append("\n");
+      }
     }
-    for (Map.Entry<String, HitLatencyCounter> entry : productionStatisticsTable.entrySet()) {
-      productionStatisticsBuf.append(entry.getKey()).append(" : ");
-      entry.getValue().toString(productionStatisticsBuf).append("\n");
+    for (int i = 0; i < productionCounters.length; i++) {
+      if (productionCounters[i] != null) {
+        productionStatisticsBuf.append(grammar.getProduction(i).getName()).append(" : ");
+        productionCounters[i].toString(productionStatisticsBuf).append("\n");
+      }
     }
-    for (Map.Entry<String, HitLatencyCounter> entry : actionStatisticsTable.entrySet()) {
-      actionStatisticsBuf.append(entry.getKey()).append(" : ");
-      entry.getValue().toString(actionStatisticsBuf).append("\n");
+    for (int i = 0; i < actionCounters.length; i++) {
+      if (actionCounters[i] != null) {
+        actionStatisticsBuf.append(grammar.getAction(i).getName()).append(" : ");
+        actionCounters[i].toString(actionStatisticsBuf).append("\n");
+      }
     }
     for (Map.Entry<Reference, HitCounter> entry : memoStatisticsTable.entrySet()) {
       memoStatisticsBuf.append(entry.getKey().getTargetName()).append(" (");
@@ -204,16 +243,75 @@ public class StatisticsTracer implements RuleTracer {
       entry.getValue().toString(memoStatisticsBuf).append("\n");
     }
 
-    Map<String, Object> variables = new HashMap<String, Object>();
-    variables.put("totalRuleStatistics", totalRuleCounter);
-    variables.put("totalTerminalStatistics", totalTerminalCounter);
-    variables.put("totalProductionStatistics", totalProductionCounter);
-    variables.put("totalActionStatistics", totalActionCounter);
-    variables.put("terminalStatisticsTable", terminalStatisticsBuf);
-    variables.put("productionStatisticsTable", productionStatisticsBuf);
-    variables.put("actionStatisticsTable", actionStatisticsBuf);
-    variables.put("totalMemoStatistics", totalMemoCounter);
-    variables.put("memoStatisticsTable", memoStatisticsBuf);
+    Map<String, String> variables = new HashMap<String, String>();
+    variables.put("totalRuleStatistics", totalRuleCounter.toString());
+    variables.put("totalTerminalStatistics", total(totalTerminalCounter, terminalCounters).toString());
+    variables.put("totalProductionStatistics", total(totalProductionCounter, productionCounters).toString());
+    variables.put("totalActionStatistics", total(totalActionCounter, actionCounters).toString());
+    variables.put("terminalStatisticsTable", terminalStatisticsBuf.toString());
+    variables.put("productionStatisticsTable", productionStatisticsBuf.toString());
+    variables.put("actionStatisticsTable", actionStatisticsBuf.toString());
+    variables.put("totalMemoStatistics", totalMemoCounter.toString());
+    variables.put("memoStatisticsTable", memoStatisticsBuf.toString());
+    variables.put("memoSize", Integer.toString(memoSize));
+    variables.put("memoFailureHits", Integer.toString(memoFailureHitCount));
+    variables.put("memoEvictions", Integer.toString(memoEvictionCount));
+    // Allocations are measured by the AllocationTracer only
+    variables.put("totalAllocatedBytes", "n/a");
+    variables.put("totalAllocatedCharacters", "n/a");
+    variables.put("productionAllocationTable", "");
+    variables.put("actionAllocationTable", "");
+    defineVariables(variables);
+
+    BaseGenerator.generate(ResourceManager.getStatisticsTemplate(), variables, out);
+    out.flush();
+  }
+
+  /**
+   * Defines additional variables of the statistics template. Subclasses that
+   * collect more statistics can override this method.
+   *
+   * @param variables Variables of the statistics template.
+   */
+  protected void defineVariables(Map<String, String> variables) {
+    // Nothing to add
+  }
+
+  /**
+   * Makes the specified grammar current, counters are reallocated if grammar
+   * changes. Counters of the previous grammar are kept in totals only.
+   */
+  private StatisticsTracer bind(Grammar target) {
+    if (grammar != target) {
+      merge(totalTerminalCounter, terminalCounters);
+      merge(totalProductionCounter, productionCounters);
+      merge(totalActionCounter, actionCounters);
+      grammar = target;
+      terminalCounters = new HitLatencyCounter[target.getTerminalCount()];
+      productionCounters = new HitLatencyCounter[target.getProductionCount()];
+      actionCounters = new HitLatencyCounter[target.getActionCount()];
+    }
+    return this;
+  }
+
+  /**
+   * Returns new counter that contains statistics of the previous grammars and
+   * statistics of the current grammar.
+   */
+  private static HitLatencyCounter total(HitLatencyCounter previous,
+      HitLatencyCounter[] counters) {
+    HitLatencyCounter total = defaultHitLatencyCounter();
+    total.merge(previous);
+    merge(total, counters);
+    return total;
+  }
+
+  private static void merge(HitLatencyCounter total, HitLatencyCounter[] counters) {
+    for (HitLatencyCounter counter : counters) {
+      if (counter != null) {
+        total.merge(counter);
+      }
+    }
   }
 
 }
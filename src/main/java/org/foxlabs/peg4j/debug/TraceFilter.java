@@ -0,0 +1,281 @@
+/* 
+ * Copyright (C) 2014 FoxLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.foxlabs.peg4j.grammar.Rule;
+import org.foxlabs.peg4j.grammar.RuleKind;
+import org.foxlabs.peg4j.grammar.Expression;
+import org.foxlabs.peg4j.grammar.Production;
+
+/**
+ * Immutable filter of the events a {@link RuleTracer} should receive.
+ *
+ * <p>Filter selects event types, kinds of the rules which trace events are
+ * received, names of the productions which rules are traced and range of
+ * offsets in the character stream. Rules are traced if their owner production
+ * is selected and the start offset of the current rule in the character stream
+ * is within the range when the rule starts. Trace and backtrace events of the
+ * same rule are always either both received or both skipped. Parser evaluates
+ * filter before notifying tracer, so events that are filtered out cost nothing
+ * more than the filter check.</p>
+ *
+ * @author Fox Mulder
+ * @see RuleTracer#getFilter()
+ */
+public final class TraceFilter {
+
+  /**
+   * {@link RuleTracer#onRuleTrace(Rule)} and
+   * {@link RuleTracer#onRuleBacktrace(Rule, boolean)} events.
+   */
+  public static final int RULE_EVENTS = 0x01;
+
+  /**
+   * {@link RuleTracer#onBeforeAction(org.foxlabs.peg4j.grammar.Action)} and
+   * {@link RuleTracer#onAfterAction(org.foxlabs.peg4j.grammar.Action, boolean)}
+   * events.
+   */
+  public static final int ACTION_EVENTS = 0x02;
+
+  /**
+   * {@link RuleTracer#onCacheGet(org.foxlabs.peg4j.grammar.Reference, boolean, boolean)}
+   * events.
+   */
+  public static final int CACHE_GET_EVENTS = 0x04;
+
+  /**
+   * {@link RuleTracer#onCachePut(org.foxlabs.peg4j.grammar.Reference)} events.
+   */
+  public static final int CACHE_PUT_EVENTS = 0x08;
+
+  /**
+   * {@link RuleTracer#onCacheEvict(Production, long)} events.
+   */
+  public static final int CACHE_EVICT_EVENTS = 0x10;
+
+  /**
+   * All the event types.
+   */
+  public static final int ALL_EVENTS = 0x1F;
+
+  /**
+   * Mask of all the rule kinds.
+   */
+  private static final int ALL_KINDS = (1 << RuleKind.values().length) - 1;
+
+  /**
+   * Filter that accepts all the events.
+   */
+  public static final TraceFilter ALL = new TraceFilter(ALL_EVENTS, ALL_KINDS, null, 0L, Long.MAX_VALUE);
+
+  /**
+   * Mask of the accepted event types.
+   */
+  private final int events;
+
+  /**
+   * Mask of the accepted rule kinds, bit index is ordinal of the kind.
+   */
+  private final int kinds;
+
+  /**
+   * Names of the accepted productions or <code>null</code> if all the
+   * productions are accepted.
+   */
+  private final Set<String> productions;
+
+  /**
+   * Start offset of the accepted range (inclusive).
+   */
+  private final long startOffset;
+
+  /**
+   * End offset of the accepted range (exclusive).
+   */
+  private final long endOffset;
+
+  private TraceFilter(int events, int kinds, Set<String> productions, long startOffset, long endOffset) {
+    this.events = events;
+    this.kinds = kinds;
+    this.productions = productions;
+    this.startOffset = startOffset;
+    this.endOffset = endOffset;
+  }
+
+  /**
+   * Returns mask of the accepted event types.
+   *
+   * @return Mask of the accepted event types.
+   */
+  public int getEvents() {
+    return events;
+  }
+
+  /**
+   * Returns names of the accepted productions or <code>null</code> if all the
+   * productions are accepted.
+   *
+   * @return Names of the accepted productions or <code>null</code>.
+   */
+  public Set<String> getProductions() {
+    return productions;
+  }
+
+  /**
+   * Returns start offset of the accepted range (inclusive).
+   *
+   * @return Start offset of the accepted range.
+   */
+  public long getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * Returns end offset of the accepted range (exclusive).
+   *
+   * @return End offset of the accepted range.
+   */
+  public long getEndOffset() {
+    return endOffset;
+  }
+
+  /**
+   * Determines whether this filter accepts all the events.
+   *
+   * @return <code>true</code> if this filter accepts all the events;
+   *         <code>false</code> otherwise.
+   */
+  public boolean isAll() {
+    return events == ALL_EVENTS && kinds == ALL_KINDS && productions == null
+        && startOffset == 0L && endOffset == Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns a new filter that accepts only the specified event types.
+   *
+   * @param events Mask of the event types.
+   * @return A new filter.
+   */
+  public TraceFilter events(int events) {
+    return new TraceFilter(events & ALL_EVENTS, kinds, productions, startOffset, endOffset);
+  }
+
+  /**
+   * Returns a new filter that accepts rule events only for the specified rule
+   * kinds. Other event types are not affected.
+   *
+   * @param kinds Kinds of the rules.
+   * @return A new filter.
+   */
+  public TraceFilter kinds(RuleKind... kinds) {
+    int mask = 0;
+    for (RuleKind kind : kinds) {
+      mask |= 1 << kind.ordinal();
+    }
+    return new TraceFilter(events, mask, productions, startOffset, endOffset);
+  }
+
+  /**
+   * Returns a new filter that accepts events only for rules of the productions
+   * with the specified names.
+   *
+   * @param names Names of the productions.
+   * @return A new filter.
+   */
+  public TraceFilter productions(String... names) {
+    Set<String> set = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(names)));
+    return new TraceFilter(events, kinds, set, startOffset, endOffset);
+  }
+
+  /**
+   * Returns a new filter that accepts events only within the specified range
+   * of offsets in the character stream.
+   *
+   * @param startOffset Start offset of the range (inclusive).
+   * @param endOffset End offset of the range (exclusive).
+   * @return A new filter.
+   * @throws IllegalArgumentException if the specified range is invalid.
+   */
+  public TraceFilter range(long startOffset, long endOffset) {
+    if (startOffset < 0L || endOffset < startOffset) {
+      throw new IllegalArgumentException("range");
+    }
+    return new TraceFilter(events, kinds, productions, startOffset, endOffset);
+  }
+
+  /**
+   * Returns a new filter that accepts all the events accepted by this or the
+   * specified filter. Event types, rule kinds, productions and ranges are
+   * merged separately, so the resulting filter may accept more events than
+   * both filters together.
+   *
+   * @param filter Filter to be merged with this filter.
+   * @return A new filter.
+   */
+  public TraceFilter union(TraceFilter filter) {
+    Set<String> set = null;
+    if (productions != null && filter.productions != null) {
+      set = new HashSet<String>(productions);
+      set.addAll(filter.productions);
+      set = Collections.unmodifiableSet(set);
+    }
+    return new TraceFilter(events | filter.events, kinds | filter.kinds, set,
+        Math.min(startOffset, filter.startOffset), Math.max(endOffset, filter.endOffset));
+  }
+
+  /**
+   * Determines whether this filter accepts the specified event type.
+   *
+   * @param event Event type.
+   * @return <code>true</code> if this filter accepts the specified event type;
+   *         <code>false</code> otherwise.
+   */
+  public boolean accepts(int event) {
+    return (events & event) != 0;
+  }
+
+  /**
+   * Determines whether this filter accepts event of the specified type for the
+   * specified rule at the specified offset in the character stream. Kind of
+   * the rule is checked for rule events only.
+   *
+   * @param event Event type.
+   * @param rule Rule which event should be received.
+   * @param offset Start offset of the current rule in the character stream.
+   * @return <code>true</code> if this filter accepts the specified event;
+   *         <code>false</code> otherwise.
+   */
+  public boolean accepts(int event, Rule rule, long offset) {
+    if ((events & event) == 0 || offset < startOffset || offset >= endOffset) {
+      return false;
+    }
+    if (event == RULE_EVENTS && (kinds & (1 << rule.getKind().ordinal())) == 0) {
+      return false;
+    }
+    if (productions != null) {
+      Production owner = rule instanceof Production ? (Production) rule : ((Expression) rule).getOwner();
+      return productions.contains(owner.getName());
+    }
+    return true;
+  }
+
+}
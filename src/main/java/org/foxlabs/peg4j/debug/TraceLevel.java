@@ -17,18 +17,20 @@
 package org.foxlabs.peg4j.debug;
 
 import org.foxlabs.peg4j.grammar.Rule;
-import org.foxlabs.peg4j.grammar.Action;
-import org.foxlabs.peg4j.grammar.Reference;
-import org.foxlabs.peg4j.grammar.Production;
+import org.foxlabs.peg4j.grammar.RuleKind;
 
 public enum TraceLevel {
 
   HIGH, MEDIUM, LOW;
 
   public static TraceLevel forRule(Rule rule) {
-    if (rule instanceof Production) {
+    return forKind(rule.getKind());
+  }
+
+  public static TraceLevel forKind(RuleKind kind) {
+    if (kind == RuleKind.PRODUCTION) {
       return HIGH;
-    } else if (rule instanceof Reference || rule instanceof Action) {
+    } else if (kind == RuleKind.REFERENCE || kind == RuleKind.ACTION) {
       return MEDIUM;
     } else {
       return LOW;
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.io.File;
+import java.io.Writer;
+import java.io.StringWriter;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.grammar.RuleKind;
+
+/**
+ * Renders trace files written by the {@link BinaryTracer} in the text format
+ * of the {@link DebugTracer} or as HTML document.
+ *
+ * <p>Trace file keeps offsets only, so source file that was traced is read
+ * to resolve locations and text of the rules. Offsets are valid only if
+ * source file is read with the same encoding as it was parsed.</p>
+ *
+ * @author Fox Mulder
+ * @see BinaryTracer
+ */
+public class TraceRenderer {
+
+  /**
+   * Number of records read at once.
+   */
+  private static final int RECORD_BATCH = 2048;
+
+  protected TraceLevel traceLevel = TraceLevel.MEDIUM;
+
+  protected int maxDepthLevel = 0;
+
+  protected int maxTextSize = 80;
+
+  protected boolean html = false;
+
+  public TraceLevel getTraceLevel() {
+    return traceLevel;
+  }
+
+  public void setTraceLevel(TraceLevel level) {
+    this.traceLevel = level;
+  }
+
+  public int getMaxDepthLevel() {
+    return maxDepthLevel;
+  }
+
+  public void setMaxDepthLevel(int level) {
+    this.maxDepthLevel = level < 0 ? 0 : level;
+  }
+
+  public int getMaxTextSize() {
+    return maxTextSize;
+  }
+
+  public void setMaxTextSize(int size) {
+    this.maxTextSize = size < 0 ? 0 : size;
+  }
+
+  public boolean isHtml() {
+    return html;
+  }
+
+  public void setHtml(boolean html) {
+    this.html = html;
+  }
+
+  /**
+   * Renders the specified trace file.
+   *
+   * @param trace Trace file written by the {@link BinaryTracer}.
+   * @param source Source file that was traced or <code>null</code> to use
+   *        the file name stored in the trace file.
+   * @param charset Encoding of the source file.
+   * @param out Writer to render trace to.
+   * @throws IOException if trace file is malformed or IO error occurred.
+   */
+  public void render(File trace, File source, Charset charset, Writer out) throws IOException {
+    try (FileChannel channel = FileChannel.open(trace.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < 12 + BinaryTracer.FOOTER_SIZE) {
+        throw malformed(trace);
+      }
+
+      // Footer
+      ByteBuffer footer = read(channel, size - BinaryTracer.FOOTER_SIZE, BinaryTracer.FOOTER_SIZE);
+      long trailerOffset = footer.getLong();
+      int ruleCount = footer.getInt();
+      if (footer.getInt() != BinaryTracer.MAGIC || ruleCount < 0 || trailerOffset < 12L
+          || trailerOffset > size - BinaryTracer.FOOTER_SIZE) {
+        throw malformed(trace);
+      }
+
+      // Header
+      ByteBuffer header = read(channel, 0L, 12);
+      if (header.getInt() != BinaryTracer.MAGIC) {
+        throw malformed(trace);
+      } else if (header.getInt() != BinaryTracer.VERSION) {
+        throw new IOException("Unsupported trace file version: " + trace);
+      }
+      int length = header.getInt();
+      if (length < 0 || length > trailerOffset - 12L
+          || (trailerOffset - 12L - length) % BinaryTracer.RECORD_SIZE != 0) {
+        throw malformed(trace);
+      }
+      String file = new String(read(channel, 12L, length).array(), StandardCharsets.UTF_8);
+      long recordOffset = 12L + length;
+
+      // Trailer
+      ByteBuffer trailer = read(channel, trailerOffset, (int) (size - BinaryTracer.FOOTER_SIZE - trailerOffset));
+      if (ruleCount > trailer.remaining()) {
+        throw malformed(trace);
+      }
+      RuleKind[] kinds = new RuleKind[ruleCount];
+      String[] rules = new String[ruleCount];
+      boolean result;
+      try {
+        RuleKind[] values = RuleKind.values();
+        for (int i = 0; i < ruleCount; i++) {
+          int kind = trailer.get();
+          int ruleLength = trailer.getInt();
+          if (kind < 0 || kind >= values.length || ruleLength < 0 || ruleLength > trailer.remaining()) {
+            throw malformed(trace);
+          }
+          kinds[i] = values[kind];
+          byte[] bytes = new byte[ruleLength];
+          trailer.get(bytes);
+          rules[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        result = trailer.get() != 0;
+      } catch (BufferUnderflowException e) {
+        throw malformed(trace);
+      }
+
+      // Source
+      if (source == null) {
+        if (file.isEmpty()) {
+          throw new IOException("Source file of the trace is unknown: " + trace);
+        }
+        source = new File(file);
+      }
+      try (BacktrackingReader stream = new BacktrackingReader(source.toPath(), charset)) {
+        // Start of the source is kept marked to take excerpts from
+        stream.mark();
+        skip(stream, Long.MAX_VALUE);
+
+        writeHeader(source, out);
+
+        // Records
+        StringWriter line = html ? new StringWriter() : null;
+        DebugTracer formatter = new DebugTracer(html ? line : out);
+        formatter.setMaxTextSize(maxTextSize);
+        ByteBuffer records = ByteBuffer.allocate(RECORD_BATCH * BinaryTracer.RECORD_SIZE);
+        int depthLevel = 0;
+        for (long position = recordOffset; position < trailerOffset;) {
+          records.clear();
+          records.limit((int) Math.min(records.capacity(), trailerOffset - position));
+          while (records.hasRemaining()) {
+            if (channel.read(records, position + records.position()) < 0) {
+              throw malformed(trace);
+            }
+          }
+          position += records.limit();
+          records.flip();
+          while (records.remaining() >= BinaryTracer.RECORD_SIZE) {
+            int id = records.getInt();
+            int type = records.getInt();
+            long start = records.getLong();
+            long end = records.getLong();
+            if (id < 0 || id >= kinds.length) {
+              throw malformed(trace);
+            }
+            boolean visible = traceLevel.compareTo(TraceLevel.forKind(kinds[id])) >= 0;
+            if (type != BinaryTracer.TRACE) {
+              depthLevel--;
+            }
+            if (visible && (maxDepthLevel == 0 || depthLevel < maxDepthLevel)) {
+              if (type == BinaryTracer.TRACE) {
+                formatter.writeTrace(rules[id], stream.getLocation(start));
+              } else {
+                boolean success = type == BinaryTracer.SUCCESS;
+                String excerpt = success ? excerpt(stream, start, end) : null;
+                formatter.writeBacktrace(rules[id], success, stream.getLocation(start), excerpt);
+              }
+              if (html) {
+                writeHtmlLine(type, line, out);
+              }
+            }
+            if (type == BinaryTracer.TRACE) {
+              depthLevel++;
+            }
+          }
+        }
+      }
+
+      writeFooter(result, out);
+      out.flush();
+    }
+  }
+
+  protected void writeHeader(File source, Writer out) throws IOException {
+    if (html) {
+      out.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n<title>");
+      out.write(escapeHtml(source.getName()));
+      out.write("</title>\n<style>\n");
+      out.write("body { font-family: monospace; white-space: pre; }\n");
+      out.write(".success { color: #006000; }\n");
+      out.write(".failure { color: #c00000; }\n");
+      out.write("</style>\n</head>\n<body>\n");
+      out.write("SOURCE: ");
+      out.write(escapeHtml(source.getPath()));
+      out.write("\n\nTRACE:\n");
+    } else {
+      out.write("SOURCE: ");
+      out.write(source.getPath());
+      out.write("\n\nTRACE:\n");
+    }
+  }
+
+  protected void writeFooter(boolean result, Writer out) throws IOException {
+    out.write(result ? "\nSUCCESS!\n" : "\nFAILURE!\n");
+    if (html) {
+      out.write("</body>\n</html>\n");
+    }
+  }
+
+  protected void writeHtmlLine(int type, StringWriter line, Writer out) throws IOException {
+    String style = type == BinaryTracer.TRACE ? "trace" : type == BinaryTracer.SUCCESS ? "success" : "failure";
+    out.write("<span class=\"");
+    out.write(style);
+    out.write("\">");
+    out.write(escapeHtml(line.toString()));
+    out.write("</span>");
+    line.getBuffer().setLength(0);
+  }
+
+  /**
+   * Returns text of the specified range of the source or <code>null</code> if
+   * text should not be rendered. Only the last characters that fit in the
+   * maximum text size are returned plus one more, so that formatter knows the
+   * text was truncated.
+   */
+  private String excerpt(BacktrackingReader stream, long start, long end) throws IOException {
+    if (maxTextSize == 0 || end <= start) {
+      return null;
+    }
+    stream.reset();
+    stream.mark();
+    skip(stream, Math.max(start, end - maxTextSize - 1L));
+    stream.mark();
+    skip(stream, end - stream.getEndOffset());
+    String text = stream.getText();
+    stream.release();
+    skip(stream, Long.MAX_VALUE);
+    return text;
+  }
+
+  /**
+   * Skips the specified number of characters or all the remaining ones.
+   */
+  private static void skip(BacktrackingReader stream, long count) throws IOException {
+    while (count > 0L) {
+      long skipped = stream.skip(Math.min(count, Integer.MAX_VALUE));
+      if (skipped <= 0L) {
+        break;
+      }
+      count -= skipped;
+    }
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of trace file");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static IOException malformed(File trace) {
+    return new IOException("Malformed trace file: " + trace);
+  }
+
+  private static String escapeHtml(String text) {
+    StringBuilder buf = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char ch = text.charAt(i);
+      switch (ch) {
+        case '<':
+          buf.append("&lt;");
+          break;
+        case '>':
+          buf.append("&gt;");
+          break;
+        case '&':
+          buf.append("&amp;");
+          break;
+        case '"':
+          buf.append("&quot;");
+          break;
+        default:
+          buf.append(ch);
+      }
+    }
+    return buf.toString();
+  }
+
+}
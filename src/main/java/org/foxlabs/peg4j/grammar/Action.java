@@ -25,6 +25,8 @@ import org.foxlabs.peg4j.Parser;
 import org.foxlabs.peg4j.ActionHandler;
 import org.foxlabs.peg4j.ActionException;
 import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.debug.RuleTracer;
+import org.foxlabs.peg4j.debug.TraceFilter;
 
 
 public final class Action extends Expression.Unary {
@@ -37,6 +39,8 @@ public final class Action extends Expression.Unary {
 
   private boolean injected = false;
 
+  int index = -1;
+
   Action(Production owner, Expression child) {
     this(owner, child, UNDO, ActionHandler.NOP);
     this.injected = true;
@@ -52,6 +56,17 @@ public final class Action extends Expression.Unary {
     return name;
   }
 
+  /**
+   * Returns index of this action in the grammar. Actions with the same name
+   * share the same index.
+   *
+   * @return Index of this action in the grammar.
+   * @see Grammar#getAction(int)
+   */
+  public int getIndex() {
+    return index;
+  }
+
   public ActionHandler<?> getHandler() {
     return handler;
   }
@@ -68,30 +83,43 @@ public final class Action extends Expression.Unary {
     return name != UNDO && handler == ActionHandler.NOP;
   }
 
+  @Override
+  public RuleKind getKind() {
+    return RuleKind.ACTION;
+  }
+
   @Override
   public boolean reduce(ParseContext context) throws IOException, RecognitionException {
-    context.tracer().onRuleTrace(this);
+    trace(context);
     context.stream().mark();
     context.transaction().begin();
     if (child.reduce(context)) {
       if (handleAction(context)) {
         context.transaction().commit();
         context.stream().release();
-        context.tracer().onRuleBacktrace(this, true);
+        backtrace(context, true);
         return true;
       }
     }
     context.transaction().rollback();
     context.stream().reset();
-    context.tracer().onRuleBacktrace(this, false);
+    backtrace(context, false);
     return false;
   }
 
-  private boolean handleAction(ParseContext context) throws IOException, RecognitionException {
+  boolean handleAction(ParseContext context) throws IOException, RecognitionException {
     try {
-      context.tracer().onBeforeAction(this);
+      RuleTracer tracer = context.tracer();
+      if (tracer != null && !context.isTraced(this, TraceFilter.ACTION_EVENTS)) {
+        tracer = null;
+      }
+      if (tracer != null) {
+        tracer.onBeforeAction(this);
+      }
       boolean result = Types.<ActionHandler<Parser<?>>>cast(handler).handle(context.parser(), context);
-      context.tracer().onAfterAction(this, result);
+      if (tracer != null) {
+        tracer.onAfterAction(this, result);
+      }
       return result;
     } catch (Throwable e) {
       throw new ActionException(this, e, context.end());
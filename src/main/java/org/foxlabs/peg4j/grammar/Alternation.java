@@ -28,21 +28,26 @@ public final class Alternation extends Expression.Nary implements Operator {
     super(owner, children);
   }
 
+  @Override
+  public RuleKind getKind() {
+    return RuleKind.ALTERNATION;
+  }
+
   @Override
   public boolean reduce(ParseContext context) throws IOException, RecognitionException {
-    context.tracer().onRuleTrace(this);
+    trace(context);
     context.stream().mark();
     for (int i = 0; i < children.length; i++) {
       if (children[i].reduce(context)) {
         context.stream().release();
-        context.tracer().onRuleBacktrace(this, true);
+        backtrace(context, true);
         return true;
       }
       context.stream().reset();
       context.stream().mark();
     }
     context.stream().release();
-    context.tracer().onRuleBacktrace(this, false);
+    backtrace(context, false);
     return false;
   }
 
@@ -0,0 +1,936 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.grammar;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ArrayList;
+
+import java.io.IOException;
+
+import org.foxlabs.util.UnicodeSet;
+
+import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.debug.TraceFilter;
+import org.foxlabs.peg4j.util.ClassAssembler;
+import org.foxlabs.peg4j.util.ClassAssembler.Code;
+import org.foxlabs.peg4j.util.ClassAssembler.Label;
+
+import static org.foxlabs.peg4j.util.ClassAssembler.*;
+
+/**
+ * Compiler of grammar productions into JVM bytecode.
+ *
+ * <p>Each production is compiled into a separate class that contains straight
+ * code equivalent to the <code>reduce()</code> methods of the production
+ * expressions. Generated code performs exactly the same sequence of stream,
+ * tracer, context and transaction calls as interpreter does, so compiled and
+ * interpreted productions can be freely mixed. Tracer calls are skipped if
+ * parsing is not traced or event is filtered out. Terminals are matched inline,
+ * references to already compiled productions are invoked directly and all the
+ * other rules are invoked through their <code>reduce()</code> methods.</p>
+ *
+ * <p>Generated classes are defined by this class loader, one instance of which
+ * is associated with a grammar, so they can be unloaded along with the grammar.
+ * If some production cannot be compiled for any reason then it will be
+ * interpreted.</p>
+ *
+ * @author Fox Mulder
+ * @see org.foxlabs.peg4j.Parser#setCompileThreshold(int)
+ */
+public final class BytecodeCompiler extends ClassLoader {
+
+  // Internal names of the classes used by generated code
+
+  private static final String COMPILER = "org/foxlabs/peg4j/grammar/BytecodeCompiler";
+  private static final String COMPILED = "org/foxlabs/peg4j/grammar/BytecodeCompiler$CompiledProduction";
+  private static final String CONTEXT = "org/foxlabs/peg4j/grammar/ParseContext";
+  private static final String STREAM = "org/foxlabs/peg4j/BacktrackingReader";
+  private static final String TRACER = "org/foxlabs/peg4j/debug/RuleTracer";
+  private static final String TRANSACTION = "org/foxlabs/peg4j/Transaction";
+  private static final String PARSER = "org/foxlabs/peg4j/Parser";
+  private static final String RULE = "org/foxlabs/peg4j/grammar/Rule";
+  private static final String PRODUCTION = "org/foxlabs/peg4j/grammar/Production";
+  private static final String REFERENCE = "org/foxlabs/peg4j/grammar/Reference";
+  private static final String TERMINAL = "org/foxlabs/peg4j/grammar/Terminal";
+  private static final String ACTION = "org/foxlabs/peg4j/grammar/Action";
+  private static final String USET = "org/foxlabs/util/UnicodeSet";
+  private static final String CHARACTER = "java/lang/Character";
+
+  // Frequently used method descriptors
+
+  private static final String REDUCE_DESC = "(L" + CONTEXT + ";)Z";
+  private static final String TRACE_DESC = "(L" + RULE + ";)V";
+  private static final String BACKTRACE_DESC = "(L" + RULE + ";Z)V";
+
+  // Local variables of generated methods
+
+  private static final int CONTEXT_VAR = 0;
+  private static final int STREAM_VAR = 1;
+  private static final int TRACER_VAR = 2;
+
+  /**
+   * Estimated size of the method code in bytes after which nested expressions
+   * will be moved to separate methods. It is much lower than the size of huge
+   * methods that will not be compiled by JIT.
+   */
+  private static final int METHOD_SIZE_LIMIT = 2000;
+
+  /**
+   * Estimated size of the expression code in bytes after which the expression
+   * will not be duplicated inside repetitions.
+   */
+  private static final int DUPLICATE_SIZE_LIMIT = 200;
+
+  /**
+   * Estimated size of the code that invokes separate method.
+   */
+  private static final int CALL_SIZE = 8;
+
+  /**
+   * Grammar which productions are compiled.
+   */
+  private final Grammar grammar;
+
+  /**
+   * Constants of the classes that are not initialized yet.
+   */
+  private final Map<String, Object[]> constants = new HashMap<String, Object[]>();
+
+  /**
+   * Constructs a new compiler for the specified grammar.
+   *
+   * @param grammar Grammar which productions should be compiled.
+   */
+  BytecodeCompiler(Grammar grammar) {
+    super(BytecodeCompiler.class.getClassLoader());
+    this.grammar = grammar;
+  }
+
+  /**
+   * Returns grammar which productions are compiled.
+   *
+   * @return Grammar which productions are compiled.
+   */
+  public Grammar getGrammar() {
+    return grammar;
+  }
+
+  /**
+   * Compiles the specified production. If production cannot be compiled then
+   * the cause is kept as {@link Production#getCompileError() compile error}
+   * and production will never be compiled again. Virtual machine errors are
+   * not handled.
+   *
+   * @param production Production to be compiled.
+   * @return Compiled production or <code>null</code> if production cannot be
+   *         compiled.
+   */
+  synchronized CompiledProduction compile(Production production) {
+    if (production.compiled == null && production.compileError == null) {
+      try {
+        Generator generator = new Generator(production);
+        byte[] bytecode = generator.generate();
+        String name = generator.className.replace('/', '.');
+        constants.put(name, generator.constants.toArray());
+        Class<?> type = defineClass(name, bytecode, 0, bytecode.length);
+        production.compiled = (CompiledProduction) type.getDeclaredConstructor().newInstance();
+      } catch (LinkageError | ReflectiveOperationException | RuntimeException e) {
+        production.compileError = e;
+      }
+    }
+    return production.compiled;
+  }
+
+  /**
+   * Returns constants of the specified generated class. This method is invoked
+   * from the static initializers of generated classes.
+   *
+   * @param type Generated class.
+   * @return Constants of the generated class.
+   */
+  public static Object[] getConstants(Class<?> type) {
+    BytecodeCompiler compiler = (BytecodeCompiler) type.getClassLoader();
+    synchronized (compiler) {
+      return compiler.constants.remove(type.getName());
+    }
+  }
+
+  /**
+   * Handles the specified action. This method is invoked from generated code.
+   *
+   * @param action Action to be handled.
+   * @param context Parse context.
+   * @return Result of action handling.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if action handler failed.
+   */
+  public static boolean handleAction(Action action, ParseContext context)
+      throws IOException, RecognitionException {
+    return action.handleAction(context);
+  }
+
+  // CompiledProduction
+
+  /**
+   * Base class for compiled productions.
+   *
+   * @author Fox Mulder
+   */
+  public static abstract class CompiledProduction {
+
+    /**
+     * Attempts to reduce compiled production.
+     *
+     * @param context Parse context.
+     * @return <code>true</code> if production was reduced successfully;
+     *         <code>false</code> otherwise.
+     * @throws IOException if IO error occurred.
+     * @throws RecognitionException if recognition error occurred.
+     */
+    public abstract boolean reduce(ParseContext context) throws IOException, RecognitionException;
+
+  }
+
+  // Generator
+
+  /**
+   * Generator of the class for a single production.
+   *
+   * @author Fox Mulder
+   */
+  private static final class Generator {
+
+    /**
+     * Production to be compiled.
+     */
+    final Production production;
+
+    /**
+     * Internal name of the generated class.
+     */
+    final String className;
+
+    /**
+     * Class being generated.
+     */
+    final ClassAssembler assembler;
+
+    /**
+     * Constants referenced by generated code.
+     */
+    final List<Object> constants = new ArrayList<Object>();
+
+    /**
+     * Constant field names and descriptors.
+     */
+    final List<String[]> constantFields = new ArrayList<String[]>();
+
+    /**
+     * Constant indexes.
+     */
+    final Map<Object, Integer> constantIndexes = new IdentityHashMap<Object, Integer>();
+
+    /**
+     * Expressions that should be moved to separate methods.
+     */
+    final Map<Expression, String> outlined = new IdentityHashMap<Expression, String>();
+
+    /**
+     * Outlined expressions that are not generated yet.
+     */
+    final List<Expression> pending = new ArrayList<Expression>();
+
+    /**
+     * Code of the method being generated.
+     */
+    Code code;
+
+    Generator(Production production) {
+      this.production = production;
+      this.className = classNameOf(production);
+      this.assembler = new ClassAssembler(ACC_PUBLIC | ACC_FINAL, className, COMPILED);
+    }
+
+    byte[] generate() {
+      // Entry points
+      code = assembler.addMethod(ACC_PUBLIC | ACC_STATIC, "invoke", REDUCE_DESC, 1);
+      plan(production.expression, size(production.expression));
+      prologue();
+      Label fail = code.newLabel();
+      stream("mark");
+      trace(production);
+      generate(production.expression, fail);
+      backtrace(production, true);
+      stream("release");
+      code.iconst(1).op(IRETURN, -1);
+      code.mark(fail);
+      backtrace(production, false);
+      stream("reset");
+      code.iconst(0).op(IRETURN, -1);
+
+      code = assembler.addMethod(ACC_PUBLIC, "reduce", REDUCE_DESC, 2);
+      code.local(ALOAD, 1).invoke(INVOKESTATIC, className, "invoke", REDUCE_DESC).op(IRETURN, -1);
+
+      code = assembler.addMethod(ACC_PUBLIC, "<init>", "()V", 1);
+      code.local(ALOAD, 0).invoke(INVOKESPECIAL, COMPILED, "<init>", "()V").op(RETURN, 0);
+
+      // Outlined expressions
+      for (int i = 0; i < pending.size(); i++) {
+        Expression expression = pending.get(i);
+        code = assembler.addMethod(ACC_PRIVATE | ACC_STATIC, outlined.get(expression), REDUCE_DESC, 1);
+        prologue();
+        Label failed = code.newLabel();
+        generate(expression, failed);
+        code.iconst(1).op(IRETURN, -1);
+        code.mark(failed);
+        code.iconst(0).op(IRETURN, -1);
+      }
+
+      // Constants
+      code = assembler.addMethod(ACC_STATIC, "<clinit>", "()V", 1);
+      code.cconst(className).invoke(INVOKESTATIC, COMPILER, "getConstants",
+          "(Ljava/lang/Class;)[Ljava/lang/Object;");
+      code.local(ASTORE, 0);
+      for (int i = 0; i < constantFields.size(); i++) {
+        String[] field = constantFields.get(i);
+        assembler.addField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, field[0], field[1]);
+        code.local(ALOAD, 0).iconst(i).op(AALOAD, -1);
+        code.type(CHECKCAST, field[1].substring(1, field[1].length() - 1));
+        code.field(PUTSTATIC, className, field[0], field[1]);
+      }
+      code.op(RETURN, 0);
+
+      return assembler.toByteArray();
+    }
+
+    // Method splitting
+
+    /**
+     * Decides which nested expressions should be moved to separate methods to
+     * keep size of each method within the limit.
+     */
+    int plan(Expression expression, int estimated) {
+      List<Expression> children = childrenOf(expression);
+      if (children.isEmpty()) {
+        return estimated;
+      }
+      int size = estimated;
+      for (Expression child : children) {
+        int childSize = size(child);
+        int planned = childSize;
+        if (childSize > METHOD_SIZE_LIMIT || isDuplicated(expression) && childSize > DUPLICATE_SIZE_LIMIT) {
+          outline(child);
+          plan(child, childSize);
+          planned = CALL_SIZE;
+        } else {
+          planned = plan(child, childSize);
+        }
+        size += (planned - childSize) * (isDuplicated(expression) ? 2 : 1);
+      }
+      while (size > METHOD_SIZE_LIMIT) {
+        Expression largest = null;
+        int largestSize = CALL_SIZE;
+        for (Expression child : children) {
+          if (!outlined.containsKey(child)) {
+            int childSize = size(child);
+            if (childSize > largestSize) {
+              largest = child;
+              largestSize = childSize;
+            }
+          }
+        }
+        if (largest == null) {
+          break;
+        }
+        outline(largest);
+        size -= largestSize - CALL_SIZE;
+      }
+      return size;
+    }
+
+    void outline(Expression expression) {
+      if (!outlined.containsKey(expression)) {
+        outlined.put(expression, "e" + outlined.size());
+        pending.add(expression);
+      }
+    }
+
+    /**
+     * Returns estimated size of the expression code in bytes.
+     */
+    static int size(Expression expression) {
+      int size;
+      if (expression instanceof Terminal) {
+        size = 54;
+        if (expression instanceof Terminal.Token) {
+          size += ((Terminal.Token) expression).getImage().length() * 13;
+        } else {
+          size += 16;
+        }
+      } else if (expression instanceof Reference) {
+        size = expression instanceof Reference.Memo ? 192 : 68;
+      } else if (expression instanceof Alternation) {
+        size = 38 + 29 * ((Alternation) expression).length();
+      } else if (expression instanceof Action) {
+        size = 78;
+      } else if (expression instanceof Concatenation) {
+        size = 58;
+      } else if (expression instanceof Exclusion) {
+        size = 70;
+      } else if (expression instanceof Repetition) {
+        size = 92;
+      } else {
+        size = 15;
+      }
+      int factor = isDuplicated(expression) ? 2 : 1;
+      for (Expression child : childrenOf(expression)) {
+        size += size(child) * factor;
+      }
+      return size;
+    }
+
+    static boolean isDuplicated(Expression expression) {
+      if (expression instanceof Repetition.OnceOrMore) {
+        return true;
+      } else if (expression instanceof Repetition) {
+        Repetition repetition = (Repetition) expression;
+        return repetition.getQuantifier() == null
+            && repetition.getMin() > 0 && repetition.getMin() < repetition.getMax();
+      }
+      return false;
+    }
+
+    static List<Expression> childrenOf(Expression expression) {
+      List<Expression> children = new ArrayList<Expression>();
+      if (expression instanceof Expression.Nary) {
+        for (Expression child : ((Expression.Nary) expression).children) {
+          children.add(child);
+        }
+      } else if (expression instanceof Expression.Unary && isSupported(expression)) {
+        children.add(((Expression.Unary) expression).child);
+      }
+      return children;
+    }
+
+    static boolean isSupported(Expression expression) {
+      return expression instanceof Repetition || expression instanceof Exclusion
+          || expression instanceof Action;
+    }
+
+    // Code generation
+
+    /**
+     * Generates code of the expression that falls through on success and jumps
+     * to the specified label on failure.
+     */
+    void generate(Expression expression, Label fail) {
+      if (expression instanceof Terminal) {
+        generateTerminal((Terminal) expression, fail);
+      } else if (expression instanceof Reference) {
+        if (expression instanceof Reference.Memo) {
+          generateMemo((Reference.Memo) expression, fail);
+        } else {
+          generateReference((Reference) expression, fail);
+        }
+      } else if (expression instanceof Concatenation) {
+        generateConcatenation((Concatenation) expression, fail);
+      } else if (expression instanceof Alternation) {
+        generateAlternation((Alternation) expression, fail);
+      } else if (expression instanceof Repetition) {
+        generateRepetition((Repetition) expression, fail);
+      } else if (expression instanceof Exclusion) {
+        generateExclusion((Exclusion) expression, fail);
+      } else if (expression instanceof Action) {
+        generateAction((Action) expression, fail);
+      } else {
+        getConstant(expression);
+        code.local(ALOAD, CONTEXT_VAR).invoke(INVOKEVIRTUAL, RULE, "reduce", REDUCE_DESC);
+        code.jump(IFEQ, fail);
+      }
+    }
+
+    void generateTerminal(Terminal terminal, Label fail) {
+      Label failed = code.newLabel();
+      Label done = code.newLabel();
+      trace(terminal);
+      if (terminal instanceof Terminal.Nil) {
+        // Always matches
+      } else if (terminal instanceof Terminal.Any) {
+        read();
+        code.jump(IFLT, failed);
+      } else if (terminal instanceof Terminal.Token && !hasSurrogates(((Terminal.Token) terminal).getImage())) {
+        Terminal.Token token = (Terminal.Token) terminal;
+        String image = token.getImage();
+        for (int i = 0; i < image.length(); i++) {
+          read();
+          if (token.isCaseSensitive()) {
+            code.iconst(image.charAt(i));
+          } else {
+            code.invoke(INVOKESTATIC, CHARACTER, "toUpperCase", "(I)I");
+            code.iconst(Character.toUpperCase(image.charAt(i)));
+          }
+          code.jump(IF_ICMPNE, failed);
+        }
+      } else if (terminal instanceof Terminal.Interval) {
+        Terminal.Interval interval = (Terminal.Interval) terminal;
+        int ch = code.newLocal();
+        read();
+        code.local(ISTORE, ch);
+        code.local(ILOAD, ch).iconst(interval.getMin()).jump(IF_ICMPLT, failed);
+        code.local(ILOAD, ch).iconst(interval.getMax()).jump(IF_ICMPGT, failed);
+      } else if (terminal instanceof Terminal.Set) {
+        getConstant(((Terminal.Set) terminal).getUnicodeSet());
+        read();
+        code.invoke(INVOKEVIRTUAL, USET, "contains", "(I)Z");
+        code.jump(IFEQ, failed);
+      } else if (terminal instanceof Terminal.Class) {
+        Terminal.Class type = (Terminal.Class) terminal;
+        String method = type.getMethodName();
+        read();
+        if (method == null) {
+          code.op(POP, -1);
+          code.jump(GOTO, failed);
+        } else {
+          code.invoke(INVOKESTATIC, CHARACTER, method, "(I)Z");
+          code.jump(IFEQ, failed);
+        }
+      } else {
+        getConstant(terminal);
+        code.local(ALOAD, CONTEXT_VAR).invoke(INVOKEVIRTUAL, RULE, "reduce", REDUCE_DESC);
+        code.jump(IFEQ, fail);
+        return;
+      }
+      backtrace(terminal, true);
+      code.jump(GOTO, done);
+      code.mark(failed);
+      backtrace(terminal, false);
+      reportFailure(terminal);
+      code.jump(GOTO, fail);
+      code.mark(done);
+    }
+
+    void generateReference(Reference reference, Label fail) {
+      Label failed = code.newLabel();
+      Label done = code.newLabel();
+      trace(reference);
+      stream("mark");
+      invokeTarget(reference.target);
+      code.jump(IFEQ, failed);
+      stream("release");
+      backtrace(reference, true);
+      code.jump(GOTO, done);
+      code.mark(failed);
+      stream("reset");
+      backtrace(reference, false);
+      code.jump(GOTO, fail);
+      code.mark(done);
+    }
+
+    void generateMemo(Reference.Memo reference, Label fail) {
+      Label plain = code.newLabel();
+      Label missed = code.newLabel();
+      Label unsaved = code.newLabel();
+      Label failed = code.newLabel();
+      Label unsavedFailure = code.newLabel();
+      Label known = code.newLabel();
+      Label done = code.newLabel();
+      code.local(ALOAD, CONTEXT_VAR).invoke(INVOKEINTERFACE, CONTEXT, "parser", "()L" + PARSER + ";");
+      code.invoke(INVOKEVIRTUAL, PARSER, "isMemoable", "()Z");
+      code.jump(IFEQ, plain);
+      trace(reference);
+      stream("mark");
+      int snapshot = code.newLocal();
+      code.local(ALOAD, CONTEXT_VAR);
+      getConstant(reference.target);
+      code.invoke(INVOKEINTERFACE, CONTEXT, "loadSnapshot", "(L" + PRODUCTION + ";)I");
+      code.local(ISTORE, snapshot);
+      code.local(ILOAD, snapshot).jump(IFEQ, missed);
+      code.local(ILOAD, snapshot).iconst(ParseContext.SNAPSHOT_LOADED).jump(IF_ICMPNE, known);
+      cacheGet(reference, true, true);
+      stream("release");
+      backtrace(reference, true);
+      code.jump(GOTO, done);
+      code.mark(known);
+      cacheGet(reference, true, false);
+      stream("reset");
+      backtrace(reference, false);
+      code.jump(GOTO, fail);
+      code.mark(missed);
+      cacheGet(reference, false, false);
+      transaction("begin", "()V");
+      invokeTarget(reference.target);
+      code.jump(IFEQ, failed);
+      snapshot("saveSnapshot", reference.target);
+      code.jump(IFEQ, unsaved);
+      cachePut(reference);
+      code.mark(unsaved);
+      transaction("commit", "()V");
+      stream("release");
+      backtrace(reference, true);
+      code.jump(GOTO, done);
+      code.mark(failed);
+      transaction("rollback", "()V");
+      snapshot("saveFailure", reference.target);
+      code.jump(IFEQ, unsavedFailure);
+      cachePut(reference);
+      code.mark(unsavedFailure);
+      stream("reset");
+      backtrace(reference, false);
+      code.jump(GOTO, fail);
+      code.mark(plain);
+      generateReference(reference, fail);
+      code.mark(done);
+    }
+
+    void generateConcatenation(Concatenation concatenation, Label fail) {
+      Label failed = code.newLabel();
+      Label done = code.newLabel();
+      stream("mark");
+      trace(concatenation);
+      for (Expression child : concatenation.children) {
+        generateChild(child, failed);
+      }
+      backtrace(concatenation, true);
+      stream("release");
+      code.jump(GOTO, done);
+      code.mark(failed);
+      backtrace(concatenation, false);
+      stream("reset");
+      code.jump(GOTO, fail);
+      code.mark(done);
+    }
+
+    void generateAlternation(Alternation alternation, Label fail) {
+      Label done = code.newLabel();
+      trace(alternation);
+      stream("mark");
+      for (Expression child : alternation.children) {
+        Label next = code.newLabel();
+        generateChild(child, next);
+        stream("release");
+        backtrace(alternation, true);
+        code.jump(GOTO, done);
+        code.mark(next);
+        stream("reset");
+        stream("mark");
+      }
+      stream("release");
+      backtrace(alternation, false);
+      code.jump(GOTO, fail);
+      code.mark(done);
+    }
+
+    void generateRepetition(Repetition repetition, Label fail) {
+      Label failed = code.newLabel();
+      Label done = code.newLabel();
+      Expression child = repetition.child;
+      stream("mark");
+      trace(repetition);
+      if (repetition instanceof Repetition.OnceOrNone) {
+        generateChild(child, failed);
+        backtrace(repetition, true);
+        stream("release");
+        code.jump(GOTO, done);
+        code.mark(failed);
+        backtrace(repetition, true);
+        stream("reset");
+      } else if (repetition instanceof Repetition.ZeroOrMore) {
+        Label loop = code.newLabel();
+        code.mark(loop);
+        generateChild(child, failed);
+        stream("release");
+        stream("mark");
+        code.jump(GOTO, loop);
+        code.mark(failed);
+        backtrace(repetition, true);
+        stream("reset");
+      } else if (repetition instanceof Repetition.OnceOrMore) {
+        Label loop = code.newLabel();
+        Label end = code.newLabel();
+        generateChild(child, failed);
+        stream("release");
+        stream("mark");
+        code.mark(loop);
+        generateChild(child, end);
+        stream("release");
+        stream("mark");
+        code.jump(GOTO, loop);
+        code.mark(end);
+        backtrace(repetition, true);
+        stream("reset");
+        code.jump(GOTO, done);
+        code.mark(failed);
+        backtrace(repetition, false);
+        stream("reset");
+        code.jump(GOTO, fail);
+      } else {
+        int counter = code.newLocal();
+        int min = repetition.getMin();
+        int max = repetition.getMax();
+        Label optional = code.newLabel();
+        Label end = code.newLabel();
+        Label all = code.newLabel();
+        code.iconst(0).local(ISTORE, counter);
+        if (min > 0) {
+          Label loop = code.newLabel();
+          code.mark(loop);
+          code.local(ILOAD, counter).iconst(min).jump(IF_ICMPGE, optional);
+          generateChild(child, failed);
+          code.iinc(counter, 1);
+          code.jump(GOTO, loop);
+        }
+        code.mark(optional);
+        if (min < max) {
+          Label loop = code.newLabel();
+          code.mark(loop);
+          code.local(ILOAD, counter).iconst(max).jump(IF_ICMPGE, all);
+          generateChild(child, end);
+          code.iinc(counter, 1);
+          code.jump(GOTO, loop);
+          code.mark(end);
+          backtrace(repetition, true);
+          stream("reset");
+          code.jump(GOTO, done);
+        }
+        code.mark(all);
+        backtrace(repetition, true);
+        stream("release");
+        code.jump(GOTO, done);
+        code.mark(failed);
+        backtrace(repetition, false);
+        stream("reset");
+        code.jump(GOTO, fail);
+      }
+      code.mark(done);
+    }
+
+    void generateExclusion(Exclusion exclusion, Label fail) {
+      Label failed = code.newLabel();
+      Label done = code.newLabel();
+      boolean not = exclusion.getPredicate() == Predicate.NOT;
+      stream("mark");
+      trace(exclusion);
+      context("enterPredicate", "()V");
+      generateChild(exclusion.child, failed);
+      context("exitPredicate", "()V");
+      backtrace(exclusion, !not);
+      stream("reset");
+      if (not) {
+        code.jump(GOTO, fail);
+      } else {
+        code.jump(GOTO, done);
+      }
+      code.mark(failed);
+      context("exitPredicate", "()V");
+      backtrace(exclusion, not);
+      stream("reset");
+      if (!not) {
+        code.jump(GOTO, fail);
+      }
+      code.mark(done);
+    }
+
+    void generateAction(Action action, Label fail) {
+      Label failed = code.newLabel();
+      Label done = code.newLabel();
+      trace(action);
+      stream("mark");
+      transaction("begin", "()V");
+      generateChild(action.child, failed);
+      getConstant(action);
+      code.local(ALOAD, CONTEXT_VAR);
+      code.invoke(INVOKESTATIC, COMPILER, "handleAction", "(L" + ACTION + ";L" + CONTEXT + ";)Z");
+      code.jump(IFEQ, failed);
+      transaction("commit", "()V");
+      stream("release");
+      backtrace(action, true);
+      code.jump(GOTO, done);
+      code.mark(failed);
+      transaction("rollback", "()V");
+      stream("reset");
+      backtrace(action, false);
+      code.jump(GOTO, fail);
+      code.mark(done);
+    }
+
+    // Helpers
+
+    /**
+     * Generates child expression or invocation of the separate method.
+     */
+    void generateChild(Expression child, Label fail) {
+      String method = outlined.get(child);
+      if (method == null) {
+        generate(child, fail);
+      } else {
+        code.local(ALOAD, CONTEXT_VAR).invoke(INVOKESTATIC, className, method, REDUCE_DESC);
+        code.jump(IFEQ, fail);
+      }
+    }
+
+    void invokeTarget(Production target) {
+      if (target == production || target.compiled != null) {
+        code.local(ALOAD, CONTEXT_VAR).invoke(INVOKESTATIC, classNameOf(target), "invoke", REDUCE_DESC);
+      } else {
+        getConstant(target);
+        code.local(ALOAD, CONTEXT_VAR).invoke(INVOKEVIRTUAL, PRODUCTION, "reduce", REDUCE_DESC);
+      }
+    }
+
+    void prologue() {
+      code.newLocal();
+      code.newLocal();
+      code.local(ALOAD, CONTEXT_VAR).invoke(INVOKEINTERFACE, CONTEXT, "stream", "()L" + STREAM + ";");
+      code.local(ASTORE, STREAM_VAR);
+      code.local(ALOAD, CONTEXT_VAR).invoke(INVOKEINTERFACE, CONTEXT, "tracer", "()L" + TRACER + ";");
+      code.local(ASTORE, TRACER_VAR);
+    }
+
+    void stream(String method) {
+      code.local(ALOAD, STREAM_VAR).invoke(INVOKEVIRTUAL, STREAM, method, "()V");
+    }
+
+    void read() {
+      code.local(ALOAD, STREAM_VAR).invoke(INVOKEVIRTUAL, STREAM, "read", "()I");
+    }
+
+    // Tokens with supplementary characters are matched by the terminal itself
+    // (see BacktrackingReader.isByteMode())
+    boolean hasSurrogates(String image) {
+      for (int i = 0; i < image.length(); i++) {
+        if (Character.isSurrogate(image.charAt(i))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void transaction(String method, String descriptor) {
+      code.local(ALOAD, CONTEXT_VAR).invoke(INVOKEINTERFACE, CONTEXT, "transaction", "()L" + TRANSACTION + ";");
+      code.invoke(INVOKEINTERFACE, TRANSACTION, method, descriptor);
+    }
+
+    void snapshot(String method, Production target) {
+      code.local(ALOAD, CONTEXT_VAR);
+      getConstant(target);
+      code.invoke(INVOKEINTERFACE, CONTEXT, method, "(L" + PRODUCTION + ";)Z");
+    }
+
+    void context(String method, String descriptor) {
+      code.local(ALOAD, CONTEXT_VAR).invoke(INVOKEINTERFACE, CONTEXT, method, descriptor);
+    }
+
+    void reportFailure(Terminal terminal) {
+      code.local(ALOAD, CONTEXT_VAR);
+      getConstant(terminal);
+      code.invoke(INVOKEINTERFACE, CONTEXT, "reportFailure", "(L" + TERMINAL + ";)V");
+    }
+
+    // Tracer calls are skipped if parsing is not traced or event is filtered out
+    Label traced(Rule rule, int event) {
+      Label untraced = code.newLabel();
+      code.local(ALOAD, TRACER_VAR).jump(IFNULL, untraced);
+      code.local(ALOAD, CONTEXT_VAR);
+      getConstant(rule);
+      code.iconst(event).invoke(INVOKEINTERFACE, CONTEXT, "isTraced", "(L" + RULE + ";I)Z");
+      code.jump(IFEQ, untraced);
+      return untraced;
+    }
+
+    // Filter decision is made once at trace and reused at backtrace
+    Label traced(Rule rule, String method) {
+      Label untraced = code.newLabel();
+      code.local(ALOAD, TRACER_VAR).jump(IFNULL, untraced);
+      code.local(ALOAD, CONTEXT_VAR);
+      getConstant(rule);
+      code.invoke(INVOKEINTERFACE, CONTEXT, method, "(L" + RULE + ";)Z");
+      code.jump(IFEQ, untraced);
+      return untraced;
+    }
+
+    void trace(Rule rule) {
+      Label untraced = traced(rule, "enterTrace");
+      code.local(ALOAD, TRACER_VAR);
+      getConstant(rule);
+      code.invoke(INVOKEINTERFACE, TRACER, "onRuleTrace", TRACE_DESC);
+      code.mark(untraced);
+    }
+
+    void backtrace(Rule rule, boolean success) {
+      Label untraced = traced(rule, "exitTrace");
+      code.local(ALOAD, TRACER_VAR);
+      getConstant(rule);
+      code.iconst(success ? 1 : 0).invoke(INVOKEINTERFACE, TRACER, "onRuleBacktrace", BACKTRACE_DESC);
+      code.mark(untraced);
+    }
+
+    void cacheGet(Reference reference, boolean hit, boolean success) {
+      Label untraced = traced(reference, TraceFilter.CACHE_GET_EVENTS);
+      code.local(ALOAD, TRACER_VAR);
+      getConstant(reference);
+      code.iconst(hit ? 1 : 0).iconst(success ? 1 : 0);
+      code.invoke(INVOKEINTERFACE, TRACER, "onCacheGet", "(L" + REFERENCE + ";ZZ)V");
+      code.mark(untraced);
+    }
+
+    void cachePut(Reference reference) {
+      Label untraced = traced(reference, TraceFilter.CACHE_PUT_EVENTS);
+      code.local(ALOAD, TRACER_VAR);
+      getConstant(reference);
+      code.invoke(INVOKEINTERFACE, TRACER, "onCachePut", "(L" + REFERENCE + ";)V");
+      code.mark(untraced);
+    }
+
+    /**
+     * Pushes the specified constant onto the stack.
+     */
+    void getConstant(Object value) {
+      Integer index = constantIndexes.get(value);
+      if (index == null) {
+        String type = value instanceof Production ? PRODUCTION
+            : value instanceof Reference ? REFERENCE
+            : value instanceof Terminal ? TERMINAL
+            : value instanceof Action ? ACTION
+            : value instanceof UnicodeSet ? USET
+            : RULE;
+        constantIndexes.put(value, index = constants.size());
+        constants.add(value);
+        constantFields.add(new String[] {"c" + index, "L" + type + ";"});
+      }
+      String[] field = constantFields.get(index);
+      code.field(GETSTATIC, className, field[0], field[1]);
+    }
+
+  }
+
+  /**
+   * Returns internal name of the class generated for the specified production.
+   */
+  static String classNameOf(Production production) {
+    StringBuilder buf = new StringBuilder("org/foxlabs/peg4j/grammar/compiled/");
+    String name = production.getName();
+    for (int i = 0; i < name.length(); i++) {
+      char ch = name.charAt(i);
+      buf.append(Character.isJavaIdentifierPart(ch) ? ch : '_');
+    }
+    return buf.append('$').append(production.getIndex()).toString();
+  }
+
+}
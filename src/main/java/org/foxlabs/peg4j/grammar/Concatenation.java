@@ -28,18 +28,23 @@ public final class Concatenation extends Expression.Nary implements Operator {
     super(owner, children);
   }
 
+  @Override
+  public RuleKind getKind() {
+    return RuleKind.CONCATENATION;
+  }
+
   @Override
   public boolean reduce(ParseContext context) throws IOException, RecognitionException {
     context.stream().mark();
-    context.tracer().onRuleTrace(this);
+    trace(context);
     for (int i = 0; i < children.length; i++) {
       if (!children[i].reduce(context)) {
-        context.tracer().onRuleBacktrace(this, false);
+        backtrace(context, false);
         context.stream().reset();
         return false;
       }
     }
-    context.tracer().onRuleBacktrace(this, true);
+    backtrace(context, true);
     context.stream().release();
     return true;
   }
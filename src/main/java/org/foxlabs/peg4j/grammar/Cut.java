@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.grammar;
+
+import java.io.IOException;
+
+import org.foxlabs.common.text.CharBuffer;
+
+/**
+ * Cut operator <code>^</code> that always matches and commits parsing at the
+ * current position in character stream.
+ *
+ * <p>Once cut is passed parser never backtracks before it, so memo entries
+ * behind the current position are dropped and the reader is allowed to
+ * discard characters it has already consumed. If later failure requires to
+ * backtrack before the cut then parsing stops with syntax error instead of
+ * trying other alternatives. Cut has no effect inside predicates because they
+ * always backtrack.</p>
+ *
+ * @author Fox Mulder
+ * @see ParseContext#cut()
+ * @see org.foxlabs.peg4j.BacktrackingReader#cut()
+ */
+public final class Cut extends Expression {
+
+  public static final String SYMBOL = "^";
+
+  Cut(Production owner) {
+    super(owner);
+  }
+
+  @Override
+  public RuleKind getKind() {
+    return RuleKind.CUT;
+  }
+
+  @Override
+  public boolean reduce(ParseContext context) throws IOException {
+    trace(context);
+    context.cut();
+    backtrace(context, true);
+    return true;
+  }
+
+  @Override
+  public <E extends Throwable> void accept(RuleVisitor<E> visitor) throws E {
+    visitor.visit(this);
+  }
+
+  @Override
+  public CharBuffer toString(CharBuffer buf, boolean debug) {
+    return buf.append(SYMBOL);
+  }
+
+}
@@ -30,6 +30,11 @@ public abstract class Exclusion extends Expression.Unary implements Operator {
 
   public abstract Predicate getPredicate();
 
+  @Override
+  public final RuleKind getKind() {
+    return RuleKind.EXCLUSION;
+  }
+
   @Override
   public <E extends Throwable> void accept(RuleVisitor<E> visitor) throws E {
     visitor.visit(this);
@@ -56,13 +61,16 @@ public abstract class Exclusion extends Expression.Unary implements Operator {
     @Override
     public boolean reduce(ParseContext context) throws IOException, RecognitionException {
       context.stream().mark();
-      context.tracer().onRuleTrace(this);
+      trace(context);
+      context.enterPredicate();
       if (child.reduce(context)) {
-        context.tracer().onRuleBacktrace(this, false);
+        context.exitPredicate();
+        backtrace(context, false);
         context.stream().reset();
         return false;
       }
-      context.tracer().onRuleBacktrace(this, true);
+      context.exitPredicate();
+      backtrace(context, true);
       context.stream().reset();
       return true;
     }
@@ -85,13 +93,16 @@ public abstract class Exclusion extends Expression.Unary implements Operator {
     @Override
     public boolean reduce(ParseContext context) throws IOException, RecognitionException {
       context.stream().mark();
-      context.tracer().onRuleTrace(this);
+      trace(context);
+      context.enterPredicate();
       if (child.reduce(context)) {
-        context.tracer().onRuleBacktrace(this, true);
+        context.exitPredicate();
+        backtrace(context, true);
         context.stream().reset();
         return true;
       }
-      context.tracer().onRuleBacktrace(this, false);
+      context.exitPredicate();
+      backtrace(context, false);
       context.stream().reset();
       return false;
     }
@@ -16,6 +16,10 @@
 
 package org.foxlabs.peg4j.grammar;
 
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.foxlabs.common.text.CharBuffer;
@@ -27,16 +31,27 @@ public final class Grammar {
 
   private final Production[] productions;
 
+  private Terminal[] terminals = new Terminal[0];
+
+  private Action[] actions = new Action[0];
+
   private final GrammarProblems problems;
 
   private final String source;
 
   private int[] offsets;
 
+  private BytecodeCompiler compiler;
+
+  private ParsingMachine machine;
+
   Grammar(Production[] productions, GrammarProblems problems, String source) {
     this.productions = productions;
     this.problems = problems;
     this.source = source;
+    for (Production production : productions) {
+      production.grammar = this;
+    }
   }
 
   public Production getStart() {
@@ -55,6 +70,111 @@ public final class Grammar {
     return productions.clone();
   }
 
+  /**
+   * Returns number of distinct terminals of this grammar.
+   *
+   * @return Number of distinct terminals of this grammar.
+   * @see Terminal#getIndex()
+   */
+  public int getTerminalCount() {
+    return terminals.length;
+  }
+
+  /**
+   * Returns the first terminal of this grammar with the specified index.
+   *
+   * @param index Terminal index.
+   * @return The first terminal of this grammar with the specified index.
+   * @see Terminal#getIndex()
+   */
+  public Terminal getTerminal(int index) {
+    return terminals[index];
+  }
+
+  /**
+   * Returns number of distinct actions of this grammar.
+   *
+   * @return Number of distinct actions of this grammar.
+   * @see Action#getIndex()
+   */
+  public int getActionCount() {
+    return actions.length;
+  }
+
+  /**
+   * Returns the first action of this grammar with the specified index.
+   *
+   * @param index Action index.
+   * @return The first action of this grammar with the specified index.
+   * @see Action#getIndex()
+   */
+  public Action getAction(int index) {
+    return actions[index];
+  }
+
+  /**
+   * Assigns dense indexes to terminals and actions of this grammar, so that
+   * statistics can be kept in arrays. Terminals with the same text share the
+   * same index, as well as actions with the same name.
+   */
+  void indexRules() {
+    Map<String, Integer> terminalIndexes = new HashMap<String, Integer>();
+    Map<String, Integer> actionIndexes = new HashMap<String, Integer>();
+    List<Terminal> terminalList = new ArrayList<Terminal>();
+    List<Action> actionList = new ArrayList<Action>();
+    for (Production production : productions) {
+      if (production.expression != null) {
+        indexRules(production.expression, terminalIndexes, terminalList, actionIndexes, actionList);
+      }
+    }
+    terminals = terminalList.toArray(new Terminal[terminalList.size()]);
+    actions = actionList.toArray(new Action[actionList.size()]);
+  }
+
+  private static void indexRules(Expression expression,
+      Map<String, Integer> terminalIndexes, List<Terminal> terminalList,
+      Map<String, Integer> actionIndexes, List<Action> actionList) {
+    if (expression instanceof Terminal) {
+      Terminal terminal = (Terminal) expression;
+      String key = terminal.toString();
+      Integer index = terminalIndexes.get(key);
+      if (index == null) {
+        terminalIndexes.put(key, index = terminalList.size());
+        terminalList.add(terminal);
+      }
+      terminal.index = index;
+    } else if (expression instanceof Expression.Nary) {
+      for (Expression child : ((Expression.Nary) expression).children) {
+        indexRules(child, terminalIndexes, terminalList, actionIndexes, actionList);
+      }
+    } else if (expression instanceof Expression.Unary) {
+      if (expression instanceof Action) {
+        Action action = (Action) expression;
+        Integer index = actionIndexes.get(action.getName());
+        if (index == null) {
+          actionIndexes.put(action.getName(), index = actionList.size());
+          actionList.add(action);
+        }
+        action.index = index;
+      }
+      indexRules(((Expression.Unary) expression).child, terminalIndexes, terminalList, actionIndexes, actionList);
+    }
+  }
+
+  synchronized BytecodeCompiler getCompiler() {
+    if (compiler == null) {
+      compiler = new BytecodeCompiler(this);
+    }
+    return compiler;
+  }
+
+  public synchronized ParsingMachine getMachine() {
+    if (machine == null) {
+      machine = new ParsingMachine(this);
+    }
+    return machine;
+  }
+
   public boolean hasProblems() {
     return problems.hasProblems();
   }
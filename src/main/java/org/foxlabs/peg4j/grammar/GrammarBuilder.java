@@ -223,6 +223,13 @@ public final class GrammarBuilder extends BacktrackingStack<Expression> {
     return this;
   }
 
+  // FIXME public ProductionBuilder cut()
+  public GrammarBuilder pushCut() {
+    checkProductionInitiated(true);
+    push(new Cut(currentProduction));
+    return this;
+  }
+
   // FIXME public ProductionBuilder reference(String name)
   public GrammarBuilder pushReference(String name) {
     return pushReference(name, null);
@@ -361,6 +368,7 @@ public final class GrammarBuilder extends BacktrackingStack<Expression> {
     System.arraycopy(productions, 0, copy, 0, productionCount);
     Grammar grammar = new Grammar(copy, problems, source);
     GrammarCompiler.makeUndoInjections(grammar);
+    grammar.indexRules();
     return grammar;
   }
 
@@ -185,6 +185,17 @@ public final class GrammarCompiler {
       rule.child.accept(this);
     }
 
+    public void visit(Cut rule) {
+      if (!sw) {
+        for (Expression parent = rule.parent; parent != null; parent = parent.parent) {
+          if (parent instanceof Exclusion) {
+            grammar.getProblems().add(INEFFECTIVE_CUT, rule);
+            break;
+          }
+        }
+      }
+    }
+
   }
 
   // RecursionFinder
@@ -286,6 +297,10 @@ public final class GrammarCompiler {
       }
     }
 
+    public void visit(Cut rule) {
+      // Cut does not consume characters
+    }
+
     public void reset(Production start) {
       source = start;
       consuming = false;
@@ -494,6 +509,10 @@ public final class GrammarCompiler {
       currentModify = Boolean.FALSE;
     }
 
+    public void visit(Cut rule) {
+      currentModify = Boolean.FALSE;
+    }
+
     private void doInject(Expression expr) {
       if (!(expr.parent instanceof Action)) {
         Expression parent = expr.parent;
@@ -144,22 +144,48 @@ public final class GrammarParser extends Parser<Grammar> {
 
     @Override
     public boolean load() {
-      builder.pushAll(rules);
-      symbolStack.pushAll(symbols);
-      intStack.pushAll(ints);
-      usetStack.pushAll(usets);
-      problemStack.pushAll(problems);
+      if (rules != null) {
+        builder.pushAll(rules);
+      }
+      if (symbols != null) {
+        symbolStack.pushAll(symbols);
+      }
+      if (ints != null) {
+        intStack.pushAll(ints);
+      }
+      if (usets != null) {
+        usetStack.pushAll(usets);
+      }
+      if (problems != null) {
+        problemStack.pushAll(problems);
+      }
       return true;
     }
 
     @Override
     public Tx save() {
+      // Only stacks that have new values are copied, so snapshots of
+      // productions that produce nothing are not allocated at all
+      if (builder.isEmpty() && symbolStack.isEmpty() && intStack.isEmpty()
+          && usetStack.isEmpty() && problemStack.isEmpty()) {
+        return null;
+      }
       Tx tx = new Tx();
-      tx.rules = builder.peekAll(new Expression[builder.size()]);
-      tx.symbols = symbolStack.peekAll(new String[symbolStack.size()]);
-      tx.ints = intStack.peekAll(new Integer[intStack.size()]);
-      tx.usets = usetStack.peekAll(new UnicodeSet[usetStack.size()]);
-      tx.problems = problemStack.peekAll(new Problem[problemStack.size()]);
+      if (!builder.isEmpty()) {
+        tx.rules = builder.peekAll(new Expression[builder.size()]);
+      }
+      if (!symbolStack.isEmpty()) {
+        tx.symbols = symbolStack.peekAll(new String[symbolStack.size()]);
+      }
+      if (!intStack.isEmpty()) {
+        tx.ints = intStack.peekAll(new Integer[intStack.size()]);
+      }
+      if (!usetStack.isEmpty()) {
+        tx.usets = usetStack.peekAll(new UnicodeSet[usetStack.size()]);
+      }
+      if (!problemStack.isEmpty()) {
+        tx.problems = problemStack.peekAll(new Problem[problemStack.size()]);
+      }
       return tx;
     }
 
@@ -253,6 +279,11 @@ public final class GrammarParser extends Parser<Grammar> {
     return true;
   }
 
+  private boolean handleRuleCut(ActionContext context) {
+    builder.pushCut().setStart(context.start()).setEnd(context.end());
+    return true;
+  }
+
   private boolean handleTerminalInterval(ActionContext context) {
     char max = symbolStack.pop().charAt(0);
     char min = symbolStack.pop().charAt(0);
@@ -536,6 +567,7 @@ public final class GrammarParser extends Parser<Grammar> {
       .pushReference("ReferenceExpression")
       .pushReference("GroupingExpression")
       .pushReference("ActionExpression")
+      .pushReference("CutExpression")
       .choice().release()
       .endProduction()
       // ReferenceExpression
@@ -583,6 +615,13 @@ public final class GrammarParser extends Parser<Grammar> {
           (GrammarParser parser, ActionContext context) -> parser.handleRuleAction(context))
       .pushReference("Spacing")
       .endProduction()
+      // CutExpression
+      .startProduction("CutExpression")
+      .pushTokenCS(Cut.SYMBOL)
+      .action("ruleCut",
+          (GrammarParser parser, ActionContext context) -> parser.handleRuleCut(context))
+      .pushReference("Spacing")
+      .endProduction()
       // TerminalExpression
       .startProduction("TerminalExpression")
       .mark()
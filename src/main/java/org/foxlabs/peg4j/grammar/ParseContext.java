@@ -16,6 +16,8 @@
 
 package org.foxlabs.peg4j.grammar;
 
+import java.io.IOException;
+
 import org.foxlabs.peg4j.Parser;
 import org.foxlabs.peg4j.Transaction;
 import org.foxlabs.peg4j.ActionContext;
@@ -28,12 +30,104 @@ import org.foxlabs.peg4j.debug.RuleTracer;
  */
 public interface ParseContext extends ActionContext {
 
+  int SNAPSHOT_MISSED = 0;
+
+  int SNAPSHOT_LOADED = 1;
+
+  int SNAPSHOT_FAILED = 2;
+
   Parser<?> parser();
 
   BacktrackingReader stream();
 
+  /**
+   * Returns tracer that keeps track of parsing process or <code>null</code> if
+   * parsing is not traced. Rules should not notify tracer at all in the latter
+   * case.
+   *
+   * @return Tracer that keeps track of parsing process or <code>null</code>.
+   */
   RuleTracer tracer();
 
+  /**
+   * Determines whether event of the specified type for the specified rule
+   * passes filter of the tracer. This method should be invoked only if
+   * parsing is traced.
+   *
+   * @param rule Rule which event should be dispatched.
+   * @param event Event type.
+   * @return <code>true</code> if tracer should be notified;
+   *         <code>false</code> otherwise.
+   * @see org.foxlabs.peg4j.debug.TraceFilter
+   */
+  boolean isTraced(Rule rule, int event);
+
+  /**
+   * Determines whether trace event of the specified rule passes filter of the
+   * tracer and remembers the decision until the matching
+   * {@link #exitTrace(Rule)} call. Start offset of the current rule may change
+   * before the rule completes (repetitions mark each iteration), so the
+   * filter is evaluated once per reduce operation. This method should be
+   * invoked only if parsing is traced.
+   *
+   * @param rule Rule which reduce operation has started.
+   * @return <code>true</code> if tracer should be notified;
+   *         <code>false</code> otherwise.
+   * @see org.foxlabs.peg4j.debug.TraceFilter#RULE_EVENTS
+   */
+  boolean enterTrace(Rule rule);
+
+  /**
+   * Returns decision made by the {@link #enterTrace(Rule)} method for the
+   * specified rule which reduce operation has completed, so that trace and
+   * backtrace events are either both dispatched or both skipped. This method
+   * should be invoked only if parsing is traced.
+   *
+   * @param rule Rule which reduce operation has completed.
+   * @return <code>true</code> if tracer should be notified;
+   *         <code>false</code> otherwise.
+   */
+  boolean exitTrace(Rule rule);
+
   Transaction transaction();
 
+  int loadSnapshot(Production production);
+
+  boolean saveSnapshot(Production production);
+
+  boolean saveFailure(Production production);
+
+  void cut() throws IOException;
+
+  /**
+   * Notifies that reduce operation on a predicate has started. Terminals that
+   * fail inside predicates are not reported as expected.
+   */
+  void enterPredicate();
+
+  /**
+   * Notifies that reduce operation on a predicate has completed.
+   */
+  void exitPredicate();
+
+  /**
+   * Notifies that the specified terminal does not match character stream at
+   * the start offset of the current rule. Farthest failure offset and set of
+   * terminals expected there are used to construct syntax error.
+   *
+   * @param terminal Terminal that does not match character stream.
+   */
+  void reportFailure(Terminal terminal);
+
+  /**
+   * Notifies that the specified terminal does not match character stream at
+   * the specified offset. This method is used by generated code that does not
+   * mark character stream at the start of each rule.
+   *
+   * @param terminal Terminal that does not match character stream.
+   * @param offset Start offset of the rule that contains the terminal.
+   * @see #reportFailure(Terminal)
+   */
+  void reportFailure(Terminal terminal, long offset);
+
 }
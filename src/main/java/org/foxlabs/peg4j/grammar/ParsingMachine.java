@@ -0,0 +1,737 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.grammar;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+
+import java.io.IOException;
+
+import org.foxlabs.peg4j.Transaction;
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.debug.RuleTracer;
+import org.foxlabs.peg4j.debug.TraceFilter;
+
+/**
+ * Non-recursive parsing machine.
+ *
+ * <p>Grammar is compiled into a flat array of instructions, each production
+ * becomes a subroutine that returns either success or failure to the caller.
+ * Machine executes instructions in a single loop and keeps return addresses
+ * and repetition counters on the explicitly allocated stack, so nesting depth
+ * of the input is limited by available memory only. Positions to backtrack to
+ * are kept by the marker stack of the {@link BacktrackingReader}.</p>
+ *
+ * <p>Instructions perform exactly the same sequence of stream, tracer, context
+ * and transaction calls as the <code>reduce()</code> methods of the rules do,
+ * so syntax errors, memoization and semantic actions work as usual. Tracer is
+ * not notified at all if parsing is not traced or event is filtered out.</p>
+ *
+ * @author Fox Mulder
+ * @see org.foxlabs.peg4j.Parser#setStackless(boolean)
+ */
+public final class ParsingMachine {
+
+  // Instructions, operands follow opcode
+
+  static final int SUCCESS = 0;                 // stop with success
+  static final int FAILURE = 1;                 // stop with failure
+  static final int JUMP = 2;                    // address
+  static final int CALL = 3;                    // address, failure address
+  static final int ENTER = 4;                   // production
+  static final int RETURN = 5;                  // production
+  static final int FAIL = 6;                    // production
+  static final int MARK_TRACE = 7;              // rule
+  static final int TRACE_MARK = 8;              // rule
+  static final int SUCCEED_RELEASE = 9;         // rule, address
+  static final int RELEASE_SUCCEED = 10;        // rule, address
+  static final int SUCCEED_RESET = 11;          // rule, address
+  static final int FAILED_RESET = 12;           // rule, address
+  static final int RESET_FAILED = 13;           // rule, address
+  static final int RELEASE_FAILED = 14;         // rule, address
+  static final int RELEASE_MARK = 15;           // address
+  static final int RESET_MARK = 16;
+  static final int MATCH = 17;                  // terminal or cut, failure address
+  static final int CHAR = 18;                   // terminal, character, failure address
+  static final int RANGE = 19;                  // terminal, min, max, failure address
+  static final int BEGIN = 20;
+  static final int ACTION = 21;                 // action, failure address
+  static final int COMMIT_RELEASE_SUCCEED = 22; // rule, address
+  static final int ROLLBACK_RESET_FAILED = 23;  // rule, address
+  static final int MEMOABLE = 24;               // address if parser is not memoable
+  static final int LOAD = 25;                   // reference, address if loaded, address if failed
+  static final int SAVE = 26;                   // reference
+  static final int ROLLBACK_FAILURE = 27;       // reference
+  static final int PUSH = 28;                   // push counter
+  static final int POP = 29;                    // pop counter
+  static final int COUNT = 30;                  // limit, address if counter reached limit
+  static final int PREDICATE = 31;              // exclusion
+  static final int PREDICATE_SUCCEED = 32;      // exclusion, address
+  static final int PREDICATE_FAILED = 33;       // exclusion, address
+
+  /**
+   * Initial size of the machine stack.
+   */
+  private static final int INITIAL_STACK_SIZE = 64;
+
+  /**
+   * Machine instructions.
+   */
+  private final int[] code;
+
+  /**
+   * Rules referenced by instructions.
+   */
+  private final Rule[] rules;
+
+  /**
+   * Address of the start production.
+   */
+  private final int start;
+
+  ParsingMachine(Grammar grammar) {
+    Assembler asm = new Assembler(grammar);
+    asm.assemble();
+    this.code = Arrays.copyOf(asm.code, asm.size);
+    this.rules = asm.rules.toArray(new Rule[asm.rules.size()]);
+    this.start = grammar.getProductionCount() == 0 ? FAILURE : asm.entries[0];
+  }
+
+  /**
+   * Reduces start production of the grammar using the specified parsing
+   * context.
+   *
+   * @param context Parsing context.
+   * @return <code>true</code> if start production was recognized;
+   *         <code>false</code> otherwise.
+   * @throws IOException if IO error occurred.
+   * @throws RecognitionException if semantic action failed.
+   */
+  public boolean reduce(ParseContext context) throws IOException, RecognitionException {
+    final int[] code = this.code;
+    final Rule[] rules = this.rules;
+    final BacktrackingReader stream = context.stream();
+    final RuleTracer tracer = context.tracer();
+    final Transaction transaction = context.transaction();
+
+    int[] stack = new int[INITIAL_STACK_SIZE];
+    int sp = 0;
+    stack[sp++] = SUCCESS;
+    stack[sp++] = FAILURE;
+
+    int pc = start;
+    for (;;) {
+      switch (code[pc]) {
+      case SUCCESS:
+        return true;
+      case FAILURE:
+        return false;
+      case JUMP:
+        pc = code[pc + 1];
+        break;
+      case CALL:
+        if (sp + 2 > stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[sp++] = pc + 3;
+        stack[sp++] = code[pc + 2];
+        pc = code[pc + 1];
+        break;
+      case ENTER:
+      case MARK_TRACE:
+        stream.mark();
+        if (tracer != null && context.enterTrace(rules[code[pc + 1]])) {
+          tracer.onRuleTrace(rules[code[pc + 1]]);
+        }
+        pc += 2;
+        break;
+      case RETURN:
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], true);
+        }
+        stream.release();
+        sp -= 2;
+        pc = stack[sp];
+        break;
+      case FAIL:
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], false);
+        }
+        stream.reset();
+        sp -= 2;
+        pc = stack[sp + 1];
+        break;
+      case TRACE_MARK:
+        if (tracer != null && context.enterTrace(rules[code[pc + 1]])) {
+          tracer.onRuleTrace(rules[code[pc + 1]]);
+        }
+        stream.mark();
+        pc += 2;
+        break;
+      case SUCCEED_RELEASE:
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], true);
+        }
+        stream.release();
+        pc = code[pc + 2];
+        break;
+      case RELEASE_SUCCEED:
+        stream.release();
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], true);
+        }
+        pc = code[pc + 2];
+        break;
+      case SUCCEED_RESET:
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], true);
+        }
+        stream.reset();
+        pc = code[pc + 2];
+        break;
+      case FAILED_RESET:
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], false);
+        }
+        stream.reset();
+        pc = code[pc + 2];
+        break;
+      case RESET_FAILED:
+        stream.reset();
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], false);
+        }
+        pc = code[pc + 2];
+        break;
+      case RELEASE_FAILED:
+        stream.release();
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], false);
+        }
+        pc = code[pc + 2];
+        break;
+      case RELEASE_MARK:
+        stream.release();
+        stream.mark();
+        pc = code[pc + 1];
+        break;
+      case RESET_MARK:
+        stream.reset();
+        stream.mark();
+        pc++;
+        break;
+      case MATCH:
+        pc = rules[code[pc + 1]].reduce(context) ? pc + 3 : code[pc + 2];
+        break;
+      case CHAR:
+        if (tracer != null && context.enterTrace(rules[code[pc + 1]])) {
+          tracer.onRuleTrace(rules[code[pc + 1]]);
+        }
+        if (stream.read() == code[pc + 2]) {
+          if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+            tracer.onRuleBacktrace(rules[code[pc + 1]], true);
+          }
+          pc += 4;
+        } else {
+          if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+            tracer.onRuleBacktrace(rules[code[pc + 1]], false);
+          }
+          context.reportFailure((Terminal) rules[code[pc + 1]]);
+          pc = code[pc + 3];
+        }
+        break;
+      case RANGE:
+        if (tracer != null && context.enterTrace(rules[code[pc + 1]])) {
+          tracer.onRuleTrace(rules[code[pc + 1]]);
+        }
+        int ch = stream.read();
+        if (ch >= code[pc + 2] && ch <= code[pc + 3]) {
+          if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+            tracer.onRuleBacktrace(rules[code[pc + 1]], true);
+          }
+          pc += 5;
+        } else {
+          if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+            tracer.onRuleBacktrace(rules[code[pc + 1]], false);
+          }
+          context.reportFailure((Terminal) rules[code[pc + 1]]);
+          pc = code[pc + 4];
+        }
+        break;
+      case BEGIN:
+        transaction.begin();
+        pc++;
+        break;
+      case ACTION:
+        pc = ((Action) rules[code[pc + 1]]).handleAction(context) ? pc + 3 : code[pc + 2];
+        break;
+      case COMMIT_RELEASE_SUCCEED:
+        transaction.commit();
+        stream.release();
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], true);
+        }
+        pc = code[pc + 2];
+        break;
+      case ROLLBACK_RESET_FAILED:
+        transaction.rollback();
+        stream.reset();
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], false);
+        }
+        pc = code[pc + 2];
+        break;
+      case MEMOABLE:
+        pc = context.parser().isMemoable() ? pc + 2 : code[pc + 1];
+        break;
+      case LOAD:
+        int snapshot = context.loadSnapshot(((Reference) rules[code[pc + 1]]).target);
+        if (snapshot == ParseContext.SNAPSHOT_LOADED) {
+          if (tracer != null && context.isTraced(rules[code[pc + 1]], TraceFilter.CACHE_GET_EVENTS)) {
+            tracer.onCacheGet((Reference) rules[code[pc + 1]], true, true);
+          }
+          pc = code[pc + 2];
+        } else if (snapshot == ParseContext.SNAPSHOT_FAILED) {
+          if (tracer != null && context.isTraced(rules[code[pc + 1]], TraceFilter.CACHE_GET_EVENTS)) {
+            tracer.onCacheGet((Reference) rules[code[pc + 1]], true, false);
+          }
+          pc = code[pc + 3];
+        } else {
+          if (tracer != null && context.isTraced(rules[code[pc + 1]], TraceFilter.CACHE_GET_EVENTS)) {
+            tracer.onCacheGet((Reference) rules[code[pc + 1]], false, false);
+          }
+          pc += 4;
+        }
+        break;
+      case SAVE:
+        if (context.saveSnapshot(((Reference) rules[code[pc + 1]]).target) && tracer != null
+            && context.isTraced(rules[code[pc + 1]], TraceFilter.CACHE_PUT_EVENTS)) {
+          tracer.onCachePut((Reference) rules[code[pc + 1]]);
+        }
+        pc += 2;
+        break;
+      case ROLLBACK_FAILURE:
+        transaction.rollback();
+        if (context.saveFailure(((Reference) rules[code[pc + 1]]).target) && tracer != null
+            && context.isTraced(rules[code[pc + 1]], TraceFilter.CACHE_PUT_EVENTS)) {
+          tracer.onCachePut((Reference) rules[code[pc + 1]]);
+        }
+        pc += 2;
+        break;
+      case PUSH:
+        if (sp == stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[sp++] = 0;
+        pc++;
+        break;
+      case POP:
+        sp--;
+        pc++;
+        break;
+      case COUNT:
+        if (stack[sp - 1] < code[pc + 1]) {
+          stack[sp - 1]++;
+          pc += 3;
+        } else {
+          pc = code[pc + 2];
+        }
+        break;
+      case PREDICATE:
+        stream.mark();
+        if (tracer != null && context.enterTrace(rules[code[pc + 1]])) {
+          tracer.onRuleTrace(rules[code[pc + 1]]);
+        }
+        context.enterPredicate();
+        pc += 2;
+        break;
+      case PREDICATE_SUCCEED:
+        context.exitPredicate();
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], true);
+        }
+        stream.reset();
+        pc = code[pc + 2];
+        break;
+      case PREDICATE_FAILED:
+        context.exitPredicate();
+        if (tracer != null && context.exitTrace(rules[code[pc + 1]])) {
+          tracer.onRuleBacktrace(rules[code[pc + 1]], false);
+        }
+        stream.reset();
+        pc = code[pc + 2];
+        break;
+      default:
+        throw new IllegalStateException();
+      }
+    }
+  }
+
+  // Assembler
+
+  /**
+   * Translates grammar rules into machine instructions.
+   *
+   * @author Fox Mulder
+   */
+  static final class Assembler {
+
+    final Grammar grammar;
+
+    final List<Rule> rules = new ArrayList<Rule>();
+
+    final int[] entries;
+
+    final Label[] calls;
+
+    int[] code = new int[256];
+
+    int size = 0;
+
+    Assembler(Grammar grammar) {
+      this.grammar = grammar;
+      int count = grammar.getProductionCount();
+      this.entries = new int[count];
+      this.calls = new Label[count];
+      for (int i = 0; i < count; i++) {
+        calls[i] = new Label();
+      }
+    }
+
+    void assemble() {
+      emit(SUCCESS);
+      emit(FAILURE);
+      for (int i = 0; i < entries.length; i++) {
+        entries[i] = size;
+        calls[i].bind(this);
+        assemble(grammar.getProduction(i));
+      }
+    }
+
+    // Production subroutine returns to success or failure address of the caller
+    void assemble(Production production) {
+      int rule = rule(production);
+      Label failed = new Label();
+      emit(ENTER, rule);
+      if (production.isUndefined()) {
+        jump(failed);
+      } else {
+        assemble(production.getExpression(), failed);
+      }
+      emit(RETURN, rule);
+      failed.bind(this);
+      emit(FAIL, rule);
+    }
+
+    // Generates instructions that fall through on success and jump to the
+    // specified label on failure
+    void assemble(Expression expression, Label fail) {
+      if (expression instanceof Terminal) {
+        assembleTerminal((Terminal) expression, fail);
+      } else if (expression instanceof Reference) {
+        assembleReference((Reference) expression, fail);
+      } else if (expression instanceof Concatenation) {
+        assembleConcatenation((Concatenation) expression, fail);
+      } else if (expression instanceof Alternation) {
+        assembleAlternation((Alternation) expression, fail);
+      } else if (expression instanceof Repetition) {
+        assembleRepetition((Repetition) expression, fail);
+      } else if (expression instanceof Exclusion) {
+        assembleExclusion((Exclusion) expression, fail);
+      } else if (expression instanceof Action) {
+        assembleAction((Action) expression, fail);
+      } else if (expression instanceof Cut) {
+        emit(MATCH, rule(expression));
+        fail.reference(this);
+      } else {
+        throw new IllegalArgumentException();
+      }
+    }
+
+    void assembleTerminal(Terminal terminal, Label fail) {
+      int rule = rule(terminal);
+      if (terminal instanceof Terminal.Token && ((Terminal.Token) terminal).isCaseSensitive()
+          && ((Terminal.Token) terminal).getImage().length() == 1) {
+        emit(CHAR, rule);
+        put(((Terminal.Token) terminal).getImage().charAt(0));
+      } else if (terminal instanceof Terminal.Interval) {
+        emit(RANGE, rule);
+        put(((Terminal.Interval) terminal).getMin());
+        put(((Terminal.Interval) terminal).getMax());
+      } else {
+        emit(MATCH, rule);
+      }
+      fail.reference(this);
+    }
+
+    void assembleReference(Reference reference, Label fail) {
+      int rule = rule(reference);
+      Label failed = new Label();
+      Label done = new Label();
+      Label plain = new Label();
+      if (reference instanceof Reference.Memo) {
+        Label hit = new Label();
+        emit(MEMOABLE);
+        plain.reference(this);
+        emit(TRACE_MARK, rule);
+        Label failedHit = new Label();
+        emit(LOAD, rule);
+        hit.reference(this);
+        failedHit.reference(this);
+        emit(BEGIN);
+        call(reference.getTarget(), failed);
+        emit(SAVE, rule);
+        exit(COMMIT_RELEASE_SUCCEED, rule, done);
+        hit.bind(this);
+        exit(RELEASE_SUCCEED, rule, done);
+        failed.bind(this);
+        emit(ROLLBACK_FAILURE, rule);
+        failedHit.bind(this);
+        exit(RESET_FAILED, rule, fail);
+        failed = new Label();
+      }
+      plain.bind(this);
+      emit(TRACE_MARK, rule);
+      call(reference.getTarget(), failed);
+      exit(RELEASE_SUCCEED, rule, done);
+      failed.bind(this);
+      exit(RESET_FAILED, rule, fail);
+      done.bind(this);
+    }
+
+    void assembleConcatenation(Concatenation concatenation, Label fail) {
+      int rule = rule(concatenation);
+      Label failed = new Label();
+      Label done = new Label();
+      emit(MARK_TRACE, rule);
+      for (Expression child : concatenation.children) {
+        assemble(child, failed);
+      }
+      exit(SUCCEED_RELEASE, rule, done);
+      failed.bind(this);
+      exit(FAILED_RESET, rule, fail);
+      done.bind(this);
+    }
+
+    void assembleAlternation(Alternation alternation, Label fail) {
+      int rule = rule(alternation);
+      Label done = new Label();
+      emit(TRACE_MARK, rule);
+      for (Expression child : alternation.children) {
+        Label next = new Label();
+        assemble(child, next);
+        exit(RELEASE_SUCCEED, rule, done);
+        next.bind(this);
+        emit(RESET_MARK);
+      }
+      exit(RELEASE_FAILED, rule, fail);
+      done.bind(this);
+    }
+
+    void assembleRepetition(Repetition repetition, Label fail) {
+      int rule = rule(repetition);
+      Quantifier quant = repetition.getQuantifier();
+      Label failed = new Label();
+      Label done = new Label();
+      emit(MARK_TRACE, rule);
+      if (quant == Quantifier.ONCEORNONE) {
+        assemble(repetition.child, failed);
+        exit(SUCCEED_RELEASE, rule, done);
+        failed.bind(this);
+        exit(SUCCEED_RESET, rule, done);
+      } else if (quant == Quantifier.ZEROORMORE) {
+        Label loop = new Label();
+        loop.bind(this);
+        assemble(repetition.child, failed);
+        emit(RELEASE_MARK);
+        loop.reference(this);
+        failed.bind(this);
+        exit(SUCCEED_RESET, rule, done);
+      } else if (quant == Quantifier.ONCEORMORE) {
+        // Counter tells whether the first iteration has been completed
+        Label loop = new Label();
+        Label next = new Label();
+        Label matched = new Label();
+        emit(PUSH);
+        loop.bind(this);
+        assemble(repetition.child, failed);
+        emit(COUNT, 1);
+        next.reference(this);
+        next.bind(this);
+        emit(RELEASE_MARK);
+        loop.reference(this);
+        failed.bind(this);
+        emit(COUNT, 1);
+        matched.reference(this);
+        emit(POP);
+        exit(FAILED_RESET, rule, fail);
+        matched.bind(this);
+        emit(POP);
+        exit(SUCCEED_RESET, rule, done);
+      } else {
+        int min = repetition.getMin();
+        int max = repetition.getMax();
+        if (min > 0) {
+          Label loop = new Label();
+          Label exit = new Label();
+          emit(PUSH);
+          loop.bind(this);
+          emit(COUNT, min);
+          exit.reference(this);
+          assemble(repetition.child, failed);
+          jump(loop);
+          failed.bind(this);
+          emit(POP);
+          exit(FAILED_RESET, rule, fail);
+          exit.bind(this);
+          emit(POP);
+        }
+        if (max > min) {
+          // Incomplete optional part resets stream to the start of repetition
+          Label loop = new Label();
+          Label exit = new Label();
+          Label stop = new Label();
+          emit(PUSH);
+          loop.bind(this);
+          emit(COUNT, max - min);
+          exit.reference(this);
+          assemble(repetition.child, stop);
+          jump(loop);
+          stop.bind(this);
+          emit(POP);
+          exit(SUCCEED_RESET, rule, done);
+          exit.bind(this);
+          emit(POP);
+        }
+        exit(SUCCEED_RELEASE, rule, done);
+      }
+      done.bind(this);
+    }
+
+    void assembleExclusion(Exclusion exclusion, Label fail) {
+      int rule = rule(exclusion);
+      Label failed = new Label();
+      Label done = new Label();
+      emit(PREDICATE, rule);
+      assemble(exclusion.child, failed);
+      if (exclusion.getPredicate() == Predicate.NOT) {
+        exit(PREDICATE_FAILED, rule, fail);
+        failed.bind(this);
+        exit(PREDICATE_SUCCEED, rule, done);
+      } else {
+        exit(PREDICATE_SUCCEED, rule, done);
+        failed.bind(this);
+        exit(PREDICATE_FAILED, rule, fail);
+      }
+      done.bind(this);
+    }
+
+    void assembleAction(Action action, Label fail) {
+      int rule = rule(action);
+      Label failed = new Label();
+      Label done = new Label();
+      emit(TRACE_MARK, rule);
+      emit(BEGIN);
+      assemble(action.child, failed);
+      emit(ACTION, rule);
+      failed.reference(this);
+      exit(COMMIT_RELEASE_SUCCEED, rule, done);
+      failed.bind(this);
+      exit(ROLLBACK_RESET_FAILED, rule, fail);
+      done.bind(this);
+    }
+
+    // Output
+
+    int rule(Rule rule) {
+      rules.add(rule);
+      return rules.size() - 1;
+    }
+
+    void call(Production target, Label fail) {
+      emit(CALL);
+      calls[target.getIndex()].reference(this);
+      fail.reference(this);
+    }
+
+    void jump(Label label) {
+      emit(JUMP);
+      label.reference(this);
+    }
+
+    // Instruction that completes rule and continues at the specified label
+    void exit(int opcode, int rule, Label label) {
+      emit(opcode, rule);
+      label.reference(this);
+    }
+
+    void emit(int opcode) {
+      put(opcode);
+    }
+
+    void emit(int opcode, int operand) {
+      put(opcode);
+      put(operand);
+    }
+
+    void put(int value) {
+      if (size == code.length) {
+        code = Arrays.copyOf(code, size * 2);
+      }
+      code[size++] = value;
+    }
+
+  }
+
+  // Label
+
+  /**
+   * Address in the machine code that may be referenced before it is known.
+   *
+   * @author Fox Mulder
+   */
+  static final class Label {
+
+    int address = -1;
+
+    int[] fixups = new int[4];
+
+    int fixupCount = 0;
+
+    void reference(Assembler asm) {
+      if (address < 0) {
+        if (fixupCount == fixups.length) {
+          fixups = Arrays.copyOf(fixups, fixupCount * 2);
+        }
+        fixups[fixupCount++] = asm.size;
+      }
+      asm.put(address);
+    }
+
+    void bind(Assembler asm) {
+      address = asm.size;
+      for (int i = 0; i < fixupCount; i++) {
+        asm.code[fixups[i]] = address;
+      }
+      fixupCount = 0;
+    }
+
+  }
+
+}
@@ -340,6 +340,11 @@ public final class Problem extends ToString.Adapter implements Serializable, Com
      */
     UNDEFINED_ACTION(Type.WARNING, "warning.undefinedAction"),
 
+    /**
+     * Cut inside predicate has no effect.
+     */
+    INEFFECTIVE_CUT(Type.WARNING, "warning.ineffectiveCut"),
+
     // Hints
 
     /**
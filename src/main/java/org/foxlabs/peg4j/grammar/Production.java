@@ -42,6 +42,13 @@ public final class Production extends Rule implements Comparable<Production> {
 
   boolean duplicated = false;
 
+  // Not synchronized, concurrent parsers may lose some invocations
+  int invocations = 0;
+
+  volatile BytecodeCompiler.CompiledProduction compiled;
+
+  volatile Throwable compileError;
+
   Production(String name) {
     this.name = name;
   }
@@ -88,16 +95,40 @@ public final class Production extends Rule implements Comparable<Production> {
     return expression instanceof Terminal.Nil;
   }
 
+  public boolean isCompiled() {
+    return compiled != null;
+  }
+
+  public Throwable getCompileError() {
+    return compileError;
+  }
+
+  @Override
+  public RuleKind getKind() {
+    return RuleKind.PRODUCTION;
+  }
+
   @Override
   public boolean reduce(ParseContext context) throws IOException, RecognitionException {
+    int threshold = context.parser().getCompileThreshold();
+    if (threshold > 0) {
+      BytecodeCompiler.CompiledProduction code = compiled;
+      if (code == null && compileError == null && ++invocations >= threshold) {
+        code = grammar.getCompiler().compile(this);
+      }
+      if (code != null) {
+        return code.reduce(context);
+      }
+    }
+
     context.stream().mark();
-    context.tracer().onRuleTrace(this);
+    trace(context);
     if (expression.reduce(context)) {
-      context.tracer().onRuleBacktrace(this, true);
+      backtrace(context, true);
       context.stream().release();
       return true;
     }
-    context.tracer().onRuleBacktrace(this, false);
+    backtrace(context, false);
     context.stream().reset();
     return false;
   }
@@ -21,6 +21,8 @@ import java.io.IOException;
 import org.foxlabs.common.text.CharBuffer;
 
 import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.debug.RuleTracer;
+import org.foxlabs.peg4j.debug.TraceFilter;
 
 public class Reference extends Expression {
 
@@ -45,17 +47,22 @@ public class Reference extends Expression {
     return null;
   }
 
+  @Override
+  public final RuleKind getKind() {
+    return RuleKind.REFERENCE;
+  }
+
   @Override
   public boolean reduce(ParseContext context) throws IOException, RecognitionException {
-    context.tracer().onRuleTrace(this);
+    trace(context);
     context.stream().mark();
     if (target.reduce(context)) {
       context.stream().release();
-      context.tracer().onRuleBacktrace(this, true);
+      backtrace(context, true);
       return true;
     }
     context.stream().reset();
-    context.tracer().onRuleBacktrace(this, false);
+    backtrace(context, false);
     return false;
   }
 
@@ -85,29 +92,45 @@ public class Reference extends Expression {
     @Override
     public boolean reduce(ParseContext context) throws IOException, RecognitionException {
       if (context.parser().isMemoable()) {
-        context.tracer().onRuleTrace(this);
+        RuleTracer tracer = context.tracer();
+        trace(context);
         context.stream().mark();
-        if (context.transaction().load()) {
-          context.tracer().onCacheGet(this, true);
+        int snapshot = context.loadSnapshot(target);
+        if (snapshot == ParseContext.SNAPSHOT_LOADED) {
+          if (tracer != null && context.isTraced(this, TraceFilter.CACHE_GET_EVENTS)) {
+            tracer.onCacheGet(this, true, true);
+          }
           context.stream().release();
-          context.tracer().onRuleBacktrace(this, true);
+          backtrace(context, true);
           return true;
-        } else {
-          context.tracer().onCacheGet(this, false);
+        } else if (snapshot == ParseContext.SNAPSHOT_FAILED) {
+          if (tracer != null && context.isTraced(this, TraceFilter.CACHE_GET_EVENTS)) {
+            tracer.onCacheGet(this, true, false);
+          }
+          context.stream().reset();
+          backtrace(context, false);
+          return false;
+        } else if (tracer != null && context.isTraced(this, TraceFilter.CACHE_GET_EVENTS)) {
+          tracer.onCacheGet(this, false, false);
         }
         context.transaction().begin();
         if (target.reduce(context)) {
-          if (context.transaction().save() != null) {
-            context.tracer().onCachePut(this);
+          if (context.saveSnapshot(target) && tracer != null
+              && context.isTraced(this, TraceFilter.CACHE_PUT_EVENTS)) {
+            tracer.onCachePut(this);
           }
           context.transaction().commit();
           context.stream().release();
-          context.tracer().onRuleBacktrace(this, true);
+          backtrace(context, true);
           return true;
         }
         context.transaction().rollback();
+        if (context.saveFailure(target) && tracer != null
+            && context.isTraced(this, TraceFilter.CACHE_PUT_EVENTS)) {
+          tracer.onCachePut(this);
+        }
         context.stream().reset();
-        context.tracer().onRuleBacktrace(this, false);
+        backtrace(context, false);
         return false;
       } else {
         return super.reduce(context);
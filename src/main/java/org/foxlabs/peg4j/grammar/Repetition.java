@@ -46,25 +46,30 @@ public class Repetition extends Expression.Unary implements Operator {
     return null;
   }
 
+  @Override
+  public final RuleKind getKind() {
+    return RuleKind.REPETITION;
+  }
+
   @Override
   public boolean reduce(ParseContext context) throws IOException, RecognitionException {
     context.stream().mark();
-    context.tracer().onRuleTrace(this);
+    trace(context);
     for (int i = 0; i < min; i++) {
       if (!child.reduce(context)) {
-        context.tracer().onRuleBacktrace(this, false);
+        backtrace(context, false);
         context.stream().reset();
         return false;
       }
     }
     for (int i = min; i < max; i++) {
       if (!child.reduce(context)) {
-        context.tracer().onRuleBacktrace(this, true);
+        backtrace(context, true);
         context.stream().reset();
         return true;
       }
     }
-    context.tracer().onRuleBacktrace(this, true);
+    backtrace(context, true);
     context.stream().release();
     return true;
   }
@@ -102,12 +107,12 @@ public class Repetition extends Expression.Unary implements Operator {
     @Override
     public boolean reduce(ParseContext context) throws IOException, RecognitionException {
       context.stream().mark();
-      context.tracer().onRuleTrace(this);
+      trace(context);
       if (child.reduce(context)) {
-        context.tracer().onRuleBacktrace(this, true);
+        backtrace(context, true);
         context.stream().release();
       } else {
-        context.tracer().onRuleBacktrace(this, true);
+        backtrace(context, true);
         context.stream().reset();
       }
       return true;
@@ -136,12 +141,12 @@ public class Repetition extends Expression.Unary implements Operator {
     @Override
     public boolean reduce(ParseContext context) throws IOException, RecognitionException {
       context.stream().mark();
-      context.tracer().onRuleTrace(this);
+      trace(context);
       while (child.reduce(context)) {
         context.stream().release();
         context.stream().mark();
       }
-      context.tracer().onRuleBacktrace(this, true);
+      backtrace(context, true);
       context.stream().reset();
       return true;
     }
@@ -169,7 +174,7 @@ public class Repetition extends Expression.Unary implements Operator {
     @Override
     public boolean reduce(ParseContext context) throws IOException, RecognitionException {
       context.stream().mark();
-      context.tracer().onRuleTrace(this);
+      trace(context);
       if (child.reduce(context)) {
         context.stream().release();
         context.stream().mark();
@@ -177,11 +182,11 @@ public class Repetition extends Expression.Unary implements Operator {
           context.stream().release();
           context.stream().mark();
         }
-        context.tracer().onRuleBacktrace(this, true);
+        backtrace(context, true);
         context.stream().reset();
         return true;
       }
-      context.tracer().onRuleBacktrace(this, false);
+      backtrace(context, false);
       context.stream().reset();
       return false;
     }
@@ -28,6 +28,7 @@ import org.foxlabs.common.text.SimpleCharBuffer;
 import org.foxlabs.util.Location;
 
 import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.debug.RuleTracer;
 
 /**
  * Base class for all rules.
@@ -42,6 +43,7 @@ import org.foxlabs.peg4j.RecognitionException;
  * @see Exclusion
  * @see Reference
  * @see Action
+ * @see Cut
  */
 public abstract class Rule {
 
@@ -74,6 +76,13 @@ public abstract class Rule {
    */
   public abstract Grammar getGrammar();
 
+  /**
+   * Returns kind of this rule.
+   *
+   * @return Kind of this rule.
+   */
+  public abstract RuleKind getKind();
+
   /**
    * Returns start location of this rule in character stream.
    *
@@ -134,6 +143,37 @@ public abstract class Rule {
    */
   public abstract boolean reduce(ParseContext context) throws IOException, RecognitionException;
 
+  /**
+   * Notifies tracer of the specified context that reduce operation on this
+   * rule has started. Nothing is done if parsing is not traced or event is
+   * filtered out.
+   *
+   * @param context Parse context.
+   * @see ParseContext#enterTrace(Rule)
+   */
+  final void trace(ParseContext context) throws IOException {
+    RuleTracer tracer = context.tracer();
+    if (tracer != null && context.enterTrace(this)) {
+      tracer.onRuleTrace(this);
+    }
+  }
+
+  /**
+   * Notifies tracer of the specified context that reduce operation on this
+   * rule has completed. Nothing is done if parsing is not traced or trace
+   * event of this rule was filtered out.
+   *
+   * @param context Parse context.
+   * @param success Result of the reduce operation.
+   * @see ParseContext#exitTrace(Rule)
+   */
+  final void backtrace(ParseContext context, boolean success) throws IOException {
+    RuleTracer tracer = context.tracer();
+    if (tracer != null && context.exitTrace(this)) {
+      tracer.onRuleBacktrace(this, success);
+    }
+  }
+
   public abstract <E extends Throwable> void accept(RuleVisitor<E> visitor) throws E;
 
   @Override
@@ -38,6 +38,8 @@ public interface RuleVisitor<E extends Throwable> {
 
   void visit(Exclusion rule) throws E;
 
+  void visit(Cut rule) throws E;
+
   // Adapter
 
   public static class Adapter<E extends Throwable> implements RuleVisitor<E> {
@@ -58,6 +60,8 @@ public interface RuleVisitor<E extends Throwable> {
 
     @Override public void visit(Exclusion rule) throws E {}
 
+    @Override public void visit(Cut rule) throws E {}
+
   }
 
   // ProblemCollector
@@ -129,6 +133,11 @@ public interface RuleVisitor<E extends Throwable> {
       rule.getChild().accept(this);
     }
 
+    @Override
+    public void visit(Cut rule) {
+      problems.addAll(rule.getProblems());
+    }
+
     public static List<Problem> collect(Rule rule) {
       ProblemCollector collector = new ProblemCollector();
       rule.accept(collector);
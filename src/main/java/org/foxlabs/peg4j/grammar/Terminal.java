@@ -16,6 +16,8 @@
 
 package org.foxlabs.peg4j.grammar;
 
+import java.nio.charset.StandardCharsets;
+
 import java.io.IOException;
 
 import org.foxlabs.common.text.CharBuffer;
@@ -26,6 +28,11 @@ import org.foxlabs.peg4j.BacktrackingReader;
 
 public abstract class Terminal extends Expression {
 
+  /**
+   * Index of this terminal in the grammar.
+   */
+  int index = -1;
+
   /**
    * Constructs a new terminal.
    *
@@ -66,14 +73,31 @@ public abstract class Terminal extends Expression {
    */
   public abstract boolean isInefficient();
 
+  @Override
+  public final RuleKind getKind() {
+    return RuleKind.TERMINAL;
+  }
+
+  /**
+   * Returns index of this terminal in the grammar. Terminals with the same
+   * text share the same index.
+   *
+   * @return Index of this terminal in the grammar.
+   * @see Grammar#getTerminal(int)
+   */
+  public final int getIndex() {
+    return index;
+  }
+
   @Override
   public boolean reduce(ParseContext context) throws IOException {
-    context.tracer().onRuleTrace(this);
+    trace(context);
     if (match(context.stream())) {
-      context.tracer().onRuleBacktrace(this, true);
+      backtrace(context, true);
       return true;
     }
-    context.tracer().onRuleBacktrace(this, false);
+    backtrace(context, false);
+    context.reportFailure(this);
     return false;
   }
 
@@ -335,12 +359,18 @@ public abstract class Terminal extends Expression {
 
     private final int[] value;
 
+    // UTF-8 bytes to be matched in byte mode or null if image contains
+    // line terminators
+    private final byte[] utf8;
+
     private SequenceCS(Production owner, String image) {
       super(owner, image);
       value = new int[image.length()];
       for (int i = 0; i < value.length; i++) {
         value[i] = image.charAt(i);
       }
+      utf8 = image.indexOf('\n') < 0 && image.indexOf('\r') < 0
+          ? image.getBytes(StandardCharsets.UTF_8) : null;
     }
 
     @Override
@@ -350,6 +380,9 @@ public abstract class Terminal extends Expression {
 
     @Override
     protected boolean match(BacktrackingReader stream) throws IOException {
+      if (utf8 != null && stream.isByteMode()) {
+        return stream.read(utf8);
+      }
       for (int i = 0; i < value.length; i++) {
         if (stream.read() != value[i]) {
           return false;
@@ -589,6 +622,18 @@ public abstract class Terminal extends Expression {
       return getClass() == Class.class;
     }
 
+    /**
+     * Returns name of the static method of the <code>java.lang.Character</code>
+     * class that matches characters of this class. Compilers use it to call
+     * the method directly.
+     *
+     * @return Name of the <code>java.lang.Character</code> method or
+     *         <code>null</code> if this class is undefined.
+     */
+    public String getMethodName() {
+      return null;
+    }
+
     @Override
     protected boolean match(BacktrackingReader stream) throws IOException {
       return match(stream.read());
@@ -628,6 +673,11 @@ public abstract class Terminal extends Expression {
       return Character.isLowerCase(ch);
     }
 
+    @Override
+    public String getMethodName() {
+      return "isLowerCase";
+    }
+
   }
 
   // Upper
@@ -643,6 +693,11 @@ public abstract class Terminal extends Expression {
       return Character.isUpperCase(ch);
     }
 
+    @Override
+    public String getMethodName() {
+      return "isUpperCase";
+    }
+
   }
 
   // Title
@@ -658,6 +713,11 @@ public abstract class Terminal extends Expression {
       return Character.isTitleCase(ch);
     }
 
+    @Override
+    public String getMethodName() {
+      return "isTitleCase";
+    }
+
   }
 
   // Alpha
@@ -673,6 +733,11 @@ public abstract class Terminal extends Expression {
       return Character.isLetter(ch);
     }
 
+    @Override
+    public String getMethodName() {
+      return "isLetter";
+    }
+
   }
 
   // Digit
@@ -688,6 +753,11 @@ public abstract class Terminal extends Expression {
       return Character.isDigit(ch);
     }
 
+    @Override
+    public String getMethodName() {
+      return "isDigit";
+    }
+
   }
 
   // Alnum
@@ -703,6 +773,11 @@ public abstract class Terminal extends Expression {
       return Character.isLetterOrDigit(ch);
     }
 
+    @Override
+    public String getMethodName() {
+      return "isLetterOrDigit";
+    }
+
   }
 
   // Space
@@ -718,6 +793,11 @@ public abstract class Terminal extends Expression {
       return Character.isWhitespace(ch);
     }
 
+    @Override
+    public String getMethodName() {
+      return "isWhitespace";
+    }
+
   }
 
   private static final Class[] CLASSES = new Class[] { new Lower(null, "LOWER"), new Upper(null, "UPPER"),
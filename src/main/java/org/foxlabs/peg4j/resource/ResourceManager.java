@@ -44,6 +44,8 @@ public abstract class ResourceManager {
 
   private static String grammarJavaTemplate = null;
 
+  private static String parserJavaTemplate = null;
+
   private static String grammarHtmlTemplate = null;
 
   private ResourceManager() {
@@ -95,6 +97,14 @@ public abstract class ResourceManager {
     return grammarJavaTemplate;
   }
 
+  public static String getParserJavaTemplate() {
+    if (parserJavaTemplate == null) {
+      parserJavaTemplate = ResourceHelper.readTextResource(
+          RESOURCE_DIRECTORY + "/template/parser-template.java");
+    }
+    return parserJavaTemplate;
+  }
+
   public static String getGrammarHtmlTemplate() {
     if (grammarHtmlTemplate == null) {
       grammarHtmlTemplate = ResourceHelper.readTextResource(
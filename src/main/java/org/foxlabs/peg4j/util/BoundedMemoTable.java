@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.util;
+
+import java.io.IOException;
+
+import org.foxlabs.peg4j.MemoTable;
+import org.foxlabs.peg4j.Transaction;
+import org.foxlabs.peg4j.debug.RuleTracer;
+import org.foxlabs.peg4j.debug.TraceFilter;
+import org.foxlabs.peg4j.grammar.Grammar;
+import org.foxlabs.peg4j.grammar.Production;
+
+/**
+ * Memo table that limits number of entries of another table and evicts
+ * entries selected by the {@link EvictionPolicy}.
+ *
+ * <p>Evicted entries are simply recomputed if needed again, so memory
+ * consumption of the memoization stays bounded at the cost of hit rate.
+ * Evictions are reported to the tracer if one is specified.</p>
+ *
+ * @author Fox Mulder
+ * @see org.foxlabs.peg4j.Parser#setMemoLimit(int)
+ */
+public class BoundedMemoTable implements MemoTable {
+
+  /**
+   * Number of low bits of the key occupied by offset, production index
+   * occupies the remaining high bits.
+   */
+  private static final int OFFSET_BITS = 40;
+
+  /**
+   * Mask of the offset bits of the key.
+   */
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1L;
+
+  /**
+   * Maximum offset in the character stream entries can be memoized at.
+   */
+  public static final long MAX_OFFSET = OFFSET_MASK;
+
+  /**
+   * Underlying memo table.
+   */
+  private final MemoTable table;
+
+  /**
+   * Maximum number of entries.
+   */
+  private final int limit;
+
+  /**
+   * Policy that selects entries to be evicted.
+   */
+  private final EvictionPolicy policy;
+
+  /**
+   * Grammar used to resolve productions of evicted entries.
+   */
+  private Grammar grammar = null;
+
+  /**
+   * Tracer to report evictions to.
+   */
+  private RuleTracer tracer = null;
+
+  /**
+   * Filter of the tracer events.
+   */
+  private TraceFilter filter = null;
+
+  /**
+   * Current number of entries.
+   */
+  private int size = 0;
+
+  /**
+   * Total number of evicted entries.
+   */
+  private int evictionCount = 0;
+
+  /**
+   * Constructs a new bounded table.
+   *
+   * @param table Underlying memo table.
+   * @param limit Maximum number of entries.
+   * @param policy Policy that selects entries to be evicted.
+   * @throws IllegalArgumentException if the specified limit is not positive.
+   */
+  public BoundedMemoTable(MemoTable table, int limit, EvictionPolicy policy) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("limit");
+    }
+    this.table = table;
+    this.limit = limit;
+    this.policy = policy;
+  }
+
+  /**
+   * Sets tracer to report evictions to. Evictions filtered out by the
+   * {@link RuleTracer#getFilter() filter} of the tracer are not reported.
+   *
+   * @param grammar Grammar used to resolve productions of evicted entries.
+   * @param tracer Tracer to report evictions to.
+   * @see RuleTracer#onCacheEvict(org.foxlabs.peg4j.grammar.Production, long)
+   */
+  public void setTracer(Grammar grammar, RuleTracer tracer) {
+    this.grammar = grammar;
+    this.tracer = tracer;
+    this.filter = tracer == null ? null : tracer.getFilter();
+  }
+
+  /**
+   * Returns current number of entries in this table.
+   *
+   * @return Current number of entries in this table.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns total number of evicted entries.
+   *
+   * @return Total number of evicted entries.
+   */
+  public int getEvictionCount() {
+    return evictionCount;
+  }
+
+  // MemoTable
+
+  /**
+   * Finds entry in the underlying table and notifies policy if entry was
+   * found.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @return <code>true</code> if entry was found; <code>false</code>
+   *         otherwise.
+   * @see MemoTable#find(int, long)
+   */
+  @Override
+  public boolean find(int production, long offset) {
+    if (table.find(production, offset)) {
+      policy.onHit(production, offset);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns number of recognized characters of the current entry.
+   *
+   * @return Number of recognized characters of the current entry.
+   * @see MemoTable#getLength()
+   */
+  @Override
+  public int getLength() {
+    return table.getLength();
+  }
+
+  /**
+   * Returns transaction snapshot of the current entry.
+   *
+   * @return Transaction snapshot of the current entry or <code>null</code> if
+   *         there is no snapshot.
+   * @see MemoTable#getDelta()
+   */
+  @Override
+  public Transaction getDelta() {
+    return table.getDelta();
+  }
+
+  /**
+   * Stores entry in the underlying table and evicts entries selected by the
+   * policy.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @param length Number of recognized characters.
+   * @param delta Transaction snapshot or <code>null</code>.
+   * @see MemoTable#put(int, long, int, Transaction)
+   */
+  @Override
+  public void put(int production, long offset, int length, Transaction delta) {
+    boolean exists = table.find(production, offset);
+    table.put(production, offset, length, delta);
+    if (!exists) {
+      size++;
+      policy.onPut(production, offset);
+      for (long key = policy.evict(size, limit); key != EvictionPolicy.NONE; key = policy.evict(size, limit)) {
+        evict(productionOf(key), offsetOf(key));
+      }
+    }
+  }
+
+  /**
+   * Removes entry from the underlying table.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @see MemoTable#remove(int, long)
+   */
+  @Override
+  public void remove(int production, long offset) {
+    if (table.find(production, offset)) {
+      table.remove(production, offset);
+      size--;
+    }
+  }
+
+  /**
+   * Removes entries with offsets less than the specified one from the
+   * underlying table and the policy. Remaining entries are still tracked by
+   * the policy.
+   *
+   * @param offset Offset in the character stream.
+   * @return Number of removed entries.
+   * @see MemoTable#cut(long)
+   */
+  @Override
+  public int cut(long offset) {
+    int count = table.cut(offset);
+    size -= count;
+    policy.cut(offset);
+    return count;
+  }
+
+  /**
+   * Releases the underlying table and clears state of the policy.
+   *
+   * @see MemoTable#release()
+   */
+  @Override
+  public void release() {
+    table.release();
+    policy.clear();
+    size = 0;
+  }
+
+  /**
+   * Removes the specified entry and reports eviction to the tracer.
+   */
+  private void evict(int production, long offset) {
+    if (table.find(production, offset)) {
+      table.remove(production, offset);
+      size--;
+      evictionCount++;
+      Production target = tracer == null ? null : grammar.getProduction(production);
+      if (target != null && filter.accepts(TraceFilter.CACHE_EVICT_EVENTS, target, offset)) {
+        try {
+          tracer.onCacheEvict(target, offset);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+  }
+
+  // Keys
+
+  /**
+   * Returns key of the entry for the specified production index and offset.
+   * Key keeps 40 bits of offset and 23 bits of production index. This codec
+   * is shared by all the memo tables that key entries by a single
+   * <code>long</code> value.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @return Key of the entry.
+   * @throws IllegalArgumentException if the specified offset is negative or
+   *         greater than {@link #MAX_OFFSET}.
+   */
+  public static long keyOf(int production, long offset) {
+    if ((offset & ~OFFSET_MASK) != 0L) {
+      throw new IllegalArgumentException("Offset " + offset + " exceeds memo table limit " + MAX_OFFSET);
+    }
+    return ((long) production << OFFSET_BITS) | offset;
+  }
+
+  /**
+   * Returns production index of the specified entry key.
+   *
+   * @param key Entry key.
+   * @return Production index.
+   */
+  public static int productionOf(long key) {
+    return (int) (key >>> OFFSET_BITS);
+  }
+
+  /**
+   * Returns offset of the specified entry key.
+   *
+   * @param key Entry key.
+   * @return Offset in the character stream.
+   */
+  public static long offsetOf(long key) {
+    return key & OFFSET_MASK;
+  }
+
+  /**
+   * Removes keys with offsets less than the specified one from the queue
+   * keeping order of the remaining keys.
+   *
+   * @param queue Queue of keys.
+   * @param offset Offset in the character stream.
+   */
+  static void retain(LongQueue queue, long offset) {
+    for (int count = queue.size(); count > 0; count--) {
+      long key = queue.poll();
+      if (offsetOf(key) >= offset) {
+        queue.add(key);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,795 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.util;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Minimal assembler of JVM class files.
+ *
+ * <p>This class supports only a small subset of the class file format that is
+ * required to generate straight-line code with local jumps: fields, methods,
+ * constant pool entries for classes, strings, integers and member references.
+ * Generated classes have version 49 (Java 5), so no <code>StackMapTable</code>
+ * attributes are required and the JVM verifies them using type inference.
+ * Maximum stack size of each method is computed while instructions are
+ * emitted.</p>
+ *
+ * <p>Note that this class is not thread-safe.</p>
+ *
+ * @author Fox Mulder
+ */
+public final class ClassAssembler {
+
+  // Access flags
+
+  public static final int ACC_PUBLIC = 0x0001;
+  public static final int ACC_PRIVATE = 0x0002;
+  public static final int ACC_STATIC = 0x0008;
+  public static final int ACC_FINAL = 0x0010;
+  public static final int ACC_SUPER = 0x0020;
+
+  // Opcodes
+
+  public static final int ICONST_0 = 0x03;
+  public static final int BIPUSH = 0x10;
+  public static final int SIPUSH = 0x11;
+  public static final int LDC_W = 0x13;
+  public static final int ILOAD = 0x15;
+  public static final int ALOAD = 0x19;
+  public static final int AALOAD = 0x32;
+  public static final int ISTORE = 0x36;
+  public static final int ASTORE = 0x3a;
+  public static final int POP = 0x57;
+  public static final int DUP = 0x59;
+  public static final int IINC = 0x84;
+  public static final int IFEQ = 0x99;
+  public static final int IFNE = 0x9a;
+  public static final int IFLT = 0x9b;
+  public static final int IFGE = 0x9c;
+  public static final int IFGT = 0x9d;
+  public static final int IFLE = 0x9e;
+  public static final int IF_ICMPEQ = 0x9f;
+  public static final int IF_ICMPNE = 0xa0;
+  public static final int IF_ICMPLT = 0xa1;
+  public static final int IF_ICMPGE = 0xa2;
+  public static final int IF_ICMPGT = 0xa3;
+  public static final int IF_ICMPLE = 0xa4;
+  public static final int GOTO = 0xa7;
+  public static final int IRETURN = 0xac;
+  public static final int ARETURN = 0xb0;
+  public static final int RETURN = 0xb1;
+  public static final int GETSTATIC = 0xb2;
+  public static final int PUTSTATIC = 0xb3;
+  public static final int GETFIELD = 0xb4;
+  public static final int PUTFIELD = 0xb5;
+  public static final int INVOKEVIRTUAL = 0xb6;
+  public static final int INVOKESPECIAL = 0xb7;
+  public static final int INVOKESTATIC = 0xb8;
+  public static final int INVOKEINTERFACE = 0xb9;
+  public static final int CHECKCAST = 0xc0;
+  public static final int IFNULL = 0xc6;
+  public static final int IFNONNULL = 0xc7;
+
+  // Constant pool tags
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  /**
+   * Class file major version.
+   */
+  private static final int MAJOR_VERSION = 49;
+
+  /**
+   * Internal name of the class.
+   */
+  private final String className;
+
+  /**
+   * Constant pool data.
+   */
+  private final ByteVector pool = new ByteVector(1024);
+
+  /**
+   * Constant pool entry indexes.
+   */
+  private final Map<String, Integer> poolIndexes = new HashMap<String, Integer>();
+
+  /**
+   * Next constant pool entry index.
+   */
+  private int poolCount = 1;
+
+  /**
+   * Access flags of the class.
+   */
+  private final int access;
+
+  /**
+   * Constant pool index of this class.
+   */
+  private final int thisClass;
+
+  /**
+   * Constant pool index of the super class.
+   */
+  private final int superClass;
+
+  /**
+   * Fields data.
+   */
+  private final ByteVector fields = new ByteVector(256);
+
+  /**
+   * Number of fields.
+   */
+  private int fieldCount = 0;
+
+  /**
+   * Methods of the class.
+   */
+  private final List<Code> methods = new ArrayList<Code>();
+
+  /**
+   * Constructs a new class assembler.
+   *
+   * @param access Access flags of the class.
+   * @param className Internal name of the class (for example
+   *        <code>java/lang/Object</code>).
+   * @param superName Internal name of the super class.
+   */
+  public ClassAssembler(int access, String className, String superName) {
+    this.access = access | ACC_SUPER;
+    this.className = className;
+    this.thisClass = classIndex(className);
+    this.superClass = classIndex(superName);
+  }
+
+  /**
+   * Returns internal name of the class.
+   *
+   * @return Internal name of the class.
+   */
+  public String getClassName() {
+    return className;
+  }
+
+  /**
+   * Adds a new field.
+   *
+   * @param access Access flags of the field.
+   * @param name Name of the field.
+   * @param descriptor Type descriptor of the field.
+   */
+  public void addField(int access, String name, String descriptor) {
+    fields.putShort(access).putShort(utf8Index(name)).putShort(utf8Index(descriptor)).putShort(0);
+    fieldCount++;
+  }
+
+  /**
+   * Adds a new method and returns its code builder.
+   *
+   * @param access Access flags of the method.
+   * @param name Name of the method.
+   * @param descriptor Type descriptor of the method.
+   * @param maxLocals Initial number of local variables (including arguments).
+   * @return Code builder of the method.
+   */
+  public Code addMethod(int access, String name, String descriptor, int maxLocals) {
+    Code code = new Code(access, name, descriptor, maxLocals);
+    methods.add(code);
+    return code;
+  }
+
+  /**
+   * Returns content of the class file.
+   *
+   * @return Content of the class file.
+   * @throws IllegalStateException if some method contains unresolved labels.
+   */
+  public byte[] toByteArray() {
+    // Register attribute name before the constant pool is written
+    int codeAttribute = utf8Index("Code");
+
+    ByteVector out = new ByteVector(pool.length + fields.length + 1024);
+    out.putInt(0xCAFEBABE).putShort(0).putShort(MAJOR_VERSION);
+    out.putShort(poolCount).putBytes(pool.data, 0, pool.length);
+    out.putShort(access).putShort(thisClass).putShort(superClass).putShort(0);
+    out.putShort(fieldCount).putBytes(fields.data, 0, fields.length);
+    out.putShort(methods.size());
+    for (Code code : methods) {
+      code.write(out, codeAttribute);
+    }
+    out.putShort(0);
+    return Arrays.copyOf(out.data, out.length);
+  }
+
+  // Constant pool
+
+  /**
+   * Returns constant pool index of the UTF8 entry.
+   */
+  private int utf8Index(String value) {
+    String key = "U" + value;
+    Integer index = poolIndexes.get(key);
+    if (index == null) {
+      pool.putByte(CONSTANT_UTF8).putUTF8(value);
+      poolIndexes.put(key, index = poolCount++);
+    }
+    return index;
+  }
+
+  /**
+   * Returns constant pool index of the class entry.
+   */
+  private int classIndex(String name) {
+    String key = "C" + name;
+    Integer index = poolIndexes.get(key);
+    if (index == null) {
+      int nameIndex = utf8Index(name);
+      pool.putByte(CONSTANT_CLASS).putShort(nameIndex);
+      poolIndexes.put(key, index = poolCount++);
+    }
+    return index;
+  }
+
+  /**
+   * Returns constant pool index of the string entry.
+   */
+  private int stringIndex(String value) {
+    String key = "S" + value;
+    Integer index = poolIndexes.get(key);
+    if (index == null) {
+      int valueIndex = utf8Index(value);
+      pool.putByte(CONSTANT_STRING).putShort(valueIndex);
+      poolIndexes.put(key, index = poolCount++);
+    }
+    return index;
+  }
+
+  /**
+   * Returns constant pool index of the integer entry.
+   */
+  private int intIndex(int value) {
+    String key = "I" + value;
+    Integer index = poolIndexes.get(key);
+    if (index == null) {
+      pool.putByte(CONSTANT_INTEGER).putInt(value);
+      poolIndexes.put(key, index = poolCount++);
+    }
+    return index;
+  }
+
+  /**
+   * Returns constant pool index of the field or method reference entry.
+   */
+  private int memberIndex(int tag, String owner, String name, String descriptor) {
+    String key = tag + owner + "." + name + descriptor;
+    Integer index = poolIndexes.get(key);
+    if (index == null) {
+      int ownerIndex = classIndex(owner);
+      String ntKey = "N" + name + descriptor;
+      Integer ntIndex = poolIndexes.get(ntKey);
+      if (ntIndex == null) {
+        int nameIndex = utf8Index(name);
+        int descriptorIndex = utf8Index(descriptor);
+        pool.putByte(CONSTANT_NAME_AND_TYPE).putShort(nameIndex).putShort(descriptorIndex);
+        poolIndexes.put(ntKey, ntIndex = poolCount++);
+      }
+      pool.putByte(tag).putShort(ownerIndex).putShort(ntIndex);
+      poolIndexes.put(key, index = poolCount++);
+    }
+    return index;
+  }
+
+  /**
+   * Returns number of stack slots occupied by arguments of the method
+   * (without receiver) minus number of slots occupied by its result.
+   */
+  static int argumentSize(String descriptor) {
+    int size = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      char ch = descriptor.charAt(i);
+      if (ch == 'J' || ch == 'D') {
+        size += 2;
+        i++;
+      } else {
+        while (ch == '[') {
+          ch = descriptor.charAt(++i);
+        }
+        if (ch == 'L') {
+          i = descriptor.indexOf(';', i);
+        }
+        size++;
+        i++;
+      }
+    }
+    char result = descriptor.charAt(i + 1);
+    return size - (result == 'V' ? 0 : result == 'J' || result == 'D' ? 2 : 1);
+  }
+
+  // Label
+
+  /**
+   * Position in the code of a method.
+   *
+   * @author Fox Mulder
+   */
+  public static final class Label {
+
+    /**
+     * Offset of this label in the code or -1 if label is not placed yet.
+     */
+    int offset = -1;
+
+    /**
+     * Offsets of unresolved jump instructions referring to this label.
+     */
+    int[] fixups = new int[4];
+
+    /**
+     * Number of unresolved jump instructions.
+     */
+    int fixupCount = 0;
+
+  }
+
+  // Code
+
+  /**
+   * Builder of method code.
+   *
+   * @author Fox Mulder
+   */
+  public final class Code {
+
+    /**
+     * Access flags of the method.
+     */
+    private final int access;
+
+    /**
+     * Constant pool index of the method name.
+     */
+    private final int nameIndex;
+
+    /**
+     * Constant pool index of the method descriptor.
+     */
+    private final int descriptorIndex;
+
+    /**
+     * Bytecode of the method.
+     */
+    private final ByteVector code = new ByteVector(256);
+
+    /**
+     * Current stack depth.
+     */
+    private int stack = 0;
+
+    /**
+     * Maximum stack depth.
+     */
+    private int maxStack = 0;
+
+    /**
+     * Number of local variables.
+     */
+    private int maxLocals;
+
+    /**
+     * Number of labels referred but not placed yet.
+     */
+    private int unresolved = 0;
+
+    /**
+     * Constructs a new code builder.
+     */
+    Code(int access, String name, String descriptor, int maxLocals) {
+      this.access = access;
+      this.nameIndex = utf8Index(name);
+      this.descriptorIndex = utf8Index(descriptor);
+      this.maxLocals = maxLocals;
+    }
+
+    /**
+     * Returns current size of the bytecode.
+     *
+     * @return Current size of the bytecode.
+     */
+    public int size() {
+      return code.length;
+    }
+
+    /**
+     * Allocates a new local variable slot.
+     *
+     * @return Index of the new local variable.
+     */
+    public int newLocal() {
+      return maxLocals++;
+    }
+
+    /**
+     * Creates a new label.
+     *
+     * @return A new label.
+     */
+    public Label newLabel() {
+      return new Label();
+    }
+
+    /**
+     * Places the specified label at the current position and resolves all
+     * jumps referring to it.
+     *
+     * @param label Label to be placed.
+     * @return This code builder.
+     */
+    public Code mark(Label label) {
+      if (label.offset >= 0) {
+        throw new IllegalStateException();
+      }
+      label.offset = code.length;
+      if (label.fixupCount > 0) {
+        for (int i = 0; i < label.fixupCount; i++) {
+          int position = label.fixups[i];
+          code.setShort(position + 1, branchOffset(label.offset - position));
+        }
+        label.fixupCount = 0;
+        unresolved--;
+      }
+      return this;
+    }
+
+    /**
+     * Emits conditional or unconditional jump to the specified label.
+     *
+     * @param opcode Jump instruction opcode.
+     * @param label Target label.
+     * @return This code builder.
+     */
+    public Code jump(int opcode, Label label) {
+      int position = code.length;
+      if (opcode == GOTO) {
+        // No stack change
+      } else if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+        pop(2);
+      } else {
+        pop(1);
+      }
+      code.putByte(opcode);
+      if (label.offset >= 0) {
+        code.putShort(branchOffset(label.offset - position));
+      } else {
+        if (label.fixupCount == 0) {
+          unresolved++;
+        }
+        if (label.fixupCount == label.fixups.length) {
+          label.fixups = Arrays.copyOf(label.fixups, label.fixupCount * 2);
+        }
+        label.fixups[label.fixupCount++] = position;
+        code.putShort(0);
+      }
+      return this;
+    }
+
+    /**
+     * Emits instruction that has no operands.
+     *
+     * @param opcode Instruction opcode.
+     * @param delta Stack depth change.
+     * @return This code builder.
+     */
+    public Code op(int opcode, int delta) {
+      code.putByte(opcode);
+      push(delta);
+      return this;
+    }
+
+    /**
+     * Emits instruction to push integer constant.
+     *
+     * @param value Integer constant.
+     * @return This code builder.
+     */
+    public Code iconst(int value) {
+      if (value >= -1 && value <= 5) {
+        code.putByte(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        code.putByte(BIPUSH).putByte(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        code.putByte(SIPUSH).putShort(value);
+      } else {
+        code.putByte(LDC_W).putShort(intIndex(value));
+      }
+      push(1);
+      return this;
+    }
+
+    /**
+     * Emits instruction to push string constant.
+     *
+     * @param value String constant.
+     * @return This code builder.
+     */
+    public Code sconst(String value) {
+      code.putByte(LDC_W).putShort(stringIndex(value));
+      push(1);
+      return this;
+    }
+
+    /**
+     * Emits instruction to push class constant.
+     *
+     * @param name Internal name of the class.
+     * @return This code builder.
+     */
+    public Code cconst(String name) {
+      code.putByte(LDC_W).putShort(classIndex(name));
+      push(1);
+      return this;
+    }
+
+    /**
+     * Emits instruction that accesses local variable.
+     *
+     * @param opcode One of the <code>ILOAD</code>, <code>ALOAD</code>,
+     *        <code>ISTORE</code> or <code>ASTORE</code> opcodes.
+     * @param index Index of the local variable.
+     * @return This code builder.
+     * @throws IllegalStateException if index of the local variable is greater
+     *         than 255.
+     */
+    public Code local(int opcode, int index) {
+      checkLocal(index);
+      if (index < 4) {
+        int base = opcode == ILOAD ? 0x1a : opcode == ALOAD ? 0x2a : opcode == ISTORE ? 0x3b : 0x4b;
+        code.putByte(base + index);
+      } else {
+        code.putByte(opcode).putByte(index);
+      }
+      push(opcode == ILOAD || opcode == ALOAD ? 1 : -1);
+      return this;
+    }
+
+    /**
+     * Emits instruction that increments local integer variable.
+     *
+     * @param index Index of the local variable.
+     * @param value Increment value.
+     * @return This code builder.
+     * @throws IllegalStateException if index of the local variable is greater
+     *         than 255.
+     */
+    public Code iinc(int index, int value) {
+      checkLocal(index);
+      code.putByte(IINC).putByte(index).putByte(value);
+      return this;
+    }
+
+    /**
+     * Emits instruction that accesses field.
+     *
+     * @param opcode One of the <code>GETSTATIC</code>, <code>PUTSTATIC</code>,
+     *        <code>GETFIELD</code> or <code>PUTFIELD</code> opcodes.
+     * @param owner Internal name of the field owner class.
+     * @param name Name of the field.
+     * @param descriptor Type descriptor of the field.
+     * @return This code builder.
+     */
+    public Code field(int opcode, String owner, String name, String descriptor) {
+      code.putByte(opcode).putShort(memberIndex(CONSTANT_FIELDREF, owner, name, descriptor));
+      int size = descriptor.equals("J") || descriptor.equals("D") ? 2 : 1;
+      switch (opcode) {
+      case GETSTATIC:
+        push(size);
+        break;
+      case PUTSTATIC:
+        pop(size);
+        break;
+      case GETFIELD:
+        push(size - 1);
+        break;
+      default:
+        pop(size + 1);
+        break;
+      }
+      return this;
+    }
+
+    /**
+     * Emits method invocation instruction.
+     *
+     * @param opcode One of the <code>INVOKEVIRTUAL</code>,
+     *        <code>INVOKESPECIAL</code>, <code>INVOKESTATIC</code> or
+     *        <code>INVOKEINTERFACE</code> opcodes.
+     * @param owner Internal name of the method owner class.
+     * @param name Name of the method.
+     * @param descriptor Type descriptor of the method.
+     * @return This code builder.
+     */
+    public Code invoke(int opcode, String owner, String name, String descriptor) {
+      int delta = argumentSize(descriptor) + (opcode == INVOKESTATIC ? 0 : 1);
+      if (opcode == INVOKEINTERFACE) {
+        int index = memberIndex(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+        int count = argumentSize(descriptor.substring(0, descriptor.indexOf(')') + 1) + "V") + 1;
+        code.putByte(opcode).putShort(index).putByte(count).putByte(0);
+      } else {
+        code.putByte(opcode).putShort(memberIndex(CONSTANT_METHODREF, owner, name, descriptor));
+      }
+      pop(delta);
+      return this;
+    }
+
+    /**
+     * Emits type instruction.
+     *
+     * @param opcode Instruction opcode (for example <code>CHECKCAST</code>).
+     * @param type Internal name of the class.
+     * @return This code builder.
+     */
+    public Code type(int opcode, String type) {
+      code.putByte(opcode).putShort(classIndex(type));
+      return this;
+    }
+
+    /**
+     * Checks that local variable can be accessed without the
+     * <code>wide</code> prefix, which is not supported.
+     */
+    private void checkLocal(int index) {
+      if (index > 255) {
+        throw new IllegalStateException("Too many local variables");
+      }
+    }
+
+    /**
+     * Checks that the specified jump offset fits in the signed 16-bit operand
+     * of the jump instruction, <code>goto_w</code> is not supported.
+     */
+    private int branchOffset(int offset) {
+      if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+        throw new IllegalStateException("Jump offset " + offset + " is out of range");
+      }
+      return offset;
+    }
+
+    /**
+     * Increases current stack depth.
+     */
+    private void push(int delta) {
+      stack += delta;
+      if (stack > maxStack) {
+        maxStack = stack;
+      }
+    }
+
+    /**
+     * Decreases current stack depth.
+     */
+    private void pop(int delta) {
+      stack -= delta;
+    }
+
+    /**
+     * Writes <code>method_info</code> structure.
+     */
+    void write(ByteVector out, int codeAttribute) {
+      if (unresolved > 0) {
+        throw new IllegalStateException("Unresolved labels");
+      }
+      out.putShort(access).putShort(nameIndex).putShort(descriptorIndex).putShort(1);
+      out.putShort(codeAttribute).putInt(code.length + 12);
+      out.putShort(maxStack).putShort(maxLocals).putInt(code.length);
+      out.putBytes(code.data, 0, code.length);
+      out.putShort(0).putShort(0);
+    }
+
+  }
+
+  // ByteVector
+
+  /**
+   * Growable array of bytes.
+   *
+   * @author Fox Mulder
+   */
+  static final class ByteVector {
+
+    byte[] data;
+
+    int length = 0;
+
+    ByteVector(int initialCapacity) {
+      data = new byte[initialCapacity];
+    }
+
+    ByteVector putByte(int value) {
+      ensureCapacity(1);
+      data[length++] = (byte) value;
+      return this;
+    }
+
+    ByteVector putShort(int value) {
+      ensureCapacity(2);
+      data[length++] = (byte) (value >>> 8);
+      data[length++] = (byte) value;
+      return this;
+    }
+
+    ByteVector putInt(int value) {
+      ensureCapacity(4);
+      data[length++] = (byte) (value >>> 24);
+      data[length++] = (byte) (value >>> 16);
+      data[length++] = (byte) (value >>> 8);
+      data[length++] = (byte) value;
+      return this;
+    }
+
+    ByteVector putBytes(byte[] bytes, int offset, int count) {
+      ensureCapacity(count);
+      System.arraycopy(bytes, offset, data, length, count);
+      length += count;
+      return this;
+    }
+
+    ByteVector putUTF8(String value) {
+      int start = length;
+      putShort(0);
+      int count = value.length();
+      for (int i = 0; i < count; i++) {
+        char ch = value.charAt(i);
+        if (ch >= 0x0001 && ch <= 0x007F) {
+          putByte(ch);
+        } else if (ch > 0x07FF) {
+          putByte(0xE0 | ch >> 12 & 0x0F).putByte(0x80 | ch >> 6 & 0x3F).putByte(0x80 | ch & 0x3F);
+        } else {
+          putByte(0xC0 | ch >> 6 & 0x1F).putByte(0x80 | ch & 0x3F);
+        }
+      }
+      setShort(start, length - start - 2);
+      return this;
+    }
+
+    void setShort(int position, int value) {
+      data[position] = (byte) (value >>> 8);
+      data[position + 1] = (byte) value;
+    }
+
+    private void ensureCapacity(int count) {
+      if (length + count > data.length) {
+        data = Arrays.copyOf(data, data.length * 2 + count);
+      }
+    }
+
+  }
+
+}
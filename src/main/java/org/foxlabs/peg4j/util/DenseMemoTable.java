@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.util;
+
+import java.util.Arrays;
+
+import org.foxlabs.peg4j.MemoTable;
+import org.foxlabs.peg4j.Transaction;
+
+/**
+ * Memo table that keeps a dense array indexed by offset in the character
+ * stream for each production.
+ *
+ * <p>Lookup is a pair of array accesses and does not require hashing, but
+ * memory consumption is proportional to the length of the input multiplied by
+ * number of memoized productions. Arrays are allocated on the first entry
+ * stored for a production and grow as parsing advances, so this table suits
+ * grammars where a few heavily memoized productions are tried at most offsets
+ * of the input. Arrays are indexed relative to the latest cut, so for grammars
+ * with cuts memory consumption is proportional to the distance between cuts
+ * instead.</p>
+ *
+ * @author Fox Mulder
+ */
+public class DenseMemoTable implements MemoTable {
+
+  /**
+   * Initial length of the arrays allocated for a production.
+   */
+  private static final int INITIAL_LENGTH = 1024;
+
+  /**
+   * Maximum length of the arrays allocated for a production.
+   */
+  private static final int MAXIMUM_LENGTH = 1 << 30;
+
+  /**
+   * Numbers of recognized characters plus two for each production, zero means
+   * there is no entry and one means production failed.
+   */
+  private final int[][] lengths;
+
+  /**
+   * Transaction snapshots for each production.
+   */
+  private final Transaction[][] deltas;
+
+  /**
+   * Offset of the first element of arrays.
+   */
+  private long base = 0L;
+
+  /**
+   * Production index of the current entry.
+   */
+  private int currentProduction = -1;
+
+  /**
+   * Offset of the current entry.
+   */
+  private int currentOffset = -1;
+
+  /**
+   * Constructs a new table for the specified number of productions.
+   *
+   * @param productionCount Number of productions in the grammar.
+   * @see org.foxlabs.peg4j.grammar.Grammar#getProductionCount()
+   */
+  public DenseMemoTable(int productionCount) {
+    this.lengths = new int[productionCount][];
+    this.deltas = new Transaction[productionCount][];
+  }
+
+  // MemoTable
+
+  /**
+   * Finds entry for the specified production index and offset in the
+   * character stream and makes it current.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @return <code>true</code> if entry was found; <code>false</code>
+   *         otherwise.
+   * @see MemoTable#find(int, long)
+   */
+  @Override
+  public boolean find(int production, long offset) {
+    int[] array = lengths[production];
+    long index = offset - base;
+    if (array != null && index >= 0L && index < array.length && array[(int) index] > 0) {
+      currentProduction = production;
+      currentOffset = (int) index;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns number of recognized characters of the current entry.
+   *
+   * @return Number of recognized characters of the current entry.
+   * @see MemoTable#getLength()
+   */
+  @Override
+  public int getLength() {
+    return lengths[currentProduction][currentOffset] - 2;
+  }
+
+  /**
+   * Returns transaction snapshot of the current entry.
+   *
+   * @return Transaction snapshot of the current entry or <code>null</code> if
+   *         there is no snapshot.
+   * @see MemoTable#getDelta()
+   */
+  @Override
+  public Transaction getDelta() {
+    Transaction[] array = deltas[currentProduction];
+    return array == null || currentOffset >= array.length ? null : array[currentOffset];
+  }
+
+  /**
+   * Stores a new entry for the specified production index and offset in the
+   * character stream.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @param length Number of recognized characters.
+   * @param delta Transaction snapshot or <code>null</code>.
+   * @see MemoTable#put(int, long, int, Transaction)
+   */
+  @Override
+  public void put(int production, long offset, int length, Transaction delta) {
+    if (offset < base) {
+      return;
+    } else if (offset - base >= MAXIMUM_LENGTH) {
+      throw new IllegalStateException("Memo table is full");
+    }
+    int index = (int) (offset - base);
+    int[] array = lengths[production];
+    if (array == null || index >= array.length) {
+      lengths[production] = array = array == null
+          ? new int[capacityOf(INITIAL_LENGTH, index)]
+          : Arrays.copyOf(array, capacityOf(array.length, index));
+    }
+    array[index] = length + 2;
+
+    Transaction[] txs = deltas[production];
+    if (delta != null && (txs == null || index >= txs.length)) {
+      deltas[production] = txs = txs == null
+          ? new Transaction[array.length]
+          : Arrays.copyOf(txs, array.length);
+    }
+    if (txs != null && index < txs.length) {
+      txs[index] = delta;
+    }
+  }
+
+  /**
+   * Removes entry for the specified production index and offset in the
+   * character stream if it exists.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @see MemoTable#remove(int, long)
+   */
+  @Override
+  public void remove(int production, long offset) {
+    int[] array = lengths[production];
+    long index = offset - base;
+    if (array != null && index >= 0L && index < array.length) {
+      array[(int) index] = 0;
+      Transaction[] txs = deltas[production];
+      if (txs != null && index < txs.length) {
+        txs[(int) index] = null;
+      }
+    }
+  }
+
+  /**
+   * Removes all entries with offsets less than the specified one. Remaining
+   * entries are moved to the beginning of arrays, so arrays do not grow
+   * beyond the distance between cuts.
+   *
+   * @param offset Offset in the character stream.
+   * @return Number of removed entries.
+   * @see MemoTable#cut(long)
+   */
+  @Override
+  public int cut(long offset) {
+    if (offset <= base) {
+      return 0;
+    }
+    int shift = (int) Math.min(offset - base, Integer.MAX_VALUE);
+    int count = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      int[] array = lengths[i];
+      if (array != null) {
+        int end = Math.min(shift, array.length);
+        for (int j = 0; j < end; j++) {
+          if (array[j] > 0) {
+            count++;
+          }
+        }
+        if (shift < array.length) {
+          System.arraycopy(array, shift, array, 0, array.length - shift);
+        }
+        Arrays.fill(array, Math.max(array.length - shift, 0), array.length, 0);
+      }
+      Transaction[] txs = deltas[i];
+      if (txs != null) {
+        if (shift < txs.length) {
+          System.arraycopy(txs, shift, txs, 0, txs.length - shift);
+        }
+        Arrays.fill(txs, Math.max(txs.length - shift, 0), txs.length, null);
+      }
+    }
+    base = offset;
+    currentProduction = -1;
+    return count;
+  }
+
+  /**
+   * Releases arrays of this table, so they can be garbage collected even if
+   * this table is still referenced.
+   *
+   * @see MemoTable#release()
+   */
+  @Override
+  public void release() {
+    Arrays.fill(lengths, null);
+    Arrays.fill(deltas, null);
+  }
+
+  /**
+   * Returns capacity that is enough to store the specified index.
+   */
+  private static int capacityOf(int capacity, int index) {
+    while (capacity <= index) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+}
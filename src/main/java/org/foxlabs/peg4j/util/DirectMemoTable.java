@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.util;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.foxlabs.peg4j.MemoTable;
+import org.foxlabs.peg4j.Transaction;
+
+/**
+ * Memo table that keeps entries in the direct memory outside of the Java
+ * heap.
+ *
+ * <p>This table is an open addressing hash table where each entry occupies a
+ * fixed-width slot of 16 bytes that contains key (production index and
+ * offset), number of recognized characters and handle of the transaction
+ * snapshot. Slots are stored in direct byte buffers of 16 MB each, so the
+ * table is not limited by the maximum size of a single buffer. Transaction
+ * snapshots are Java objects and are kept in the heap list referenced by
+ * handles. Handles of removed and overwritten entries are reused, so the list
+ * does not grow beyond the number of entries with snapshots, for the
+ * {@link Transaction#STATELESS} transactions the list stays empty and heap
+ * usage does not depend on the input size.</p>
+ *
+ * <p>Direct memory is freed when the {@link #release()} method is invoked at
+ * the end of parsing instead of waiting for garbage collection of the
+ * buffers.</p>
+ *
+ * @author Fox Mulder
+ */
+public class DirectMemoTable implements MemoTable {
+
+  /**
+   * Size of the slot in bytes.
+   */
+  private static final int SLOT_SIZE = 16;
+
+  /**
+   * Offset of the number of recognized characters in the slot.
+   */
+  private static final int LENGTH_OFFSET = 8;
+
+  /**
+   * Offset of the snapshot handle in the slot.
+   */
+  private static final int DELTA_OFFSET = 12;
+
+  /**
+   * Binary logarithm of the number of slots in the buffer.
+   */
+  private static final int SEGMENT_SHIFT = 20;
+
+  /**
+   * Maximum number of slots in the buffer.
+   */
+  private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+
+  /**
+   * Maximum capacity of the table.
+   */
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /**
+   * Direct buffers that keep slots of the table.
+   */
+  private ByteBuffer[] segments;
+
+  /**
+   * Number of slots, always a power of two.
+   */
+  private int capacity;
+
+  /**
+   * Transaction snapshots referenced by handles stored in slots.
+   */
+  private final List<Transaction> deltas = new ArrayList<Transaction>();
+
+  /**
+   * Stack of handles that are not referenced by any slot.
+   */
+  private int[] freeHandles = new int[16];
+
+  /**
+   * Number of handles in the {@link #freeHandles} stack.
+   */
+  private int freeCount = 0;
+
+  /**
+   * Current number of entries.
+   */
+  private int size = 0;
+
+  /**
+   * Buffer of the current entry.
+   */
+  private ByteBuffer currentSegment;
+
+  /**
+   * Position of the current entry in the buffer.
+   */
+  private int currentPosition;
+
+  /**
+   * Constructs a new table with initial capacity of 64K entries.
+   */
+  public DirectMemoTable() {
+    this(1 << 16);
+  }
+
+  /**
+   * Constructs a new table with the specified initial capacity.
+   *
+   * @param initialCapacity Initial capacity of this table.
+   */
+  public DirectMemoTable(int initialCapacity) {
+    int capacity = Integer.highestOneBit(Math.max(initialCapacity, 8) * 2 - 1);
+    this.segments = allocate(Math.min(capacity, MAXIMUM_CAPACITY));
+    this.capacity = Math.min(capacity, MAXIMUM_CAPACITY);
+  }
+
+  /**
+   * Returns current number of entries in this table.
+   *
+   * @return Current number of entries in this table.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns number of bytes allocated in the direct memory.
+   *
+   * @return Number of bytes allocated in the direct memory.
+   */
+  public long getAllocatedSize() {
+    return segments == null ? 0L : (long) capacity * SLOT_SIZE;
+  }
+
+  /**
+   * Returns number of snapshot handles allocated in the heap, including free
+   * ones.
+   *
+   * @return Number of snapshot handles allocated in the heap.
+   */
+  public int getHandleCount() {
+    return deltas.size();
+  }
+
+  // MemoTable
+
+  /**
+   * Finds entry for the specified production index and offset in the
+   * character stream and makes it current.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @return <code>true</code> if entry was found; <code>false</code>
+   *         otherwise.
+   * @see MemoTable#find(int, long)
+   */
+  @Override
+  public boolean find(int production, long offset) {
+    long key = keyOf(production, offset);
+    int mask = capacity - 1;
+    for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+      ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+      int position = (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+      long k = segment.getLong(position);
+      if (k == key) {
+        currentSegment = segment;
+        currentPosition = position;
+        return true;
+      } else if (k == 0L) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Returns number of recognized characters of the current entry.
+   *
+   * @return Number of recognized characters of the current entry.
+   * @see MemoTable#getLength()
+   */
+  @Override
+  public int getLength() {
+    return currentSegment.getInt(currentPosition + LENGTH_OFFSET);
+  }
+
+  /**
+   * Returns transaction snapshot of the current entry.
+   *
+   * @return Transaction snapshot of the current entry or <code>null</code> if
+   *         there is no snapshot.
+   * @see MemoTable#getDelta()
+   */
+  @Override
+  public Transaction getDelta() {
+    int handle = currentSegment.getInt(currentPosition + DELTA_OFFSET);
+    return handle == 0 ? null : deltas.get(handle - 1);
+  }
+
+  /**
+   * Stores a new entry for the specified production index and offset in the
+   * character stream. Handle of the overwritten entry is released before a
+   * new one is allocated.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @param length Number of recognized characters.
+   * @param delta Transaction snapshot or <code>null</code>.
+   * @see MemoTable#put(int, long, int, Transaction)
+   */
+  @Override
+  public void put(int production, long offset, int length, Transaction delta) {
+    if (size >= capacity / 2) {
+      if (capacity == MAXIMUM_CAPACITY) {
+        throw new IllegalStateException("Memo table is full");
+      }
+      rehash(capacity * 2);
+    }
+    long key = keyOf(production, offset);
+    int mask = capacity - 1;
+    int slot = hash(key) & mask;
+    for (long k = keyAt(slot); k != 0L && k != key; k = keyAt(slot)) {
+      slot = (slot + 1) & mask;
+    }
+    ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+    int position = positionOf(slot);
+    if (segment.getLong(position) == 0L) {
+      segment.putLong(position, key);
+      size++;
+    } else {
+      freeHandle(segment.getInt(position + DELTA_OFFSET));
+    }
+    segment.putInt(position + LENGTH_OFFSET, length);
+    segment.putInt(position + DELTA_OFFSET, delta == null ? 0 : newHandle(delta));
+    currentSegment = null;
+  }
+
+  /**
+   * Removes entry for the specified production index and offset in the
+   * character stream if it exists. Entries that follow removed one in the
+   * probe sequence are shifted back, so no tombstones are left.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @see MemoTable#remove(int, long)
+   */
+  @Override
+  public void remove(int production, long offset) {
+    long key = keyOf(production, offset);
+    int mask = capacity - 1;
+    int hole = hash(key) & mask;
+    for (;; hole = (hole + 1) & mask) {
+      long k = keyAt(hole);
+      if (k == key) {
+        break;
+      } else if (k == 0L) {
+        return;
+      }
+    }
+    removeSlot(hole);
+    currentSegment = null;
+  }
+
+  /**
+   * Removes entries with offsets less than the specified one. Slots are
+   * cleared in place and entries that follow removed ones in the probe
+   * sequences are shifted back, so buffers are never reallocated.
+   *
+   * @param offset Offset in the character stream.
+   * @return Number of removed entries.
+   * @see MemoTable#cut(long)
+   */
+  @Override
+  public int cut(long offset) {
+    int count = 0;
+    if (size > 0) {
+      for (int slot = 0; slot < capacity; slot++) {
+        // Shifted entry takes place of the removed one and is checked again
+        for (long key = keyAt(slot); key != 0L && BoundedMemoTable.offsetOf(key - 1L) < offset; key = keyAt(slot)) {
+          removeSlot(slot);
+          count++;
+        }
+      }
+      if (size == 0) {
+        deltas.clear();
+        freeCount = 0;
+      }
+      currentSegment = null;
+    }
+    return count;
+  }
+
+  /**
+   * Frees direct memory allocated by this table. Table cannot be used after
+   * this method call.
+   *
+   * @see MemoTable#release()
+   */
+  @Override
+  public void release() {
+    if (segments != null) {
+      free(segments);
+      segments = null;
+      currentSegment = null;
+      deltas.clear();
+      freeCount = 0;
+    }
+  }
+
+  // Internal
+
+  /**
+   * Removes entry from the specified slot and shifts back entries that follow
+   * it in the probe sequence, so no tombstones are left.
+   */
+  private void removeSlot(int hole) {
+    int mask = capacity - 1;
+    freeHandle(segments[hole >>> SEGMENT_SHIFT].getInt(positionOf(hole) + DELTA_OFFSET));
+    for (int slot = (hole + 1) & mask; keyAt(slot) != 0L; slot = (slot + 1) & mask) {
+      int home = hash(keyAt(slot)) & mask;
+      // Move entry if its home slot is not between the hole and the slot
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        ByteBuffer from = segments[slot >>> SEGMENT_SHIFT];
+        ByteBuffer to = segments[hole >>> SEGMENT_SHIFT];
+        int position = positionOf(slot);
+        to.putLong(positionOf(hole), from.getLong(position));
+        to.putInt(positionOf(hole) + LENGTH_OFFSET, from.getInt(position + LENGTH_OFFSET));
+        to.putInt(positionOf(hole) + DELTA_OFFSET, from.getInt(position + DELTA_OFFSET));
+        hole = slot;
+      }
+    }
+    segments[hole >>> SEGMENT_SHIFT].putLong(positionOf(hole), 0L);
+    size--;
+  }
+
+  /**
+   * Stores the specified snapshot and returns its handle, free handles are
+   * reused first.
+   */
+  private int newHandle(Transaction delta) {
+    if (freeCount > 0) {
+      int handle = freeHandles[--freeCount];
+      deltas.set(handle - 1, delta);
+      return handle;
+    }
+    deltas.add(delta);
+    return deltas.size();
+  }
+
+  /**
+   * Releases the specified handle, zero handle is ignored.
+   */
+  private void freeHandle(int handle) {
+    if (handle > 0) {
+      deltas.set(handle - 1, null);
+      if (freeCount == freeHandles.length) {
+        freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+      }
+      freeHandles[freeCount++] = handle;
+    }
+  }
+
+  /**
+   * Stores entry into the specified buffers and returns <code>true</code> if
+   * new slot was occupied.
+   */
+  private static boolean insert(ByteBuffer[] segments, int capacity, long key, int length, int handle) {
+    int mask = capacity - 1;
+    for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+      ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+      int position = (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+      long k = segment.getLong(position);
+      if (k == 0L || k == key) {
+        segment.putLong(position, key);
+        segment.putInt(position + LENGTH_OFFSET, length);
+        segment.putInt(position + DELTA_OFFSET, handle);
+        return k == 0L;
+      }
+    }
+  }
+
+  /**
+   * Moves entries into buffers of the specified capacity and frees the
+   * previous ones.
+   */
+  private void rehash(int newCapacity) {
+    ByteBuffer[] newSegments = allocate(newCapacity);
+    for (int slot = 0; slot < capacity; slot++) {
+      ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+      int position = (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+      long key = segment.getLong(position);
+      if (key != 0L) {
+        insert(newSegments, newCapacity, key,
+            segment.getInt(position + LENGTH_OFFSET),
+            segment.getInt(position + DELTA_OFFSET));
+      }
+    }
+    free(segments);
+    segments = newSegments;
+    capacity = newCapacity;
+    currentSegment = null;
+  }
+
+  /**
+   * Returns key stored in the specified slot.
+   */
+  private long keyAt(int slot) {
+    return segments[slot >>> SEGMENT_SHIFT].getLong(positionOf(slot));
+  }
+
+  /**
+   * Returns position of the specified slot in its buffer.
+   */
+  private static int positionOf(int slot) {
+    return (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+  }
+
+  /**
+   * Allocates zeroed direct buffers for the specified number of slots.
+   */
+  private static ByteBuffer[] allocate(int capacity) {
+    int count = Math.max(capacity >>> SEGMENT_SHIFT, 1);
+    int slots = Math.min(capacity, SEGMENT_SLOTS);
+    ByteBuffer[] segments = new ByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = ByteBuffer.allocateDirect(slots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+    }
+    return segments;
+  }
+
+  /**
+   * Returns key for the specified production index and offset. Key is never
+   * zero, so zero denotes free slot.
+   */
+  private static long keyOf(int production, long offset) {
+    return BoundedMemoTable.keyOf(production, offset) + 1L;
+  }
+
+  /**
+   * Spreads bits of the specified key.
+   */
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  // Deallocation
+
+  /**
+   * <code>sun.misc.Unsafe</code> instance that is able to free direct buffers
+   * (Java 9 and later) or <code>null</code>.
+   */
+  private static final Object UNSAFE;
+
+  /**
+   * <code>Unsafe.invokeCleaner(ByteBuffer)</code> method (Java 9 and later) or
+   * <code>null</code>.
+   */
+  private static final Method INVOKE_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+    } catch (Exception e) {
+      // Java 8 or restricted environment
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  /**
+   * Frees memory of the specified direct buffers. If memory cannot be freed
+   * explicitly it will be freed once buffers are garbage collected.
+   */
+  private static void free(ByteBuffer[] segments) {
+    for (ByteBuffer segment : segments) {
+      try {
+        if (INVOKE_CLEANER != null) {
+          INVOKE_CLEANER.invoke(UNSAFE, segment);
+        } else {
+          // Java 8: ((DirectBuffer) segment).cleaner().clean()
+          Method cleaner = segment.getClass().getMethod("cleaner");
+          cleaner.setAccessible(true);
+          Object instance = cleaner.invoke(segment);
+          if (instance != null) {
+            instance.getClass().getMethod("clean").invoke(instance);
+          }
+        }
+      } catch (Exception e) {
+        // Leave it to garbage collector
+      }
+    }
+  }
+
+}
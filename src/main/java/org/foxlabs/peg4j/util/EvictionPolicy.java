@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.util;
+
+import java.util.Arrays;
+
+/**
+ * Defines policy that selects entries to be evicted from the
+ * {@link BoundedMemoTable}. Entries are identified by keys that can be
+ * constructed and decomposed using the {@link BoundedMemoTable#keyOf(int, long)},
+ * {@link BoundedMemoTable#productionOf(long)} and
+ * {@link BoundedMemoTable#offsetOf(long)} methods.
+ *
+ * <p>Policy keeps track of entries stored in the table, so the same policy
+ * instance cannot be shared by tables used concurrently. Entries removed
+ * from the table by a cut are dropped from the policy, and policy state is
+ * cleared when the table is released, so it can be reused for the next
+ * parsing.</p>
+ *
+ * @author Fox Mulder
+ * @see org.foxlabs.peg4j.Parser#setEvictionPolicy(EvictionPolicy)
+ */
+public interface EvictionPolicy {
+
+  /**
+   * Key returned by the {@link #evict(int, int)} method if there is nothing
+   * to evict.
+   */
+  long NONE = -1L;
+
+  /**
+   * Notifies that a new entry was stored in the table.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   */
+  void onPut(int production, long offset);
+
+  /**
+   * Notifies that an entry was found in the table.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   */
+  void onHit(int production, long offset);
+
+  /**
+   * Selects entry to be evicted. This method is invoked after each new entry
+   * is stored until it returns {@link #NONE}, selected entry is considered to
+   * be evicted.
+   *
+   * @param size Current number of entries in the table.
+   * @param limit Maximum number of entries in the table.
+   * @return Key of the entry to be evicted or {@link #NONE}.
+   */
+  long evict(int size, int limit);
+
+  /**
+   * Forgets entries with offsets less than the specified one. This method is
+   * invoked when such entries are removed from the table by a cut, remaining
+   * entries are still tracked.
+   *
+   * @param offset Offset in the character stream.
+   */
+  void cut(long offset);
+
+  /**
+   * Forgets all the entries.
+   */
+  void clear();
+
+  // Lru
+
+  /**
+   * Policy that evicts least recently stored or found entry when the table
+   * is full.
+   *
+   * @author Fox Mulder
+   */
+  class Lru implements EvictionPolicy {
+
+    /**
+     * Index of the node for each entry key.
+     */
+    private final HashMemoTable index = new HashMemoTable();
+
+    /**
+     * Entry keys of the nodes.
+     */
+    private long[] keys = new long[64];
+
+    /**
+     * Previous (more recent) nodes.
+     */
+    private int[] prev = new int[64];
+
+    /**
+     * Next (less recent) nodes.
+     */
+    private int[] next = new int[64];
+
+    /**
+     * Most recent node or -1.
+     */
+    private int head = -1;
+
+    /**
+     * Least recent node or -1.
+     */
+    private int tail = -1;
+
+    /**
+     * Number of nodes ever allocated.
+     */
+    private int count = 0;
+
+    /**
+     * Head of the list of free nodes linked by the {@link #next} array.
+     */
+    private int free = -1;
+
+    @Override
+    public void onPut(int production, long offset) {
+      int node;
+      if (free >= 0) {
+        node = free;
+        free = next[node];
+      } else {
+        if (count == keys.length) {
+          keys = Arrays.copyOf(keys, count * 2);
+          prev = Arrays.copyOf(prev, count * 2);
+          next = Arrays.copyOf(next, count * 2);
+        }
+        node = count++;
+      }
+      keys[node] = BoundedMemoTable.keyOf(production, offset);
+      index.put(production, offset, node, null);
+      link(node);
+    }
+
+    @Override
+    public void onHit(int production, long offset) {
+      if (index.find(production, offset)) {
+        int node = index.getLength();
+        if (node != head) {
+          unlink(node);
+          link(node);
+        }
+      }
+    }
+
+    @Override
+    public long evict(int size, int limit) {
+      if (size <= limit || tail < 0) {
+        return NONE;
+      }
+      int node = tail;
+      long key = keys[node];
+      unlink(node);
+      index.remove(BoundedMemoTable.productionOf(key), BoundedMemoTable.offsetOf(key));
+      next[node] = free;
+      free = node;
+      return key;
+    }
+
+    @Override
+    public void cut(long offset) {
+      for (int node = head; node >= 0;) {
+        int following = next[node];
+        long key = keys[node];
+        if (BoundedMemoTable.offsetOf(key) < offset) {
+          unlink(node);
+          index.remove(BoundedMemoTable.productionOf(key), BoundedMemoTable.offsetOf(key));
+          next[node] = free;
+          free = node;
+        }
+        node = following;
+      }
+    }
+
+    @Override
+    public void clear() {
+      index.cut(Long.MAX_VALUE);
+      head = tail = free = -1;
+      count = 0;
+    }
+
+    private void link(int node) {
+      prev[node] = -1;
+      next[node] = head;
+      if (head >= 0) {
+        prev[head] = node;
+      } else {
+        tail = node;
+      }
+      head = node;
+    }
+
+    private void unlink(int node) {
+      if (prev[node] >= 0) {
+        next[prev[node]] = next[node];
+      } else {
+        head = next[node];
+      }
+      if (next[node] >= 0) {
+        prev[next[node]] = prev[node];
+      } else {
+        tail = prev[node];
+      }
+    }
+
+  }
+
+  // Window
+
+  /**
+   * Policy that evicts entries that are farther behind the farthest stored
+   * offset than the specified window. When the table is full the oldest entry
+   * is evicted. Suitable for grammars that rarely backtrack far.
+   *
+   * @author Fox Mulder
+   */
+  class Window implements EvictionPolicy {
+
+    /**
+     * Number of characters behind the farthest offset to keep entries for.
+     */
+    private final int window;
+
+    /**
+     * Entry keys in order they were stored.
+     */
+    private final LongQueue queue = new LongQueue();
+
+    /**
+     * Farthest offset of the stored entries.
+     */
+    private long farthest = 0L;
+
+    /**
+     * Constructs a new window policy.
+     *
+     * @param window Number of characters behind the farthest offset to keep
+     *        entries for.
+     */
+    public Window(int window) {
+      this.window = window;
+    }
+
+    @Override
+    public void onPut(int production, long offset) {
+      queue.add(BoundedMemoTable.keyOf(production, offset));
+      farthest = Math.max(farthest, offset);
+    }
+
+    @Override
+    public void onHit(int production, long offset) {
+      // Order of entries does not depend on hits
+    }
+
+    @Override
+    public long evict(int size, int limit) {
+      if (queue.size() > 0) {
+        if (size > limit || BoundedMemoTable.offsetOf(queue.peek()) < farthest - window) {
+          return queue.poll();
+        }
+      }
+      return NONE;
+    }
+
+    @Override
+    public void cut(long offset) {
+      BoundedMemoTable.retain(queue, offset);
+    }
+
+    @Override
+    public void clear() {
+      queue.clear();
+      farthest = 0L;
+    }
+
+  }
+
+  // Quota
+
+  /**
+   * Policy that limits number of entries for each production. When quota of
+   * a production is exceeded or the table is full the oldest entry of the
+   * production being stored is evicted, so that a few hot productions cannot
+   * take the whole table.
+   *
+   * @author Fox Mulder
+   */
+  class Quota implements EvictionPolicy {
+
+    /**
+     * Maximum number of entries for each production.
+     */
+    private final int quota;
+
+    /**
+     * Entry keys of each production in order they were stored.
+     */
+    private LongQueue[] queues = new LongQueue[16];
+
+    /**
+     * Index of the production of the last stored entry.
+     */
+    private int last = -1;
+
+    /**
+     * Constructs a new quota policy.
+     *
+     * @param quota Maximum number of entries for each production.
+     */
+    public Quota(int quota) {
+      this.quota = quota;
+    }
+
+    @Override
+    public void onPut(int production, long offset) {
+      if (production >= queues.length) {
+        queues = Arrays.copyOf(queues, Math.max(queues.length * 2, production + 1));
+      }
+      if (queues[production] == null) {
+        queues[production] = new LongQueue();
+      }
+      queues[production].add(BoundedMemoTable.keyOf(production, offset));
+      last = production;
+    }
+
+    @Override
+    public void onHit(int production, long offset) {
+      // Order of entries does not depend on hits
+    }
+
+    @Override
+    public long evict(int size, int limit) {
+      if (last >= 0) {
+        LongQueue queue = queues[last];
+        if (queue.size() > 0 && (size > limit || queue.size() > quota)) {
+          return queue.poll();
+        }
+      }
+      return NONE;
+    }
+
+    @Override
+    public void cut(long offset) {
+      for (LongQueue queue : queues) {
+        if (queue != null) {
+          BoundedMemoTable.retain(queue, offset);
+        }
+      }
+    }
+
+    @Override
+    public void clear() {
+      for (LongQueue queue : queues) {
+        if (queue != null) {
+          queue.clear();
+        }
+      }
+      last = -1;
+    }
+
+  }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.util;
+
+import java.util.Arrays;
+
+import org.foxlabs.peg4j.MemoTable;
+import org.foxlabs.peg4j.Transaction;
+
+/**
+ * Memo table based on open addressing hash table with primitive keys.
+ *
+ * <p>Keys, lengths and transaction snapshots are kept in parallel arrays and
+ * collisions are resolved using linear probing, so no objects are allocated
+ * per entry. Array of snapshots is allocated only when the first snapshot is
+ * stored. This is the default memo table suitable for any grammar.</p>
+ *
+ * @author Fox Mulder
+ */
+public class HashMemoTable implements MemoTable {
+
+  /**
+   * Key of the free slot. Production index and offset are never negative.
+   */
+  private static final long FREE = -1L;
+
+  /**
+   * Entry keys, concatenation of production index and offset.
+   */
+  private long[] keys;
+
+  /**
+   * Numbers of recognized characters.
+   */
+  private int[] lengths;
+
+  /**
+   * Transaction snapshots or <code>null</code> if no snapshots were stored.
+   */
+  private Transaction[] deltas = null;
+
+  /**
+   * Current number of entries.
+   */
+  private int size = 0;
+
+  /**
+   * Number of entries after which the table will be expanded.
+   */
+  private int threshold;
+
+  /**
+   * Slot of the current entry.
+   */
+  private int current = -1;
+
+  /**
+   * Constructs a new table with initial capacity of 1024 entries.
+   */
+  public HashMemoTable() {
+    this(1024);
+  }
+
+  /**
+   * Constructs a new table with the specified initial capacity.
+   *
+   * @param initialCapacity Initial capacity of this table.
+   */
+  public HashMemoTable(int initialCapacity) {
+    int capacity = Integer.highestOneBit(Math.max(initialCapacity, 8) * 2 - 1);
+    allocate(capacity);
+  }
+
+  /**
+   * Returns current number of entries in this table.
+   *
+   * @return Current number of entries in this table.
+   */
+  public int size() {
+    return size;
+  }
+
+  // MemoTable
+
+  /**
+   * Finds entry for the specified production index and offset in the
+   * character stream and makes it current.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @return <code>true</code> if entry was found; <code>false</code>
+   *         otherwise.
+   * @see MemoTable#find(int, long)
+   */
+  @Override
+  public boolean find(int production, long offset) {
+    long key = BoundedMemoTable.keyOf(production, offset);
+    int mask = keys.length - 1;
+    for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+      long k = keys[slot];
+      if (k == key) {
+        current = slot;
+        return true;
+      } else if (k == FREE) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Returns number of recognized characters of the current entry.
+   *
+   * @return Number of recognized characters of the current entry.
+   * @see MemoTable#getLength()
+   */
+  @Override
+  public int getLength() {
+    return lengths[current];
+  }
+
+  /**
+   * Returns transaction snapshot of the current entry.
+   *
+   * @return Transaction snapshot of the current entry or <code>null</code> if
+   *         there is no snapshot.
+   * @see MemoTable#getDelta()
+   */
+  @Override
+  public Transaction getDelta() {
+    return deltas == null ? null : deltas[current];
+  }
+
+  /**
+   * Stores a new entry for the specified production index and offset in the
+   * character stream.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @param length Number of recognized characters.
+   * @param delta Transaction snapshot or <code>null</code>.
+   * @see MemoTable#put(int, long, int, Transaction)
+   */
+  @Override
+  public void put(int production, long offset, int length, Transaction delta) {
+    if (size >= threshold) {
+      rehash(keys.length * 2);
+    }
+    if (delta != null && deltas == null) {
+      deltas = new Transaction[keys.length];
+    }
+    long key = BoundedMemoTable.keyOf(production, offset);
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (keys[slot] != FREE && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    if (keys[slot] == FREE) {
+      keys[slot] = key;
+      size++;
+    }
+    lengths[slot] = length;
+    if (deltas != null) {
+      deltas[slot] = delta;
+    }
+  }
+
+  /**
+   * Removes entry for the specified production index and offset in the
+   * character stream if it exists. Entries that follow removed one in the
+   * probe sequence are shifted back, so no tombstones are left.
+   *
+   * @param production Production index.
+   * @param offset Offset in the character stream.
+   * @see MemoTable#remove(int, long)
+   */
+  @Override
+  public void remove(int production, long offset) {
+    if (find(production, offset)) {
+      removeSlot(current);
+      current = -1;
+    }
+  }
+
+  /**
+   * Removes entries with offsets less than the specified one. Slots are
+   * cleared in place and entries that follow removed ones in the probe
+   * sequences are shifted back, so arrays are never reallocated.
+   *
+   * @param offset Offset in the character stream.
+   * @return Number of removed entries.
+   * @see MemoTable#cut(long)
+   */
+  @Override
+  public int cut(long offset) {
+    int count = 0;
+    if (size > 0) {
+      for (int slot = 0; slot < keys.length; slot++) {
+        // Shifted entry takes place of the removed one and is checked again
+        while (keys[slot] != FREE && BoundedMemoTable.offsetOf(keys[slot]) < offset) {
+          removeSlot(slot);
+          count++;
+        }
+      }
+      current = -1;
+    }
+    return count;
+  }
+
+  /**
+   * Releases arrays of this table, so they can be garbage collected even if
+   * this table is still referenced.
+   *
+   * @see MemoTable#release()
+   */
+  @Override
+  public void release() {
+    keys = new long[0];
+    lengths = new int[0];
+    deltas = null;
+    size = 0;
+  }
+
+  // Internal
+
+  /**
+   * Removes entry from the specified slot and shifts back entries that follow
+   * it in the probe sequence, so no tombstones are left.
+   */
+  private void removeSlot(int hole) {
+    int mask = keys.length - 1;
+    for (int slot = (hole + 1) & mask; keys[slot] != FREE; slot = (slot + 1) & mask) {
+      int home = hash(keys[slot]) & mask;
+      // Move entry if its home slot is not between the hole and the slot
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        keys[hole] = keys[slot];
+        lengths[hole] = lengths[slot];
+        if (deltas != null) {
+          deltas[hole] = deltas[slot];
+        }
+        hole = slot;
+      }
+    }
+    keys[hole] = FREE;
+    if (deltas != null) {
+      deltas[hole] = null;
+    }
+    size--;
+  }
+
+  /**
+   * Allocates arrays of the specified capacity that should be a power of two.
+   */
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    Arrays.fill(keys, FREE);
+    lengths = new int[capacity];
+    threshold = capacity / 2;
+  }
+
+  /**
+   * Moves entries into arrays of the specified capacity.
+   */
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldLengths = lengths;
+    Transaction[] oldDeltas = deltas;
+    allocate(capacity);
+    deltas = oldDeltas == null ? null : new Transaction[capacity];
+    int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      long key = oldKeys[i];
+      if (key != FREE) {
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        lengths[slot] = oldLengths[i];
+        if (deltas != null) {
+          deltas[slot] = oldDeltas[i];
+        }
+      }
+    }
+    current = -1;
+  }
+
+  /**
+   * Spreads bits of the specified key, so that consecutive offsets of the
+   * same production are not clustered.
+   */
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.util;
+
+/**
+ * FIFO queue of primitive <code>long</code> values based on growing ring
+ * buffer.
+ *
+ * @author Fox Mulder
+ */
+final class LongQueue {
+
+  /**
+   * Ring buffer, length is always a power of two.
+   */
+  private long[] elements = new long[16];
+
+  /**
+   * Index of the head element.
+   */
+  private int head = 0;
+
+  /**
+   * Current number of elements.
+   */
+  private int size = 0;
+
+  /**
+   * Returns current number of elements in this queue.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Appends the specified element to the tail of this queue.
+   */
+  void add(long element) {
+    if (size == elements.length) {
+      long[] copy = new long[elements.length * 2];
+      for (int i = 0; i < size; i++) {
+        copy[i] = elements[(head + i) & (elements.length - 1)];
+      }
+      elements = copy;
+      head = 0;
+    }
+    elements[(head + size++) & (elements.length - 1)] = element;
+  }
+
+  /**
+   * Returns head element of this queue, queue should not be empty.
+   */
+  long peek() {
+    return elements[head];
+  }
+
+  /**
+   * Removes and returns head element of this queue, queue should not be
+   * empty.
+   */
+  long poll() {
+    long element = elements[head];
+    head = (head + 1) & (elements.length - 1);
+    size--;
+    return element;
+  }
+
+  /**
+   * Removes all the elements from this queue.
+   */
+  void clear() {
+    head = 0;
+    size = 0;
+  }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.util.Arrays;
+
+import java.io.IOException;
+
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.Label;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.grammar.Rule;
+import org.foxlabs.peg4j.grammar.RuleKind;
+import org.foxlabs.peg4j.grammar.Action;
+import org.foxlabs.peg4j.grammar.Production;
+import org.foxlabs.peg4j.grammar.Reference;
+
+/**
+ * Tracer that emits JDK Flight Recorder events.
+ *
+ * <p>The following events are emitted, all of them can be enabled, disabled
+ * and configured through JFR settings like any JDK event:</p>
+ * <ul>
+ * <li><code>org.foxlabs.peg4j.Parse</code> - parsing with input length,
+ * number of characters parser advanced over and result;</li>
+ * <li><code>org.foxlabs.peg4j.Production</code> - production that took
+ * longer than the threshold, 1 ms by default;</li>
+ * <li><code>org.foxlabs.peg4j.Action</code> - semantic action that took
+ * longer than the threshold, 100 us by default;</li>
+ * <li><code>org.foxlabs.peg4j.MemoSummary</code> - memoization counts of the
+ * parsing.</li>
+ * </ul>
+ *
+ * <p>Events that are disabled at the beginning of parsing are excluded by the
+ * {@link #getFilter() filter} of this tracer, so when recording is off
+ * engines do not dispatch anything to it. Production and action events are
+ * reused by the tracer, so this tracer is not thread-safe and each parser
+ * should use its own instance.</p>
+ *
+ * <p>Flight Recorder API requires Java 11, so this tracer is kept in the
+ * separate <code>src/main/jfr</code> source directory that is compiled for
+ * Java 11 while the rest of the library is compiled for Java 8.</p>
+ *
+ * @author Fox Mulder
+ * @see TraceFilter
+ */
+public class JfrTracer implements RuleTracer {
+
+  /**
+   * Production events indexed by depth of productions being traced.
+   */
+  private ProductionEvent[] productionEvents = new ProductionEvent[32];
+
+  /**
+   * Current depth of productions being traced.
+   */
+  private int depth = 0;
+
+  /**
+   * Action event, actions are never nested.
+   */
+  private final ActionEvent actionEvent = new ActionEvent();
+
+  /**
+   * Input character stream being parsed.
+   */
+  private BacktrackingReader stream = null;
+
+  /**
+   * Number of characters advanced over in the stream before parsing.
+   */
+  private long startLength = 0L;
+
+  /**
+   * Event of the current parsing or <code>null</code> if parse events are
+   * disabled.
+   */
+  private ParseEvent parseEvent = null;
+
+  private long memoHitCount = 0L;
+
+  private long memoMissCount = 0L;
+
+  private long memoFailureHitCount = 0L;
+
+  private long memoPutCount = 0L;
+
+  private long memoEvictionCount = 0L;
+
+  /**
+   * Returns filter that accepts only events needed for JFR events enabled at
+   * the moment. Rule events are accepted only for productions.
+   *
+   * @return Filter of the tracer events.
+   */
+  @Override
+  public TraceFilter getFilter() {
+    int events = 0;
+    if (new ProductionEvent().isEnabled()) {
+      events |= TraceFilter.RULE_EVENTS;
+    }
+    if (actionEvent.isEnabled()) {
+      events |= TraceFilter.ACTION_EVENTS;
+    }
+    if (new MemoSummaryEvent().isEnabled()) {
+      events |= TraceFilter.CACHE_GET_EVENTS | TraceFilter.CACHE_PUT_EVENTS
+          | TraceFilter.CACHE_EVICT_EVENTS;
+    }
+    return TraceFilter.ALL.events(events).kinds(RuleKind.PRODUCTION);
+  }
+
+  @Override
+  public void open(BacktrackingReader stream) throws IOException {
+    this.stream = stream;
+    this.startLength = stream.getEndOffset() + stream.getBacktrackLength();
+    this.depth = 0;
+    this.memoHitCount = 0L;
+    this.memoMissCount = 0L;
+    this.memoFailureHitCount = 0L;
+    this.memoPutCount = 0L;
+    this.memoEvictionCount = 0L;
+    ParseEvent event = new ParseEvent();
+    if (event.isEnabled()) {
+      event.file = stream.getFile();
+      event.begin();
+      parseEvent = event;
+    } else {
+      parseEvent = null;
+    }
+  }
+
+  @Override
+  public void onRuleTrace(Rule rule) throws IOException {
+    if (rule.getKind() == RuleKind.PRODUCTION) {
+      if (depth == productionEvents.length) {
+        productionEvents = Arrays.copyOf(productionEvents, depth * 2);
+      }
+      ProductionEvent event = productionEvents[depth];
+      if (event == null) {
+        productionEvents[depth] = event = new ProductionEvent();
+      }
+      depth++;
+      event.begin();
+    }
+  }
+
+  @Override
+  public void onRuleBacktrace(Rule rule, boolean success) throws IOException {
+    if (rule.getKind() == RuleKind.PRODUCTION) {
+      ProductionEvent event = productionEvents[--depth];
+      event.end();
+      if (event.shouldCommit()) {
+        event.production = ((Production) rule).getName();
+        event.offset = stream.getStartOffset();
+        event.length = success ? stream.getLength() : 0;
+        event.success = success;
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  public void onBeforeAction(Action action) throws IOException {
+    actionEvent.begin();
+  }
+
+  @Override
+  public void onAfterAction(Action action, boolean success) throws IOException {
+    actionEvent.end();
+    if (actionEvent.shouldCommit()) {
+      actionEvent.action = action.getName();
+      actionEvent.offset = stream.getStartOffset();
+      actionEvent.success = success;
+      actionEvent.commit();
+    }
+  }
+
+  @Override
+  public void onCacheGet(Reference reference, boolean hit, boolean success) throws IOException {
+    if (hit) {
+      memoHitCount++;
+      if (!success) {
+        memoFailureHitCount++;
+      }
+    } else {
+      memoMissCount++;
+    }
+  }
+
+  @Override
+  public void onCachePut(Reference reference) throws IOException {
+    memoPutCount++;
+  }
+
+  @Override
+  public void onCacheEvict(Production production, long offset) throws IOException {
+    memoEvictionCount++;
+  }
+
+  @Override
+  public void close(boolean result) throws IOException {
+    if (parseEvent != null) {
+      parseEvent.end();
+      if (parseEvent.shouldCommit()) {
+        parseEvent.inputLength = stream.getInputLength();
+        parseEvent.consumedLength =
+            stream.getEndOffset() + stream.getBacktrackLength() - startLength;
+        parseEvent.success = result;
+        parseEvent.commit();
+      }
+      parseEvent = null;
+    }
+    MemoSummaryEvent event = new MemoSummaryEvent();
+    if (event.shouldCommit() && memoHitCount + memoMissCount + memoPutCount > 0L) {
+      event.hits = memoHitCount;
+      event.misses = memoMissCount;
+      event.failureHits = memoFailureHitCount;
+      event.puts = memoPutCount;
+      event.evictions = memoEvictionCount;
+      event.commit();
+    }
+    stream = null;
+  }
+
+  // Events
+
+  @Name("org.foxlabs.peg4j.Parse")
+  @Label("Parse")
+  @Category("Peg4j")
+  @Description("Parsing of the input character stream")
+  static final class ParseEvent extends Event {
+
+    @Label("File")
+    String file;
+
+    @Label("Input Length")
+    long inputLength;
+
+    @Label("Consumed Length")
+    @Description("Number of characters advanced over including the ones read again after backtracking")
+    long consumedLength;
+
+    @Label("Success")
+    boolean success;
+
+  }
+
+  @Name("org.foxlabs.peg4j.Production")
+  @Label("Slow Production")
+  @Category("Peg4j")
+  @Description("Production that took longer than the threshold")
+  @Threshold("1 ms")
+  @StackTrace(false)
+  static final class ProductionEvent extends Event {
+
+    @Label("Production")
+    String production;
+
+    @Label("Offset")
+    long offset;
+
+    @Label("Length")
+    long length;
+
+    @Label("Success")
+    boolean success;
+
+  }
+
+  @Name("org.foxlabs.peg4j.Action")
+  @Label("Action")
+  @Category("Peg4j")
+  @Description("Semantic action that took longer than the threshold")
+  @Threshold("100 us")
+  @StackTrace(false)
+  static final class ActionEvent extends Event {
+
+    @Label("Action")
+    String action;
+
+    @Label("Offset")
+    long offset;
+
+    @Label("Success")
+    boolean success;
+
+  }
+
+  @Name("org.foxlabs.peg4j.MemoSummary")
+  @Label("Memo Summary")
+  @Category("Peg4j")
+  @Description("Memoization counts of the parsing")
+  @StackTrace(false)
+  static final class MemoSummaryEvent extends Event {
+
+    @Label("Hits")
+    long hits;
+
+    @Label("Misses")
+    long misses;
+
+    @Label("Failure Hits")
+    long failureHits;
+
+    @Label("Puts")
+    long puts;
+
+    @Label("Evictions")
+    long evictions;
+
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * This class was automatically generated by the ${product_name} version ${product_version}.
+ * For more information please refer to the ${product_url}.
+ */
+${package_decl}
+
+${import_decls}
+
+public class ${parser_type} extends Parser<${result_type}> {
+    
+    // Interface
+    
+    @Override
+    protected final Grammar getGrammar() {
+        return GRAMMAR;
+    }
+    
+    @Override
+    protected Transaction getTransaction() {
+        // FIXME
+        return Transaction.STATELESS;
+    }
+    
+    @Override
+    protected ${result_type} buildResult() {
+        // TODO
+        return null;
+    }
+    
+    @Override
+    protected boolean reduce(ParseContext context) throws IOException, RecognitionException {
+        if (getTracer() != null) {
+            // Tracing is handled by the grammar interpreter
+            return super.reduce(context);
+        }
+        BacktrackingReader in = context.stream();
+        in.mark();
+        context.transaction().begin();
+        if (${start_method}(context)) {
+            context.transaction().commit();
+            in.release();
+            return true;
+        }
+        context.transaction().rollback();
+        in.reset();
+        return false;
+    }
+    
+    // Actions
+    
+    ${action_methods}
+    // Productions
+    
+    ${descent_methods}
+    // Grammar
+    
+    private static final Grammar GRAMMAR = new GrammarBuilder()
+            ${grammar_statements}
+            
+            .buildGrammar();
+    
+    ${descent_constants}
+    
+    private static Production production(String name) {
+        for (Production rule : GRAMMAR.getProductions()) {
+            if (rule.getName().equals(name)) {
+                return rule;
+            }
+        }
+        throw new IllegalStateException(name);
+    }
+    
+    private static Rule lookup(String production, int... path) {
+        Expression expression = production(production).getExpression();
+        for (int index : path) {
+            if (expression instanceof Expression.Unary) {
+                expression = ((Expression.Unary) expression).getChild();
+            } else {
+                expression = ((Expression.Nary) expression).getChild(index);
+            }
+        }
+        return expression;
+    }
+    
+}
+
+${problems}
\ No newline at end of file
@@ -0,0 +1,527 @@
+/* 
+ * Copyright (C) 2014 FoxLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.util.Location;
+
+/**
+ * Tests for the {@link BacktrackingReader} class.
+ * 
+ * @author Fox Mulder
+ */
+public class BacktrackingReaderTest {
+
+  /**
+   * Number of records in the generated input.
+   */
+  private static final int RECORD_COUNT = 100000;
+
+  /**
+   * Length of the record in the generated input.
+   */
+  private static final int RECORD_LENGTH = 64;
+
+  /**
+   * Reads generated input in streaming mode marking each record and checks
+   * that buffer does not grow while offsets and locations are preserved.
+   */
+  @Test
+  public void testStreaming() throws IOException {
+    BacktrackingReader reader = new BacktrackingReader(new RecordReader(), "records");
+    reader.setStreaming(true);
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      reader.mark();
+      readRecord(reader, i);
+      reader.reset();
+      reader.mark();
+      readRecord(reader, i);
+      Assert.assertEquals(i * RECORD_LENGTH, reader.getStartOffset());
+      Assert.assertEquals(i + 1, reader.getStartLine());
+      Assert.assertEquals(RECORD_LENGTH - 1, reader.getText().length());
+      Assert.assertEquals(BacktrackingReader.EOL, reader.read());
+      reader.release();
+    }
+    Assert.assertEquals(BacktrackingReader.EOF, reader.read());
+    Assert.assertEquals(RECORD_COUNT * RECORD_LENGTH, reader.getEndOffset());
+    Assert.assertTrue(reader.getCapacity() < RECORD_LENGTH * 256);
+  }
+
+  /**
+   * Checks that locations are computed from offsets, including locations of
+   * pointers stored before the latest cut when lines before it are discarded
+   * in streaming mode.
+   */
+  @Test
+  public void testLocations() throws IOException {
+    BacktrackingReader reader = new BacktrackingReader(new RecordReader(), Location.valueOf("records", 5, 3));
+    reader.setStreaming(true);
+    skipChars(reader, 10);
+    reader.mark();
+    for (int i = 0; i < RECORD_COUNT / 2; i++) {
+      skipChars(reader, RECORD_LENGTH);
+      reader.cut();
+    }
+    assertLocation(5, 13, reader.getStart());
+    assertLocation(5 + RECORD_COUNT / 2, 11, reader.getEnd());
+    reader.release();
+    for (int i = 0; i < RECORD_COUNT / 2 - 1; i++) {
+      skipChars(reader, RECORD_LENGTH);
+      reader.cut();
+    }
+    assertLocation(5, 3, reader.getStart());
+    Assert.assertEquals(4 + RECORD_COUNT, reader.getEndLine());
+    Assert.assertEquals(11, reader.getEndColumn());
+    Assert.assertTrue(reader.getCapacity() < RECORD_LENGTH * 256);
+  }
+
+  /**
+   * Checks that buffer keeps all the characters if reader is not in streaming
+   * mode.
+   */
+  @Test
+  public void testNoStreaming() throws IOException {
+    BacktrackingReader reader = new BacktrackingReader(new RecordReader());
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      reader.mark();
+      readRecord(reader, i);
+      reader.read();
+      reader.release();
+    }
+    Assert.assertTrue(reader.getCapacity() >= RECORD_COUNT * RECORD_LENGTH);
+    Assert.assertEquals(RECORD_COUNT * RECORD_LENGTH, reader.getText().length());
+  }
+
+  /**
+   * Reads input longer than {@link Integer#MAX_VALUE} characters in streaming
+   * mode and checks that offsets and text at the end are preserved.
+   */
+  @Test
+  public void testLongOffsets() throws IOException {
+    final long length = (1L << 31) + RECORD_LENGTH * 2;
+    BacktrackingReader reader = new BacktrackingReader(new Reader() {
+      long offset = 0L;
+      @Override
+      public int read(char[] buffer, int start, int count) {
+        if (offset == length) {
+          return -1;
+        }
+        count = (int) Math.min(count, length - offset);
+        for (int i = 0; i < count; i++) {
+          buffer[start + i] = RecordReader.charAt((int) (offset++ % RECORD_LENGTH));
+        }
+        return count;
+      }
+      @Override
+      public void close() {
+        // Nothing to close
+      }
+    });
+    reader.setStreaming(true);
+    char[] chars = new char[8192];
+    long count = 0L;
+    while (count < length - RECORD_LENGTH) {
+      count += reader.read(chars, 0, (int) Math.min(chars.length, length - RECORD_LENGTH - count));
+    }
+    reader.mark();
+    for (int n = reader.read(chars, 0, chars.length); n > 0; n = reader.read(chars, 0, chars.length)) {
+      count += n;
+    }
+    Assert.assertEquals(length, count);
+    Assert.assertEquals(length, reader.getEndOffset());
+    Assert.assertEquals(length - RECORD_LENGTH, reader.getStartOffset());
+    Assert.assertEquals(RECORD_LENGTH, reader.getLength());
+    Assert.assertEquals(RECORD_LENGTH, reader.getText().length());
+    Assert.assertTrue(reader.getCapacity() < 1 << 20);
+  }
+
+  /**
+   * Checks that character arrays and sequences are read the same way as
+   * character streams.
+   */
+  @Test
+  public void testChars() throws IOException {
+    String[] texts = {"", "abc", "a\nb\n", "a\r\nb\n\rc\rd\n\ne\r\r", "\r\n\r", "\n\r\n"};
+    for (String text : texts) {
+      String source = "[[" + text + "]]";
+      int start = 2, end = source.length() - 2;
+      assertEquals(new BacktrackingReader(new StringReader(text)), new BacktrackingReader(text, 0, text.length()));
+      assertEquals(new BacktrackingReader(new StringReader(text)), new BacktrackingReader(source, start, end));
+      assertEquals(new BacktrackingReader(new StringReader(text)), new BacktrackingReader(new StringBuilder(source), start, end));
+      assertEquals(new BacktrackingReader(new StringReader(text)), new BacktrackingReader(CharBuffer.wrap(source), start, end));
+      assertEquals(new BacktrackingReader(new StringReader(text)), new BacktrackingReader(source.toCharArray(), start, text.length()));
+    }
+  }
+
+  /**
+   * Checks that line terminators split between portions of underlying stream
+   * are normalized the same way and that raw newlines mode keeps them.
+   */
+  @Test
+  public void testNewlines() throws IOException {
+    String[] texts = {"\r", "a\r\nb\n\rc\rd\n\ne\r\r", "\r\n\r", "\n\r\n", "\r\r\n\n\r\r"};
+    for (String text : texts) {
+      assertEquals(new BacktrackingReader(text, 0, text.length()), new BacktrackingReader(new ChunkReader(text)));
+      BacktrackingReader reader = new BacktrackingReader(new ChunkReader(text));
+      reader.setRawNewlines(true);
+      reader.mark();
+      Assert.assertEquals(text, readAll(reader));
+      Assert.assertEquals(text, reader.getText());
+      reader = new BacktrackingReader(text, 0, text.length());
+      reader.setRawNewlines(true);
+      reader.mark();
+      Assert.assertEquals(text, readAll(reader));
+      Assert.assertEquals(text, reader.getText());
+      reader = new BacktrackingReader(text, 0, text.length());
+      reader.setRawNewlines(true);
+      reader.setRawNewlines(false);
+      assertEquals(new BacktrackingReader(new StringReader(text)), reader);
+    }
+  }
+
+  /**
+   * Checks that underlying stream is not read again once its end is reached.
+   */
+  @Test
+  public void testEof() throws IOException {
+    ChunkReader in = new ChunkReader("abc");
+    BacktrackingReader reader = new BacktrackingReader(in);
+    Assert.assertEquals("abc", readAll(reader));
+    int count = in.count;
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(BacktrackingReader.EOF, reader.peek());
+      Assert.assertEquals(BacktrackingReader.EOF, reader.read());
+    }
+    Assert.assertEquals(count, in.count);
+  }
+
+  /**
+   * Checks that array without <code>\r</code> characters is not copied.
+   */
+  @Test
+  public void testNoCopy() throws IOException {
+    char[] chars = "0123456789".toCharArray();
+    BacktrackingReader reader = new BacktrackingReader(chars, 3, 4);
+    Assert.assertEquals(chars.length, reader.getCapacity());
+    reader.mark();
+    Assert.assertEquals('3', reader.read());
+    Assert.assertEquals(3, reader.skip(10));
+    Assert.assertEquals(BacktrackingReader.EOF, reader.read());
+    Assert.assertEquals("3456", reader.getText());
+    reader.reset();
+    Assert.assertEquals(0, reader.getEndOffset());
+    Assert.assertEquals('3', reader.peek());
+  }
+
+  /**
+   * Checks that small and memory-mapped files are read the same way as
+   * character streams.
+   */
+  @Test
+  public void testFile() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append("line ").append(i).append(i % 3 == 0 ? "\r\n" : " \u00e9\u00fc\u20ac\n");
+    }
+    Charset[] charsets = {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII, StandardCharsets.UTF_16};
+    for (String content : new String[] {text.substring(0, 100), text.toString()}) {
+      for (Charset charset : charsets) {
+        Path file = Files.createTempFile("peg4j", ".txt");
+        try {
+          Files.write(file, content.getBytes(charset));
+          try (InputStreamReader stream = new InputStreamReader(Files.newInputStream(file), charset)) {
+            assertEquals(new BacktrackingReader(stream), new BacktrackingReader(file, charset));
+          }
+        } finally {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks that channels are decoded the same way as character streams even
+   * if bytes arrive in small chunks.
+   */
+  @Test
+  public void testChannel() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      text.append("line ").append(i).append(i % 3 == 0 ? "\r\n" : " \u00e9\u20ac\ud83d\ude00\n");
+    }
+    Charset[] charsets = {StandardCharsets.UTF_8, StandardCharsets.UTF_16, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII};
+    for (Charset charset : charsets) {
+      byte[] bytes = text.toString().getBytes(charset);
+      bytes[bytes.length / 2] = (byte) 0xFF; // malformed input
+      String expected = new String(bytes, charset);
+      assertEquals(new BacktrackingReader(new StringReader(expected)),
+          new BacktrackingReader(new ChunkChannel(bytes), charset, null));
+    }
+  }
+
+  /**
+   * Checks that UTF-8 bytes are read in byte mode the same way as decoded
+   * characters.
+   */
+  @Test
+  public void testBytes() throws IOException {
+    String[] texts = {"", "abc", "a\r\nb\n\rc\rd\n\ne\r\r", "\u00e9t\u00e9\n\u20ac\r\n\u4e2d\u6587"};
+    for (String text : texts) {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      BacktrackingReader reader = new BacktrackingReader(ByteBuffer.wrap(bytes), null);
+      Assert.assertTrue(reader.isByteMode());
+      assertEquals(new BacktrackingReader(new StringReader(text)), reader);
+      Assert.assertEquals(bytes.length, reader.getEndOffset());
+    }
+
+    BacktrackingReader reader = new BacktrackingReader(ByteBuffer.wrap("\ud83d\ude00\u00e9x\u00ff".getBytes(StandardCharsets.UTF_8)), null);
+    Assert.assertEquals(0x1F600, reader.peek());
+    Assert.assertEquals(0x1F600, reader.read());
+    Assert.assertEquals(4, reader.getEndOffset());
+    Assert.assertFalse(reader.read("\u00e9y".getBytes(StandardCharsets.UTF_8)));
+    Assert.assertEquals(4, reader.getEndOffset());
+    Assert.assertTrue(reader.read("\u00e9x".getBytes(StandardCharsets.UTF_8)));
+    Assert.assertEquals(4, reader.getEndColumn());
+    Assert.assertEquals(2, reader.skip(10));
+    Assert.assertEquals(BacktrackingReader.EOF, reader.read());
+
+    reader = new BacktrackingReader(ByteBuffer.wrap(new byte[] {'a', (byte) 0xC3, 'b', (byte) 0xE2, (byte) 0x82}), null);
+    char[] chars = new char[8];
+    Assert.assertEquals(4, reader.read(chars, 0, chars.length));
+    Assert.assertEquals("a\ufffdb\ufffd", new String(chars, 0, 4));
+  }
+
+  /**
+   * Checks that UTF-8 bytes are parsed in byte mode by all engines.
+   */
+  @Test
+  public void testUtf8Parser() throws IOException {
+    Utf8Parser[] parsers = {new Utf8Parser(), new Utf8Parser(), new Utf8Parser()};
+    parsers[1].setStackless(true);
+    parsers[2].setCompileThreshold(1);
+    for (Utf8Parser parser : parsers) {
+      byte[] bytes = "[\u00e9t\u00e9 \u20ac\ud83d\ude00 caf\u00e9 \ud83d\ude00]".getBytes(StandardCharsets.UTF_8);
+      Assert.assertNull(parseUtf8(parser, bytes, 1, bytes.length - 2));
+      bytes = "\u00e9t\u00e9 \u20ac\u20ac\ncaf\u00e8".getBytes(StandardCharsets.UTF_8);
+      Assert.assertTrue(parseUtf8(parser, bytes, 0, bytes.length).startsWith("2:1:"));
+    }
+  }
+
+  /**
+   * Parses the specified UTF-8 bytes and returns error message or
+   * <code>null</code> if bytes were parsed successfully.
+   */
+  private static String parseUtf8(Parser<?> parser, byte[] bytes, int offset, int length) throws IOException {
+    try {
+      parser.parseUtf8(bytes, offset, length);
+      return null;
+    } catch (RecognitionException e) {
+      return e.getMessage();
+    }
+  }
+
+  /**
+   * Checks line and column of the specified location.
+   */
+  private static void assertLocation(int line, int column, Location location) {
+    Assert.assertEquals(line, location.line);
+    Assert.assertEquals(column, location.column);
+  }
+
+  /**
+   * Reads the specified number of characters one by one.
+   */
+  private static void skipChars(BacktrackingReader reader, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      Assert.assertNotEquals(BacktrackingReader.EOF, reader.read());
+    }
+  }
+
+  /**
+   * Reads all the remaining characters of the specified reader.
+   */
+  private static String readAll(BacktrackingReader reader) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int ch = reader.read(); ch != BacktrackingReader.EOF; ch = reader.read()) {
+      text.append((char) ch);
+    }
+    return text.toString();
+  }
+
+  /**
+   * Checks that both readers return the same characters and locations.
+   */
+  private static void assertEquals(BacktrackingReader expected, BacktrackingReader actual) throws IOException {
+    for (int ch = expected.read(); ch != BacktrackingReader.EOF; ch = expected.read()) {
+      Assert.assertEquals(ch, actual.read());
+      Assert.assertEquals(expected.getEndLine(), actual.getEndLine());
+      Assert.assertEquals(expected.getEndColumn(), actual.getEndColumn());
+    }
+    Assert.assertEquals(BacktrackingReader.EOF, actual.read());
+    Assert.assertEquals(expected.getText(), actual.getText());
+  }
+
+  /**
+   * Reads characters of the specified record except end of line.
+   */
+  private static void readRecord(BacktrackingReader reader, int record) throws IOException {
+    for (int i = 0; i < RECORD_LENGTH - 1; i++) {
+      Assert.assertEquals(RecordReader.charAt(record * RECORD_LENGTH + i), reader.read());
+    }
+  }
+
+  // Utf8Parser
+
+  @Peg4jGrammar("Start : ('\u00e9t\u00e9' / '\u20ac' / '\ud83d\ude00' / 'caf\u00e9' / ' ' / '\\n')* !. ;")
+  public static class Utf8Parser extends DefaultParser<Object> {
+
+    @Override
+    protected Transaction getTransaction() {
+      return Transaction.STATELESS;
+    }
+
+    @Override
+    protected Object buildResult() {
+      return null;
+    }
+
+  }
+
+  // ChunkChannel
+
+  /**
+   * Channel that returns bytes in chunks of different small sizes.
+   */
+  static class ChunkChannel implements ReadableByteChannel {
+
+    private final byte[] bytes;
+
+    private int offset = 0;
+
+    ChunkChannel(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) {
+      if (offset == bytes.length) {
+        return -1;
+      }
+      int length = Math.min(Math.min(offset % 7 + 1, bytes.length - offset), buffer.remaining());
+      buffer.put(bytes, offset, length);
+      offset += length;
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to close
+    }
+
+  }
+
+  // ChunkReader
+
+  /**
+   * Reader that returns characters in chunks of different small sizes and
+   * counts reads.
+   */
+  static class ChunkReader extends Reader {
+
+    private final String text;
+
+    private int offset = 0;
+
+    int count = 0;
+
+    ChunkReader(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public int read(char[] buffer, int start, int length) {
+      count++;
+      if (offset == text.length()) {
+        return -1;
+      }
+      length = Math.min(Math.min(offset % 3 + 1, text.length() - offset), length);
+      text.getChars(offset, offset + length, buffer, start);
+      offset += length;
+      return length;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to close
+    }
+
+  }
+
+  // RecordReader
+
+  /**
+   * Reader that generates records of fixed length without keeping them in
+   * memory.
+   */
+  static class RecordReader extends Reader {
+
+    private int offset = 0;
+
+    static char charAt(int offset) {
+      return offset % RECORD_LENGTH == RECORD_LENGTH - 1 ? '\n' : (char) ('a' + offset % 26);
+    }
+
+    @Override
+    public int read(char[] buffer, int start, int length) {
+      if (offset == RECORD_COUNT * RECORD_LENGTH) {
+        return -1;
+      }
+      length = Math.min(length, RECORD_COUNT * RECORD_LENGTH - offset);
+      for (int i = 0; i < length; i++) {
+        buffer[start + i] = charAt(offset++);
+      }
+      return length;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to close
+    }
+
+  }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j;
+
+import java.io.IOException;
+
+/**
+ * Parser of Java sources shared by the tests that compare parsing engines.
+ *
+ * @author Fox Mulder
+ */
+@Peg4jGrammar(ref = "classpath:java18.peg4j")
+public class JavaParser extends DefaultParser<Object> {
+
+  /**
+   * Java sources to be parsed, including invalid ones.
+   */
+  public static final String[] JAVA_SOURCES = {
+    "class X { int x = 0x1F + 'a' * 2.5e3; }",
+    "package a.b; import java.util.*; public final class X<T extends Y> { }",
+    "class X { void f() { for (int i = 0; i < 10; i++) { if (i % 2 == 0) continue; } } }",
+    "class X { String s = \"\\u0041\\n\"; Runnable r = () -> {}; }",
+    "class X { int x = ; }",
+    "class X { void f() { return } }",
+    "interface",
+  };
+
+  /**
+   * Parses the specified text and returns error message or <code>null</code>
+   * if text was parsed successfully.
+   *
+   * @param parser Parser to be used.
+   * @param text Text to be parsed.
+   * @return Error message or <code>null</code>.
+   * @throws IOException if IO error occurred.
+   */
+  public static String parse(Parser<?> parser, String text) throws IOException {
+    try {
+      parser.parse(text);
+      return null;
+    } catch (RecognitionException e) {
+      return e.getMessage();
+    }
+  }
+
+  @Override
+  protected Transaction getTransaction() {
+    return Transaction.STATELESS;
+  }
+
+  @Override
+  protected Object buildResult() {
+    return null;
+  }
+
+}
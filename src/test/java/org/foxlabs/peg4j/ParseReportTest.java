@@ -0,0 +1,134 @@
+/* 
+ * Copyright (C) 2014 FoxLabs
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import static org.foxlabs.peg4j.debug.RecordParser.ENGINE_COUNT;
+import static org.foxlabs.peg4j.debug.RecordParser.setEngine;
+
+/**
+ * Tests for the {@link ParseReport}.
+ * 
+ * @author Fox Mulder
+ */
+public class ParseReportTest {
+
+  /**
+   * Checks that report counts characters read again after backtracking and
+   * memo table hits for interpreter, parsing machine and compiled productions.
+   */
+  @Test
+  public void testReport() throws IOException, RecognitionException {
+    for (int engine = 0; engine < ENGINE_COUNT; engine++) {
+      final ParseReport[] pushed = new ParseReport[1];
+      BacktrackParser parser = setEngine(new BacktrackParser(), engine);
+      parser.setReportListener(report -> pushed[0] = report);
+      parser.parse("aaac");
+
+      ParseReport report = parser.getLastReport();
+      Assert.assertSame(report, pushed[0]);
+      Assert.assertTrue(report.isSuccess());
+      Assert.assertEquals(4L, report.getInputLength());
+      // 'aaa' is read again after the first alternative failed
+      Assert.assertTrue(report.getConsumedLength() >= 7L);
+      Assert.assertTrue(report.getAmplification() > 1.0);
+      Assert.assertTrue(report.getResetCount() > 0L);
+      Assert.assertTrue(report.getMarkCount() >= report.getResetCount());
+      Assert.assertTrue(report.getPeakMarkDepth() > 0);
+      Assert.assertEquals(1L, report.getMemoHitCount());
+      Assert.assertTrue(report.getMemoPutCount() > 0L);
+      Assert.assertTrue(report.getNanos() > 0L);
+    }
+  }
+
+  /**
+   * Checks that characters read again before parsing are not counted as
+   * consumed by the parsing.
+   */
+  @Test
+  public void testBacktrackedStream() throws IOException, RecognitionException {
+    BacktrackParser parser = new BacktrackParser();
+    parser.parse("aaac");
+    long consumedLength = parser.getLastReport().getConsumedLength();
+
+    BacktrackingReader stream = new BacktrackingReader("aaac", 0, 4);
+    stream.mark();
+    for (int i = 0; i < 3; i++) {
+      stream.read();
+    }
+    stream.reset();
+    Assert.assertEquals(3L, stream.getBacktrackLength());
+    parser.parse(stream);
+    Assert.assertEquals(consumedLength, parser.getLastReport().getConsumedLength());
+  }
+
+  /**
+   * Checks that peak depth of marks is counted from the depth at which
+   * parsing began.
+   */
+  @Test
+  public void testPeakMarkDepth() throws IOException, RecognitionException {
+    BacktrackParser parser = new BacktrackParser();
+    parser.parse("aaac");
+    int peakMarkDepth = parser.getLastReport().getPeakMarkDepth();
+
+    BacktrackingReader stream = new BacktrackingReader("aaac", 0, 4);
+    for (int i = 0; i < peakMarkDepth * 2; i++) {
+      stream.mark();
+    }
+    parser.parse(stream);
+    Assert.assertEquals(peakMarkDepth, parser.getLastReport().getPeakMarkDepth());
+    Assert.assertEquals(peakMarkDepth * 3, stream.getPeakMarkDepth());
+  }
+
+  /**
+   * Checks that report is available when input cannot be recognized.
+   */
+  @Test
+  public void testFailureReport() throws IOException {
+    BacktrackParser parser = new BacktrackParser();
+    try {
+      parser.parse("aaad");
+      Assert.fail();
+    } catch (RecognitionException e) {
+      Assert.assertFalse(parser.getLastReport().isSuccess());
+      Assert.assertEquals(4L, parser.getLastReport().getInputLength());
+    }
+  }
+
+  // BacktrackParser
+
+  @Peg4jGrammar("S : @A 'b' / @A 'c' ; A : 'a'+ ;")
+  public static class BacktrackParser extends DefaultParser<Object> {
+
+    @Override
+    protected Transaction getTransaction() {
+      return Transaction.STATELESS;
+    }
+
+    @Override
+    protected Object buildResult() {
+      return null;
+    }
+
+  }
+
+}
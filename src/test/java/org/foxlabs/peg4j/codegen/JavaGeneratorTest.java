@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.codegen;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.io.File;
+import java.io.Writer;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.ByteArrayOutputStream;
+
+import java.nio.file.Files;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.Parser;
+import org.foxlabs.peg4j.Transaction;
+import org.foxlabs.peg4j.DefaultParser;
+import org.foxlabs.peg4j.Peg4jGrammar;
+import org.foxlabs.peg4j.JavaParser;
+import org.foxlabs.peg4j.grammar.Grammar;
+
+import static org.foxlabs.peg4j.JavaParser.JAVA_SOURCES;
+import static org.foxlabs.peg4j.JavaParser.parse;
+
+/**
+ * Tests that recursive descent parsers generated by the {@link JavaGenerator}
+ * behave exactly as interpreter.
+ *
+ * @author Fox Mulder
+ */
+public class JavaGeneratorTest {
+
+  /**
+   * Expressions to be parsed, including invalid ones.
+   */
+  private static final String[] EXPRESSIONS = {
+    "1+2*3",
+    "(1-2)*(3+4)-5",
+    "((((((((((((((((((((1))))))))))))))))))))",
+    "1+",
+    "(1*2",
+    "1+2)",
+    "",
+  };
+
+  /**
+   * Statements to be parsed, including invalid ones.
+   */
+  private static final String[] STATEMENTS = {
+    "ifx=1;",
+    "if;",
+    "ifx=1;if;abc=12;",
+    "abc=;",
+  };
+
+  /**
+   * Compiles recursive descent parser for the grammar of Java language and
+   * checks that it produces the same results and syntax errors as interpreter.
+   */
+  @Test
+  public void testJavaParser() throws Exception {
+    JavaParser interpreter = new JavaParser();
+    Parser<?> descent = compile(interpreter.getGrammar(), "JavaParser");
+    for (String source : JAVA_SOURCES) {
+      Assert.assertEquals(parse(interpreter, source), parse(descent, source));
+    }
+  }
+
+  /**
+   * Compiles recursive descent parser for the grammar with memoized
+   * productions and checks that it produces the same results and syntax
+   * errors as interpreter with and without memoization.
+   */
+  @Test
+  public void testMemoParser() throws Exception {
+    ExpressionParser interpreter = new ExpressionParser();
+    Parser<?> descent = compile(interpreter.getGrammar(), "ExpressionParser");
+    for (String text : EXPRESSIONS) {
+      Assert.assertEquals(parse(interpreter, text), parse(descent, text));
+    }
+
+    descent.parse(EXPRESSIONS[1]);
+    Assert.assertTrue(descent.getLastReport().getMemoHitCount() > 0L);
+
+    interpreter.setMemoable(false);
+    descent.setMemoable(false);
+    for (int i = 0; i < 2; i++) {
+      Assert.assertEquals(parse(interpreter, EXPRESSIONS[i]), parse(descent, EXPRESSIONS[i]));
+    }
+    for (int i = 3; i < EXPRESSIONS.length; i++) {
+      Assert.assertEquals(parse(interpreter, EXPRESSIONS[i]), parse(descent, EXPRESSIONS[i]));
+    }
+  }
+
+  /**
+   * Compiles recursive descent parser for the grammar with cut that is
+   * reached through a predicate and checks that the cut is ignored there
+   * exactly as by interpreter.
+   */
+  @Test
+  public void testPredicateCut() throws Exception {
+    StatementParser interpreter = new StatementParser();
+    Parser<?> descent = compile(interpreter.getGrammar(), "StatementParser");
+    for (String text : STATEMENTS) {
+      Assert.assertEquals(parse(interpreter, text), parse(descent, text));
+    }
+    Assert.assertNull(parse(descent, STATEMENTS[2]));
+  }
+
+  /**
+   * Compiles recursive descent parser for the grammar with cut and checks
+   * that syntax errors after the cut are reported exactly as by interpreter.
+   */
+  @Test
+  public void testCutErrors() throws Exception {
+    StatementParser interpreter = new StatementParser();
+    Parser<?> descent = compile(interpreter.getGrammar(), "StatementParser");
+    for (String text : new String[]{"if=1;", "ifx", "abc=1;if=", "abc=1;if;if"}) {
+      String error = parse(interpreter, text);
+      Assert.assertTrue(error, error.startsWith("1:"));
+      Assert.assertEquals(error, parse(descent, text));
+    }
+  }
+
+  /**
+   * Generates recursive descent parser for the specified grammar, compiles it
+   * and returns a new instance of the parser.
+   */
+  private static Parser<?> compile(Grammar grammar, String name) throws Exception {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    Assert.assertNotNull("JDK is required to compile generated parser.", compiler);
+
+    File dir = Files.createTempDirectory("peg4j").toFile();
+    try {
+      File source = new File(dir, name + ".java");
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(source), "UTF-8")) {
+        JavaGenerator generator = new JavaGenerator(name, "descent", null,
+            JavaGenerator.GENERATE_COMMENTS | JavaGenerator.GENERATE_DESCENT);
+        generator.generate(grammar, out);
+      }
+
+      // Grammar statements are a single chain of builder calls that needs
+      // deep stack to be compiled
+      final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      final String[] args = {"-nowarn", "-encoding", "UTF-8", "-classpath",
+          System.getProperty("java.class.path"), "-d", dir.getPath(), source.getPath()};
+      final int[] status = {-1};
+      Thread thread = new Thread(null, () -> status[0] = compiler.run(null, errors, errors, args),
+          "javac", 256L << 20);
+      thread.start();
+      thread.join();
+      Assert.assertEquals(errors.toString("UTF-8"), 0, status[0]);
+
+      URLClassLoader loader = new URLClassLoader(new URL[]{dir.toURI().toURL()},
+          JavaGeneratorTest.class.getClassLoader());
+      Class<?> type = Class.forName("descent." + name, true, loader);
+      return (Parser<?>) type.getDeclaredConstructor().newInstance();
+    } finally {
+      delete(dir);
+    }
+  }
+
+  /**
+   * Deletes the specified file or directory recursively.
+   */
+  private static void delete(File file) throws IOException {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    Files.deleteIfExists(file.toPath());
+  }
+
+  // ExpressionParser
+
+  @Peg4jGrammar("Start : Expr !. ;"
+      + "Expr : @Term '+' Expr / @Term '-' Expr / @Term ;"
+      + "Term : @Atom '*' Term / @Atom ;"
+      + "Atom : ['0'-'9']+ / '(' Expr ')' ;")
+  public static class ExpressionParser extends DefaultParser<Object> {
+
+    @Override
+    protected Transaction getTransaction() {
+      return Transaction.STATELESS;
+    }
+
+    @Override
+    protected Object buildResult() {
+      return null;
+    }
+
+  }
+
+  // StatementParser
+
+  @Peg4jGrammar("Start : Statement+ !. ;"
+      + "Statement : !@Keyword Name '=' ['0'-'9']+ ';' / @Keyword ';' ;"
+      + "Keyword : 'if' ^ !['a'-'z'] ;"
+      + "Name : ['a'-'z']+ ;")
+  public static class StatementParser extends DefaultParser<Object> {
+
+    @Override
+    protected Transaction getTransaction() {
+      return Transaction.STATELESS;
+    }
+
+    @Override
+    protected Object buildResult() {
+      return null;
+    }
+
+  }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.grammar.Grammar;
+import org.foxlabs.peg4j.grammar.Production;
+
+/**
+ * Tests for the {@link AllocationTracer}.
+ *
+ * @author Fox Mulder
+ */
+public class AllocationTracerTest {
+
+  /**
+   * Input of the record parser, large enough for the memo table to grow.
+   */
+  private static final String RECORDS;
+
+  static {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      buf.append(RecordParser.RECORDS);
+    }
+    RECORDS = buf.toString();
+  }
+
+  /**
+   * Checks that inclusive bytes of a production are its exclusive bytes plus
+   * inclusive bytes of the nested productions.
+   */
+  @Test
+  public void testAttribution() throws Exception {
+    AllocationTracer tracer = new AllocationTracer();
+    RecordParser parser = new RecordParser();
+    parser.setTracer(tracer);
+    parser.parse(RECORDS);
+
+    Grammar grammar = parser.getGrammar();
+    Production file = production(grammar, "File");
+    Production record = production(grammar, "Record");
+    Production field = production(grammar, "Field");
+    Assert.assertTrue(tracer.getTotalBytes() >= tracer.getInclusiveBytes(file));
+    Assert.assertTrue(tracer.getInclusiveBytes(file) > 0L);
+    Assert.assertEquals(tracer.getInclusiveBytes(file),
+        tracer.getExclusiveBytes(file) + tracer.getInclusiveBytes(record));
+    Assert.assertEquals(tracer.getInclusiveBytes(record),
+        tracer.getExclusiveBytes(record) + tracer.getInclusiveBytes(field));
+
+    StringWriter out = new StringWriter();
+    tracer.print(out);
+    Assert.assertTrue(out.toString().contains("Bytes : " + tracer.getTotalBytes()));
+    Assert.assertTrue(out.toString().contains("File : " + tracer.getInclusiveBytes(file)
+        + " / " + tracer.getExclusiveBytes(file)));
+  }
+
+  /**
+   * Checks that bytes allocated by sampling itself are not counted, so
+   * parsings that allocate nothing between samples account no bytes.
+   */
+  @Test
+  public void testProbeCost() throws Exception {
+    AllocationTracer tracer = new AllocationTracer();
+    BacktrackingReader stream = new BacktrackingReader("", 0, 0);
+    for (int i = 0; i < 100; i++) {
+      tracer.open(stream);
+      tracer.close(true);
+    }
+    Assert.assertEquals(0L, tracer.getTotalBytes());
+  }
+
+  /**
+   * Checks that parsing fails in assertion mode if it allocates more bytes
+   * per character than allowed.
+   */
+  @Test
+  public void testMaxBytesPerChar() throws Exception {
+    AllocationTracer tracer = new AllocationTracer();
+    tracer.setMaxBytesPerChar(1000000.0);
+    RecordParser parser = new RecordParser();
+    parser.setTracer(tracer);
+    parser.parse(RECORDS);
+
+    tracer.setMaxBytesPerChar(0.01);
+    String message = null;
+    try {
+      parser.parse(RECORDS);
+    } catch (AssertionError e) {
+      message = e.getMessage();
+    }
+    Assert.assertNotNull(message);
+    Assert.assertTrue(message.startsWith("Parsing allocated "));
+  }
+
+  private static Production production(Grammar grammar, String name) {
+    for (Production production : grammar.getProductions()) {
+      if (production.getName().equals(name)) {
+        return production;
+      }
+    }
+    throw new IllegalArgumentException(name);
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+/**
+ * Tests for the {@link BinaryTracer} and {@link TraceRenderer}.
+ *
+ * @author Fox Mulder
+ */
+public class BinaryTracerTest {
+
+  /**
+   * Checks that rendered binary trace is the same as trace written by the
+   * {@link DebugTracer}.
+   */
+  @Test
+  public void testRender() throws Exception {
+    File source = File.createTempFile("peg4j", ".txt");
+    File trace = File.createTempFile("peg4j", ".trace");
+    try {
+      Files.write(source.toPath(), RecordParser.RECORDS.getBytes(StandardCharsets.UTF_8));
+      for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+        RecordParser parser = RecordParser.newParser(engine);
+
+        StringWriter expected = new StringWriter();
+        DebugTracer debug = new DebugTracer(expected);
+        debug.setTraceLevel(TraceLevel.HIGH);
+        debug.setMaxTextSize(16);
+        parser.setTracer(debug);
+        parser.parse(source, "UTF-8");
+
+        parser.setTracer(new BinaryTracer(trace));
+        parser.parse(source, "UTF-8");
+
+        StringWriter actual = new StringWriter();
+        TraceRenderer renderer = new TraceRenderer();
+        renderer.setTraceLevel(TraceLevel.HIGH);
+        renderer.setMaxTextSize(16);
+        renderer.render(trace, null, StandardCharsets.UTF_8, actual);
+
+        String text = expected.toString();
+        text = text.substring(text.indexOf("TRACE:\n"), text.indexOf("\nTRACE RESULTS:"));
+        Assert.assertTrue(text.contains("-> 1:1 File"));
+        // Text of the File production is truncated
+        Assert.assertTrue(text.contains("\"..."));
+        Assert.assertTrue(actual.toString().startsWith("SOURCE: " + source.getPath()));
+        Assert.assertTrue(actual.toString().endsWith(text + "SUCCESS!\n"));
+
+        StringWriter html = new StringWriter();
+        renderer.setHtml(true);
+        renderer.render(trace, source, StandardCharsets.UTF_8, html);
+        Assert.assertTrue(html.toString().contains("<span class=\"success\">"));
+        Assert.assertTrue(html.toString().endsWith("SUCCESS!\n</body>\n</html>\n"));
+      }
+    } finally {
+      source.delete();
+      trace.delete();
+    }
+  }
+
+  /**
+   * Checks that rendering of a corrupt trace file fails with exception that
+   * names the file.
+   */
+  @Test
+  public void testMalformed() throws Exception {
+    File source = File.createTempFile("peg4j", ".txt");
+    File trace = File.createTempFile("peg4j", ".trace");
+    try {
+      Files.write(source.toPath(), RecordParser.RECORDS.getBytes(StandardCharsets.UTF_8));
+      RecordParser parser = new RecordParser();
+      parser.setTracer(new BinaryTracer(trace));
+      parser.parse(source, "UTF-8");
+      byte[] bytes = Files.readAllBytes(trace.toPath());
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      int footer = bytes.length - BinaryTracer.FOOTER_SIZE;
+      int trailer = (int) buffer.getLong(footer);
+      int records = 12 + buffer.getInt(8);
+
+      // Unknown kind of the first rule
+      assertMalformed(trace, source, corrupt(bytes, trailer, (byte) 0x7f));
+      // Rule identifier of the first record out of range
+      assertMalformed(trace, source, corrupt(bytes, records, (byte) 0x7f));
+      // Trailer declares more rules than it keeps
+      ByteBuffer rules = ByteBuffer.wrap(bytes.clone());
+      rules.putInt(footer + 8, rules.getInt(footer + 8) + 1);
+      assertMalformed(trace, source, rules.array());
+      // Trailer is truncated
+      byte[] truncated = new byte[bytes.length - 4];
+      System.arraycopy(bytes, 0, truncated, 0, footer - 4);
+      System.arraycopy(bytes, footer, truncated, footer - 4, BinaryTracer.FOOTER_SIZE);
+      assertMalformed(trace, source, truncated);
+    } finally {
+      source.delete();
+      trace.delete();
+    }
+  }
+
+  private static byte[] corrupt(byte[] bytes, int index, byte value) {
+    byte[] copy = bytes.clone();
+    copy[index] = value;
+    return copy;
+  }
+
+  private static void assertMalformed(File trace, File source, byte[] bytes) throws IOException {
+    Files.write(trace.toPath(), bytes);
+    try {
+      new TraceRenderer().render(trace, source, StandardCharsets.UTF_8, new StringWriter());
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertEquals("Malformed trace file: " + trace, e.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.Parser;
+import org.foxlabs.peg4j.grammar.Grammar;
+
+/**
+ * Tests for the {@link GrammarProfile}.
+ *
+ * @author Fox Mulder
+ */
+public class GrammarProfileTest {
+
+  /**
+   * Checks that profile aggregates counts of the parsers running concurrently
+   * on different engines and that snapshot can reset counters.
+   */
+  @Test
+  public void testConcurrentProfile() throws Exception {
+    final Grammar grammar = new RecordParser().getGrammar();
+    final GrammarProfile profile = new GrammarProfile(grammar);
+    Thread[] threads = new Thread[6];
+    final Throwable[] errors = new Throwable[threads.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int engine = i % RecordParser.ENGINE_COUNT;
+      final int index = i;
+      threads[i] = new Thread(() -> {
+        try {
+          for (int n = 0; n < 10; n++) {
+            Parser<?> parser = RecordParser.newParser(engine);
+            parser.setTracer(profile.newTracer());
+            parser.parse(RecordParser.RECORDS);
+          }
+        } catch (Throwable e) {
+          errors[index] = e;
+        }
+      });
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+      Assert.assertNull(errors[i]);
+    }
+
+    GrammarProfile.Snapshot snapshot = profile.snapshotAndReset();
+    Assert.assertEquals(180L, snapshot.getProduction("Record").getSuccessCount());
+    Assert.assertEquals(360L, snapshot.getProduction("Field").getSuccessCount());
+    Assert.assertTrue(snapshot.getProduction("Field").getTotalNanos() > 0L);
+    Assert.assertEquals(grammar.getTerminalCount(), snapshot.getTerminals().length);
+    long terminals = 0L;
+    for (GrammarProfile.Entry entry : snapshot.getTerminals()) {
+      terminals += entry.getInvocationCount();
+    }
+    Assert.assertTrue(terminals > 0L);
+    Assert.assertTrue(snapshot.getMemoMissCount() > 0L);
+
+    GrammarProfile.Snapshot empty = profile.snapshot();
+    Assert.assertEquals(0L, empty.getProduction("Field").getInvocationCount());
+    Assert.assertEquals(0L, empty.getProduction("Field").getMaxNanos());
+    Assert.assertEquals(0L, empty.getMemoMissCount());
+  }
+
+  /**
+   * Checks JSON and Prometheus output of the snapshot.
+   */
+  @Test
+  public void testExport() throws Exception {
+    RecordParser parser = new RecordParser();
+    GrammarProfile profile = new GrammarProfile(parser.getGrammar());
+    parser.setTracer(profile.newTracer());
+    parser.parse(RecordParser.RECORDS);
+
+    StringWriter json = new StringWriter();
+    profile.snapshot().writeJson(json);
+    Assert.assertTrue(json.toString().contains("{\"name\": \"Field\", \"successes\": 6,"));
+    Assert.assertTrue(json.toString().contains("{\"name\": \"'\\\\n'\""));
+
+    StringWriter text = new StringWriter();
+    profile.snapshot().writePrometheus(text);
+    Assert.assertTrue(text.toString().contains(
+        "peg4j_production_invocations{production=\"Field\",result=\"success\"} 6\n"));
+    Assert.assertTrue(text.toString().contains("# TYPE peg4j_production_invocations gauge\n"));
+    Assert.assertFalse(text.toString().contains(" counter\n"));
+    Assert.assertTrue(text.toString().contains("{terminal=\"'\\\\n'\",result=\"success\"} 3\n"));
+  }
+
+}
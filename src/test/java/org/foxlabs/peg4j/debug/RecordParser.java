@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import org.foxlabs.peg4j.Parser;
+import org.foxlabs.peg4j.Transaction;
+import org.foxlabs.peg4j.DefaultParser;
+import org.foxlabs.peg4j.Peg4jGrammar;
+
+/**
+ * Parser of comma separated records shared by the tracer tests.
+ *
+ * @author Fox Mulder
+ */
+@Peg4jGrammar("File : @Record* !. ; Record : Field (',' Field)* '\\n' ; Field : ['a'-'z']+ ;")
+public class RecordParser extends DefaultParser<Object> {
+
+  /**
+   * Input of the record parser.
+   */
+  public static final String RECORDS = "abc,de\nfgh\nij,kl,mn\n";
+
+  /**
+   * Number of engines the grammar can be run by: interpreter, parsing machine
+   * and compiled productions.
+   */
+  public static final int ENGINE_COUNT = 3;
+
+  /**
+   * Returns a new parser that runs grammar by the specified engine.
+   *
+   * @param engine Index of the engine less than {@link #ENGINE_COUNT}.
+   * @return A new parser.
+   */
+  public static RecordParser newParser(int engine) {
+    return setEngine(new RecordParser(), engine);
+  }
+
+  /**
+   * Configures the specified parser to run grammar by the specified engine.
+   *
+   * @param parser Parser to be configured.
+   * @param engine Index of the engine less than {@link #ENGINE_COUNT}.
+   * @return The specified parser.
+   */
+  public static <P extends Parser<?>> P setEngine(P parser, int engine) {
+    parser.setStackless(engine == 1);
+    parser.setCompileThreshold(engine == 2 ? 1 : 0);
+    return parser;
+  }
+
+  @Override
+  protected Transaction getTransaction() {
+    return Transaction.STATELESS;
+  }
+
+  @Override
+  protected Object buildResult() {
+    return null;
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.io.StringReader;
+import java.io.Writer;
+import java.io.StringWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.SyntaxException;
+
+/**
+ * Tests for the {@link RingBufferTracer}.
+ *
+ * @author Fox Mulder
+ */
+public class RingBufferTracerTest {
+
+  /**
+   * Checks that nothing is dumped if parsing succeeds and that only the last
+   * events are dumped if parsing fails.
+   */
+  @Test
+  public void testDumpOnFailure() throws Exception {
+    for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+      StringWriter out = new StringWriter();
+      RingBufferTracer tracer = new RingBufferTracer(16, out);
+      RecordParser parser = RecordParser.newParser(engine);
+      parser.setTracer(tracer);
+
+      parser.parse("abc,de\nfgh\n");
+      Assert.assertEquals("", out.toString());
+
+      try {
+        parser.parse("abc,de\nfgh\nij,kl,1\n");
+        Assert.fail();
+      } catch (SyntaxException e) {
+        String dump = out.toString();
+        Assert.assertTrue(tracer.getEventCount() > 16L);
+        Assert.assertTrue(dump.startsWith("LAST 16 OF " + tracer.getEventCount() + " EVENTS:\n"));
+        Assert.assertEquals(17, dump.split("\n").length);
+        Assert.assertTrue(dump.contains("us !     <- 3:7 Field"));
+      }
+    }
+  }
+
+  /**
+   * Checks that nothing is dumped if input stream fails and that errors of
+   * the dump do not replace the syntax error.
+   */
+  @Test
+  public void testDumpOnStreamFailure() throws Exception {
+    for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+      StringWriter out = new StringWriter();
+      RecordParser parser = RecordParser.newParser(engine);
+      parser.setTracer(new RingBufferTracer(16, out));
+
+      try {
+        parser.parse(new StringReader("abc,de\n") {
+          @Override
+          public int read(char[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count < 0) {
+              throw new IOException("stream");
+            }
+            return count;
+          }
+        });
+        Assert.fail();
+      } catch (IOException e) {
+        Assert.assertEquals("stream", e.getMessage());
+        Assert.assertEquals("", out.toString());
+      }
+
+      parser.setTracer(new RingBufferTracer(16, new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+          throw new IOException("dump");
+        }
+        @Override public void flush() {}
+        @Override public void close() {}
+      }));
+
+      try {
+        parser.parse("abc,de\nfgh\nij,kl,1\n");
+        Assert.fail();
+      } catch (SyntaxException e) {
+        Assert.assertEquals(1, e.getSuppressed().length);
+        Assert.assertEquals("dump", e.getSuppressed()[0].getMessage());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.util.Map;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.util.counter.HitLatencyCounter;
+
+import static org.foxlabs.util.counter.Counters.*;
+
+/**
+ * Tests for the {@link StatisticsTracer}.
+ *
+ * @author Fox Mulder
+ */
+public class StatisticsTracerTest {
+
+  /**
+   * Checks that totals of a tracer reused by several parsings are sums of the
+   * rule counters and earlier parsings are not counted twice.
+   */
+  @Test
+  public void testReuse() throws Exception {
+    for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+      VariablesTracer tracer = new VariablesTracer();
+      RecordParser parser = RecordParser.newParser(engine);
+      parser.setTracer(tracer);
+      parser.parse(RecordParser.RECORDS);
+      parser.parse(RecordParser.RECORDS);
+      StringWriter out = new StringWriter();
+      tracer.print(out);
+      Assert.assertFalse(out.toString().contains("${"));
+
+      Assert.assertEquals(total(tracer.terminalCounters).toString(),
+          tracer.variables.get("totalTerminalStatistics"));
+      Assert.assertEquals(total(tracer.productionCounters).toString(),
+          tracer.variables.get("totalProductionStatistics"));
+      Assert.assertEquals(total(tracer.actionCounters).toString(),
+          tracer.variables.get("totalActionStatistics"));
+    }
+  }
+
+  private static HitLatencyCounter total(HitLatencyCounter[] counters) {
+    HitLatencyCounter total = defaultHitLatencyCounter();
+    for (HitLatencyCounter counter : counters) {
+      if (counter != null) {
+        total.merge(counter);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Statistics tracer that keeps variables of the statistics template.
+   */
+  static class VariablesTracer extends StatisticsTracer {
+
+    Map<String, String> variables;
+
+    @Override
+    protected void defineVariables(Map<String, String> variables) {
+      this.variables = variables;
+    }
+
+  }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.Parser;
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.grammar.Rule;
+import org.foxlabs.peg4j.grammar.RuleKind;
+import org.foxlabs.peg4j.grammar.Reference;
+import org.foxlabs.peg4j.grammar.Expression;
+import org.foxlabs.peg4j.grammar.Production;
+
+/**
+ * Tests that tracers receive only events accepted by their filters.
+ *
+ * @author Fox Mulder
+ */
+public class TraceFilterTest {
+
+  /**
+   * Checks that tracer filtered by event type and rule kind receives only
+   * production events and the same number of them as unfiltered tracer, for
+   * interpreter, parsing machine and compiled productions.
+   */
+  @Test
+  public void testKindFilter() throws IOException, RecognitionException {
+    for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+      Recorder all = new Recorder(TraceFilter.ALL);
+      parse(RecordParser.newParser(engine), all);
+
+      Recorder productions = new Recorder(TraceFilter.ALL.events(TraceFilter.RULE_EVENTS)
+          .kinds(RuleKind.PRODUCTION));
+      parse(RecordParser.newParser(engine), productions);
+
+      Assert.assertTrue(all.traces[RuleKind.TERMINAL.ordinal()] > 0);
+      Assert.assertTrue(all.cacheEvents > 0);
+      for (RuleKind kind : RuleKind.values()) {
+        int expected = kind == RuleKind.PRODUCTION ? all.traces[kind.ordinal()] : 0;
+        Assert.assertEquals(expected, productions.traces[kind.ordinal()]);
+      }
+      Assert.assertEquals(productions.traceCount(), productions.backtraces);
+      Assert.assertEquals(0, productions.cacheEvents);
+    }
+  }
+
+  /**
+   * Checks that tracer filtered by production name and range of offsets
+   * receives only events of the rules of that production within the range.
+   */
+  @Test
+  public void testProductionFilter() throws IOException, RecognitionException {
+    for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+      Recorder recorder = new Recorder(TraceFilter.ALL.productions("Field").range(0L, 7L));
+      parse(RecordParser.newParser(engine), recorder);
+      Assert.assertTrue(recorder.traceCount() > 0);
+      Assert.assertEquals(recorder.traceCount(), recorder.backtraces);
+      Assert.assertEquals(0, recorder.rejected);
+    }
+  }
+
+  /**
+   * Checks that trace and backtrace events stay paired if range of offsets
+   * ends inside a repetition that marks each iteration, so the start offset
+   * at backtrace is beyond the range while it was within it at trace.
+   */
+  @Test
+  public void testRangeInsideRepetition() throws IOException, RecognitionException {
+    final TraceFilter filter = TraceFilter.ALL.range(0L, 6L);
+    for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+      Recorder recorder = new Recorder(filter);
+      parse(RecordParser.newParser(engine), recorder);
+      Assert.assertTrue(recorder.traceCount() > 0);
+      Assert.assertEquals(recorder.traceCount(), recorder.backtraces);
+      Assert.assertEquals(0, recorder.depth);
+      Assert.assertEquals(0, recorder.rejected);
+
+      AllocationTracer allocations = new AllocationTracer() {
+        @Override
+        public TraceFilter getFilter() {
+          return filter;
+        }
+      };
+      parse(RecordParser.newParser(engine), allocations);
+    }
+  }
+
+  /**
+   * Checks that chain of tracers applies filter of each tracer and keeps
+   * trace and backtrace events paired for tracer filtered by range that ends
+   * inside a repetition.
+   */
+  @Test
+  public void testChain() throws IOException, RecognitionException {
+    for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+      Recorder all = new Recorder(TraceFilter.ALL);
+      Recorder cache = new Recorder(TraceFilter.ALL.events(TraceFilter.CACHE_GET_EVENTS
+          | TraceFilter.CACHE_PUT_EVENTS));
+      Recorder range = new Recorder(TraceFilter.ALL.range(0L, 6L));
+      parse(RecordParser.newParser(engine), new RuleTracer.Chain(all, cache, range));
+      Assert.assertTrue(all.traceCount() > 0);
+      Assert.assertEquals(0, cache.traceCount());
+      Assert.assertEquals(all.cacheEvents, cache.cacheEvents);
+      Assert.assertTrue(range.traceCount() > 0);
+      Assert.assertTrue(range.traceCount() < all.traceCount());
+      Assert.assertEquals(range.traceCount(), range.backtraces);
+      Assert.assertEquals(0, range.depth);
+      Assert.assertEquals(0, range.rejected);
+    }
+  }
+
+  /**
+   * Checks that chain of tracers is filtered by union of filters of the
+   * tracers and that filters are obtained when parsing begins rather than
+   * when chain is created.
+   */
+  @Test
+  public void testChainFilter() throws IOException, RecognitionException {
+    for (int engine = 0; engine < RecordParser.ENGINE_COUNT; engine++) {
+      Recorder productions = new Recorder(TraceFilter.ALL.events(0));
+      Recorder cache = new Recorder(TraceFilter.ALL.events(TraceFilter.CACHE_GET_EVENTS));
+      RuleTracer.Chain chain = new RuleTracer.Chain(productions, cache);
+      productions.filter = TraceFilter.ALL.events(TraceFilter.RULE_EVENTS).kinds(RuleKind.PRODUCTION);
+
+      TraceFilter filter = chain.getFilter();
+      Assert.assertFalse(filter.isAll());
+      Assert.assertEquals(TraceFilter.RULE_EVENTS | TraceFilter.CACHE_GET_EVENTS, filter.getEvents());
+
+      parse(RecordParser.newParser(engine), chain);
+      Assert.assertTrue(productions.traces[RuleKind.PRODUCTION.ordinal()] > 0);
+      Assert.assertEquals(productions.traces[RuleKind.PRODUCTION.ordinal()], productions.traceCount());
+      Assert.assertEquals(0, productions.cacheEvents);
+      Assert.assertTrue(cache.cacheEvents > 0);
+      Assert.assertEquals(0, cache.traceCount());
+      Assert.assertEquals(TraceFilter.ALL, new RuleTracer.Chain(cache, new Recorder(TraceFilter.ALL)).getFilter());
+    }
+  }
+
+  private static void parse(Parser<?> parser, RuleTracer tracer) throws IOException, RecognitionException {
+    parser.setTracer(tracer);
+    parser.parse(RecordParser.RECORDS);
+  }
+
+  // Recorder
+
+  private static class Recorder extends RuleTracer.Adapter {
+
+    TraceFilter filter;
+
+    BacktrackingReader stream;
+
+    final int[] traces = new int[RuleKind.values().length];
+
+    int backtraces = 0;
+
+    int depth = 0;
+
+    int cacheEvents = 0;
+
+    int rejected = 0;
+
+    Recorder(TraceFilter filter) {
+      this.filter = filter;
+    }
+
+    int traceCount() {
+      int count = 0;
+      for (int trace : traces) {
+        count += trace;
+      }
+      return count;
+    }
+
+    @Override
+    public TraceFilter getFilter() {
+      return filter;
+    }
+
+    @Override
+    public void open(BacktrackingReader stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public void onRuleTrace(Rule rule) {
+      traces[rule.getKind().ordinal()]++;
+      depth++;
+      check(rule);
+      if (stream.getStartOffset() >= filter.getEndOffset()) {
+        rejected++;
+      }
+    }
+
+    @Override
+    public void onRuleBacktrace(Rule rule, boolean success) {
+      backtraces++;
+      if (--depth < 0) {
+        rejected++;
+      }
+      check(rule);
+    }
+
+    @Override
+    public void onCacheGet(Reference reference, boolean hit, boolean success) {
+      cacheEvents++;
+    }
+
+    @Override
+    public void onCachePut(Reference reference) {
+      cacheEvents++;
+    }
+
+    void check(Rule rule) {
+      Production owner = rule instanceof Production ? (Production) rule : ((Expression) rule).getOwner();
+      if (filter.getProductions() != null && !filter.getProductions().contains(owner.getName())) {
+        rejected++;
+      }
+    }
+
+  }
+
+}
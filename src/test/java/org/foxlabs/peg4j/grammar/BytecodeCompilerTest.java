@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.grammar;
+
+import java.net.URL;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.JavaParser;
+import org.foxlabs.peg4j.debug.RuleTracer;
+import org.foxlabs.peg4j.util.ClassAssembler;
+
+import static org.foxlabs.peg4j.JavaParser.JAVA_SOURCES;
+import static org.foxlabs.peg4j.JavaParser.parse;
+
+/**
+ * Tests that compiled productions behave exactly as interpreted ones.
+ *
+ * @author Fox Mulder
+ */
+public class BytecodeCompilerTest {
+
+  /**
+   * Parses the grammar of Java language using grammar parser, that uses
+   * memoization, semantic actions and transactions, and checks that compiled
+   * grammar parser produces the same grammar as interpreted one.
+   */
+  @Test
+  public void testGrammarParser() throws IOException, RecognitionException {
+    URL source = getClass().getResource("/java18.peg4j");
+
+    GrammarParser interpreter = new GrammarParser();
+    String expected = interpreter.parse(source).toString(true);
+
+    GrammarParser compiler = new GrammarParser();
+    compiler.setCompileThreshold(1);
+    Assert.assertEquals(expected, compiler.parse(source).toString(true));
+    Assert.assertTrue(compiler.getGrammar().getStart().isCompiled());
+  }
+
+  /**
+   * Parses Java sources and checks that compiled parser produces the same
+   * results and syntax errors as interpreted one.
+   */
+  @Test
+  public void testJavaParser() throws IOException {
+    JavaParser parser = new JavaParser();
+    String[] expected = new String[JAVA_SOURCES.length];
+    for (int i = 0; i < JAVA_SOURCES.length; i++) {
+      expected[i] = parse(parser, JAVA_SOURCES[i]);
+    }
+
+    parser.setCompileThreshold(1);
+    for (int i = 0; i < JAVA_SOURCES.length; i++) {
+      Assert.assertEquals(expected[i], parse(parser, JAVA_SOURCES[i]));
+    }
+    Assert.assertTrue(parser.getGrammar().getStart().isCompiled());
+    for (Production production : parser.getGrammar().getProductions()) {
+      Assert.assertNull(production.getCompileError());
+    }
+  }
+
+  /**
+   * Checks that parser with zero threshold never runs compiled code, even if
+   * productions of the shared grammar are already compiled.
+   */
+  @Test
+  public void testDisabledThreshold() throws IOException {
+    CompiledFrameTracer tracer = new CompiledFrameTracer();
+    JavaParser parser = new JavaParser();
+    parser.setTracer(tracer);
+    parser.setCompileThreshold(1);
+    parse(parser, JAVA_SOURCES[0]);
+    Assert.assertTrue(parser.getGrammar().getStart().isCompiled());
+    Assert.assertTrue(tracer.compiled);
+
+    tracer.compiled = false;
+    parser.setCompileThreshold(0);
+    parse(parser, JAVA_SOURCES[0]);
+    Assert.assertFalse(tracer.compiled);
+  }
+
+  /**
+   * Checks that jumps farther than 16-bit offset allows are rejected instead
+   * of producing wrong bytecode, so that production is left interpreted.
+   */
+  @Test
+  public void testJumpRange() {
+    ClassAssembler assembler = new ClassAssembler(ClassAssembler.ACC_PUBLIC, "Jumps", "java/lang/Object");
+    ClassAssembler.Code code = assembler.addMethod(ClassAssembler.ACC_PUBLIC | ClassAssembler.ACC_STATIC,
+        "jumps", "()V", 0);
+    ClassAssembler.Label forward = code.newLabel();
+    ClassAssembler.Label backward = code.newLabel();
+    code.mark(backward);
+    code.jump(ClassAssembler.GOTO, forward);
+    for (int i = 0; i < Short.MAX_VALUE / 2 + 1; i++) {
+      code.op(ClassAssembler.ICONST_0, 1).op(ClassAssembler.POP, -1);
+    }
+    try {
+      code.mark(forward);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      code.jump(ClassAssembler.GOTO, backward);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Tracer that checks whether rules are traced from compiled code.
+   */
+  static class CompiledFrameTracer extends RuleTracer.Adapter {
+
+    boolean compiled = false;
+
+    @Override
+    public void onRuleTrace(Rule rule) {
+      for (StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+        compiled |= frame.getClassName().startsWith("org.foxlabs.peg4j.grammar.compiled.");
+      }
+    }
+
+  }
+
+}
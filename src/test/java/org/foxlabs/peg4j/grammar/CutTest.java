@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.grammar;
+
+import java.io.StringReader;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.MemoTable;
+import org.foxlabs.peg4j.Transaction;
+import org.foxlabs.peg4j.CutException;
+import org.foxlabs.peg4j.ActionContext;
+import org.foxlabs.peg4j.DefaultParser;
+import org.foxlabs.peg4j.Peg4jGrammar;
+import org.foxlabs.peg4j.BacktrackingReader;
+import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.util.HashMemoTable;
+
+import static org.foxlabs.peg4j.JavaParser.parse;
+import static org.foxlabs.peg4j.debug.RecordParser.ENGINE_COUNT;
+import static org.foxlabs.peg4j.debug.RecordParser.setEngine;
+
+/**
+ * Tests the cut operator.
+ *
+ * @author Fox Mulder
+ */
+public class CutTest {
+
+  /**
+   * Number of records in the generated input.
+   */
+  private static final int RECORD_COUNT = 10000;
+
+  /**
+   * Parses grammar with cuts and checks that cuts are printed back and cut
+   * inside predicate is reported.
+   */
+  @Test
+  public void testGrammar() throws IOException, RecognitionException {
+    Grammar grammar = new GrammarParser().parse("A : 'a' ^ B / 'c' ; B : !('b' ^) . ;");
+    Assert.assertTrue(grammar.toString().startsWith("A : ('a' ^ B) / 'c';\nB : !('b' ^) .;\n"));
+    Assert.assertTrue(grammar.getStart().getAllProblems().isEmpty());
+    Assert.assertEquals(Problem.Code.INEFFECTIVE_CUT,
+        grammar.getProduction(1).getAllProblems().get(0).getCode());
+  }
+
+  /**
+   * Checks that reader cannot be reset before the cut and returns only
+   * characters that follow the cut.
+   */
+  @Test
+  public void testReader() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      text.append("abcdefgh");
+    }
+    BacktrackingReader reader = new BacktrackingReader(new StringReader(text.toString()));
+    reader.mark();
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      reader.mark();
+      for (int j = 0; j < 8; j++) {
+        Assert.assertEquals("abcdefgh".charAt(j), reader.read());
+      }
+      reader.cut();
+      reader.release();
+    }
+    Assert.assertEquals(RECORD_COUNT * 8, reader.getCutOffset());
+    Assert.assertNull(reader.getText());
+
+    reader.mark();
+    Assert.assertEquals(BacktrackingReader.EOF, reader.read());
+    reader.reset();
+    try {
+      reader.reset();
+      Assert.fail();
+    } catch (CutException e) {
+      // Backtracking before the cut
+    }
+  }
+
+  /**
+   * Checks that alternatives are not tried once cut is passed and cut inside
+   * predicate is ignored by all engines.
+   */
+  @Test
+  public void testAlternatives() throws IOException {
+    for (int engine = 0; engine < ENGINE_COUNT; engine++) {
+      ChoiceParser parser = setEngine(new ChoiceParser(), engine);
+      Assert.assertNull(parse(parser, "ab"));
+      Assert.assertNotNull(parse(parser, "ac"));
+      Assert.assertNull(parse(parser, "xy"));
+      Assert.assertNull(parse(parser, "xz"));
+      Assert.assertNotNull(parse(parser, "xw"));
+    }
+  }
+
+  /**
+   * Parses a large number of records and checks that memo table does not grow
+   * and syntax error after the cut is reported by all engines.
+   */
+  @Test
+  public void testRecords() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      text.append("abc,de,f\n");
+    }
+
+    for (int engine = 0; engine < ENGINE_COUNT; engine++) {
+      RecordParser parser = setEngine(new RecordParser(), engine);
+      Assert.assertNull(parse(parser, text.toString()));
+      Assert.assertEquals(RECORD_COUNT, parser.recordCount);
+      Assert.assertTrue(parser.maxMemoSize < 4);
+      Assert.assertTrue(parse(parser, "ab,\n").startsWith("1:4:"));
+      Assert.assertTrue(parse(parser, "ab\ncd;\n").startsWith("2:3:"));
+    }
+  }
+
+  /**
+   * Parses a large number of records after the header cut in streaming mode
+   * and checks that neither buffer, line index nor memo table grows with the
+   * input, while without streaming mode buffer keeps the whole input.
+   */
+  @Test
+  public void testStreaming() throws IOException, RecognitionException {
+    StringBuilder text = new StringBuilder("records\n");
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      text.append("abc,de,f\n");
+    }
+
+    for (int engine = 0; engine < ENGINE_COUNT; engine++) {
+      StreamParser parser = setEngine(new StreamParser(), engine);
+      parser.setStreaming(true);
+      BacktrackingReader reader = new BacktrackingReader(new StringReader(text.toString()));
+      parser.parse(reader);
+      Assert.assertEquals(RECORD_COUNT, parser.recordCount);
+      Assert.assertTrue(reader.getCapacity() < text.length() / 4);
+      Assert.assertTrue(reader.getLineCapacity() < RECORD_COUNT / 4);
+      Assert.assertTrue(parser.maxMemoSize < RECORD_COUNT / 4);
+      Assert.assertTrue(parse(parser, text + "ab;\n").startsWith((RECORD_COUNT + 2) + ":3:"));
+
+      parser.setStreaming(false);
+      reader = new BacktrackingReader(new StringReader(text.toString()));
+      parser.parse(reader);
+      Assert.assertEquals(RECORD_COUNT, parser.recordCount);
+      Assert.assertTrue(reader.getCapacity() >= text.length());
+      Assert.assertTrue(parser.maxMemoSize >= RECORD_COUNT);
+    }
+  }
+
+  // ChoiceParser
+
+  @Peg4jGrammar("Start : ('a' ^ 'b' / 'a' 'c' / &('x' ^) 'x' 'z' / 'x' 'y') !. ;")
+  public static class ChoiceParser extends DefaultParser<Object> {
+
+    @Override
+    protected Transaction getTransaction() {
+      return Transaction.STATELESS;
+    }
+
+    @Override
+    protected Object buildResult() {
+      return null;
+    }
+
+  }
+
+  // RecordParser
+
+  @Peg4jGrammar("File : (@Record ^)* !. ; Record : $record(Field (',' Field)*) '\\n' ; Field : ['a'-'z']+ ;")
+  public static class RecordParser extends DefaultParser<Object> {
+
+    int recordCount;
+
+    int maxMemoSize;
+
+    @Override
+    protected Transaction getTransaction() {
+      return Transaction.STATELESS;
+    }
+
+    @Override
+    protected MemoTable createMemoTable() {
+      recordCount = 0;
+      maxMemoSize = 0;
+      return new HashMemoTable() {
+        @Override
+        public void put(int production, long offset, int length, Transaction delta) {
+          super.put(production, offset, length, delta);
+          maxMemoSize = Math.max(maxMemoSize, size());
+        }
+      };
+    }
+
+    @Override
+    protected Object buildResult() {
+      return null;
+    }
+
+    private void record(ActionContext context) {
+      recordCount++;
+    }
+
+  }
+
+  // StreamParser
+
+  @Peg4jGrammar("File : 'records\\n' ^ @Record* !. ; Record : $record(Field (',' Field)*) '\\n' ; Field : ['a'-'z']+ ;")
+  public static class StreamParser extends RecordParser {}
+
+}
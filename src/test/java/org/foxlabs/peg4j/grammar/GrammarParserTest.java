@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.grammar;
+
+import java.net.URL;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.RecognitionException;
+
+/**
+ * Tests the grammar parser.
+ *
+ * @author Fox Mulder
+ */
+public class GrammarParserTest {
+
+  /**
+   * Grammar with syntax errors, so memoized productions are reparsed during
+   * error recovery and their snapshots contain rules, symbols and problems.
+   */
+  private static final String INVALID_GRAMMAR =
+      "A : 'a\\q' B* C\n"
+    + "B : \"b\" ('c' / D) {action} ;\n"
+    + "C : [x-z] # comment\n"
+    + "  !'y' D+ ;\n"
+    + "D : 'd' E : 'e\n"
+    + "E : . ? ;\n"
+    + "F = 'f' )\n";
+
+  /**
+   * Parses grammar with memoization on and off and checks that snapshots
+   * replayed by memo hits produce the same grammar and problems. Snapshots
+   * of productions copy only stacks that have new values, so memo hits
+   * replay rules alone as well as rules together with problems.
+   */
+  @Test
+  public void testMemoization() throws IOException, RecognitionException {
+    URL source = getClass().getResource("/java18.peg4j");
+    String[] texts = {INVALID_GRAMMAR, new GrammarParser().parse(source).toString(true)};
+    for (String text : texts) {
+      GrammarParser parser = new GrammarParser();
+      parser.setMemoable(false);
+      Grammar expected = parser.parse(text);
+
+      parser = new GrammarParser();
+      Grammar grammar = parser.parse(text);
+      Assert.assertEquals(toString(expected), toString(grammar));
+    }
+    GrammarParser parser = new GrammarParser();
+    Grammar grammar = parser.parse(INVALID_GRAMMAR);
+    Assert.assertTrue(grammar.hasProblems());
+    Assert.assertTrue(parser.getLastReport().getMemoHitCount() > 0);
+  }
+
+  /**
+   * Returns productions and problems of the specified grammar as a string.
+   * Productions that failed to parse have no expressions.
+   */
+  private static String toString(Grammar grammar) {
+    StringBuilder buf = new StringBuilder();
+    for (Production production : grammar.getProductions()) {
+      buf.append(production.getName()).append(" : ");
+      if (production.getExpression() != null) {
+        buf.append(production.getExpression().toString(true));
+      }
+      buf.append("\n");
+    }
+    return buf.append(grammar.getProblems()).toString();
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.grammar;
+
+import java.net.URL;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.Transaction;
+import org.foxlabs.peg4j.DefaultParser;
+import org.foxlabs.peg4j.Peg4jGrammar;
+import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.JavaParser;
+import org.foxlabs.peg4j.debug.RuleTracer;
+
+import static org.foxlabs.peg4j.JavaParser.JAVA_SOURCES;
+import static org.foxlabs.peg4j.JavaParser.parse;
+
+/**
+ * Tests that parsing machine behaves exactly as interpreter.
+ *
+ * @author Fox Mulder
+ */
+public class ParsingMachineTest {
+
+  /**
+   * Nesting depth of the input that overflows stack of the interpreter.
+   */
+  private static final int NESTING_DEPTH = 100000;
+
+  /**
+   * Parses the grammar of Java language using grammar parser, that uses
+   * memoization, semantic actions and transactions, and checks that parsing
+   * machine produces the same grammar as interpreter.
+   */
+  @Test
+  public void testGrammarParser() throws IOException, RecognitionException {
+    URL source = getClass().getResource("/java18.peg4j");
+
+    GrammarParser interpreter = new GrammarParser();
+    String expected = interpreter.parse(source).toString(true);
+
+    GrammarParser machine = new GrammarParser();
+    machine.setStackless(true);
+    Assert.assertEquals(expected, machine.parse(source).toString(true));
+  }
+
+  /**
+   * Parses Java sources and checks that parsing machine produces the same
+   * results and syntax errors as interpreter.
+   */
+  @Test
+  public void testJavaParser() throws IOException {
+    JavaParser parser = new JavaParser();
+    String[] expected = new String[JAVA_SOURCES.length];
+    for (int i = 0; i < JAVA_SOURCES.length; i++) {
+      expected[i] = parse(parser, JAVA_SOURCES[i]);
+    }
+
+    parser.setStackless(true);
+    for (int i = 0; i < JAVA_SOURCES.length; i++) {
+      Assert.assertEquals(expected[i], parse(parser, JAVA_SOURCES[i]));
+    }
+  }
+
+  /**
+   * Parses Java sources with and without tracer and checks that syntax errors
+   * are the same for interpreter, parsing machine and compiled productions.
+   */
+  @Test
+  public void testUntracedErrors() throws IOException {
+    JavaParser parser = new JavaParser();
+    parser.setTracer(new RuleTracer.Adapter());
+    String[] expected = new String[JAVA_SOURCES.length];
+    for (int i = 0; i < JAVA_SOURCES.length; i++) {
+      expected[i] = parse(parser, JAVA_SOURCES[i]);
+    }
+
+    parser.setTracer(null);
+    for (int i = 0; i < JAVA_SOURCES.length; i++) {
+      Assert.assertEquals(expected[i], parse(parser, JAVA_SOURCES[i]));
+    }
+
+    parser.setStackless(true);
+    for (int i = 0; i < JAVA_SOURCES.length; i++) {
+      Assert.assertEquals(expected[i], parse(parser, JAVA_SOURCES[i]));
+    }
+
+    parser = new JavaParser();
+    parser.setCompileThreshold(1);
+    for (int i = 0; i < JAVA_SOURCES.length; i++) {
+      Assert.assertEquals(expected[i], parse(parser, JAVA_SOURCES[i]));
+    }
+  }
+
+  /**
+   * Parses deeply nested input that cannot be parsed by interpreter.
+   */
+  @Test
+  public void testDeepNesting() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < NESTING_DEPTH; i++) {
+      text.append('[');
+    }
+    text.append('x');
+    for (int i = 0; i < NESTING_DEPTH; i++) {
+      text.append(']');
+    }
+
+    NestingParser parser = new NestingParser();
+    parser.setStackless(true);
+    Assert.assertNull(parse(parser, text.toString()));
+    Assert.assertNotNull(parse(parser, text.substring(1)));
+  }
+
+  // NestingParser
+
+  @Peg4jGrammar("Start : Array !. ; Array : '[' Array ']' / 'x' ;")
+  public static class NestingParser extends DefaultParser<Object> {
+
+    @Override
+    protected Transaction getTransaction() {
+      return Transaction.STATELESS;
+    }
+
+    @Override
+    protected Object buildResult() {
+      return null;
+    }
+
+  }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.util;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import java.net.URL;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import org.foxlabs.peg4j.MemoTable;
+import org.foxlabs.peg4j.Transaction;
+import org.foxlabs.peg4j.ActionContext;
+import org.foxlabs.peg4j.DefaultParser;
+import org.foxlabs.peg4j.Peg4jGrammar;
+import org.foxlabs.peg4j.RecognitionException;
+import org.foxlabs.peg4j.debug.RuleTracer;
+import org.foxlabs.peg4j.grammar.Reference;
+import org.foxlabs.peg4j.grammar.Production;
+import org.foxlabs.peg4j.grammar.GrammarParser;
+
+/**
+ * Tests memo table implementations.
+ *
+ * @author Fox Mulder
+ */
+public class MemoTableTest {
+
+  /**
+   * Number of entries to store, enough to expand tables several times.
+   */
+  private static final int ENTRY_COUNT = 10000;
+
+  /**
+   * Tests {@link HashMemoTable}.
+   */
+  @Test
+  public void testHashMemoTable() {
+    testMemoTable(new HashMemoTable(16));
+  }
+
+  /**
+   * Tests {@link DenseMemoTable}.
+   */
+  @Test
+  public void testDenseMemoTable() {
+    testMemoTable(new DenseMemoTable(4));
+  }
+
+  /**
+   * Tests {@link DirectMemoTable}.
+   */
+  @Test
+  public void testDirectMemoTable() {
+    DirectMemoTable table = new DirectMemoTable(16);
+    testMemoTable(table);
+    Assert.assertEquals(ENTRY_COUNT, table.size());
+    table.release();
+    Assert.assertEquals(0L, table.getAllocatedSize());
+  }
+
+  /**
+   * Checks that {@link DirectMemoTable} reuses handles of overwritten, removed
+   * and cut snapshots and keeps entries that survive cuts.
+   */
+  @Test
+  public void testDirectMemoTableHandles() {
+    DirectMemoTable table = new DirectMemoTable(16);
+    Transaction[] deltas = new Transaction[ENTRY_COUNT];
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      deltas[i] = new Transaction.Adapter();
+      table.put(0, 0L, i, deltas[i]);
+    }
+    Assert.assertEquals(1, table.size());
+    Assert.assertEquals(1, table.getHandleCount());
+
+    for (int round = 1; round <= 100; round++) {
+      long base = round * 100L;
+      for (int i = 0; i < 100; i++) {
+        table.put(1, base + i, i, deltas[i]);
+        table.put(2, base + i, i, null);
+      }
+      table.remove(1, base);
+      Assert.assertEquals(round == 1 ? 1 : 199, table.cut(base));
+      Assert.assertEquals(199, table.size());
+      Assert.assertTrue(table.getHandleCount() <= 200);
+      for (int i = 0; i < 100; i++) {
+        Assert.assertEquals(i > 0, table.find(1, base + i));
+        if (i > 0) {
+          Assert.assertEquals(i, table.getLength());
+          Assert.assertSame(deltas[i], table.getDelta());
+        }
+        Assert.assertTrue(table.find(2, base + i));
+        Assert.assertNull(table.getDelta());
+      }
+    }
+    table.release();
+  }
+
+  /**
+   * Checks that entries at offsets beyond 32 bits are not confused and cuts
+   * remove them.
+   */
+  @Test
+  public void testLongOffsets() {
+    long base = 5L << 32;
+    MemoTable[] tables = {new HashMemoTable(16), new DenseMemoTable(2), new DirectMemoTable(16)};
+    for (MemoTable table : tables) {
+      table.cut(base);
+      table.put(1, base + 1L, 1, null);
+      table.put(1, base + 2L, 2, null);
+      Assert.assertTrue(table.find(1, base + 1L));
+      Assert.assertEquals(1, table.getLength());
+      Assert.assertFalse(table.find(1, 1L));
+      Assert.assertFalse(table.find(0, base + 1L));
+      Assert.assertEquals(1, table.cut(base + 2L));
+      Assert.assertFalse(table.find(1, base + 1L));
+      Assert.assertTrue(table.find(1, base + 2L));
+      table.release();
+    }
+    long key = BoundedMemoTable.keyOf(3, base + 7L);
+    Assert.assertEquals(3, BoundedMemoTable.productionOf(key));
+    Assert.assertEquals(base + 7L, BoundedMemoTable.offsetOf(key));
+  }
+
+  /**
+   * Checks that offsets beyond the key limit are rejected instead of being
+   * confused with lower offsets.
+   */
+  @Test
+  public void testOffsetLimit() {
+    long offset = BoundedMemoTable.MAX_OFFSET + 1L;
+    MemoTable[] tables = {new HashMemoTable(16), new DirectMemoTable(16)};
+    for (MemoTable table : tables) {
+      table.put(1, BoundedMemoTable.MAX_OFFSET, 1, null);
+      Assert.assertTrue(table.find(1, BoundedMemoTable.MAX_OFFSET));
+      try {
+        table.put(1, offset, 1, null);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      try {
+        table.find(1, offset);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      table.release();
+    }
+  }
+
+  /**
+   * Randomly stores and removes entries and checks that tables behave as
+   * {@link HashMap}.
+   */
+  @Test
+  public void testRemove() {
+    MemoTable[] tables = {new HashMemoTable(16), new DenseMemoTable(8), new DirectMemoTable(16)};
+    for (MemoTable table : tables) {
+      Map<Long, Integer> expected = new HashMap<Long, Integer>();
+      Random random = new Random(ENTRY_COUNT);
+      for (int i = 0; i < ENTRY_COUNT * 10; i++) {
+        int production = random.nextInt(8);
+        int offset = random.nextInt(ENTRY_COUNT / 10);
+        Long key = BoundedMemoTable.keyOf(production, offset);
+        if (random.nextInt(3) == 0) {
+          table.remove(production, offset);
+          expected.remove(key);
+        } else {
+          table.put(production, offset, i, null);
+          expected.put(key, i);
+        }
+      }
+      for (int production = 0; production < 8; production++) {
+        for (int offset = 0; offset < ENTRY_COUNT / 10; offset++) {
+          Integer length = expected.get(BoundedMemoTable.keyOf(production, offset));
+          Assert.assertEquals(length != null, table.find(production, offset));
+          if (length != null) {
+            Assert.assertEquals(length.intValue(), table.getLength());
+          }
+        }
+      }
+      table.release();
+    }
+  }
+
+  /**
+   * Randomly stores entries and cuts them and checks that tables behave as
+   * {@link HashMap} and cuts remove only entries before the offset.
+   */
+  @Test
+  public void testCut() {
+    MemoTable[] tables = {new HashMemoTable(16), new DenseMemoTable(8), new DirectMemoTable(16)};
+    for (MemoTable table : tables) {
+      Map<Long, Integer> expected = new HashMap<Long, Integer>();
+      Random random = new Random(ENTRY_COUNT);
+      long base = 0L;
+      for (int i = 0; i < ENTRY_COUNT * 10; i++) {
+        int production = random.nextInt(8);
+        long offset = base + random.nextInt(ENTRY_COUNT / 10);
+        if (random.nextInt(100) == 0) {
+          int count = 0;
+          for (Iterator<Long> keys = expected.keySet().iterator(); keys.hasNext();) {
+            if (BoundedMemoTable.offsetOf(keys.next()) < offset) {
+              keys.remove();
+              count++;
+            }
+          }
+          Assert.assertEquals(count, table.cut(offset));
+          base = offset;
+        } else {
+          table.put(production, offset, i, null);
+          expected.put(BoundedMemoTable.keyOf(production, offset), i);
+        }
+      }
+      for (int production = 0; production < 8; production++) {
+        for (long offset = 0L; offset < base + ENTRY_COUNT / 10; offset++) {
+          Integer length = expected.get(BoundedMemoTable.keyOf(production, offset));
+          Assert.assertEquals(length != null, table.find(production, offset));
+          if (length != null) {
+            Assert.assertEquals(length.intValue(), table.getLength());
+          }
+        }
+      }
+      table.release();
+    }
+  }
+
+  /**
+   * Parses the grammar of Java language using grammar parser with bounded memo
+   * table and checks that it produces the same grammar for each eviction
+   * policy and evictions are reported to the tracer.
+   */
+  @Test
+  public void testEvictionPolicies() throws IOException, RecognitionException {
+    URL source = getClass().getResource("/java18.peg4j");
+    String expected = new GrammarParser().parse(source).toString(true);
+
+    EvictionPolicy[] policies = {
+      new EvictionPolicy.Lru(), new EvictionPolicy.Window(64), new EvictionPolicy.Quota(4)
+    };
+    for (EvictionPolicy policy : policies) {
+      final int[] evictions = new int[1];
+      GrammarParser parser = new GrammarParser();
+      parser.setMemoLimit(16);
+      parser.setEvictionPolicy(policy);
+      parser.setTracer(new RuleTracer.Adapter() {
+        @Override
+        public void onCacheEvict(Production production, long offset) {
+          evictions[0]++;
+        }
+      });
+      Assert.assertEquals(expected, parser.parse(source).toString(true));
+      Assert.assertTrue(evictions[0] > 0);
+    }
+  }
+
+  /**
+   * Checks that entries remaining after a cut are still tracked by eviction
+   * policy, so the least recent of them is evicted instead of new entries.
+   */
+  @Test
+  public void testEvictionAfterCut() {
+    EvictionPolicy[] policies = {new EvictionPolicy.Lru(), new EvictionPolicy.Window(64)};
+    for (EvictionPolicy policy : policies) {
+      BoundedMemoTable table = new BoundedMemoTable(new HashMemoTable(), 8, policy);
+      for (long offset = 0L; offset < 8L; offset++) {
+        table.put(0, offset, 1, null);
+      }
+      Assert.assertEquals(4, table.cut(4L));
+      Assert.assertEquals(4, table.size());
+      for (long offset = 8L; offset < 12L; offset++) {
+        table.put(0, offset, 1, null);
+      }
+      Assert.assertEquals(0, table.getEvictionCount());
+      table.put(0, 12L, 1, null);
+      Assert.assertEquals(1, table.getEvictionCount());
+      Assert.assertFalse(table.find(0, 4L));
+      for (long offset = 5L; offset < 13L; offset++) {
+        Assert.assertTrue(table.find(0, offset));
+      }
+    }
+  }
+
+  /**
+   * Checks that clearing LRU policy forgets entries at offsets beyond the
+   * range of int values.
+   */
+  @Test
+  public void testLruClearLargeOffsets() {
+    long base = 3L << 32;
+    EvictionPolicy policy = new EvictionPolicy.Lru();
+    policy.onPut(0, base);
+    policy.clear();
+    policy.onHit(0, base);
+    policy.onPut(1, base + 1L);
+    policy.onPut(2, base + 2L);
+    Assert.assertEquals(BoundedMemoTable.keyOf(1, base + 1L), policy.evict(3, 1));
+    Assert.assertEquals(BoundedMemoTable.keyOf(2, base + 2L), policy.evict(2, 1));
+    Assert.assertEquals(EvictionPolicy.NONE, policy.evict(1, 1));
+  }
+
+  /**
+   * Parses input where memoized production is recognized twice at the same
+   * offset and checks that parser uses results stored in the table.
+   */
+  @Test
+  public void testMemoParser() throws IOException, RecognitionException {
+    for (final int type : new int[] {0, 1, 2}) {
+      MemoParser parser = new MemoParser() {
+        @Override
+        protected MemoTable createMemoTable() {
+          return type == 0 ? new HashMemoTable()
+              : type == 1 ? new DenseMemoTable(getGrammar().getProductionCount())
+              : new DirectMemoTable();
+        }
+      };
+      Assert.assertEquals(Integer.valueOf(1), parser.parse("aaac"));
+      Assert.assertEquals(Integer.valueOf(1), parser.parse("aaab"));
+    }
+  }
+
+  /**
+   * Parses input where memoized production fails twice at the same offset and
+   * checks that the second attempt uses failure stored in the table.
+   */
+  @Test
+  public void testFailureMemo() throws IOException, RecognitionException {
+    final int[] failureHits = new int[1];
+    FailureParser parser = new FailureParser();
+    parser.setTracer(new RuleTracer.Adapter() {
+      @Override
+      public void onCacheGet(Reference reference, boolean hit, boolean success) {
+        if (hit && !success) {
+          failureHits[0]++;
+        }
+      }
+    });
+    Assert.assertEquals(Integer.valueOf(1), parser.parse("abc"));
+    Assert.assertEquals(1, failureHits[0]);
+
+    parser.setMemoable(false);
+    Assert.assertEquals(Integer.valueOf(2), parser.parse("abc"));
+  }
+
+  /**
+   * Stores entries for a few productions and checks that all of them can be
+   * found.
+   */
+  private static void testMemoTable(MemoTable table) {
+    for (int offset = 0; offset < ENTRY_COUNT; offset++) {
+      table.put(offset % 4, offset, offset % 7, offset % 3 == 0 ? Transaction.STATELESS : null);
+    }
+    for (int offset = 0; offset < ENTRY_COUNT; offset++) {
+      Assert.assertTrue(table.find(offset % 4, offset));
+      Assert.assertEquals(offset % 7, table.getLength());
+      Assert.assertSame(offset % 3 == 0 ? Transaction.STATELESS : null, table.getDelta());
+      Assert.assertFalse(table.find((offset + 1) % 4, offset));
+    }
+    Assert.assertFalse(table.find(0, ENTRY_COUNT * 2));
+  }
+
+  // MemoParser
+
+  @Peg4jGrammar("Start : (@Letters 'b' / @Letters 'c') !. ; Letters : $letters('a'+) ;")
+  public static class MemoParser extends DefaultParser<Integer> {
+
+    private int count;
+
+    @Override
+    protected Transaction getTransaction() {
+      return Transaction.STATELESS;
+    }
+
+    @Override
+    protected Integer buildResult() {
+      int result = count;
+      count = 0;
+      return result;
+    }
+
+    private void letters(ActionContext context) {
+      count++;
+    }
+
+  }
+
+  // FailureParser
+
+  @Peg4jGrammar("Start : @Word 'x' / @Word 'y' / 'abc' ; Word : 'a' $letters('b') 'z' ;")
+  public static class FailureParser extends MemoParser {}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 FoxLabs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.foxlabs.peg4j.debug;
+
+import java.util.List;
+
+import java.time.Duration;
+
+import java.io.File;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+/**
+ * Tests for the {@link JfrTracer}.
+ *
+ * @author Fox Mulder
+ */
+public class JfrTracerTest {
+
+  /**
+   * Checks that tracer emits parse, production and memo summary events while
+   * recording and that nothing is dispatched to it otherwise.
+   */
+  @Test
+  public void testEvents() throws Exception {
+    JfrTracer tracer = new JfrTracer();
+    Assert.assertEquals(0, tracer.getFilter().getEvents());
+
+    File file = File.createTempFile("peg4j", ".jfr");
+    try {
+      try (Recording recording = new Recording()) {
+        recording.enable("org.foxlabs.peg4j.Parse");
+        recording.enable("org.foxlabs.peg4j.Production").withThreshold(Duration.ZERO);
+        recording.enable("org.foxlabs.peg4j.MemoSummary");
+        recording.start();
+        parse(tracer);
+        recording.stop();
+        recording.dump(file.toPath());
+      }
+
+      List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+      int parses = 0, fields = 0, summaries = 0;
+      for (RecordedEvent event : events) {
+        String name = event.getEventType().getName();
+        if (name.equals("org.foxlabs.peg4j.Parse")) {
+          Assert.assertTrue(event.getBoolean("success"));
+          Assert.assertEquals((long) RecordParser.RECORDS.length(), event.getLong("inputLength"));
+          parses++;
+        } else if (name.equals("org.foxlabs.peg4j.Production")) {
+          if ("Field".equals(event.getString("production")) && event.getBoolean("success")) {
+            fields++;
+          }
+        } else if (name.equals("org.foxlabs.peg4j.MemoSummary")) {
+          Assert.assertTrue(event.getLong("misses") > 0L);
+          summaries++;
+        }
+      }
+      Assert.assertEquals(1, parses);
+      Assert.assertEquals(6, fields);
+      Assert.assertEquals(1, summaries);
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void parse(RuleTracer tracer) throws Exception {
+    RecordParser parser = new RecordParser();
+    parser.setTracer(tracer);
+    parser.parse(RecordParser.RECORDS);
+  }
+
+}